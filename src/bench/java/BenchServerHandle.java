@@ -0,0 +1,119 @@
+import bench.ServerHandle;
+
+import java.io.File;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Runs IdServer in-process for the JMH benchmarks in the bench package (see ServerHandle for why
+ * this class is outside it).
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class BenchServerHandle implements ServerHandle {
+    private IdServer server;
+    private Registry registry;
+    private Queries remote;
+    private String[] loginNames;
+    private String[] uuids;
+
+    @Override
+    public void start(File dir, int users, long fsyncIntervalMs) throws Exception {
+        loginNames = new String[users];
+        uuids = new String[users];
+        List<User> generated = new ArrayList<>(users);
+        Date now = new Date();
+        for(int i = 0; i < users; i++) {
+            UUID uuid = UUID.randomUUID();
+            loginNames[i] = "user" + i;
+            uuids[i] = uuid.toString();
+            generated.add(new User(loginNames[i], "User " + i, null, uuid, "127.0.0.1", now, now));
+        }
+        new Snapshot(0, generated).write(new File(dir, "registry.snapshot"));
+
+        IdServer.startInProcess(dir, fsyncIntervalMs);
+        server = new IdServer("//IdServer");
+    }
+
+    @Override
+    public void stop() throws Exception {
+        if(registry != null) {
+            UnicastRemoteObject.unexportObject(registry, true);
+            registry = null;
+            remote = null;
+        }
+        UnicastRemoteObject.unexportObject(server, true);
+        IdServer.stopInProcess();
+    }
+
+    @Override
+    public void exportRmi(int port) throws Exception {
+        System.setProperty("java.rmi.server.hostname", "127.0.0.1");
+        registry = LocateRegistry.createRegistry(port);
+        registry.rebind("IdServer", server);
+        remote = (Queries) LocateRegistry.getRegistry("127.0.0.1", port).lookup("IdServer");
+    }
+
+    @Override
+    public String loginName(int i) {
+        return loginNames[i];
+    }
+
+    @Override
+    public String uuid(int i) {
+        return uuids[i];
+    }
+
+    @Override
+    public Object createLogin(String loginName) throws Exception {
+        return server.createLogin(loginName, "Bench User", null);
+    }
+
+    @Override
+    public Object lookupByLogin(String loginName) throws Exception {
+        return server.lookupByLogin(loginName);
+    }
+
+    @Override
+    public Object lookupByUUID(String uuid) throws Exception {
+        return server.lookupByUUID(uuid);
+    }
+
+    @Override
+    public Object modifyName(String oldLoginName, String newLoginName) throws Exception {
+        return server.modifyName(oldLoginName, newLoginName, null);
+    }
+
+    @Override
+    public Object deleteUser(String loginName) throws Exception {
+        return server.deleteUser(loginName, null);
+    }
+
+    @Override
+    public Object getInfo(String type) throws Exception {
+        return server.getInfo(type);
+    }
+
+    @Override
+    public Object remoteLookupByLogin(String loginName) throws Exception {
+        return remote.lookupByLogin(loginName);
+    }
+
+    @Override
+    public void writeToFile() throws Exception {
+        IdServer.Task.writeToFile(IdServer.getStore());
+    }
+
+    @Override
+    public void readFile() throws Exception {
+        IdServer.resetStore();
+        IdServer.readFile();
+    }
+}
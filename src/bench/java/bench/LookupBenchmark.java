@@ -0,0 +1,58 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * lookupByLogin and lookupByUUID called in-process for random existing users, at several registry
+ * sizes and thread counts (one nested class per thread count).
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public abstract class LookupBenchmark extends RegistryState {
+
+    @Param({"1000", "100000", "1000000"})
+    public int users;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        startRegistry(users, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws Exception {
+        stopRegistry();
+    }
+
+    @Benchmark
+    public Object lookupByLogin() throws Exception {
+        return server.lookupByLogin(server.loginName(ThreadLocalRandom.current().nextInt(users)));
+    }
+
+    @Benchmark
+    public Object lookupByUUID() throws Exception {
+        return server.lookupByUUID(server.uuid(ThreadLocalRandom.current().nextInt(users)));
+    }
+
+    @Threads(1)
+    public static class Threads1 extends LookupBenchmark {
+    }
+
+    @Threads(4)
+    public static class Threads4 extends LookupBenchmark {
+    }
+
+    @Threads(16)
+    public static class Threads16 extends LookupBenchmark {
+    }
+}
@@ -0,0 +1,154 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * createLogin, modifyName and deleteUser called in-process, at several registry sizes, thread
+ * counts and write-ahead log fsync intervals.
+ *
+ * Creates and deletes are timed in batches of BATCH so the registry can be put back to its
+ * starting size between batches, outside of the measurement.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public abstract class MutationBenchmark {
+    static final int BATCH = 1000;
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public Object createLogin(Registry registry, NewUsers batch) throws Exception {
+        Object last = null;
+        for(String loginName: batch.loginNames)
+            last = registry.server.createLogin(loginName);
+
+        return last;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public Object deleteUser(Registry registry, ExistingUsers batch) throws Exception {
+        Object last = null;
+        for(String loginName: batch.loginNames)
+            last = registry.server.deleteUser(loginName);
+
+        return last;
+    }
+
+    @Benchmark
+    public Object modifyName(Registry registry, Renamer renamer) throws Exception {
+        return renamer.next(registry.server);
+    }
+
+    @State(Scope.Benchmark)
+    public static class Registry extends RegistryState {
+
+        @Param({"1000", "100000", "1000000"})
+        public int users;
+
+        // 0 fsyncs before every reply, as the server does by default
+        @Param({"0", "100"})
+        public long fsyncInterval;
+
+        @Setup(Level.Trial)
+        public void start() throws Exception {
+            startRegistry(users, fsyncInterval);
+        }
+
+        @TearDown(Level.Trial)
+        public void stop() throws Exception {
+            stopRegistry();
+        }
+    }
+
+    /**
+     * Login names that are not in the registry yet, removed again after each batch
+     */
+    @State(Scope.Thread)
+    public static class NewUsers {
+        private static final AtomicInteger threads = new AtomicInteger();
+        private final int thread = threads.incrementAndGet();
+        private int round;
+        final String[] loginNames = new String[BATCH];
+
+        @Setup(Level.Invocation)
+        public void nextNames() {
+            round++;
+            for(int i = 0; i < BATCH; i++)
+                loginNames[i] = "bench-" + thread + "-" + round + "-" + i;
+        }
+
+        @TearDown(Level.Invocation)
+        public void deleteNames(Registry registry) throws Exception {
+            for(String loginName: loginNames)
+                registry.server.deleteUser(loginName);
+        }
+    }
+
+    /**
+     * Login names created before each batch, for deleteUser to remove
+     */
+    @State(Scope.Thread)
+    public static class ExistingUsers {
+        private static final AtomicInteger threads = new AtomicInteger();
+        private final int thread = threads.incrementAndGet();
+        private int round;
+        final String[] loginNames = new String[BATCH];
+
+        @Setup(Level.Invocation)
+        public void createNames(Registry registry) throws Exception {
+            round++;
+            for(int i = 0; i < BATCH; i++) {
+                loginNames[i] = "bench-" + thread + "-" + round + "-" + i;
+                registry.server.createLogin(loginNames[i]);
+            }
+        }
+    }
+
+    /**
+     * Renames one existing user per thread back and forth, so the registry never changes size
+     */
+    @State(Scope.Thread)
+    public static class Renamer {
+        private static final AtomicInteger threads = new AtomicInteger();
+        private final int thread = threads.getAndIncrement();
+        private String current;
+        private String other;
+
+        @Setup(Level.Trial)
+        public void pickUser(Registry registry) {
+            current = registry.server.loginName(thread % registry.users);
+            other = current + "-renamed";
+        }
+
+        Object next(ServerHandle server) throws Exception {
+            Object status = server.modifyName(current, other);
+            String renamed = other;
+            other = current;
+            current = renamed;
+
+            return status;
+        }
+    }
+
+    @Threads(1)
+    public static class Threads1 extends MutationBenchmark {
+    }
+
+    @Threads(4)
+    public static class Threads4 extends MutationBenchmark {
+    }
+
+    @Threads(16)
+    public static class Threads16 extends MutationBenchmark {
+    }
+}
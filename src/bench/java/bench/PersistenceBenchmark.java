@@ -0,0 +1,45 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Task.writeToFile (snapshot and log truncation) and readFile (snapshot load and log replay)
+ * over the whole registry.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class PersistenceBenchmark extends RegistryState {
+
+    @Param({"10000", "100000", "1000000"})
+    public int users;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        startRegistry(users, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws Exception {
+        stopRegistry();
+    }
+
+    @Benchmark
+    public void writeToFile() throws Exception {
+        server.writeToFile();
+    }
+
+    @Benchmark
+    public void readFile() throws Exception {
+        server.readFile();
+    }
+}
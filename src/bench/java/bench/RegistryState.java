@@ -0,0 +1,38 @@
+package bench;
+
+import java.io.File;
+import java.nio.file.Files;
+
+/**
+ * Benchmark state that starts and stops an in-process IdServer on a fresh temporary directory for
+ * one trial.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public abstract class RegistryState {
+    protected ServerHandle server;
+    private File dir;
+
+    /**
+     * @param users number of users in the registry before the first iteration
+     * @param fsyncIntervalMs 0 to fsync on every commit, otherwise the background fsync period
+     * @throws Exception if the server cannot be started
+     */
+    protected void startRegistry(int users, long fsyncIntervalMs) throws Exception {
+        dir = Files.createTempDirectory("idserver-bench").toFile();
+        server = ServerHandle.load();
+        server.start(dir, users, fsyncIntervalMs);
+    }
+
+    protected void stopRegistry() throws Exception {
+        server.stop();
+        File[] files = dir.listFiles();
+        if(files != null) {
+            for(File f: files)
+                f.delete();
+        }
+        dir.delete();
+    }
+}
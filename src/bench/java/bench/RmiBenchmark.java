@@ -0,0 +1,53 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * lookupByLogin round trips through RMI over the loopback interface, including serialization. The
+ * server runs without the request executor, so calls are served on RMI's connection threads.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public abstract class RmiBenchmark extends RegistryState {
+
+    @Param({"100000"})
+    public int users;
+
+    @Param({"5199"})
+    public int port;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        startRegistry(users, 0);
+        server.exportRmi(port);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws Exception {
+        stopRegistry();
+    }
+
+    @Benchmark
+    public Object lookupByLogin() throws Exception {
+        return server.remoteLookupByLogin(server.loginName(ThreadLocalRandom.current().nextInt(users)));
+    }
+
+    @Threads(1)
+    public static class Threads1 extends RmiBenchmark {
+    }
+
+    @Threads(8)
+    public static class Threads8 extends RmiBenchmark {
+    }
+}
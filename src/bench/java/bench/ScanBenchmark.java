@@ -0,0 +1,42 @@
+package bench;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * getInfo called in-process over the whole registry, for each kind of listing.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ScanBenchmark extends RegistryState {
+
+    @Param({"1000", "100000", "1000000"})
+    public int users;
+
+    @Param({"users", "uuids", "all"})
+    public String type;
+
+    @Setup(Level.Trial)
+    public void start() throws Exception {
+        startRegistry(users, 0);
+    }
+
+    @TearDown(Level.Trial)
+    public void stop() throws Exception {
+        stopRegistry();
+    }
+
+    @Benchmark
+    public Object getInfo() throws Exception {
+        return server.getInfo(type);
+    }
+}
@@ -0,0 +1,71 @@
+package bench;
+
+import java.io.File;
+
+/**
+ * What the benchmarks need from IdServer.
+ *
+ * IdServer and the rest of the server live in the default package, which classes in a named
+ * package cannot import, while JMH refuses benchmarks in the default package. The implementation,
+ * BenchServerHandle, therefore sits in the default package and is loaded by name once per trial;
+ * every measured call is then an ordinary interface call.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public interface ServerHandle {
+
+        /**
+         * Writes a snapshot of generated users to dir and starts the server in-process on it
+         *
+         * @param dir empty directory for the snapshot and write-ahead log
+         * @param users number of users in the registry
+         * @param fsyncIntervalMs 0 to fsync on every commit, otherwise the background fsync period
+         * @throws Exception if the server cannot be started
+         */
+        void start(File dir, int users, long fsyncIntervalMs) throws Exception;
+
+        void stop() throws Exception;
+
+        /**
+         * Binds the server to an RMI registry on the loopback interface and looks up its stub, so
+         * the remote* calls go through RMI
+         *
+         * @param port registry port
+         * @throws Exception if the server cannot be bound
+         */
+        void exportRmi(int port) throws Exception;
+
+        /**
+         * @return login name of the i-th generated user
+         */
+        String loginName(int i);
+
+        /**
+         * @return UUID of the i-th generated user
+         */
+        String uuid(int i);
+
+        Object createLogin(String loginName) throws Exception;
+
+        Object lookupByLogin(String loginName) throws Exception;
+
+        Object lookupByUUID(String uuid) throws Exception;
+
+        Object modifyName(String oldLoginName, String newLoginName) throws Exception;
+
+        Object deleteUser(String loginName) throws Exception;
+
+        Object getInfo(String type) throws Exception;
+
+        Object remoteLookupByLogin(String loginName) throws Exception;
+
+        void writeToFile() throws Exception;
+
+        void readFile() throws Exception;
+
+        static ServerHandle load() throws ReflectiveOperationException {
+                return (ServerHandle) Class.forName("BenchServerHandle").getDeclaredConstructor().newInstance();
+        }
+}
@@ -0,0 +1,256 @@
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Tracks when users were last looked up, off the request path.
+ *
+ * A lookup only writes the user's UUID and the time into a slot of a ring buffer, picked by the
+ * thread doing the lookup so threads rarely share one. The slots are preallocated arrays, so
+ * recording allocates nothing and never writes to the shared User. A background thread drains the
+ * buffers once per interval, keeps only the latest time for each user, and moves each of those
+ * users' last request date forward in the UserStore once.
+ *
+ * A user whose stored date is already within the interval is not recorded again, so a user looked
+ * up constantly costs one update per interval; its stored date is then at most two intervals
+ * behind. When a buffer is full the lookup moves the date forward in the UserStore itself, and
+ * wakes the drainer early. Last request dates are not written to the write-ahead log: they reach
+ * disk with the next snapshot, which drains the buffers first (see flush).
+ *
+ * On a replica the dates folded in are also handed on (see forwardTo), for the replica to send to
+ * its primary, whose reaper would otherwise only see the lookups it served itself.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class AccessTracker implements Closeable {
+    // Slots per buffer, a power of two
+    private static final int BUFFER_SIZE = 1024;
+
+    private final UserStore store;
+    private final long intervalMillis;
+    private final Buffer[] buffers;
+    private final int bufferMask;
+
+    // Used only while draining, guarded by this. Open addressing on the UUID, a zero time marks a
+    // free slot, and the table is at least twice the size of all buffers so it is never over half full.
+    private final long[] pendingHigh;
+    private final long[] pendingLow;
+    private final long[] pendingTime;
+    private final int[] pendingSlots;
+    private int pending;
+
+    private final LongAdder recorded = new LongAdder();
+    private final LongAdder overflowed = new LongAdder();
+    private final LongAdder folded = new LongAdder();
+
+    private final Thread drainer;
+    private volatile boolean closed;
+    private volatile Consumer<long[]> forward;
+
+    /**
+     * Starts the drainer thread
+     *
+     * @param store the store the dates are folded into
+     * @param intervalMillis milliseconds between drains, within which lookups of one user are
+     *                       folded into a single update
+     */
+    public AccessTracker(UserStore store, long intervalMillis) {
+        if(intervalMillis < 1)
+            throw new IllegalArgumentException("Interval must be positive: " + intervalMillis);
+        this.store = store;
+        this.intervalMillis = intervalMillis;
+
+        // About one buffer per request worker
+        int count = 1;
+        while(count < 2 * Runtime.getRuntime().availableProcessors())
+            count <<= 1;
+        buffers = new Buffer[count];
+        for(int i = 0; i < count; i++)
+            buffers[i] = new Buffer();
+        bufferMask = count - 1;
+
+        int capacity = 2 * count * BUFFER_SIZE;
+        pendingHigh = new long[capacity];
+        pendingLow = new long[capacity];
+        pendingTime = new long[capacity];
+        pendingSlots = new int[count * BUFFER_SIZE];
+
+        drainer = new Thread(this::drainLoop, "access-tracker");
+        drainer.setDaemon(true);
+        drainer.start();
+    }
+
+    /**
+     * Records a lookup of a user
+     *
+     * @param user the user looked up
+     * @return the time of the lookup
+     */
+    public long record(User user) {
+        long now = System.currentTimeMillis();
+        if(now - user.getLastRequestTime() < intervalMillis)
+            return now;
+
+        Buffer buffer = buffers[(int) Thread.currentThread().getId() & bufferMask];
+        while(true) {
+            long tail = buffer.tail.get();
+            if(tail - buffer.head >= BUFFER_SIZE) {
+                // Through the store, whose stripe lock keeps a concurrent rename from losing it
+                store.touch(user.getUUIDHigh(), user.getUUIDLow(), now);
+                overflowed.increment();
+                LockSupport.unpark(drainer);
+                return now;
+            }
+            if(buffer.tail.compareAndSet(tail, tail + 1)) {
+                int i = (int) tail & (BUFFER_SIZE - 1);
+                buffer.high[i] = user.getUUIDHigh();
+                buffer.low[i] = user.getUUIDLow();
+                // Publishes the slot to the drainer after the UUID
+                buffer.time.lazySet(i, now);
+                recorded.increment();
+                return now;
+            }
+        }
+    }
+
+    /**
+     * Drains every buffer into the store now, e.g. before a snapshot is taken
+     */
+    public synchronized void flush() {
+        for(Buffer buffer: buffers) {
+            long head = buffer.head;
+            // At most one buffer's worth per pass, which keeps the pending table under half full
+            for(int n = 0; n < BUFFER_SIZE; n++) {
+                int i = (int) head & (BUFFER_SIZE - 1);
+                long time = buffer.time.get(i);
+                // Zero until the claiming lookup has filled the slot in
+                if(time == 0)
+                    break;
+                coalesce(buffer.high[i], buffer.low[i], time);
+                buffer.time.lazySet(i, 0);
+                head++;
+            }
+            buffer.head = head;
+        }
+
+        Consumer<long[]> to = forward;
+        long[] touches = to != null && pending > 0 ? new long[3 * pending] : null;
+        for(int j = 0; j < pending; j++) {
+            int slot = pendingSlots[j];
+            store.touch(pendingHigh[slot], pendingLow[slot], pendingTime[slot]);
+            if(touches != null) {
+                touches[3 * j] = pendingHigh[slot];
+                touches[3 * j + 1] = pendingLow[slot];
+                touches[3 * j + 2] = pendingTime[slot];
+            }
+            pendingTime[slot] = 0;
+        }
+        if(touches != null)
+            to.accept(touches);
+        folded.add(pending);
+        pending = 0;
+    }
+
+    /**
+     * Hands every drain's updates on as well, three longs per user: the high and low bits of its
+     * UUID and the time of its latest lookup. The drain waits for the consumer, which should only
+     * queue them.
+     *
+     * @param forward consumer of each drain's updates, or null to stop
+     */
+    public void forwardTo(Consumer<long[]> forward) {
+        this.forward = forward;
+    }
+
+    /**
+     * Stops the drainer and folds in whatever it had not drained yet
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(drainer);
+        try {
+            drainer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+    }
+
+    /**
+     * @return lookups written into a buffer
+     */
+    public long getRecorded() {
+        return recorded.sum();
+    }
+
+    /**
+     * @return lookups moved into the store straight away because their buffer was full
+     */
+    public long getOverflowed() {
+        return overflowed.sum();
+    }
+
+    /**
+     * @return updates made to the store, one per user per drain
+     */
+    public long getFolded() {
+        return folded.sum();
+    }
+
+    // Callers hold this
+    private void coalesce(long high, long low, long time) {
+        int mask = pendingTime.length - 1;
+        for(int slot = hash(high, low) & mask; ; slot = (slot + 1) & mask) {
+            if(pendingTime[slot] == 0) {
+                pendingHigh[slot] = high;
+                pendingLow[slot] = low;
+                pendingTime[slot] = time;
+                pendingSlots[pending++] = slot;
+                return;
+            }
+            if(pendingHigh[slot] == high && pendingLow[slot] == low) {
+                pendingTime[slot] = Math.max(pendingTime[slot], time);
+                return;
+            }
+        }
+    }
+
+    private void drainLoop() {
+        long intervalNanos = intervalMillis * 1000000;
+        while(!closed) {
+            LockSupport.parkNanos(this, intervalNanos);
+            try {
+                flush();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private static int hash(long high, long low) {
+        long h = high ^ low;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+
+        return (int) h;
+    }
+
+    /**
+     * A ring buffer written by any number of lookups and read by the drainer. Lookups claim a slot
+     * by advancing tail; the drainer frees slots by advancing head.
+     */
+    private static class Buffer {
+        private final AtomicLong tail = new AtomicLong();
+        private volatile long head;
+        private final long[] high = new long[BUFFER_SIZE];
+        private final long[] low = new long[BUFFER_SIZE];
+        private final AtomicLongArray time = new AtomicLongArray(BUFFER_SIZE);
+    }
+}
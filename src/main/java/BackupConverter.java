@@ -0,0 +1,33 @@
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * One-shot converter from the legacy registry.backup (a serialized HashMap) to the binary
+ * snapshot format read by IdServer on start-up.
+ *
+ * Usage: BackupConverter [<legacy backup> [<snapshot>]], defaulting to registry.backup and
+ * registry.snapshot in the current directory. Run it while the server is stopped; any
+ * write-ahead log segments already present are replayed on top of the converted snapshot.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class BackupConverter {
+
+    public static void main(String[] args) {
+        File source = new File(args.length > 0 ? args[0] : "registry.backup");
+        File target = new File(args.length > 1 ? args[1] : "registry.snapshot");
+
+        try {
+            long start = System.currentTimeMillis();
+            Snapshot snapshot = Snapshot.readLegacy(source);
+            long bytes = snapshot.write(target);
+            System.out.println("Converted " + snapshot.getUsers().size() + " users from " + source + " to " + target
+                    + " (" + bytes + " bytes) in " + (System.currentTimeMillis() - start) + " ms");
+        } catch (IOException | ClassNotFoundException e) {
+            System.out.println("Conversion failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+}
@@ -0,0 +1,46 @@
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * Per-item outcome of a batch operation, in the same order as the items that were sent.
+ *
+ * Each item has a status code and, for creates and lookups that succeeded, the user. Statuses and
+ * users are kept in two arrays so a large batch is sent as two objects instead of one per item.
+ */
+public class BatchResult implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final Status[] statuses;
+    private final UserInfo[] users;
+
+    public BatchResult(int size) {
+        statuses = new Status[size];
+        users = new UserInfo[size];
+    }
+
+    /**
+     * @return a result giving every item the same status, e.g. when the whole batch was shed
+     */
+    public static BatchResult allOf(int size, Status status) {
+        BatchResult result = new BatchResult(size);
+        Arrays.fill(result.statuses, status);
+        return result;
+    }
+
+    public void set(int index, Status status, UserInfo user) {
+        statuses[index] = status;
+        users[index] = user;
+    }
+
+    public int size() {
+        return statuses.length;
+    }
+
+    public Status getStatus(int index) {
+        return statuses[index];
+    }
+
+    public UserInfo getUser(int index) {
+        return users[index];
+    }
+}
@@ -0,0 +1,208 @@
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The compact binary protocol spoken by BinaryTransport and BinaryQueries, laid out so it can be
+ * implemented without a JVM.
+ *
+ * Everything is big-endian. Each message is a frame: an int32 length of the rest of the frame,
+ * then an int32 request id chosen by the client. A request goes on with a uint8 opcode and its
+ * arguments; a reply goes on with a uint8 kind, REPLY followed by the result or FAILURE followed
+ * by a message. Replies carry the id of their request and may come back in any order, so a client
+ * can send any number of requests on one connection without waiting (up to MAX_PIPELINE are read
+ * ahead before the server stops reading).
+ *
+ * Values are written as:
+ *   string     int32 byte count, or -1 for null, then that many bytes of UTF-8
+ *   status     uint8 ordinal of Status
+ *   user       uint8 1 and the user (see UserInfo.writeBinary), or uint8 0 for none
+ *   list       int32 count, then the items
+ *
+ * Opcodes, their arguments and results, mirroring Queries:
+ *   CREATE_LOGIN      login, real name, password           status, user
+ *   LOOKUP_BY_LOGIN   login                                status, user
+ *   LOOKUP_BY_UUID    uuid as text                         status, user
+ *   MODIFY_NAME       old login, new login, password       status
+ *   DELETE_USER       login, password                      status
+ *   GET_INFO_PAGE     type, cursor, int32 page size        status, list of users, next cursor
+ *   SEARCH            field, match, text, cursor, int32    status, list of users, next cursor
+ *   CREATE_LOGINS     list of (login, real name, password) list of (status, user)
+ *   LOOKUP_BY_LOGINS  list of logins                       list of (status, user)
+ *   LOOKUP_BY_UUIDS   list of uuids                        list of (status, user)
+ *   DELETE_USERS      list of (login, password)            list of (status, user)
+ * A page's users and next cursor are only present when its status is OK. Passwords are the
+ * SHA-512 hex that RMI clients send (see IdentityClient.hashPassword).
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class BinaryProtocol {
+    public static final byte CREATE_LOGIN = 1;
+    public static final byte LOOKUP_BY_LOGIN = 2;
+    public static final byte LOOKUP_BY_UUID = 3;
+    public static final byte MODIFY_NAME = 4;
+    public static final byte DELETE_USER = 5;
+    public static final byte GET_INFO_PAGE = 6;
+    public static final byte SEARCH = 7;
+    public static final byte CREATE_LOGINS = 8;
+    public static final byte LOOKUP_BY_LOGINS = 9;
+    public static final byte LOOKUP_BY_UUIDS = 10;
+    public static final byte DELETE_USERS = 11;
+
+    public static final byte REPLY = 0;
+    public static final byte FAILURE = 1;
+
+    // Largest frame either side accepts, and requests read ahead per connection
+    public static final int MAX_FRAME = 16 << 20;
+    public static final int MAX_PIPELINE = 1024;
+
+    private static final Status[] STATUSES = Status.values();
+
+    private BinaryProtocol() {
+    }
+
+    /**
+     * Starts a frame in a buffer: room for the length, then the request id
+     *
+     * @return a stream to write the rest of the frame to; finish it with frame
+     */
+    public static DataOutputStream begin(ByteArrayOutputStream buffer, int id) throws IOException {
+        DataOutputStream out = new DataOutputStream(buffer);
+        out.writeInt(0);
+        out.writeInt(id);
+        return out;
+    }
+
+    /**
+     * @return the frame begun in the buffer, with its length filled in
+     */
+    public static byte[] frame(ByteArrayOutputStream buffer) {
+        byte[] frame = buffer.toByteArray();
+        int length = frame.length - 4;
+        frame[0] = (byte) (length >>> 24);
+        frame[1] = (byte) (length >>> 16);
+        frame[2] = (byte) (length >>> 8);
+        frame[3] = (byte) length;
+        return frame;
+    }
+
+    public static void writeString(DataOutput out, String s) throws IOException {
+        if(s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public static String readString(DataInput in) throws IOException {
+        int length = in.readInt();
+        if(length < 0)
+            return null;
+        if(length > MAX_FRAME)
+            throw new IOException("String too long: " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    public static List<String> readStrings(DataInput in) throws IOException {
+        int count = readCount(in);
+        List<String> strings = new ArrayList<>(count);
+        for(int i = 0; i < count; i++)
+            strings.add(readString(in));
+        return strings;
+    }
+
+    public static void writeStrings(DataOutput out, List<String> strings) throws IOException {
+        out.writeInt(strings.size());
+        for(String s: strings)
+            writeString(out, s);
+    }
+
+    /**
+     * @return a list length, checked to be one a frame could hold
+     */
+    public static int readCount(DataInput in) throws IOException {
+        int count = in.readInt();
+        if(count < 0 || count > MAX_FRAME)
+            throw new IOException("Bad list length: " + count);
+        return count;
+    }
+
+    public static void writeStatus(DataOutput out, Status status) throws IOException {
+        out.writeByte(status.ordinal());
+    }
+
+    public static Status readStatus(DataInput in) throws IOException {
+        int ordinal = in.readUnsignedByte();
+        if(ordinal >= STATUSES.length)
+            throw new IOException("Unknown status: " + ordinal);
+        return STATUSES[ordinal];
+    }
+
+    public static void writeUser(DataOutput out, UserInfo user) throws IOException {
+        out.writeBoolean(user != null);
+        if(user != null)
+            user.writeBinary(out);
+    }
+
+    public static UserInfo readUser(DataInput in) throws IOException {
+        return in.readBoolean() ? UserInfo.readBinary(in) : null;
+    }
+
+    public static void writeResult(DataOutput out, Result<UserInfo> result) throws IOException {
+        writeStatus(out, result.getStatus());
+        writeUser(out, result.getValue());
+    }
+
+    public static Result<UserInfo> readResult(DataInput in) throws IOException {
+        Status status = readStatus(in);
+        UserInfo user = readUser(in);
+        return status == Status.OK ? Result.ok(user) : Result.<UserInfo>of(status);
+    }
+
+    public static void writePage(DataOutput out, Result<Page> result) throws IOException {
+        writeStatus(out, result.getStatus());
+        if(!result.isOk())
+            return;
+        Page page = result.getValue();
+        out.writeInt(page.getUsers().length);
+        for(UserInfo user: page.getUsers())
+            writeUser(out, user);
+        writeString(out, page.getNextCursor());
+    }
+
+    public static Result<Page> readPage(DataInput in) throws IOException {
+        Status status = readStatus(in);
+        if(status != Status.OK)
+            return Result.of(status);
+        UserInfo[] users = new UserInfo[readCount(in)];
+        for(int i = 0; i < users.length; i++)
+            users[i] = readUser(in);
+        return Result.ok(new Page(users, readString(in)));
+    }
+
+    public static void writeBatch(DataOutput out, BatchResult result) throws IOException {
+        out.writeInt(result.size());
+        for(int i = 0; i < result.size(); i++) {
+            writeStatus(out, result.getStatus(i));
+            writeUser(out, result.getUser(i));
+        }
+    }
+
+    public static BatchResult readBatch(DataInput in) throws IOException {
+        BatchResult result = new BatchResult(readCount(in));
+        for(int i = 0; i < result.size(); i++)
+            result.set(i, readStatus(in), readUser(in));
+        return result;
+    }
+}
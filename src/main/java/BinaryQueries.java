@@ -0,0 +1,308 @@
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.rmi.ConnectException;
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client side of the binary transport (see BinaryProtocol) as a Queries, for Java clients that
+ * want it instead of RMI.
+ *
+ * Every thread shares one connection: a call writes its request frame and waits for the reply with
+ * its id, which a reader thread hands over as replies arrive, so calls from many threads are
+ * pipelined. If the connection drops, every waiting call fails and the next call connects again.
+ * Failures keep RMI's meaning for ReplicatedQueries and IdentityClient: a ConnectException if the
+ * request was never sent, a plain RemoteException if it may have been.
+ *
+ * getInfo, the shard moving operations, getChanges, getEvents and getStats are only served over RMI.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class BinaryQueries implements Queries, Closeable {
+    private static final int CONNECT_TIMEOUT = 5000;
+
+    private final String host;
+    private final int port;
+    private final AtomicInteger ids = new AtomicInteger();
+    // Guarded by this
+    private Connection connection;
+
+    /**
+     * @param host the server's host
+     * @param port the server's binary transport port; nothing is contacted until the first call
+     */
+    public BinaryQueries(String host, int port) {
+        this.host = host;
+        this.port = port;
+    }
+
+    @Override
+    public Result<UserInfo> createLogin(String loginName, String realName, String password) throws RemoteException {
+        return call(BinaryProtocol.CREATE_LOGIN, out -> {
+            BinaryProtocol.writeString(out, loginName);
+            BinaryProtocol.writeString(out, realName);
+            BinaryProtocol.writeString(out, password);
+        }, BinaryProtocol::readResult);
+    }
+
+    @Override
+    public Result<UserInfo> lookupByLogin(String loginName) throws RemoteException {
+        return call(BinaryProtocol.LOOKUP_BY_LOGIN, out -> BinaryProtocol.writeString(out, loginName), BinaryProtocol::readResult);
+    }
+
+    @Override
+    public Result<UserInfo> lookupByUUID(String Uuid) throws RemoteException {
+        return call(BinaryProtocol.LOOKUP_BY_UUID, out -> BinaryProtocol.writeString(out, Uuid), BinaryProtocol::readResult);
+    }
+
+    @Override
+    public Status modifyName(String oldLoginName, String newLoginName, String password) throws RemoteException {
+        return call(BinaryProtocol.MODIFY_NAME, out -> {
+            BinaryProtocol.writeString(out, oldLoginName);
+            BinaryProtocol.writeString(out, newLoginName);
+            BinaryProtocol.writeString(out, password);
+        }, BinaryProtocol::readStatus);
+    }
+
+    @Override
+    public Status deleteUser(String loginName, String password) throws RemoteException {
+        return call(BinaryProtocol.DELETE_USER, out -> {
+            BinaryProtocol.writeString(out, loginName);
+            BinaryProtocol.writeString(out, password);
+        }, BinaryProtocol::readStatus);
+    }
+
+    @Override
+    public Result<UserInfo[]> getInfo(String type) throws RemoteException {
+        throw notServed("getInfo");
+    }
+
+    @Override
+    public Result<Page> getInfoPage(String type, String cursor, int pageSize) throws RemoteException {
+        return call(BinaryProtocol.GET_INFO_PAGE, out -> {
+            BinaryProtocol.writeString(out, type);
+            BinaryProtocol.writeString(out, cursor);
+            out.writeInt(pageSize);
+        }, BinaryProtocol::readPage);
+    }
+
+    @Override
+    public Result<Page> search(String field, String match, String text, String cursor, int pageSize) throws RemoteException {
+        return call(BinaryProtocol.SEARCH, out -> {
+            BinaryProtocol.writeString(out, field);
+            BinaryProtocol.writeString(out, match);
+            BinaryProtocol.writeString(out, text);
+            BinaryProtocol.writeString(out, cursor);
+            out.writeInt(pageSize);
+        }, BinaryProtocol::readPage);
+    }
+
+    @Override
+    public BatchResult createLogins(List<UserRequest> requests) throws RemoteException {
+        return call(BinaryProtocol.CREATE_LOGINS, out -> {
+            out.writeInt(requests.size());
+            for(UserRequest request: requests) {
+                BinaryProtocol.writeString(out, request.getLoginName());
+                BinaryProtocol.writeString(out, request.getRealName());
+                BinaryProtocol.writeString(out, request.getPassword());
+            }
+        }, BinaryProtocol::readBatch);
+    }
+
+    @Override
+    public BatchResult lookupByLogins(List<String> loginNames) throws RemoteException {
+        return call(BinaryProtocol.LOOKUP_BY_LOGINS, out -> BinaryProtocol.writeStrings(out, loginNames), BinaryProtocol::readBatch);
+    }
+
+    @Override
+    public BatchResult lookupByUUIDs(List<String> uuids) throws RemoteException {
+        return call(BinaryProtocol.LOOKUP_BY_UUIDS, out -> BinaryProtocol.writeStrings(out, uuids), BinaryProtocol::readBatch);
+    }
+
+    @Override
+    public BatchResult deleteUsers(List<UserRequest> requests) throws RemoteException {
+        return call(BinaryProtocol.DELETE_USERS, out -> {
+            out.writeInt(requests.size());
+            for(UserRequest request: requests) {
+                BinaryProtocol.writeString(out, request.getLoginName());
+                BinaryProtocol.writeString(out, request.getPassword());
+            }
+        }, BinaryProtocol::readBatch);
+    }
+
+    @Override
+    public Result<Changes> getChanges(String cursor) throws RemoteException {
+        throw notServed("getChanges");
+    }
+
+    @Override
+    public Result<ChangeFeed> getEvents(String cursor, int max) throws RemoteException {
+        throw notServed("getEvents");
+    }
+
+    @Override
+    public Result<ServerStats> getStats() throws RemoteException {
+        throw notServed("getStats");
+    }
+
+    @Override
+    public synchronized void close() {
+        if(connection != null)
+            connection.fail(new RemoteException("Client closed"));
+        connection = null;
+    }
+
+    /**
+     * Sends a request and waits for its reply
+     *
+     * @return the result read from the reply
+     */
+    private <T> T call(byte opcode, Arguments arguments, Reader<T> reader) throws RemoteException {
+        int id = ids.incrementAndGet();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        try {
+            DataOutputStream out = BinaryProtocol.begin(buffer, id);
+            out.writeByte(opcode);
+            arguments.write(out);
+        } catch (IOException e) {
+            // Only thrown by the underlying stream, which is in memory
+            throw new IllegalStateException(e);
+        }
+
+        Connection conn = connection();
+        CompletableFuture<byte[]> reply = new CompletableFuture<>();
+        conn.waiting.put(id, reply);
+        // The connection may have failed before the call was registered, and then nobody would complete it
+        if(conn.broken && conn.waiting.remove(id) != null)
+            throw new ConnectException("Connection to " + host + ":" + port + " lost");
+        conn.send(BinaryProtocol.frame(buffer), id);
+
+        byte[] frame;
+        try {
+            frame = reply.get();
+        } catch (InterruptedException e) {
+            conn.waiting.remove(id);
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for reply");
+        } catch (ExecutionException e) {
+            throw (RemoteException) e.getCause();
+        }
+
+        String failure;
+        try {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame, 8, frame.length - 8));
+            if(in.readByte() == BinaryProtocol.REPLY)
+                return reader.read(in);
+            failure = BinaryProtocol.readString(in);
+        } catch (IOException e) {
+            throw new RemoteException("Malformed reply", e);
+        }
+        throw new RemoteException(failure);
+    }
+
+    private synchronized Connection connection() throws RemoteException {
+        if(connection == null || connection.broken) {
+            try {
+                Socket socket = new Socket();
+                socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+                socket.setTcpNoDelay(true);
+                connection = new Connection(socket);
+            } catch (IOException e) {
+                throw new ConnectException("Cannot connect to " + host + ":" + port, e);
+            }
+        }
+
+        return connection;
+    }
+
+    private static RemoteException notServed(String operation) {
+        return new RemoteException(operation + " is only served over RMI");
+    }
+
+    /**
+     * One connection and the calls waiting on it
+     */
+    private static class Connection {
+        private final Socket socket;
+        private final OutputStream out;
+        private final Map<Integer, CompletableFuture<byte[]>> waiting = new ConcurrentHashMap<>();
+        private volatile boolean broken;
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.out = socket.getOutputStream();
+            Thread reader = new Thread(this::readReplies, "binary-client-reader");
+            reader.setDaemon(true);
+            reader.start();
+        }
+
+        void send(byte[] frame, int id) throws RemoteException {
+            try {
+                synchronized(out) {
+                    out.write(frame);
+                }
+            } catch (IOException e) {
+                waiting.remove(id);
+                fail(new RemoteException("Connection lost", e));
+                // Nothing of the request may have reached the server, but part of it could have
+                throw new RemoteException("Request could not be sent", e);
+            }
+        }
+
+        private void readReplies() {
+            try {
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+                while(true) {
+                    int length = in.readInt();
+                    if(length < 4 || length > BinaryProtocol.MAX_FRAME)
+                        throw new IOException("Bad frame length: " + length);
+                    byte[] frame = new byte[4 + length];
+                    in.readFully(frame, 4, length);
+                    int id = ((frame[4] & 0xFF) << 24) | ((frame[5] & 0xFF) << 16) | ((frame[6] & 0xFF) << 8) | (frame[7] & 0xFF);
+                    CompletableFuture<byte[]> reply = waiting.remove(id);
+                    if(reply != null)
+                        reply.complete(frame);
+                }
+            } catch (IOException e) {
+                fail(new RemoteException("Connection lost", e));
+            }
+        }
+
+        void fail(RemoteException failure) {
+            broken = true;
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Failing anyway
+            }
+            for(Integer id: waiting.keySet()) {
+                CompletableFuture<byte[]> reply = waiting.remove(id);
+                if(reply != null)
+                    reply.completeExceptionally(failure);
+            }
+        }
+    }
+
+    private interface Arguments {
+        void write(DataOutputStream out) throws IOException;
+    }
+
+    private interface Reader<T> {
+        T read(DataInputStream in) throws IOException;
+    }
+}
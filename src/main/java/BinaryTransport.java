@@ -0,0 +1,377 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves the Queries operations over the length-prefixed binary protocol described in
+ * BinaryProtocol.
+ *
+ * One selector thread accepts connections, reads frames and writes replies for every connection
+ * without blocking. Each complete request is handed to a caller (see Transport) and its reply is
+ * queued on the connection once ready, so the requests pipelined on one connection run
+ * concurrently and their replies go out as they finish. A connection with MAX_PIPELINE requests
+ * outstanding is not read from until some of them have replied. A frame that cannot be decoded
+ * closes its connection; an unknown opcode is answered with a FAILURE.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class BinaryTransport extends Transport {
+    private static final int READ_BUFFER = 64 << 10;
+
+    private final ServerSocketChannel server;
+    private final Selector selector;
+    private final Thread loop;
+    // Connections whose interest in reading or writing changed off the selector thread
+    private final Queue<Connection> changed = new ConcurrentLinkedQueue<>();
+    private volatile boolean closed;
+
+    /**
+     * Starts serving on a port
+     *
+     * @param queries the server the requests are made on
+     * @param port port to listen on
+     * @param maxCallers largest number of requests being made at once
+     * @throws IOException if the port cannot be listened on
+     */
+    public BinaryTransport(Queries queries, int port, int maxCallers) throws IOException {
+        super(queries, maxCallers, "binary");
+        selector = Selector.open();
+        server = ServerSocketChannel.open();
+        server.bind(new InetSocketAddress(port));
+        server.configureBlocking(false);
+        server.register(selector, SelectionKey.OP_ACCEPT);
+
+        loop = new Thread(this::selectLoop, "binary-transport");
+        loop.setDaemon(true);
+        loop.start();
+    }
+
+    /**
+     * @return the port being listened on
+     */
+    public int getPort() {
+        return server.socket().getLocalPort();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        selector.wakeup();
+        try {
+            loop.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        super.close();
+    }
+
+    private void selectLoop() {
+        try {
+            while(!closed) {
+                selector.select();
+                Connection conn;
+                while((conn = changed.poll()) != null)
+                    conn.resume();
+
+                for(SelectionKey key: selector.selectedKeys()) {
+                    try {
+                        if(!key.isValid())
+                            continue;
+                        if(key.isAcceptable())
+                            accept();
+                        if(key.isValid() && key.isReadable())
+                            ((Connection) key.attachment()).read();
+                        if(key.isValid() && key.isWritable())
+                            ((Connection) key.attachment()).write();
+                    } catch (IOException e) {
+                        if(key.attachment() != null)
+                            ((Connection) key.attachment()).close();
+                    }
+                }
+                selector.selectedKeys().clear();
+            }
+        } catch (IOException e) {
+            System.out.println("Binary transport stopped: " + e.getMessage());
+        } finally {
+            for(SelectionKey key: selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch (IOException e) {
+                    // Closing anyway
+                }
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel channel = server.accept();
+        if(channel == null)
+            return;
+        channel.configureBlocking(false);
+        channel.socket().setTcpNoDelay(true);
+        Connection conn = new Connection(channel);
+        conn.key = channel.register(selector, SelectionKey.OP_READ, conn);
+    }
+
+    /**
+     * Decodes one request and hands it to a caller
+     *
+     * @param conn the connection the reply goes to
+     * @param id the request's id
+     * @param in the request after its id
+     * @throws IOException if the request is malformed
+     */
+    private void dispatch(Connection conn, int id, DataInputStream in) throws IOException {
+        String client = conn.client;
+        byte opcode = in.readByte();
+        switch(opcode) {
+            case BinaryProtocol.CREATE_LOGIN: {
+                String loginName = BinaryProtocol.readString(in);
+                String realName = BinaryProtocol.readString(in);
+                String password = BinaryProtocol.readString(in);
+                call(client, q -> q.createLogin(loginName, realName, password), Result.<UserInfo>of(Status.BUSY),
+                        (r, e) -> conn.reply(id, e, out -> BinaryProtocol.writeResult(out, r)));
+                break;
+            }
+            case BinaryProtocol.LOOKUP_BY_LOGIN: {
+                String loginName = BinaryProtocol.readString(in);
+                call(client, q -> q.lookupByLogin(loginName), Result.<UserInfo>of(Status.BUSY),
+                        (r, e) -> conn.reply(id, e, out -> BinaryProtocol.writeResult(out, r)));
+                break;
+            }
+            case BinaryProtocol.LOOKUP_BY_UUID: {
+                String uuid = BinaryProtocol.readString(in);
+                call(client, q -> q.lookupByUUID(uuid), Result.<UserInfo>of(Status.BUSY),
+                        (r, e) -> conn.reply(id, e, out -> BinaryProtocol.writeResult(out, r)));
+                break;
+            }
+            case BinaryProtocol.MODIFY_NAME: {
+                String oldLoginName = BinaryProtocol.readString(in);
+                String newLoginName = BinaryProtocol.readString(in);
+                String password = BinaryProtocol.readString(in);
+                call(client, q -> q.modifyName(oldLoginName, newLoginName, password), Status.BUSY,
+                        (r, e) -> conn.reply(id, e, out -> BinaryProtocol.writeStatus(out, r)));
+                break;
+            }
+            case BinaryProtocol.DELETE_USER: {
+                String loginName = BinaryProtocol.readString(in);
+                String password = BinaryProtocol.readString(in);
+                call(client, q -> q.deleteUser(loginName, password), Status.BUSY,
+                        (r, e) -> conn.reply(id, e, out -> BinaryProtocol.writeStatus(out, r)));
+                break;
+            }
+            case BinaryProtocol.GET_INFO_PAGE: {
+                String type = BinaryProtocol.readString(in);
+                String cursor = BinaryProtocol.readString(in);
+                int pageSize = in.readInt();
+                call(client, q -> q.getInfoPage(type, cursor, pageSize), Result.<Page>of(Status.BUSY),
+                        (r, e) -> conn.reply(id, e, out -> BinaryProtocol.writePage(out, r)));
+                break;
+            }
+            case BinaryProtocol.SEARCH: {
+                String field = BinaryProtocol.readString(in);
+                String match = BinaryProtocol.readString(in);
+                String text = BinaryProtocol.readString(in);
+                String cursor = BinaryProtocol.readString(in);
+                int pageSize = in.readInt();
+                call(client, q -> q.search(field, match, text, cursor, pageSize), Result.<Page>of(Status.BUSY),
+                        (r, e) -> conn.reply(id, e, out -> BinaryProtocol.writePage(out, r)));
+                break;
+            }
+            case BinaryProtocol.CREATE_LOGINS: {
+                List<UserRequest> requests = new ArrayList<>();
+                for(int i = BinaryProtocol.readCount(in); i > 0; i--) {
+                    requests.add(new UserRequest(BinaryProtocol.readString(in), BinaryProtocol.readString(in),
+                            BinaryProtocol.readString(in)));
+                }
+                call(client, q -> q.createLogins(requests), BatchResult.allOf(requests.size(), Status.BUSY),
+                        (r, e) -> conn.reply(id, e, out -> BinaryProtocol.writeBatch(out, r)));
+                break;
+            }
+            case BinaryProtocol.LOOKUP_BY_LOGINS: {
+                List<String> loginNames = BinaryProtocol.readStrings(in);
+                call(client, q -> q.lookupByLogins(loginNames), BatchResult.allOf(loginNames.size(), Status.BUSY),
+                        (r, e) -> conn.reply(id, e, out -> BinaryProtocol.writeBatch(out, r)));
+                break;
+            }
+            case BinaryProtocol.LOOKUP_BY_UUIDS: {
+                List<String> uuids = BinaryProtocol.readStrings(in);
+                call(client, q -> q.lookupByUUIDs(uuids), BatchResult.allOf(uuids.size(), Status.BUSY),
+                        (r, e) -> conn.reply(id, e, out -> BinaryProtocol.writeBatch(out, r)));
+                break;
+            }
+            case BinaryProtocol.DELETE_USERS: {
+                List<UserRequest> requests = new ArrayList<>();
+                for(int i = BinaryProtocol.readCount(in); i > 0; i--)
+                    requests.add(new UserRequest(BinaryProtocol.readString(in), null, BinaryProtocol.readString(in)));
+                call(client, q -> q.deleteUsers(requests), BatchResult.allOf(requests.size(), Status.BUSY),
+                        (r, e) -> conn.reply(id, e, out -> BinaryProtocol.writeBatch(out, r)));
+                break;
+            }
+            default:
+                conn.reply(id, new IOException("Unknown opcode: " + opcode), out -> { });
+        }
+    }
+
+    /**
+     * One client connection. Reading and the interest set are only touched on the selector
+     * thread; replies are queued from caller threads.
+     */
+    private class Connection {
+        private final SocketChannel channel;
+        private final String client;
+        private SelectionKey key;
+        private ByteBuffer input = ByteBuffer.allocate(READ_BUFFER);
+        // Set when complete frames are left in input because the pipeline was full
+        private boolean paused;
+        private final Queue<ByteBuffer> output = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger outstanding = new AtomicInteger();
+
+        Connection(SocketChannel channel) {
+            this.channel = channel;
+            SocketAddress address = channel.socket().getRemoteSocketAddress();
+            client = address instanceof InetSocketAddress
+                    ? ((InetSocketAddress) address).getAddress().getHostAddress() : String.valueOf(address);
+        }
+
+        void read() throws IOException {
+            if(channel.read(input) < 0) {
+                close();
+                return;
+            }
+            parse();
+        }
+
+        // Dispatches the complete frames read so far, as long as the pipeline has room
+        private void parse() throws IOException {
+            input.flip();
+            while(input.remaining() >= 4) {
+                if(outstanding.get() >= BinaryProtocol.MAX_PIPELINE) {
+                    paused = true;
+                    break;
+                }
+                int length = input.getInt(input.position());
+                if(length < 4 || length > BinaryProtocol.MAX_FRAME)
+                    throw new IOException("Bad frame length: " + length);
+                if(input.remaining() < 4 + length) {
+                    // Grows the buffer for a frame larger than it
+                    if(input.capacity() < 4 + length) {
+                        ByteBuffer larger = ByteBuffer.allocate(4 + length);
+                        larger.put(input);
+                        input = larger;
+                        return;
+                    }
+                    break;
+                }
+
+                byte[] frame = new byte[length];
+                input.getInt();
+                input.get(frame);
+                DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+                outstanding.incrementAndGet();
+                dispatch(this, in.readInt(), in);
+            }
+            input.compact();
+            updateInterest();
+        }
+
+        void write() throws IOException {
+            ByteBuffer next;
+            while((next = output.peek()) != null) {
+                channel.write(next);
+                if(next.hasRemaining())
+                    break;
+                output.poll();
+            }
+            updateInterest();
+        }
+
+        /**
+         * Queues the reply to a request, on the caller thread that made it
+         */
+        void reply(int id, Exception failure, Body body) {
+            ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            try {
+                DataOutputStream out = BinaryProtocol.begin(buffer, id);
+                if(failure == null) {
+                    out.writeByte(BinaryProtocol.REPLY);
+                    body.write(out);
+                } else {
+                    out.writeByte(BinaryProtocol.FAILURE);
+                    BinaryProtocol.writeString(out, String.valueOf(failure.getMessage()));
+                }
+            } catch (IOException e) {
+                // Only thrown by the underlying stream, which is in memory
+                throw new IllegalStateException(e);
+            }
+
+            output.add(ByteBuffer.wrap(BinaryProtocol.frame(buffer)));
+            outstanding.decrementAndGet();
+            changed.add(this);
+            selector.wakeup();
+        }
+
+        // On the selector thread, after a reply was queued
+        void resume() {
+            if(!key.isValid())
+                return;
+            try {
+                // Frames left over while the pipeline was full are dispatched once it has room again
+                if(paused && outstanding.get() < BinaryProtocol.MAX_PIPELINE) {
+                    paused = false;
+                    parse();
+                }
+                // Most replies fit in the socket buffer, so they are written without waiting for the selector
+                write();
+            } catch (IOException e) {
+                close();
+            }
+        }
+
+        // On the selector thread: reads while there is room for more requests, writes while replies wait
+        private void updateInterest() {
+            if(!key.isValid())
+                return;
+            int interest = 0;
+            if(outstanding.get() < BinaryProtocol.MAX_PIPELINE)
+                interest |= SelectionKey.OP_READ;
+            if(!output.isEmpty())
+                interest |= SelectionKey.OP_WRITE;
+            key.interestOps(interest);
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    private interface Body {
+        void write(DataOutputStream out) throws IOException;
+    }
+}
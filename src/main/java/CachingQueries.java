@@ -0,0 +1,310 @@
+import java.rmi.RemoteException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Client-side cache of lookup results in front of any Queries.
+ *
+ * Successful lookupByLogin and lookupByUUID results are kept for up to a TTL in a bounded map that
+ * evicts the least recently used user. Freshness comes from the server: a background thread
+ * long-polls getChanges and drops every cached user whose login name was created, renamed or
+ * deleted, so changes show up within about a second rather than after the TTL. If the thread
+ * loses track of the server, or the server reports missed changes, the whole cache is dropped and
+ * nothing is cached until it is following the server again.
+ *
+ * Renames and deletes made through this cache are dropped from it straight away. Nothing else is
+ * cached; every other call goes straight through.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class CachingQueries implements Queries {
+    private static final long RETRY_DELAY = 1000;
+
+    private final Queries delegate;
+    private final int maxUsers;
+    private final long ttlMillis;
+
+    // Guarded by this
+    private final LinkedHashMap<String, Entry> byLogin;
+    private final Map<UUID, Entry> byUUID = new HashMap<>();
+
+    // Bumped on every invalidation, so a lookup that raced with one is not cached
+    private final AtomicLong generation = new AtomicLong();
+    private volatile boolean following;
+    private volatile boolean closed;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    /**
+     * @param delegate where lookups that miss are sent
+     * @param maxUsers largest number of users kept
+     * @param ttlMillis longest time a user is kept
+     */
+    public CachingQueries(Queries delegate, int maxUsers, long ttlMillis) {
+        this.delegate = delegate;
+        this.maxUsers = maxUsers;
+        this.ttlMillis = ttlMillis;
+        this.byLogin = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+                if(size() <= CachingQueries.this.maxUsers)
+                    return false;
+                byUUID.remove(eldest.getValue().user.getUUID());
+                evictions.increment();
+                return true;
+            }
+        };
+
+        Thread invalidator = new Thread(this::followChanges, "cache-invalidator");
+        invalidator.setDaemon(true);
+        invalidator.start();
+    }
+
+    @Override
+    public Result<UserInfo> lookupByLogin(String loginName) throws RemoteException {
+        UserInfo cached = cached(loginName, null);
+        if(cached != null)
+            return Result.ok(cached);
+
+        long before = generation.get();
+        Result<UserInfo> result = delegate.lookupByLogin(loginName);
+        if(result.isOk())
+            put(result.getValue(), before);
+
+        return result;
+    }
+
+    @Override
+    public Result<UserInfo> lookupByUUID(String Uuid) throws RemoteException {
+        UUID uuid;
+        try {
+            uuid = UUID.fromString(Uuid);
+        } catch (IllegalArgumentException e) {
+            return delegate.lookupByUUID(Uuid);
+        }
+        UserInfo cached = cached(null, uuid);
+        if(cached != null)
+            return Result.ok(cached);
+
+        long before = generation.get();
+        Result<UserInfo> result = delegate.lookupByUUID(Uuid);
+        if(result.isOk())
+            put(result.getValue(), before);
+
+        return result;
+    }
+
+    // Users found in the cache are answered locally and the rest are sent as one batch
+    @Override
+    public BatchResult lookupByLogins(List<String> loginNames) throws RemoteException {
+        BatchResult result = new BatchResult(loginNames.size());
+        List<Integer> missing = new ArrayList<>();
+        for(int i = 0; i < loginNames.size(); i++) {
+            UserInfo cached = cached(loginNames.get(i), null);
+            if(cached != null)
+                result.set(i, Status.OK, cached);
+            else
+                missing.add(i);
+        }
+        if(missing.isEmpty())
+            return result;
+
+        List<String> batch = new ArrayList<>(missing.size());
+        for(int i: missing)
+            batch.add(loginNames.get(i));
+        long before = generation.get();
+        BatchResult fetched = delegate.lookupByLogins(batch);
+        for(int i = 0; i < missing.size(); i++) {
+            result.set(missing.get(i), fetched.getStatus(i), fetched.getUser(i));
+            if(fetched.getStatus(i) == Status.OK)
+                put(fetched.getUser(i), before);
+        }
+
+        return result;
+    }
+
+    @Override
+    public Result<UserInfo> createLogin(String loginName, String realName, String password) throws RemoteException {
+        return delegate.createLogin(loginName, realName, password);
+    }
+
+    @Override
+    public Status modifyName(String oldLoginName, String newLoginName, String password) throws RemoteException {
+        invalidate(oldLoginName);
+        return delegate.modifyName(oldLoginName, newLoginName, password);
+    }
+
+    @Override
+    public Status deleteUser(String loginName, String password) throws RemoteException {
+        invalidate(loginName);
+        return delegate.deleteUser(loginName, password);
+    }
+
+    @Override
+    public Result<UserInfo[]> getInfo(String type) throws RemoteException {
+        return delegate.getInfo(type);
+    }
+
+    @Override
+    public Result<Page> getInfoPage(String type, String cursor, int pageSize) throws RemoteException {
+        return delegate.getInfoPage(type, cursor, pageSize);
+    }
+
+    @Override
+    public Result<Page> search(String field, String match, String text, String cursor, int pageSize) throws RemoteException {
+        return delegate.search(field, match, text, cursor, pageSize);
+    }
+
+    @Override
+    public BatchResult createLogins(List<UserRequest> requests) throws RemoteException {
+        return delegate.createLogins(requests);
+    }
+
+    @Override
+    public BatchResult lookupByUUIDs(List<String> uuids) throws RemoteException {
+        return delegate.lookupByUUIDs(uuids);
+    }
+
+    @Override
+    public BatchResult deleteUsers(List<UserRequest> requests) throws RemoteException {
+        for(UserRequest req: requests)
+            invalidate(req.getLoginName());
+        return delegate.deleteUsers(requests);
+    }
+
+    @Override
+    public Result<Changes> getChanges(String cursor) throws RemoteException {
+        return delegate.getChanges(cursor);
+    }
+
+    @Override
+    public Result<ChangeFeed> getEvents(String cursor, int max) throws RemoteException {
+        return delegate.getEvents(cursor, max);
+    }
+
+    @Override
+    public Result<ServerStats> getStats() throws RemoteException {
+        return delegate.getStats();
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    public synchronized int size() {
+        return byLogin.size();
+    }
+
+    /**
+     * Stops following the server's changes; lookups go straight to it from then on
+     */
+    public void close() {
+        closed = true;
+        clear();
+    }
+
+    /**
+     * @return the cached user with the given login name or UUID, or null on a miss
+     */
+    private synchronized UserInfo cached(String loginName, UUID uuid) {
+        Entry entry = loginName != null ? byLogin.get(loginName) : byUUID.get(uuid);
+        if(entry == null || entry.expires < System.currentTimeMillis()) {
+            if(entry != null)
+                remove(entry.user);
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+
+        return entry.user;
+    }
+
+    private synchronized void put(UserInfo user, long before) {
+        // Skip users that may have changed while they were being fetched
+        if(!following || generation.get() != before || user.getLoginName() == null)
+            return;
+        Entry entry = new Entry(user, System.currentTimeMillis() + ttlMillis);
+        Entry previous = byLogin.put(user.getLoginName(), entry);
+        if(previous != null)
+            byUUID.remove(previous.user.getUUID());
+        byUUID.put(user.getUUID(), entry);
+    }
+
+    private synchronized void invalidate(String loginName) {
+        generation.incrementAndGet();
+        Entry entry = byLogin.get(loginName);
+        if(entry != null) {
+            remove(entry.user);
+            invalidations.increment();
+        }
+    }
+
+    private synchronized void clear() {
+        following = false;
+        generation.incrementAndGet();
+        byLogin.clear();
+        byUUID.clear();
+    }
+
+    private void remove(UserInfo user) {
+        byLogin.remove(user.getLoginName());
+        byUUID.remove(user.getUUID());
+    }
+
+    /**
+     * Long-polls the server for changed login names and drops them from the cache
+     */
+    private void followChanges() {
+        String cursor = null;
+        while(!closed) {
+            try {
+                Result<Changes> result = delegate.getChanges(cursor);
+                if(!result.isOk())
+                    throw new RemoteException("getChanges replied " + result.getStatus());
+                Changes changes = result.getValue();
+                if(!changes.isComplete())
+                    clear();
+                for(String loginName: changes.getLoginNames())
+                    invalidate(loginName);
+                cursor = changes.getNextCursor();
+                following = !closed;
+            } catch (RemoteException e) {
+                clear();
+                cursor = null;
+                try {
+                    Thread.sleep(RETRY_DELAY);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static class Entry {
+        private final UserInfo user;
+        private final long expires;
+
+        Entry(UserInfo user, long expires) {
+            this.user = user;
+            this.expires = expires;
+        }
+    }
+}
@@ -0,0 +1,83 @@
+import java.io.Serializable;
+
+/**
+ * One user created, renamed or deleted, as delivered by getEvents.
+ *
+ * The sequence number is the position of the change in the server's write-ahead log, so it only
+ * grows, and it is the same on a primary and its replicas. A created user carries every public
+ * field; a rename carries both login names and the time of the change; a delete only the login
+ * name.
+ */
+public class ChangeEvent implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    public enum Type {
+        CREATED,
+        RENAMED,
+        DELETED
+    }
+
+    private final Type type;
+    private final long sequence;
+    private final String loginName;
+    private final String newLoginName;
+    private final UserInfo user;
+    private final long time;
+
+    private ChangeEvent(Type type, long sequence, String loginName, String newLoginName, UserInfo user, long time) {
+        this.type = type;
+        this.sequence = sequence;
+        this.loginName = loginName;
+        this.newLoginName = newLoginName;
+        this.user = user;
+        this.time = time;
+    }
+
+    public static ChangeEvent created(long sequence, UserInfo user) {
+        return new ChangeEvent(Type.CREATED, sequence, user.getLoginName(), null, user, user.getLastChangeDate());
+    }
+
+    public static ChangeEvent renamed(long sequence, String oldLoginName, String newLoginName, long time) {
+        return new ChangeEvent(Type.RENAMED, sequence, oldLoginName, newLoginName, null, time);
+    }
+
+    public static ChangeEvent deleted(long sequence, String loginName) {
+        return new ChangeEvent(Type.DELETED, sequence, loginName, null, null, 0);
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public long getSequence() {
+        return sequence;
+    }
+
+    /**
+     * @return the user's login name, or its old one for a rename
+     */
+    public String getLoginName() {
+        return loginName;
+    }
+
+    /**
+     * @return the new login name of a rename, otherwise null
+     */
+    public String getNewLoginName() {
+        return newLoginName;
+    }
+
+    /**
+     * @return the user that was created, otherwise null
+     */
+    public UserInfo getUser() {
+        return user;
+    }
+
+    /**
+     * @return when a user was created or renamed, or 0 for a delete
+     */
+    public long getTime() {
+        return time;
+    }
+}
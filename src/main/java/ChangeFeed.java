@@ -0,0 +1,48 @@
+import java.io.Serializable;
+
+/**
+ * The next events of the change feed after a getEvents cursor, in sequence order.
+ *
+ * The cursor is opaque to clients: pass it back to getEvents to wait for the events after these.
+ * If the cursor was null or the server no longer holds the events after it, the feed starts over
+ * with a snapshot: a CREATED event for every user, in login name order, a page at a time. The first
+ * page is flagged by isReset(), and a consumer mirroring the registry drops everything it has
+ * before applying it. Every page is flagged by isSnapshot().
+ *
+ * Each page shows its users as they were when it was read, and once the last page is sent the feed
+ * follows on from where the snapshot began. A change made while the snapshot was being paged
+ * through is therefore delivered after it, even if a page already showed its result, so a consumer
+ * applies a CREATED event to a login name it already has as a replacement, and a rename or delete
+ * of one it does not have as nothing.
+ */
+public class ChangeFeed implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final ChangeEvent[] events;
+    private final String nextCursor;
+    private final boolean snapshot;
+    private final boolean reset;
+
+    public ChangeFeed(ChangeEvent[] events, String nextCursor, boolean snapshot, boolean reset) {
+        this.events = events;
+        this.nextCursor = nextCursor;
+        this.snapshot = snapshot;
+        this.reset = reset;
+    }
+
+    public ChangeEvent[] getEvents() {
+        return events;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public boolean isSnapshot() {
+        return snapshot;
+    }
+
+    public boolean isReset() {
+        return reset;
+    }
+}
@@ -0,0 +1,34 @@
+import java.io.Serializable;
+
+/**
+ * Login names of users created, renamed (old and new name) or deleted since a getChanges cursor,
+ * for keeping client-side caches fresh.
+ *
+ * The cursor is opaque to clients: pass it back to getChanges to wait for the next changes. If
+ * isComplete() is false some changes were missed, and everything cached must be dropped.
+ */
+public class Changes implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String[] loginNames;
+    private final String nextCursor;
+    private final boolean complete;
+
+    public Changes(String[] loginNames, String nextCursor, boolean complete) {
+        this.loginNames = loginNames;
+        this.nextCursor = nextCursor;
+        this.complete = complete;
+    }
+
+    public String[] getLoginNames() {
+        return loginNames;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public boolean isComplete() {
+        return complete;
+    }
+}
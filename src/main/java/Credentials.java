@@ -0,0 +1,257 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.PBEKeySpec;
+
+/**
+ * Password hashes as stored with each User, and the checks made against them.
+ *
+ * Clients send a SHA-512 of the password rather than the password itself. The server stores that
+ * as a salted, versioned hash:
+ *
+ *   version 1  byte 1, int iterations, 16 byte salt, 32 byte PBKDF2-HMAC-SHA256 of the password
+ *   version 0  byte 0, then the UTF-8 of the password exactly as an older server stored it
+ *
+ * Version 0 hashes come from the registry.backup files of the original server, and are kept
+ * until the password is next checked. Those backups held the client's
+ * SHA-512 written out as hex without leading zeros, so the full lower case hex sent by current
+ * clients is converted back to that form to check them. Once a password has been checked, a
+ * version 0 hash, or a version 1 hash with fewer iterations than currently configured, should be
+ * replaced by hash(password); see needsRehash.
+ *
+ * The cluster's peer key, which servers require of each other and of the tools that move users
+ * between shards (see Peer), is kept in a file and compared in constant time as well.
+ *
+ * Hashes are compared in constant time. Hashing is deliberately slow, so the server runs it on
+ * its own bounded lane of the RequestExecutor.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class Credentials {
+    public static final int DEFAULT_ITERATIONS = 100000;
+
+    private static final byte LEGACY = 0;
+    private static final byte PBKDF2_SHA256 = 1;
+    private static final String ALGORITHM = "PBKDF2WithHmacSHA256";
+    private static final int SALT_LENGTH = 16;
+    private static final int KEY_LENGTH = 32;
+    private static final int HEADER_LENGTH = 1 + 4;
+    // Length of a SHA-512 written out as hex by a client
+    private static final int CLIENT_HASH_LENGTH = 128;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final SecureRandom random = new SecureRandom();
+    private static volatile int iterations = DEFAULT_ITERATIONS;
+
+    private Credentials() {
+    }
+
+    /**
+     * Sets the work factor used for new hashes. Existing hashes with fewer iterations are
+     * upgraded the next time their password is checked.
+     *
+     * @param n PBKDF2 iterations per hash
+     */
+    public static void setIterations(int n) {
+        if(n < 1)
+            throw new IllegalArgumentException("Iterations must be positive: " + n);
+        iterations = n;
+    }
+
+    public static int getIterations() {
+        return iterations;
+    }
+
+    /**
+     * Hashes a password with a fresh salt at the current work factor
+     *
+     * @param password password as sent by the client, may be null
+     * @return the version 1 hash, or null for no password
+     */
+    public static byte[] hash(String password) {
+        if(password == null)
+            return null;
+
+        int n = iterations;
+        byte[] salt = new byte[SALT_LENGTH];
+        random.nextBytes(salt);
+
+        return ByteBuffer.allocate(HEADER_LENGTH + SALT_LENGTH + KEY_LENGTH)
+                .put(PBKDF2_SHA256)
+                .putInt(n)
+                .put(salt)
+                .put(derive(password, salt, n))
+                .array();
+    }
+
+    /**
+     * Checks a password against a stored hash
+     *
+     * @param hash stored hash, null if the user has no password
+     * @param password password as sent by the client, may be null
+     * @return whether the password matches; always true for a user without a password
+     */
+    public static boolean verify(byte[] hash, String password) {
+        if(hash == null)
+            return true;
+        if(password == null || hash.length == 0)
+            return false;
+
+        if(hash[0] == LEGACY) {
+            byte[] stored = new byte[hash.length - 1];
+            System.arraycopy(hash, 1, stored, 0, stored.length);
+            if(MessageDigest.isEqual(stored, password.getBytes(StandardCharsets.UTF_8)))
+                return true;
+            return isClientHash(password)
+                    && MessageDigest.isEqual(stored, toLegacyHex(password).getBytes(StandardCharsets.UTF_8));
+        }
+        if(hash[0] == PBKDF2_SHA256 && hash.length == HEADER_LENGTH + SALT_LENGTH + KEY_LENGTH) {
+            ByteBuffer buf = ByteBuffer.wrap(hash, 1, hash.length - 1);
+            int n = buf.getInt();
+            byte[] salt = new byte[SALT_LENGTH];
+            byte[] key = new byte[KEY_LENGTH];
+            buf.get(salt).get(key);
+            return MessageDigest.isEqual(key, derive(password, salt, n));
+        }
+
+        return false;
+    }
+
+    /**
+     * Reads the cluster's peer key from the first line of a file
+     *
+     * @param file file holding the key
+     * @return the key, without surrounding white space
+     * @throws IOException if the file cannot be read or holds no key
+     */
+    public static String readPeerKey(File file) throws IOException {
+        try(BufferedReader in = Files.newBufferedReader(file.toPath(), StandardCharsets.UTF_8)) {
+            String line = in.readLine();
+            if(line == null || line.trim().isEmpty())
+                throw new IOException("No peer key in " + file);
+            return line.trim();
+        }
+    }
+
+    /**
+     * Checks a peer key given with a call against the cluster's
+     *
+     * @param expected the cluster's peer key, null if none is configured
+     * @param given key sent with the call, may be null
+     * @return whether the keys match; always false without a configured key
+     */
+    public static boolean isPeerKey(String expected, String given) {
+        if(expected == null || given == null)
+            return false;
+
+        return MessageDigest.isEqual(expected.getBytes(StandardCharsets.UTF_8), given.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Whether a hash that the given password was just checked against should be replaced by
+     * hash(password). A version 0 hash checked with the hex an older client sent is kept, since
+     * current clients send a different string for the same password.
+     *
+     * @param hash stored hash the password matched
+     * @param password the password that matched
+     * @return whether to store a new hash for the password
+     */
+    public static boolean needsRehash(byte[] hash, String password) {
+        if(hash == null || password == null)
+            return false;
+        if(hash[0] == LEGACY)
+            return isClientHash(password) || !isOldClientHash(password);
+        if(hash[0] == PBKDF2_SHA256 && hash.length >= HEADER_LENGTH)
+            return ByteBuffer.wrap(hash, 1, 4).getInt() < iterations;
+
+        return false;
+    }
+
+    /**
+     * Wraps a password as an older server stored it, found in old snapshots, logs and backups
+     *
+     * @param password stored password, may be null
+     * @return the version 0 hash, or null for no password
+     */
+    public static byte[] fromLegacy(String password) {
+        if(password == null)
+            return null;
+
+        byte[] text = password.getBytes(StandardCharsets.UTF_8);
+        byte[] hash = new byte[text.length + 1];
+        hash[0] = LEGACY;
+        System.arraycopy(text, 0, hash, 1, text.length);
+
+        return hash;
+    }
+
+    /**
+     * @return the bytes written as lower case hex, two digits each
+     */
+    public static String toHex(byte[] bytes) {
+        char[] text = new char[bytes.length * 2];
+        for(int i = 0; i < bytes.length; i++) {
+            text[2 * i] = HEX[(bytes[i] >> 4) & 0xF];
+            text[2 * i + 1] = HEX[bytes[i] & 0xF];
+        }
+
+        return new String(text);
+    }
+
+    private static byte[] derive(String password, byte[] salt, int n) {
+        PBEKeySpec spec = new PBEKeySpec(password.toCharArray(), salt, n, KEY_LENGTH * 8);
+        try {
+            return SecretKeyFactory.getInstance(ALGORITHM).generateSecret(spec).getEncoded();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(ALGORITHM + " is not available", e);
+        } finally {
+            spec.clearPassword();
+        }
+    }
+
+    // The full lower case hex of a SHA-512, as current clients send it
+    private static boolean isClientHash(String password) {
+        if(password.length() != CLIENT_HASH_LENGTH)
+            return false;
+        for(int i = 0; i < password.length(); i++) {
+            char c = password.charAt(i);
+            if(!(c >= '0' && c <= '9') && !(c >= 'a' && c <= 'f'))
+                return false;
+        }
+
+        return true;
+    }
+
+    // Upper case hex with leading zeros dropped from each byte, as older clients sent it
+    private static boolean isOldClientHash(String password) {
+        if(password.length() < CLIENT_HASH_LENGTH / 2 || password.length() > CLIENT_HASH_LENGTH)
+            return false;
+        for(int i = 0; i < password.length(); i++) {
+            char c = password.charAt(i);
+            if(!(c >= '0' && c <= '9') && !(c >= 'A' && c <= 'F'))
+                return false;
+        }
+
+        return true;
+    }
+
+    private static String toLegacyHex(String clientHash) {
+        StringBuilder legacy = new StringBuilder(CLIENT_HASH_LENGTH);
+        for(int i = 0; i < clientHash.length(); i += 2) {
+            if(clientHash.charAt(i) != '0')
+                legacy.append(Character.toUpperCase(clientHash.charAt(i)));
+            legacy.append(Character.toUpperCase(clientHash.charAt(i + 1)));
+        }
+
+        return legacy.toString();
+    }
+}
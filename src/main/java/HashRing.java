@@ -0,0 +1,63 @@
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Consistent hash ring that assigns keys (login names) to nodes.
+ *
+ * Each node is placed on the ring at VIRTUAL_NODES points derived from its name, and a key belongs
+ * to the node owning the first point at or after the key's hash. Adding or removing a node only
+ * moves the keys between its points and their neighbours, about 1/N of them, and the assignment
+ * depends only on the node names, not the order they were added in.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class HashRing<T> {
+    private static final int VIRTUAL_NODES = 160;
+
+    private final TreeMap<Long, T> ring = new TreeMap<>();
+
+    /**
+     * @param name stable name of the node, e.g. its host and port
+     * @param node the node
+     */
+    public void add(String name, T node) {
+        for(int i = 0; i < VIRTUAL_NODES; i++)
+            ring.put(hash(name + "#" + i), node);
+    }
+
+    public void remove(String name) {
+        for(int i = 0; i < VIRTUAL_NODES; i++)
+            ring.remove(hash(name + "#" + i));
+    }
+
+    /**
+     * @param key the key
+     * @return the node the key belongs to, or null if the ring is empty
+     */
+    public T nodeFor(String key) {
+        if(ring.isEmpty())
+            return null;
+        Map.Entry<Long, T> owner = ring.ceilingEntry(hash(key));
+
+        return owner != null ? owner.getValue() : ring.firstEntry().getValue();
+    }
+
+    // First 8 bytes of the MD5 digest, which spreads similar names evenly around the ring
+    private static long hash(String key) {
+        try {
+            byte[] digest = MessageDigest.getInstance("MD5").digest(key.getBytes(StandardCharsets.UTF_8));
+            long h = 0;
+            for(int i = 0; i < 8; i++)
+                h = (h << 8) | (digest[i] & 0xff);
+
+            return h;
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        }
+    }
+}
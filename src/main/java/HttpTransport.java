@@ -0,0 +1,406 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the Queries operations as JSON over HTTP, for clients that cannot speak RMI or the binary
+ * protocol, using the HTTP server built into the JDK.
+ *
+ * Each operation is a POST to its Queries method name with the arguments as a JSON object named
+ * like the method's parameters, e.g. POST /lookupByLogin {"loginName": "alice"}. Replies mirror
+ * the Java types: {"status": "OK", "user": {...}} for a single user, {"status": ...} for renames
+ * and deletes, {"status": ..., "users": [...], "nextCursor": ...} for getInfoPage and search, and
+ * {"results": [{"status": ..., "user": {...}}, ...]} for the batch operations, whose items are
+ * objects for createLogins and deleteUsers ({"requests": [{"loginName": ..., ...}]}) and strings
+ * for lookupByLogins and lookupByUUIDs. GET /stats returns the server's statistics, and GET /ready
+ * answers 200 once the server is ready for every request and 503 while it is still loading, for
+ * health checks. /stats replies {"status": ...} instead of the statistics when the server is too
+ * busy for the request or the client is over its rate limit. Passwords are the SHA-512 hex that
+ * RMI clients send (see IdentityClient.hashPassword).
+ *
+ * A reply that was made is 200 whatever its status; 400 means the request could not be read, 404
+ * an unknown operation, 405 the wrong method, and 500 a call that failed, with {"error": ...}.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class HttpTransport extends Transport {
+    private static final int MAX_BODY = 16 << 20;
+    // Threads reading requests off connections before handing them to callers
+    private static final int HANDLERS = 4;
+
+    private final HttpServer server;
+    private final ExecutorService handlers;
+
+    /**
+     * Starts serving on a port
+     *
+     * @param queries the server the requests are made on
+     * @param port port to listen on
+     * @param maxCallers largest number of requests being made at once
+     * @throws IOException if the port cannot be listened on
+     */
+    public HttpTransport(Queries queries, int port, int maxCallers) throws IOException {
+        super(queries, maxCallers, "http");
+        server = HttpServer.create(new InetSocketAddress(port), 0);
+        handlers = Executors.newFixedThreadPool(HANDLERS, r -> {
+            Thread t = new Thread(r, "http-transport");
+            t.setDaemon(true);
+            return t;
+        });
+        server.setExecutor(handlers);
+        server.createContext("/", this::handle);
+        server.start();
+    }
+
+    /**
+     * @return the port being listened on
+     */
+    public int getPort() {
+        return server.getAddress().getPort();
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        handlers.shutdown();
+        super.close();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        String op = exchange.getRequestURI().getPath().substring(1);
+        String client = exchange.getRemoteAddress().getAddress().getHostAddress();
+        boolean post = exchange.getRequestMethod().equals("POST");
+
+        try {
+            if(op.equals("stats") || op.equals("ready")) {
+                if(!exchange.getRequestMethod().equals("GET")) {
+                    error(exchange, 405, "Use GET for " + op);
+                    return;
+                }
+                if(op.equals("stats"))
+                    call(client, Queries::getStats, Result.<ServerStats>of(Status.BUSY), (r, e) -> reply(exchange, e, out -> stats(out, r)));
+                else
+                    call(client, Queries::getStats, Result.<ServerStats>of(Status.BUSY), (r, e) -> ready(exchange, e, r));
+                return;
+            }
+            if(!post) {
+                error(exchange, 405, "Use POST for operations");
+                return;
+            }
+
+            Map<String, Object> args = readArguments(exchange);
+            switch(op) {
+                case "createLogin": {
+                    String loginName = string(args, "loginName", true);
+                    String realName = string(args, "realName", false);
+                    String password = string(args, "password", false);
+                    call(client, q -> q.createLogin(loginName, realName, password), Result.<UserInfo>of(Status.BUSY),
+                            (r, e) -> reply(exchange, e, out -> result(out, r)));
+                    break;
+                }
+                case "lookupByLogin": {
+                    String loginName = string(args, "loginName", true);
+                    call(client, q -> q.lookupByLogin(loginName), Result.<UserInfo>of(Status.BUSY),
+                            (r, e) -> reply(exchange, e, out -> result(out, r)));
+                    break;
+                }
+                case "lookupByUUID": {
+                    String uuid = string(args, "uuid", true);
+                    call(client, q -> q.lookupByUUID(uuid), Result.<UserInfo>of(Status.BUSY),
+                            (r, e) -> reply(exchange, e, out -> result(out, r)));
+                    break;
+                }
+                case "modifyName": {
+                    String oldLoginName = string(args, "oldLoginName", true);
+                    String newLoginName = string(args, "newLoginName", true);
+                    String password = string(args, "password", false);
+                    call(client, q -> q.modifyName(oldLoginName, newLoginName, password), Status.BUSY,
+                            (r, e) -> reply(exchange, e, out -> status(out, r)));
+                    break;
+                }
+                case "deleteUser": {
+                    String loginName = string(args, "loginName", true);
+                    String password = string(args, "password", false);
+                    call(client, q -> q.deleteUser(loginName, password), Status.BUSY,
+                            (r, e) -> reply(exchange, e, out -> status(out, r)));
+                    break;
+                }
+                case "getInfoPage": {
+                    String type = string(args, "type", true);
+                    String cursor = string(args, "cursor", false);
+                    int pageSize = integer(args, "pageSize");
+                    call(client, q -> q.getInfoPage(type, cursor, pageSize), Result.<Page>of(Status.BUSY),
+                            (r, e) -> reply(exchange, e, out -> page(out, r)));
+                    break;
+                }
+                case "search": {
+                    String field = string(args, "field", true);
+                    String match = string(args, "match", true);
+                    String text = string(args, "text", true);
+                    String cursor = string(args, "cursor", false);
+                    int pageSize = integer(args, "pageSize");
+                    call(client, q -> q.search(field, match, text, cursor, pageSize), Result.<Page>of(Status.BUSY),
+                            (r, e) -> reply(exchange, e, out -> page(out, r)));
+                    break;
+                }
+                case "createLogins": {
+                    List<UserRequest> requests = new ArrayList<>();
+                    for(Map<String, Object> item: objects(args, "requests")) {
+                        requests.add(new UserRequest(string(item, "loginName", true), string(item, "realName", false),
+                                string(item, "password", false)));
+                    }
+                    call(client, q -> q.createLogins(requests), BatchResult.allOf(requests.size(), Status.BUSY),
+                            (r, e) -> reply(exchange, e, out -> batch(out, r)));
+                    break;
+                }
+                case "lookupByLogins": {
+                    List<String> loginNames = strings(args, "loginNames");
+                    call(client, q -> q.lookupByLogins(loginNames), BatchResult.allOf(loginNames.size(), Status.BUSY),
+                            (r, e) -> reply(exchange, e, out -> batch(out, r)));
+                    break;
+                }
+                case "lookupByUUIDs": {
+                    List<String> uuids = strings(args, "uuids");
+                    call(client, q -> q.lookupByUUIDs(uuids), BatchResult.allOf(uuids.size(), Status.BUSY),
+                            (r, e) -> reply(exchange, e, out -> batch(out, r)));
+                    break;
+                }
+                case "deleteUsers": {
+                    List<UserRequest> requests = new ArrayList<>();
+                    for(Map<String, Object> item: objects(args, "requests"))
+                        requests.add(new UserRequest(string(item, "loginName", true), null, string(item, "password", false)));
+                    call(client, q -> q.deleteUsers(requests), BatchResult.allOf(requests.size(), Status.BUSY),
+                            (r, e) -> reply(exchange, e, out -> batch(out, r)));
+                    break;
+                }
+                default:
+                    error(exchange, 404, "Unknown operation: " + op);
+            }
+        } catch (IllegalArgumentException e) {
+            error(exchange, 400, e.getMessage());
+        }
+    }
+
+    /**
+     * Sends the reply to a request, on the caller thread that made it
+     */
+    private static void reply(HttpExchange exchange, Exception failure, Body body) {
+        try {
+            if(failure != null) {
+                error(exchange, 500, String.valueOf(failure.getMessage()));
+                return;
+            }
+            StringBuilder out = new StringBuilder(256);
+            body.write(out);
+            send(exchange, 200, out);
+        } catch (IOException e) {
+            // The client went away; there is nobody left to tell
+            exchange.close();
+        }
+    }
+
+    // The server reports readiness as a gauge in its statistics
+    private static void ready(HttpExchange exchange, Exception failure, Result<ServerStats> stats) {
+        if(failure != null) {
+            reply(exchange, failure, null);
+            return;
+        }
+        // A server too busy to report its statistics is not ready for more work either
+        boolean ready = stats.isOk() && Long.valueOf(1).equals(stats.getValue().getGauges().get("ready"));
+        try {
+            send(exchange, ready ? 200 : 503, "{\"ready\":" + ready + "}");
+        } catch (IOException e) {
+            exchange.close();
+        }
+    }
+
+    private static void error(HttpExchange exchange, int code, String message) throws IOException {
+        send(exchange, code, Json.quote(new StringBuilder("{\"error\":"), message).append('}'));
+    }
+
+    private static void send(HttpExchange exchange, int code, CharSequence json) throws IOException {
+        byte[] bytes = json.toString().getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(code, bytes.length);
+        try(OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Map<String, Object> readArguments(HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        try(InputStream in = exchange.getRequestBody()) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while((n = in.read(buffer)) > 0) {
+                body.write(buffer, 0, n);
+                if(body.size() > MAX_BODY)
+                    throw new IllegalArgumentException("Request body too large");
+            }
+        }
+        if(body.size() == 0)
+            return Collections.emptyMap();
+
+        Object args = Json.parse(new String(body.toByteArray(), StandardCharsets.UTF_8));
+        if(!(args instanceof Map))
+            throw new IllegalArgumentException("Expected a JSON object of arguments");
+        return (Map<String, Object>) args;
+    }
+
+    private static String string(Map<String, Object> args, String name, boolean required) {
+        Object value = args.get(name);
+        if(value == null && required)
+            throw new IllegalArgumentException("Missing " + name);
+        if(value != null && !(value instanceof String))
+            throw new IllegalArgumentException(name + " must be a string");
+        return (String) value;
+    }
+
+    private static int integer(Map<String, Object> args, String name) {
+        Object value = args.get(name);
+        if(!(value instanceof Long) || (Long) value != ((Long) value).intValue())
+            throw new IllegalArgumentException(name + " must be an integer");
+        return ((Long) value).intValue();
+    }
+
+    private static List<String> strings(Map<String, Object> args, String name) {
+        List<String> strings = new ArrayList<>();
+        for(Object value: list(args, name)) {
+            if(!(value instanceof String))
+                throw new IllegalArgumentException(name + " must be strings");
+            strings.add((String) value);
+        }
+        return strings;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static List<Map<String, Object>> objects(Map<String, Object> args, String name) {
+        List<Map<String, Object>> objects = new ArrayList<>();
+        for(Object value: list(args, name)) {
+            if(!(value instanceof Map))
+                throw new IllegalArgumentException(name + " must be objects");
+            objects.add((Map<String, Object>) value);
+        }
+        return objects;
+    }
+
+    private static List<?> list(Map<String, Object> args, String name) {
+        Object value = args.get(name);
+        if(!(value instanceof List))
+            throw new IllegalArgumentException(name + " must be an array");
+        return (List<?>) value;
+    }
+
+    private static void user(StringBuilder out, UserInfo user) {
+        out.append('{');
+        int start = out.length();
+        if(user.getLoginName() != null)
+            Json.quote(out.append("\"loginName\":"), user.getLoginName()).append(',');
+        if(user.getRealName() != null)
+            Json.quote(out.append("\"realName\":"), user.getRealName()).append(',');
+        if(user.getUUID() != null)
+            Json.quote(out.append("\"uuid\":"), user.getUUID().toString()).append(',');
+        if(user.getIp() != null)
+            Json.quote(out.append("\"ip\":"), user.getIp()).append(',');
+        if(user.hasDates()) {
+            out.append("\"lastChangeDate\":").append(user.getLastChangeDate()).append(',');
+            out.append("\"lastRequestDate\":").append(user.getLastRequestDate()).append(',');
+        }
+        // Drops the last comma
+        if(out.length() > start)
+            out.setLength(out.length() - 1);
+        out.append('}');
+    }
+
+    private static void status(StringBuilder out, Status status) {
+        out.append("{\"status\":\"").append(status).append("\"}");
+    }
+
+    private static void result(StringBuilder out, Result<UserInfo> result) {
+        out.append("{\"status\":\"").append(result.getStatus()).append('"');
+        if(result.getValue() != null) {
+            out.append(",\"user\":");
+            user(out, result.getValue());
+        }
+        out.append('}');
+    }
+
+    private static void page(StringBuilder out, Result<Page> result) {
+        out.append("{\"status\":\"").append(result.getStatus()).append('"');
+        if(result.isOk()) {
+            out.append(",\"users\":[");
+            UserInfo[] users = result.getValue().getUsers();
+            for(int i = 0; i < users.length; i++) {
+                if(i > 0)
+                    out.append(',');
+                user(out, users[i]);
+            }
+            Json.quote(out.append("],\"nextCursor\":"), result.getValue().getNextCursor());
+        }
+        out.append('}');
+    }
+
+    private static void batch(StringBuilder out, BatchResult result) {
+        out.append("{\"results\":[");
+        for(int i = 0; i < result.size(); i++) {
+            if(i > 0)
+                out.append(',');
+            out.append("{\"status\":\"").append(result.getStatus(i)).append('"');
+            if(result.getUser(i) != null) {
+                out.append(",\"user\":");
+                user(out, result.getUser(i));
+            }
+            out.append('}');
+        }
+        out.append("]}");
+    }
+
+    private static void stats(StringBuilder out, Result<ServerStats> result) {
+        if(!result.isOk()) {
+            status(out, result.getStatus());
+            return;
+        }
+        ServerStats stats = result.getValue();
+        out.append("{\"operations\":[");
+        List<ServerStats.OperationStats> operations = stats.getOperations();
+        for(int i = 0; i < operations.size(); i++) {
+            ServerStats.OperationStats op = operations.get(i);
+            if(i > 0)
+                out.append(',');
+            Json.quote(out.append("{\"name\":"), op.getName());
+            out.append(",\"count\":").append(op.getCount()).append(",\"errors\":").append(op.getErrors())
+                    .append(",\"busy\":").append(op.getBusy()).append(",\"meanNanos\":").append(op.getMean())
+                    .append(",\"p50Nanos\":").append(op.getP50()).append(",\"p90Nanos\":").append(op.getP90())
+                    .append(",\"p99Nanos\":").append(op.getP99()).append(",\"p999Nanos\":").append(op.getP999())
+                    .append(",\"maxNanos\":").append(op.getMax()).append('}');
+        }
+        out.append("],\"gauges\":{");
+        boolean first = true;
+        for(Map.Entry<String, Long> gauge: stats.getGauges().entrySet()) {
+            if(!first)
+                out.append(',');
+            first = false;
+            Json.quote(out, gauge.getKey()).append(':').append(gauge.getValue());
+        }
+        out.append("}}");
+    }
+
+    private interface Body {
+        void write(StringBuilder out);
+    }
+}
@@ -7,21 +7,35 @@
 
 import org.apache.commons.cli.*;
 
-import java.rmi.NotBoundException;
+import java.io.*;
 import java.rmi.RemoteException;
-import java.rmi.registry.LocateRegistry;
-import java.rmi.registry.Registry;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
 
 
 
 public class IdClient {
 	private static String host;
+	//Shards of a sharded registry, or null to use --server
+	private static String shardList;
+	//File holding the cluster's peer key, needed to move users between shards, or null
+	private static String peerKeyFile;
 
 	//The default port used if no port is specified
 	private static int defaultPort = 1099;
 
+	//Number of operations sent per batch call, and how many batch calls' worth of operations may be in flight at once
+	private static int batchSize = 1000;
+	private static final int BATCH_PIPELINE_DEPTH = 4;
+
+	//Number of users fetched per page by the get command, and where its output goes (null for stdout)
+	private static int pageSize = 1000;
+	private static String outputFile;
+
+	//Largest number of users kept by the lookup cache, or 0 to send every lookup to the server
+	private static int cacheSize = 0;
+	private static final long CACHE_TTL = 60000;
+
 	public static void main(String[] args) {
 		CommandLine userInput = parseArguments(args);
 
@@ -30,8 +44,27 @@ public class IdClient {
 				" optionally provides the real user name and password along with the request.";
 
 		try {
-			Registry registry = LocateRegistry.getRegistry(host, defaultPort);
-			Queries methodStub = (Queries) registry.lookup("//" + host + ":" + defaultPort + "/IdServer");
+			//Shards split the registry by login name, each shard being a server or a primary and its replicas.
+			//A list of servers is a primary and its replicas: reads are spread across them and writes follow the primary
+			//Renames onto another shard and rebalance move whole users, which only holders of the peer key may do
+			String peerKey = null;
+			if(peerKeyFile != null) {
+				try {
+					peerKey = Credentials.readPeerKey(new File(peerKeyFile));
+				} catch(IOException e) {
+					System.out.println("Peer key could not be read: " + e.getMessage());
+					System.exit(1);
+				}
+			}
+			Queries connected = IdentityClient.connect(host, shardList, defaultPort, peerKey);
+			Queries methodStub = connected;
+			//Repeated lookups are answered from a local cache that the server keeps up to date
+			CachingQueries cache = null;
+			if(cacheSize > 0) {
+				cache = new CachingQueries(methodStub, cacheSize, CACHE_TTL);
+				methodStub = cache;
+			}
+			IdentityClient client = new IdentityClient(methodStub, batchSize * BATCH_PIPELINE_DEPTH, batchSize);
 			//If user is utilizing the create command, check for valid arguments
 			if(userInput.hasOption("create")) {
 				String password = null;
@@ -79,58 +112,337 @@ public class IdClient {
 					System.out.println("get expects one of: users, uuids, all");
 					System.exit(1);
 				}
-				getInfo(methodStub, option);
+				exportInfo(methodStub, option);
+			}
+			//Utilized for the search command, finds users by the start of or text within a login or real name
+			if(userInput.hasOption("search")) {
+				String[] searchArgs = userInput.getOptionValues("search");
+				String match = userInput.getOptionValue("match", "prefix");
+				if(!(searchArgs[0].equals("login") || searchArgs[0].equals("real")) || !(match.equals("prefix") || match.equals("substring"))) {
+					System.out.println("search expects login or real and a text, and --match expects prefix or substring");
+					System.exit(1);
+				}
+				searchUsers(methodStub, searchArgs[0], match, searchArgs[1]);
 			}
-		} catch(RemoteException | NotBoundException e) {
+			//Utilized for the batch command, reads operations from a file or stdin
+			if(userInput.hasOption("batch")) {
+				runBatch(client, userInput.getOptionValue("batch"));
+			}
+			//Utilized for the stats command, shows the server's counters and latencies
+			if(userInput.hasOption("stats")) {
+				printStats(methodStub);
+			}
+			//Utilized for the follow command, prints every create, rename and delete as it happens
+			if(userInput.hasOption("follow")) {
+				followEvents(methodStub, userInput.getOptionValue("follow"));
+			}
+			//Utilized for the rebalance command, moves users to the shard that owns them after shards are added
+			if(userInput.hasOption("rebalance")) {
+				if(shardList == null) {
+					System.out.println("rebalance needs the shards to be given with --shards");
+					System.exit(1);
+				}
+				System.out.println("Moved " + ((ShardedQueries) connected).rebalance(batchSize) + " users");
+			}
+			client.close();
+			if(cache != null) {
+				System.out.println("Cache: " + cache.getHits() + " hits, " + cache.getMisses() + " misses");
+				cache.close();
+			}
+		} catch(RemoteException e) {
 			System.out.println(e.getMessage());
 		}
 	}
 
 	//Creates a new login
 	private static void createLogin(Queries methodStub, String loginName, String realName, String password) throws RemoteException {
-		if(password != null) {
-			try {
-				password = trySHA(password);
-			} catch (java.security.NoSuchAlgorithmException e) {
-				System.err.println(e);
-			}
-		}
-
-		System.out.println(methodStub.createLogin(loginName, realName, password));
+		Result<UserInfo> result = methodStub.createLogin(loginName, realName, IdentityClient.hashPassword(password));
+		System.out.println(describe("create", result.getStatus(), result.getValue(), loginName));
 	}
 	//Used for the lookup command, finds users when given login name
 	private static void lookupByLogin(Queries methodStub, String loginName) throws RemoteException {
-		System.out.println(methodStub.lookupByLogin(loginName));
+		Result<UserInfo> result = methodStub.lookupByLogin(loginName);
+		System.out.println(describe("lookup", result.getStatus(), result.getValue(), loginName));
 	}
 	//Used for the reverse-lookup command, finds users when given a UUID
 	private static void lookupByUUID(Queries methodStub, String uuid) throws RemoteException {
-		System.out.println(methodStub.lookupByUUID(uuid));
+		Result<UserInfo> result = methodStub.lookupByUUID(uuid);
+		System.out.println(describe("reverse-lookup", result.getStatus(), result.getValue(), uuid));
 	}
 	//Used for modify command, changes login name
 	private static void modifyName(Queries methodStub, String oldName, String newName, String password) throws RemoteException {
-		if(password != null) {
-			try {
-				password = trySHA(password); //Requires a password if the given user set one upon creation
-			} catch (java.security.NoSuchAlgorithmException e) {
-				System.err.println(e);
-			}
-		}
-		System.out.println(methodStub.modifyName(oldName, newName, password));
+		//Requires a password if the given user set one upon creation
+		System.out.println(describe("modify", methodStub.modifyName(oldName, newName, IdentityClient.hashPassword(password)), null, newName));
 	}
 	//Used for the delete command, deletes a user from registry
 	private static void deleteUser(Queries methodStub, String loginName, String password) throws RemoteException {
-		if(password != null) {
-			try {
-				password = trySHA(password);//Requires a password if the given user set one upon creation
-			} catch (java.security.NoSuchAlgorithmException e) {
-				System.err.println(e);
+		//Requires a password if the given user set one upon creation
+		System.out.println(describe("delete", methodStub.deleteUser(loginName, IdentityClient.hashPassword(password)), null, loginName));
+	}
+	//Used by the get command, 3 different types of info can be returned. Pages through the registry
+	//and writes each page out as it arrives, fetching the next page while the current one is written,
+	//so at most two pages are ever held in memory.
+	private static void exportInfo(Queries methodStub, String type) throws RemoteException {
+		writePages(cursor -> methodStub.getInfoPage(type, cursor, pageSize), "get", type,
+				"get expects one of: users, uuids, all, and a page size of at most 10000");
+	}
+	//Used by the search command, writes every matching user out a page at a time like get all
+	private static void searchUsers(Queries methodStub, String field, String match, String text) throws RemoteException {
+		writePages(cursor -> methodStub.search(field, match, text, cursor, pageSize), "search", "all",
+				"search expects a substring of at least 3 characters and a page size of at most 10000");
+	}
+	//Fetches pages until the last one, writing each out in the given form while the next is fetched
+	private static void writePages(Pager pager, String op, String type, String usage) throws RemoteException {
+		ExecutorService fetcher = Executors.newSingleThreadExecutor();
+		try(Writer out = new BufferedWriter(outputFile == null
+				? new OutputStreamWriter(System.out) : new FileWriter(outputFile), 1 << 16)) {
+			Future<Result<Page>> next = fetcher.submit(() -> pager.fetch(null));
+			StringBuilder text = new StringBuilder();
+
+			while(next != null) {
+				Result<Page> result = awaitPage(next);
+				if(result.getStatus() == Status.BUSY || result.getStatus() == Status.THROTTLED || result.getStatus() == Status.NOT_READY) {
+					System.out.println(describe(op, result.getStatus(), null, type));
+					return;
+				} else if(!result.isOk()) {
+					System.out.println(usage);
+					return;
+				}
+				Page page = result.getValue();
+				String cursor = page.getNextCursor();
+				next = page.isLast() ? null : fetcher.submit(() -> pager.fetch(cursor));
+
+				text.setLength(0);
+				for(UserInfo user: page.getUsers()) {
+					if(type.equals("users")) text.append(user.getLoginName()).append('\n');
+					else if(type.equals("uuids")) text.append(user.getUUID()).append('\n');
+					else formatUser(text, user).append('\n');
+				}
+				out.append(text);
 			}
+		} catch(IOException e) {
+			System.out.println("Could not write output: " + e.getMessage());
+		} finally {
+			fetcher.shutdownNow();
 		}
-		System.out.println(methodStub.deleteUser(loginName, password));
 	}
-	//Used by the get command, 3 different types of info can be returned
-	private static void getInfo(Queries methodStub, String type) throws RemoteException {
-		System.out.println(methodStub.getInfo(type));
+	//Fetches the page after a cursor, or the first page for a null cursor
+	private interface Pager {
+		Result<Page> fetch(String cursor) throws RemoteException;
+	}
+	//Waits for a page fetched in the background
+	private static Result<Page> awaitPage(Future<Result<Page>> page) throws RemoteException {
+		try {
+			return page.get();
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RemoteException("Interrupted while fetching page");
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof RemoteException) throw (RemoteException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+	//Turns the outcome of an operation into the text shown to the user
+	private static String describe(String op, Status status, UserInfo user, String key) {
+		switch(status) {
+			case OK:
+				if(op.equals("create")) return "New user created: " + user.getLoginName() + "\nUUID: " + user.getUUID();
+				if(op.equals("modify")) return "New login name: " + key;
+				if(op.equals("delete")) return "User has been deleted: " + key;
+				return formatUser(new StringBuilder(), user).toString();
+			case NOT_FOUND:
+				if(op.equals("lookup")) return "No user with login name: " + key;
+				if(op.equals("reverse-lookup")) return "No user found with UUID: " + key;
+				if(op.equals("modify")) return "Login name cannot be found";
+				return "User does not exist";
+			case ALREADY_EXISTS:
+				return "User already taken";
+			case BAD_PASSWORD:
+				return "Incorrect password";
+			case BUSY:
+				return "Server busy, try again later";
+			case NOT_PRIMARY:
+				return "Server is not the primary, try again later";
+			case THROTTLED:
+				return "Too many requests from this host, slow down and try again";
+			case NOT_READY:
+				return "Server is still loading the registry, try again shortly";
+			case EXPIRED:
+				return "User has expired after a long time without use";
+			default:
+				return "Request rejected: " + status;
+		}
+	}
+	//Formats every field of a user, one per line
+	private static StringBuilder formatUser(StringBuilder out, UserInfo user) {
+		out.append("Login Name: ").append(user.getLoginName()).append('\n');
+		out.append("Real Name: ").append(user.getRealName()).append('\n');
+		out.append("UUID: ").append(user.getUUID()).append('\n');
+		out.append("IP: ").append(user.getIp()).append('\n');
+		out.append("Last Change: ").append(new Date(user.getLastChangeDate())).append('\n');
+		out.append("Last Request: ").append(new Date(user.getLastRequestDate())).append('\n');
+		return out;
+	}
+	//Used for the stats command, prints a row of counters and latency percentiles (in microseconds)
+	//per operation followed by the server's gauges
+	private static void printStats(Queries methodStub) throws RemoteException {
+		Result<ServerStats> result = methodStub.getStats();
+		if(!result.isOk()) {
+			System.out.println("Statistics could not be fetched: " + result.getStatus());
+			return;
+		}
+		ServerStats stats = result.getValue();
+		StringBuilder out = new StringBuilder();
+		out.append(String.format("%-16s %10s %8s %8s %10s %10s %10s %10s %10s %10s%n",
+				"operation", "count", "errors", "busy", "mean(us)", "p50(us)", "p90(us)", "p99(us)", "p99.9(us)", "max(us)"));
+		for(ServerStats.OperationStats op: stats.getOperations()) {
+			out.append(String.format("%-16s %10d %8d %8d %10.1f %10.1f %10.1f %10.1f %10.1f %10.1f%n",
+					op.getName(), op.getCount(), op.getErrors(), op.getBusy(), op.getMean() / 1000.0, op.getP50() / 1000.0,
+					op.getP90() / 1000.0, op.getP99() / 1000.0, op.getP999() / 1000.0, op.getMax() / 1000.0));
+		}
+		out.append('\n');
+		for(Map.Entry<String, Long> gauge: stats.getGauges().entrySet())
+			out.append(String.format("%-20s %d%n", gauge.getKey(), gauge.getValue()));
+		System.out.print(out);
+	}
+	//Used for the follow command. Asks for the events after a cursor, which waits briefly on the server
+	//when there are none yet, and prints them until interrupted. Without a cursor, or when the server no
+	//longer holds the events after it, the feed starts over with every user as a created event, a page
+	//at a time, before the changes made since.
+	private static void followEvents(Queries methodStub, String cursor) throws RemoteException {
+		int max = Math.min(batchSize, 1000);
+		while(!Thread.currentThread().isInterrupted()) {
+			Result<ChangeFeed> result = methodStub.getEvents(cursor, max);
+			if(result.getStatus() == Status.BUSY || result.getStatus() == Status.THROTTLED || result.getStatus() == Status.NOT_READY) {
+				try {
+					Thread.sleep(100);
+				} catch(InterruptedException e) {
+					return;
+				}
+				continue;
+			} else if(!result.isOk()) {
+				System.out.println("follow expects a cursor printed by an earlier follow: " + result.getStatus());
+				return;
+			}
+			ChangeFeed feed = result.getValue();
+			StringBuilder out = new StringBuilder();
+			if(feed.isReset() && cursor != null)
+				out.append("Missed events after ").append(cursor).append(", starting over from every user\n");
+			for(ChangeEvent event: feed.getEvents()) {
+				out.append(event.getSequence()).append(' ');
+				switch(event.getType()) {
+					case CREATED:
+						UserInfo user = event.getUser();
+						out.append("created ").append(user.getLoginName()).append(' ').append(user.getUUID())
+								.append(" \"").append(user.getRealName()).append('"');
+						break;
+					case RENAMED:
+						out.append("renamed ").append(event.getLoginName()).append(' ').append(event.getNewLoginName());
+						break;
+					default:
+						out.append("deleted ").append(event.getLoginName());
+				}
+				out.append('\n');
+			}
+			System.out.print(out);
+			System.out.flush();
+			cursor = feed.getNextCursor();
+		}
+	}
+	//Used for the batch command. Reads one operation per line from a file, or stdin for "-", and hands
+	//each to the client library, which sends operations of the same kind together in batch calls with
+	//several calls in flight. Operations only overlap within a run of the same kind, so a lookup always
+	//sees the creates and deletes above it. Results are printed in input order.
+	private static void runBatch(IdentityClient client, String source) throws RemoteException {
+		Deque<Future<String>> inFlight = new ArrayDeque<>();
+
+		try(BufferedReader in = new BufferedReader(source.equals("-")
+				? new InputStreamReader(System.in) : new FileReader(source))) {
+			String op = null;
+			String line;
+			int lineNumber = 0;
+
+			while((line = in.readLine()) != null) {
+				lineNumber++;
+				String[] tokens = tokenize(line);
+				if(tokens.length == 0 || tokens[0].startsWith("#")) continue;
+				boolean valid = isBatchOperation(tokens);
+
+				if(!valid || !tokens[0].equals(op)) {
+					while(!inFlight.isEmpty())
+						printResult(inFlight.removeFirst());
+					op = valid ? tokens[0] : null;
+				}
+
+				if(valid) inFlight.addLast(submit(client, tokens));
+				else System.out.println("Line " + lineNumber + ": expected create|lookup|reverse-lookup|delete with a login name or UUID");
+				//Prints results as soon as everything before them is done, so finished results do not pile up
+				while(!inFlight.isEmpty() && inFlight.peekFirst().isDone())
+					printResult(inFlight.removeFirst());
+			}
+
+			while(!inFlight.isEmpty())
+				printResult(inFlight.removeFirst());
+		} catch(IOException e) {
+			System.out.println("Could not read batch input: " + e.getMessage());
+		}
+	}
+	//Hands one batch line to the client library, which waits for room in its window
+	private static Future<String> submit(IdentityClient client, String[] item) {
+		String op = item[0];
+		String key = item[1];
+		if(op.equals("create")) {
+			String realName = item.length > 2 && !item[2].isEmpty() ? item[2] : System.getProperty("user.name");
+			return client.createLogin(key, realName, item.length > 3 ? item[3] : null)
+					.thenApply(r -> batchLine(op, r.getStatus(), r.getValue(), key));
+		} else if(op.equals("lookup")) {
+			return client.lookupByLogin(key).thenApply(r -> batchLine(op, r.getStatus(), r.getValue(), key));
+		} else if(op.equals("reverse-lookup")) {
+			return client.lookupByUUID(key).thenApply(r -> batchLine(op, r.getStatus(), r.getValue(), key));
+		}
+		return client.deleteUser(key, item.length > 2 ? item[2] : null).thenApply(status -> batchLine(op, status, null, key));
+	}
+	//Formats the result of one batch line, prefixed with its status when it did not succeed
+	private static String batchLine(String op, Status status, UserInfo user, String key) {
+		String text = describe(op, status, user, key);
+		return status == Status.OK ? text : status + ": " + text;
+	}
+	//Waits for one batch line to finish and prints its result
+	private static void printResult(Future<String> result) throws RemoteException {
+		try {
+			System.out.println(result.get());
+		} catch(InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch(ExecutionException e) {
+			if(e.getCause() instanceof RemoteException) throw (RemoteException) e.getCause();
+			throw new RuntimeException(e.getCause());
+		}
+	}
+	//Checks a tokenized batch line names a supported operation with its required argument
+	private static boolean isBatchOperation(String[] tokens) {
+		String op = tokens[0];
+		return tokens.length >= 2 && (op.equals("create") || op.equals("lookup") || op.equals("reverse-lookup") || op.equals("delete"));
+	}
+	//Splits a batch line on whitespace, keeping "double quoted" text such as real names together
+	private static String[] tokenize(String line) {
+		List<String> tokens = new ArrayList<>();
+		StringBuilder current = new StringBuilder();
+		boolean quoted = false, inToken = false;
+		for(char c: line.toCharArray()) {
+			if(c == '"') {
+				quoted = !quoted;
+				inToken = true;
+			} else if(Character.isWhitespace(c) && !quoted) {
+				if(inToken) tokens.add(current.toString());
+				current.setLength(0);
+				inToken = false;
+			} else {
+				current.append(c);
+				inToken = true;
+			}
+		}
+		if(inToken) tokens.add(current.toString());
+		return tokens.toArray(new String[0]);
 	}
 	//Parses the arguments from the user
 	private static CommandLine parseArguments(String[] args) {
@@ -147,27 +459,26 @@ public class IdClient {
 		}
 
 		host = cmd.getOptionValue("server");
+		shardList = cmd.getOptionValue("shards");
 		if (cmd.hasOption("numport")) defaultPort = Integer.parseInt(cmd.getOptionValue("numport"));
+		if (cmd.hasOption("batch-size")) batchSize = Integer.parseInt(cmd.getOptionValue("batch-size"));
+		if (cmd.hasOption("cache")) cacheSize = Integer.parseInt(cmd.getOptionValue("cache"));
+		if (cmd.hasOption("page-size")) pageSize = Integer.parseInt(cmd.getOptionValue("page-size"));
+		outputFile = cmd.getOptionValue("output");
+		peerKeyFile = cmd.getOptionValue("peer-key");
 
 		return cmd;
 	}
-	//SHA-512 hashing, used for passwords.
-	private static String trySHA(String input) throws NoSuchAlgorithmException {
-		MessageDigest md = MessageDigest.getInstance("SHA-512");
-		byte[] bytes = input.getBytes();
-		md.reset();
-
-		byte[] result = md.digest(bytes);
-		StringBuilder retVal = new StringBuilder();
-		for (byte b : result) retVal.append(String.format("%X", b));
-
-		return retVal.toString();
-	}
 	//Builds the list of possible commands, also used as a proper usager message
 	private static Options optionsList() {
 		Options options = new Options();
 		OptionGroup queries = new OptionGroup();
-		options.addOption(new optionsListFormat(null, "server", true, "Specify serverhost to connect to"));
+		//Either a server (or a primary and its replicas) or a list of shards is required
+		OptionGroup target = new OptionGroup();
+		target.setRequired(true);
+		target.addOption(new Option(null, "server", true, "Specify serverhost to connect to, or a comma-separated list of <host>[:<port>] for a primary and its replicas"));
+		target.addOption(new Option(null, "shards", true, "Comma-separated list of <host>[:<port>] shards that split the registry by login name, each optionally followed by its replicas as |<host>:<port>"));
+		options.addOptionGroup(target);
 		options.addOption(new Option(null, "numport", true, "Specify port to connect to (runs on port 1099 by default)"));
 		queries.addOption(Option.builder(null)
 				.longOpt("create")
@@ -185,19 +496,31 @@ public class IdClient {
 				.build());
 		queries.addOption(new Option(null, "delete", true, "The client contacts the server and requests to delete their login name. The client must supply the correct password for this operation to succeed"));
 		queries.addOption(new Option(null, "get", true, "(users|uuids|all) The client contacts the server and obtains either a list all login names, list of all UUIDs or a list of user, UUID and string description all accounts"));
+		queries.addOption(Option.builder(null)
+				.longOpt("search")
+				.numberOfArgs(2)
+				.desc("(login|real) <text> The client contacts the server and displays every user whose login name or real name starts with the text, or contains it with --match substring. Real names ignore case")
+				.build());
+		queries.addOption(new Option(null, "stats", false, "The client contacts the server and displays its request counts, latency percentiles, store size and backup timings"));
+		queries.addOption(Option.builder(null)
+				.longOpt("follow")
+				.hasArg()
+				.optionalArg(true)
+				.desc("Prints every user as a created event, then every user created, renamed or deleted, until interrupted; with the cursor printed by an earlier follow, only the events after it")
+				.build());
+		queries.addOption(new Option(null, "rebalance", false, "Moves every user to the shard given by --shards that now owns its login name, e.g. after adding a shard"));
+		queries.addOption(new Option(null, "batch", true, "(<file>|-) Reads create, lookup, reverse-lookup and delete operations, one per line, from a file or stdin and sends them to the server in batches"));
 		options.addOptionGroup(queries);
+		options.addOption(new Option(null, "batch-size", true, "Number of operations sent per batch call (1000 by default)"));
+		options.addOption(new Option(null, "page-size", true, "Number of users fetched per call by get and search (1000 by default)"));
+		options.addOption(new Option(null, "match", true, "(prefix|substring) How search matches the text, prefix by default"));
+		options.addOption(new Option(null, "cache", true, "Keeps up to this many looked up users in a local cache that the server invalidates when they change"));
+		options.addOption(new Option(null, "output", true, "Writes the output of get and search to a file instead of stdout"));
 		options.addOption(new Option(null, "password", true, "Sets/utilizes the password if required for the chosen option"));
+		options.addOption(new Option(null, "peer-key", true, "File whose first line is the cluster's peer key, needed with --shards to modify a login name onto another shard and to rebalance"));
 
 		return options;
 	}
-	//Determines the optionList format
-	private static class optionsListFormat extends Option {
-
-		public optionsListFormat(String opt, String longOpt, boolean hasArg, String description) throws IllegalArgumentException {
-			super(opt, longOpt, hasArg, description);
-			this.setRequired(true);
-		}
-	}
 
 
 
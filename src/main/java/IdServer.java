@@ -6,6 +6,16 @@ import java.rmi.registry.*;
 import java.rmi.server.ServerNotActiveException;
 import java.rmi.server.UnicastRemoteObject;
 import java.util.*;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import javax.management.JMException;
 
 /**
  *
@@ -13,151 +23,1056 @@ import java.util.*;
  * @author Fernandez, Justin
  * @author Murphy, Joseph
  */
-public class IdServer extends UnicastRemoteObject implements Queries {
+public class IdServer extends UnicastRemoteObject implements Queries, Peer {
+    private static final String SNAPSHOT_FILE = "registry.snapshot";
+    private static final String LEGACY_BACKUP_FILE = "registry.backup";
+
     private static int defaultPort = 1099;
-    private static Timer t;
-    private static HashMap<String, User> dict;
+    private static long backupInterval = 120000;
+    private static long fsyncInterval = 0;
+    private static ScheduledExecutorService backups;
+    private static UserStore store = new UserStore();
+    private static Metrics metrics = new Metrics(store);
+    private static boolean verbose = false;
+    private static WriteAheadLog wal;
+    private static RequestExecutor executor;
+    private static AccessTracker tracker;
+    // Expires inactive users, null unless --expire-after is given; read by lookups while loading
+    private static volatile Reaper reaper;
+    private static RateLimiter limiter;
+    private static BinaryTransport binaryTransport;
+    private static HttpTransport httpTransport;
+    private static long accessInterval = 1000;
+    private static long recoveredLsn;
+    // Recovery still under way, null once the server is ready for every request
+    private static volatile Recovery recovering;
+    private static File dataDir = new File(".");
+    // Set while this server follows a primary and refuses writes
+    private static volatile boolean replica = false;
+    // Time a replica waits for an unreachable primary before promoting itself, 0 to never do so
+    private static long failoverTimeout = 0;
+    // Required of every Peer call, null to refuse them all
+    private static String peerKey;
+
+    // Largest number of items accepted in a single batch call or returned in a single page
+    private static final int MAX_BATCH = 10000;
+    private static final int MAX_PAGE = 10000;
+    // Largest number of log records sent to a replica per fetch, and how long a fetch waits for one
+    private static final int REPLICATION_BATCH = 10000;
+    private static final long REPLICATION_WAIT = 1000;
+    // Snapshots replicas are copying a page at a time, by id; the least recently read are dropped
+    private static final int SNAPSHOTS_HELD = 4;
+    private static final Map<Long, Snapshot> heldSnapshots = new LinkedHashMap<Long, Snapshot>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Snapshot> eldest) {
+            return size() > SNAPSHOTS_HELD;
+        }
+    };
+    private static long lastSnapshotId;
+    // Starts the cursor of a getEvents snapshot page, which a log position never does
+    private static final String SNAPSHOT_CURSOR = "s";
+    // Requests answered while the registry is still loading, each user permitting
+    private static final EnumSet<Operation> SERVED_WHILE_LOADING = EnumSet.of(Operation.LOOKUP_BY_LOGIN,
+            Operation.LOOKUP_BY_UUID, Operation.LOOKUP_BY_LOGINS, Operation.LOOKUP_BY_UUIDS, Operation.GET_STATS);
 
     public IdServer(String s) throws RemoteException {
         super();
-        dict = new HashMap<>();
     }
 
     @Override
-    public String createLogin(String loginName, String realName, String password) throws RemoteException {
-        System.out.println("Creating " + loginName + " in registry...");
-        if(dict.containsKey(loginName)){
-            throw new RemoteException("User already taken");
-        }
-        else {
-            String ip = "";
-            try {
-                ip = getClientHost();
-            } catch (ServerNotActiveException e) {
-                e.printStackTrace();
+    public Result<UserInfo> createLogin(String loginName, String realName, String password) throws RemoteException {
+        // The client host is only known on the RMI thread, so capture it before dispatching
+        String ip = clientHost();
+        return dispatch(Operation.CREATE_LOGIN, () -> {
+            if(replica)
+                return Result.of(Status.NOT_PRIMARY);
+            if(!WriteAheadLog.fits(loginName) || !WriteAheadLog.fits(realName))
+                return Result.of(Status.INVALID_REQUEST);
+            if(verbose)
+                System.out.println("Creating " + loginName + " in registry...");
+            // Spares the hashing for names that are already taken
+            if(store.get(loginName) != null)
+                return Result.of(Status.ALREADY_EXISTS);
+            byte[] passwordHash = null;
+            if(password != null) {
+                passwordHash = hashing(() -> Credentials.hash(password));
+                if(passwordHash == null)
+                    return Result.of(Status.BUSY);
+            }
+            User ud = new User(loginName, realName, passwordHash, ip);
+            Status status = store.create(ud);
+            if(status != Status.OK) {
+                return Result.of(status);
             }
+            commit();
 
-            User ud = new User(loginName, realName, password, ip);
-            dict.put(loginName, ud);
+            return Result.ok(UserInfo.identity(ud));
+        }, Result::of);
+    }
 
-            return ("New user created: "+ud.getLoginName()+"\nUUID: "+ud.getUUID());
-        }
+    @Override
+    public Result<UserInfo> lookupByLogin(String loginName) throws RemoteException{
+        return dispatch(Operation.LOOKUP_BY_LOGIN, () -> {
+            if(!loaded(loginName))
+                return Result.of(Status.NOT_READY);
+            User ud = store.get(loginName);
+            if(ud != null && expired(ud)) {
+                return Result.of(Status.EXPIRED);
+            }
+            if(ud != null){
+                return Result.ok(UserInfo.of(ud, accessed(ud)));
+            }
+            else{
+                return Result.of(Status.NOT_FOUND);
+            }
+        }, Result::of);
     }
 
     @Override
-    public String lookupByLogin(String loginName) throws RemoteException{
-        if(dict.containsKey(loginName)){
-            User ud = dict.get(loginName);
-            ud.updateLastRequestDate();
+    public Result<UserInfo> lookupByUUID(String Uuid) throws RemoteException{
+        return dispatch(Operation.LOOKUP_BY_UUID, () -> {
+            User ud = findByUUID(Uuid);
+            if(!loaded(ud))
+                return Result.of(Status.NOT_READY);
+            if(ud != null && expired(ud))
+                return Result.of(Status.EXPIRED);
 
-            return ud.toString();
-        }
-        else{
-            throw new RemoteException("No user with login name: " + loginName);
+            if(ud != null){
+                return Result.ok(UserInfo.of(ud, accessed(ud)));
+            }
+            else{
+                return Result.of(Status.NOT_FOUND);
+            }
+        }, Result::of);
+    }
+
+    @Override
+    public Status modifyName(String oldLoginName, String newLoginName, String password) throws RemoteException {
+        return dispatch(Operation.MODIFY_NAME, () -> {
+            if(replica)
+                return Status.NOT_PRIMARY;
+            if(!WriteAheadLog.fits(newLoginName))
+                return Status.INVALID_REQUEST;
+            Status status = authenticated(oldLoginName, password, true, ud -> store.rename(ud, newLoginName));
+            if(status == Status.OK)
+                commit();
+
+            return status;
+        }, status -> status);
+    }
+
+    @Override
+    public Status deleteUser(String loginName, String password) throws RemoteException {
+        return dispatch(Operation.DELETE_USER, () -> {
+            if(replica)
+                return Status.NOT_PRIMARY;
+            Status status = authenticated(loginName, password, false, store::delete);
+            if(status == Status.OK)
+                commit();
+
+            return status;
+        }, status -> status);
+    }
+
+    @Override
+    public Result<UserInfo[]> getInfo(String type) throws RemoteException {
+        // A listing of every user is charged like the largest batch
+        return dispatch(Operation.GET_INFO, MAX_BATCH, () -> {
+            if(type.equalsIgnoreCase("users")){
+                return Result.ok(getUsers());
+            } else if(type.equalsIgnoreCase("uuids")) {
+                return Result.ok(getUUIDS());
+            } else if(type.equalsIgnoreCase("all")) {
+                return Result.ok(getAll());
+            } else {
+                return Result.of(Status.INVALID_REQUEST);
+            }
+        }, Result::of);
+    }
+
+    @Override
+    public Result<Page> getInfoPage(String type, String cursor, int pageSize) throws RemoteException {
+        return dispatch(Operation.GET_INFO_PAGE, () -> {
+            if(pageSize <= 0 || pageSize > MAX_PAGE)
+                return Result.of(Status.INVALID_REQUEST);
+
+            boolean users = type.equalsIgnoreCase("users");
+            boolean uuids = type.equalsIgnoreCase("uuids");
+            if(!users && !uuids && !type.equalsIgnoreCase("all"))
+                return Result.of(Status.INVALID_REQUEST);
+
+            List<User> page = store.page(cursor, pageSize);
+            List<UserInfo> infos = new ArrayList<>(page.size());
+            for(User usr: page) {
+                if(!expired(usr))
+                    infos.add(users ? UserInfo.loginOnly(usr) : uuids ? UserInfo.uuidOnly(usr) : UserInfo.of(usr));
+            }
+
+            // A short page means the scan has reached the end, counting the expired users left out of it
+            String next = page.size() < pageSize ? null : page.get(page.size() - 1).getLoginName();
+
+            return Result.ok(new Page(infos.toArray(new UserInfo[0]), next));
+        }, Result::of);
+    }
+
+    @Override
+    public Result<Page> search(String field, String match, String text, String cursor, int pageSize) throws RemoteException {
+        return dispatch(Operation.SEARCH, () -> {
+            if(pageSize <= 0 || pageSize > MAX_PAGE || text == null || text.isEmpty())
+                return Result.of(Status.INVALID_REQUEST);
+
+            boolean realName = field.equalsIgnoreCase("real");
+            boolean prefix = match.equalsIgnoreCase("prefix");
+            if(!realName && !field.equalsIgnoreCase("login"))
+                return Result.of(Status.INVALID_REQUEST);
+            if(!prefix && !(match.equalsIgnoreCase("substring") && text.length() >= SearchIndex.GRAM))
+                return Result.of(Status.INVALID_REQUEST);
+
+            List<User> page;
+            if(!prefix)
+                page = store.containing(realName, text, cursor, pageSize);
+            else if(realName)
+                page = store.realNamesStartingWith(text, cursor, pageSize);
+            else
+                page = store.loginsStartingWith(text, cursor, pageSize);
+            List<UserInfo> infos = new ArrayList<>(page.size());
+            for(User usr: page) {
+                if(!expired(usr))
+                    infos.add(UserInfo.of(usr));
+            }
+
+            // A short page means the search has reached the end
+            String next = page.size() < pageSize ? null : page.get(page.size() - 1).getLoginName();
+
+            return Result.ok(new Page(infos.toArray(new UserInfo[0]), next));
+        }, Result::of);
+    }
+
+    @Override
+    public BatchResult createLogins(List<UserRequest> requests) throws RemoteException {
+        checkBatchSize(requests, MAX_CREDENTIAL_BATCH);
+        String ip = clientHost();
+        return dispatch(Operation.CREATE_LOGINS, requests.size(), () -> {
+            if(replica)
+                return BatchResult.allOf(requests.size(), Status.NOT_PRIMARY);
+            // Items the log cannot hold are refused before anything is hashed or stored
+            BatchResult result = new BatchResult(requests.size());
+            List<Integer> hashed = new ArrayList<>(requests.size());
+            List<Callable<byte[]>> hashes = new ArrayList<>(requests.size());
+            for(int i = 0; i < requests.size(); i++) {
+                UserRequest req = requests.get(i);
+                if(!WriteAheadLog.fits(req.getLoginName()) || !WriteAheadLog.fits(req.getRealName())) {
+                    result.set(i, Status.INVALID_REQUEST, null);
+                } else if(req.getPassword() != null) {
+                    hashed.add(i);
+                    hashes.add(() -> Credentials.hash(req.getPassword()));
+                }
+            }
+            List<byte[]> passwordHashes = hashingEach(hashes);
+
+            // Items shed by the credential lane are left out and reported busy
+            List<Integer> positions = new ArrayList<>(requests.size());
+            List<User> users = new ArrayList<>(requests.size());
+            for(int i = 0, j = 0; i < requests.size(); i++) {
+                if(result.getStatus(i) != null)
+                    continue;
+                UserRequest req = requests.get(i);
+                byte[] passwordHash = null;
+                if(j < hashed.size() && hashed.get(j) == i) {
+                    passwordHash = passwordHashes.get(j++);
+                    if(passwordHash == null) {
+                        result.set(i, Status.BUSY, null);
+                        continue;
+                    }
+                }
+                positions.add(i);
+                users.add(new User(req.getLoginName(), req.getRealName(), passwordHash, ip));
+            }
+
+            Status[] statuses = store.createAll(users);
+            commit();
+            for(int j = 0; j < statuses.length; j++)
+                result.set(positions.get(j), statuses[j], statuses[j] == Status.OK ? UserInfo.identity(users.get(j)) : null);
+
+            return result;
+        }, status -> BatchResult.allOf(requests.size(), status));
+    }
+
+    @Override
+    public BatchResult lookupByLogins(List<String> loginNames) throws RemoteException {
+        checkBatchSize(loginNames);
+        return dispatch(Operation.LOOKUP_BY_LOGINS, loginNames.size(), () -> {
+            BatchResult result = new BatchResult(loginNames.size());
+
+            for(int i = 0; i < loginNames.size(); i++) {
+                if(!loaded(loginNames.get(i))) {
+                    result.set(i, Status.NOT_READY, null);
+                    continue;
+                }
+                User ud = store.get(loginNames.get(i));
+                if(ud != null && expired(ud)) {
+                    result.set(i, Status.EXPIRED, null);
+                } else if(ud != null) {
+                    result.set(i, Status.OK, UserInfo.of(ud, accessed(ud)));
+                } else {
+                    result.set(i, Status.NOT_FOUND, null);
+                }
+            }
+
+            return result;
+        }, status -> BatchResult.allOf(loginNames.size(), status));
+    }
+
+    @Override
+    public BatchResult lookupByUUIDs(List<String> uuids) throws RemoteException {
+        checkBatchSize(uuids);
+        return dispatch(Operation.LOOKUP_BY_UUIDS, uuids.size(), () -> {
+            BatchResult result = new BatchResult(uuids.size());
+
+            for(int i = 0; i < uuids.size(); i++) {
+                User ud = findByUUID(uuids.get(i));
+                if(!loaded(ud)) {
+                    result.set(i, Status.NOT_READY, null);
+                    continue;
+                }
+                if(ud != null && expired(ud)) {
+                    result.set(i, Status.EXPIRED, null);
+                } else if(ud != null) {
+                    result.set(i, Status.OK, UserInfo.of(ud, accessed(ud)));
+                } else {
+                    result.set(i, Status.NOT_FOUND, null);
+                }
+            }
+
+            return result;
+        }, status -> BatchResult.allOf(uuids.size(), status));
+    }
+
+    @Override
+    public BatchResult deleteUsers(List<UserRequest> requests) throws RemoteException {
+        checkBatchSize(requests, MAX_CREDENTIAL_BATCH);
+        return dispatch(Operation.DELETE_USERS, requests.size(), () -> {
+            if(replica)
+                return BatchResult.allOf(requests.size(), Status.NOT_PRIMARY);
+            // Each password is checked on the credential lane as a task of its own, then the
+            // users that passed are deleted in one pass
+            User[] users = new User[requests.size()];
+            Status[] statuses = new Status[requests.size()];
+            List<Integer> checked = new ArrayList<>(requests.size());
+            List<Callable<Boolean>> checks = new ArrayList<>(requests.size());
+            for(int i = 0; i < users.length; i++) {
+                UserRequest req = requests.get(i);
+                users[i] = store.get(req.getLoginName());
+                if(users[i] == null) {
+                    statuses[i] = Status.NOT_FOUND;
+                } else if(users[i].hasPassword() && req.getPassword() != null) {
+                    byte[] passwordHash = users[i].getPasswordHash();
+                    checked.add(i);
+                    checks.add(() -> Credentials.verify(passwordHash, req.getPassword()));
+                } else {
+                    // Nothing to hash: no password to check, or none given for one that has it
+                    statuses[i] = users[i].hasPassword() ? Status.BAD_PASSWORD : Status.OK;
+                }
+            }
+            List<Boolean> matches = hashingEach(checks);
+            for(int j = 0; j < matches.size(); j++) {
+                Boolean matched = matches.get(j);
+                statuses[checked.get(j)] = matched == null ? Status.BUSY : matched ? Status.OK : Status.BAD_PASSWORD;
+            }
+
+            List<User> verified = new ArrayList<>(users.length);
+            List<Integer> positions = new ArrayList<>(users.length);
+            for(int i = 0; i < users.length; i++) {
+                if(statuses[i] == Status.OK) {
+                    verified.add(users[i]);
+                    positions.add(i);
+                }
+            }
+            Status[] deleted = store.deleteAll(verified);
+            for(int j = 0; j < deleted.length; j++) {
+                int i = positions.get(j);
+                statuses[i] = deleted[j];
+                // The user changed after its password was checked, so check it again
+                if(deleted[j] == Status.BAD_PASSWORD) {
+                    UserRequest req = requests.get(i);
+                    statuses[i] = authenticated(req.getLoginName(), req.getPassword(), false, store::delete);
+                }
+            }
+            commit();
+
+            BatchResult result = new BatchResult(statuses.length);
+            for(int i = 0; i < statuses.length; i++)
+                result.set(i, statuses[i], null);
+
+            return result;
+        }, status -> BatchResult.allOf(requests.size(), status));
+    }
+
+    // The Peer calls check the key on their lane, so a caller guessing keys is rate limited
+    @Override
+    public Result<User[]> exportUsers(String key, List<String> loginNames) throws RemoteException {
+        checkBatchSize(loginNames);
+        return dispatch(Operation.EXPORT_USERS, loginNames.size(), () -> {
+            if(!Credentials.isPeerKey(peerKey, key))
+                return Result.of(Status.BAD_PASSWORD);
+            List<User> users = new ArrayList<>(loginNames.size());
+            for(String loginName: loginNames) {
+                User ud = store.get(loginName);
+                if(ud != null)
+                    users.add(ud);
+            }
+
+            return Result.ok(users.toArray(new User[0]));
+        }, Result::of);
+    }
+
+    @Override
+    public Result<User> exportUser(String key, String loginName, String password) throws RemoteException {
+        return dispatch(Operation.EXPORT_USER, () -> {
+            if(!Credentials.isPeerKey(peerKey, key))
+                return Result.of(Status.BAD_PASSWORD);
+            // The hash may be upgraded on the way, which only the primary can do
+            if(replica)
+                return Result.of(Status.NOT_PRIMARY);
+            User[] checked = new User[1];
+            Status status = authenticated(loginName, password, true, ud -> {
+                checked[0] = ud;
+                return Status.OK;
+            });
+
+            return status == Status.OK ? Result.ok(checked[0]) : Result.of(status);
+        }, Result::of);
+    }
+
+    @Override
+    public BatchResult importUsers(String key, List<User> users) throws RemoteException {
+        checkBatchSize(users);
+        return dispatch(Operation.IMPORT_USERS, users.size(), () -> {
+            if(!Credentials.isPeerKey(peerKey, key))
+                return BatchResult.allOf(users.size(), Status.BAD_PASSWORD);
+            if(replica)
+                return BatchResult.allOf(users.size(), Status.NOT_PRIMARY);
+
+            BatchResult result = new BatchResult(users.size());
+            List<User> valid = new ArrayList<>(users.size());
+            for(int i = 0; i < users.size(); i++) {
+                if(WriteAheadLog.fits(users.get(i)))
+                    valid.add(users.get(i));
+                else
+                    result.set(i, Status.INVALID_REQUEST, null);
+            }
+
+            Status[] statuses = store.createAll(valid);
+            commit();
+
+            int j = 0;
+            for(int i = 0; i < users.size(); i++) {
+                if(result.getStatus(i) == null)
+                    result.set(i, statuses[j++], null);
+            }
+
+            return result;
+        }, status -> BatchResult.allOf(users.size(), status));
+    }
+
+    @Override
+    public BatchResult dropUsers(String key, List<User> users) throws RemoteException {
+        checkBatchSize(users);
+        return dispatch(Operation.DROP_USERS, users.size(), () -> {
+            if(!Credentials.isPeerKey(peerKey, key))
+                return BatchResult.allOf(users.size(), Status.BAD_PASSWORD);
+            if(replica)
+                return BatchResult.allOf(users.size(), Status.NOT_PRIMARY);
+
+            Status[] statuses = store.deleteAll(users);
+            commit();
+
+            BatchResult result = new BatchResult(statuses.length);
+            for(int i = 0; i < statuses.length; i++)
+                result.set(i, statuses[i], null);
+
+            return result;
+        }, status -> BatchResult.allOf(users.size(), status));
+    }
+
+    @Override
+    public Result<ServerStats> getStats() throws RemoteException {
+        return dispatch(Operation.GET_STATS, () -> Result.ok(metrics.snapshot()), Result::of);
+    }
+
+    // Runs on the follow lane with the replication calls, since it may wait for a change. The
+    // cursor is a write-ahead log LSN, which is the same on a primary and its replicas.
+    @Override
+    public Result<Changes> getChanges(String cursor) throws RemoteException {
+        return dispatch(Operation.GET_CHANGES, () -> changesAfter(cursor), Result::of);
+    }
+
+    private Result<Changes> changesAfter(String cursor) throws RemoteException {
+        if(cursor == null)
+            return Result.ok(new Changes(new String[0], String.valueOf(wal.getLastLsn()), true));
+
+        try {
+            long after = Long.parseLong(cursor);
+            List<byte[]> records = wal.recordsAfter(after, REPLICATION_BATCH, REPLICATION_WAIT);
+            if(records == null)
+                return Result.ok(new Changes(new String[0], String.valueOf(wal.getLastLsn()), false));
+
+            List<String> loginNames = new ArrayList<>();
+            Journal collector = new Journal() {
+                @Override
+                public void logCreate(User user) {
+                    loginNames.add(user.getLoginName());
+                }
+
+                @Override
+                public void logRename(String oldLoginName, String newLoginName, Date lastChangeDate) {
+                    loginNames.add(oldLoginName);
+                    loginNames.add(newLoginName);
+                }
+
+                @Override
+                public void logDelete(String loginName) {
+                    loginNames.add(loginName);
+                }
+
+                @Override
+                public void logRehash(String loginName, byte[] passwordHash) {
+                    // Nothing a client can see has changed
+                }
+            };
+            long last = after;
+            for(byte[] record: records)
+                last = WriteAheadLog.apply(record, collector);
+
+            return Result.ok(new Changes(loginNames.toArray(new String[0]), String.valueOf(last), true));
+        } catch (NumberFormatException e) {
+            return Result.of(Status.INVALID_REQUEST);
+        } catch (IOException e) {
+            throw new RemoteException("Log records could not be read", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for changes");
         }
     }
 
+    // Follows the write-ahead log on the follow lane like getChanges, charged a token per call.
+    // The snapshot it starts over with is a scan, so that is dispatched like getInfoPage.
     @Override
-    public String lookupByUUID(String Uuid) throws RemoteException{
-        String loginName = findLoginNameByUUID(Uuid);
+    public Result<ChangeFeed> getEvents(String cursor, int max) throws RemoteException {
+        if(max <= 0 || max > MAX_BATCH)
+            return Result.of(Status.INVALID_REQUEST);
+        if(cursor == null)
+            return startEvents(max);
 
-        if(loginName != null){
-            return lookupByLogin(loginName);
+        if(cursor.startsWith(SNAPSHOT_CURSOR)) {
+            int dot = cursor.indexOf('.');
+            try {
+                if(dot < 0)
+                    return Result.of(Status.INVALID_REQUEST);
+                long lsn = Long.parseLong(cursor.substring(SNAPSHOT_CURSOR.length(), dot));
+                String after = new String(Base64.getUrlDecoder().decode(cursor.substring(dot + 1)), StandardCharsets.UTF_8);
+                return eventSnapshot(lsn, after, max);
+            } catch (IllegalArgumentException e) {
+                // Also a malformed number
+                return Result.of(Status.INVALID_REQUEST);
+            }
         }
-        else{
-            throw new RemoteException("No user found with UUID: " + Uuid);
+
+        Result<ChangeFeed> feed = dispatch(Operation.GET_EVENTS, () -> eventsAfter(cursor, max), Result::of);
+        // The log no longer holds the events after the cursor
+        return feed.getStatus() == Status.NOT_FOUND ? startEvents(max) : feed;
+    }
+
+    private Result<ChangeFeed> startEvents(int max) throws RemoteException {
+        // Not even the LSN to start from is known while loading
+        if(recovering != null)
+            return Result.of(Status.NOT_READY);
+        return eventSnapshot(store.appliedLsn(wal), null, max);
+    }
+
+    /**
+     * Helper function for getEvents to read the events after a log position
+     *
+     * @return the events, or NOT_FOUND if the log no longer holds them all
+     */
+    private Result<ChangeFeed> eventsAfter(String cursor, int max) throws RemoteException {
+        try {
+            long after = Long.parseLong(cursor);
+            List<byte[]> records = wal.recordsAfter(after, max, REPLICATION_WAIT);
+            if(records == null)
+                return Result.of(Status.NOT_FOUND);
+
+            EventCollector collector = new EventCollector();
+            long last = after;
+            for(byte[] record: records) {
+                collector.lsn = WriteAheadLog.lsnOf(record);
+                last = WriteAheadLog.apply(record, collector);
+            }
+
+            return Result.ok(new ChangeFeed(collector.events.toArray(new ChangeEvent[0]), String.valueOf(last), false, false));
+        } catch (IllegalArgumentException e) {
+            // Also a malformed number
+            return Result.of(Status.INVALID_REQUEST);
+        } catch (IOException e) {
+            throw new RemoteException("Log records could not be read", e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for events");
         }
     }
 
-    @Override
-    public String modifyName(String oldLoginName, String newLoginName, String password) throws RemoteException {
+    /**
+     * Helper function for getEvents to start a consumer over: every user not expired as a created
+     * event, a page at a time in login name order, then the log on from the LSN the snapshot
+     * began at. The cursor of a page in between is SNAPSHOT_CURSOR, that LSN, a dot and the last
+     * login name scanned, Base64 encoded so the cursor never holds a comma (see
+     * ShardedQueries.getEvents).
+     *
+     * @param lsn last LSN applied to the store when the snapshot began
+     * @param after last login name scanned, or null for the first page
+     * @param max largest number of users in the page
+     * @return the page
+     * @throws RemoteException if the snapshot failed
+     */
+    private Result<ChangeFeed> eventSnapshot(long lsn, String after, int max) throws RemoteException {
+        // Charged like a getInfoPage of the same size
+        return dispatch(Operation.EVENT_SNAPSHOT, max, () -> {
+            List<User> page = store.page(after, max);
+            List<ChangeEvent> events = new ArrayList<>(page.size());
+            for(User usr: page) {
+                // Left out like from getInfoPage; the reaper's delete follows in the log
+                if(!expired(usr))
+                    events.add(ChangeEvent.created(lsn, UserInfo.of(usr)));
+            }
 
-        if(dict.containsKey(oldLoginName)) {
-            User ud = dict.get(oldLoginName);
-            if( (ud.hasPassword() && (ud.getPassword().equals(password)) ) || !ud.hasPassword()){
-                ud.setLoginName(newLoginName);
-                dict.remove(oldLoginName);
-                dict.put(newLoginName, ud);
-            }else{
-                throw new RemoteException("Incorrect password");
+            // A short page is the last one, counting the expired users left out of it
+            String next = String.valueOf(lsn);
+            if(page.size() == max) {
+                byte[] last = page.get(page.size() - 1).getLoginName().getBytes(StandardCharsets.UTF_8);
+                next = SNAPSHOT_CURSOR + lsn + "." + Base64.getUrlEncoder().withoutPadding().encodeToString(last);
             }
-            return "New login name: "+newLoginName;
+
+            return Result.ok(new ChangeFeed(events.toArray(new ChangeEvent[0]), next, true, after == null));
+        }, Result::of);
+    }
+
+    /**
+     * Turns log records into change events; set the LSN of each record before applying it
+     */
+    private static class EventCollector implements Journal {
+        private final List<ChangeEvent> events = new ArrayList<>();
+        private long lsn;
+
+        @Override
+        public void logCreate(User user) {
+            events.add(ChangeEvent.created(lsn, UserInfo.of(user)));
+        }
+
+        @Override
+        public void logRename(String oldLoginName, String newLoginName, Date lastChangeDate) {
+            events.add(ChangeEvent.renamed(lsn, oldLoginName, newLoginName, lastChangeDate.getTime()));
         }
-        else {
-            throw new RemoteException("Login name cannot be found");
+
+        @Override
+        public void logDelete(String loginName) {
+            events.add(ChangeEvent.deleted(lsn, loginName));
         }
 
+        @Override
+        public void logRehash(String loginName, byte[] passwordHash) {
+            // Nothing a consumer can see has changed
+        }
     }
 
     @Override
-    public String deleteUser(String loginName, String password) throws RemoteException {
+    public boolean isPrimary() throws RemoteException {
+        return !replica;
+    }
 
-        if(dict.containsKey(loginName)) {
-            User ud = dict.get(loginName);
-            if((ud.hasPassword() && ud.getPassword().equals(password)) || !ud.hasPassword()) {
-                dict.remove(loginName);
+    // A fetch may wait for new records, so it runs on the follow lane, a token per call
+    @Override
+    public Result<byte[][]> fetchLog(String key, long afterLsn, int max, long waitMs) throws RemoteException {
+        return dispatch(Operation.FETCH_LOG, () -> {
+            if(!Credentials.isPeerKey(peerKey, key))
+                return Result.of(Status.BAD_PASSWORD);
+            try {
+                List<byte[]> records = wal.recordsAfter(afterLsn, Math.min(max, REPLICATION_BATCH), Math.min(waitMs, REPLICATION_WAIT));
+                return records == null ? Result.of(Status.NOT_FOUND) : Result.ok(records.toArray(new byte[0][]));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RemoteException("Interrupted while waiting for log records");
+            }
+        }, Result::of);
+    }
+
+    // Lookups served by a replica, charged per user like a batch lookup. The dates are not in the
+    // log, so this is how the reaper hears of users only looked up on replicas.
+    @Override
+    public Status touchUsers(String key, long[] touches) throws RemoteException {
+        if(touches.length % 3 != 0)
+            throw new RemoteException("Touches come in threes, not " + touches.length + " longs");
+        if(touches.length / 3 > MAX_BATCH)
+            throw new RemoteException("Batch of " + touches.length / 3 + " exceeds the limit of " + MAX_BATCH);
+        return dispatch(Operation.TOUCH_USERS, touches.length / 3, () -> {
+            if(!Credentials.isPeerKey(peerKey, key))
+                return Status.BAD_PASSWORD;
+            if(replica)
+                return Status.NOT_PRIMARY;
+            for(int i = 0; i < touches.length; i += 3)
+                store.touch(touches[i], touches[i + 1], touches[i + 2]);
+
+            return Status.OK;
+        }, status -> status);
+    }
+
+    // The first page copies the whole registry and is charged like getInfo. The pages after it are
+    // cut from that copy, a token each like a log fetch.
+    @Override
+    public Result<SnapshotPage> fetchSnapshot(String key, String cursor, int max) throws RemoteException {
+        return dispatch(Operation.FETCH_SNAPSHOT, cursor == null ? MAX_BATCH : 1, () -> {
+            if(!Credentials.isPeerKey(peerKey, key))
+                return Result.of(Status.BAD_PASSWORD);
+            int limit = Math.max(1, Math.min(max, MAX_PAGE));
+            if(cursor == null) {
+                long id;
+                synchronized(heldSnapshots) {
+                    id = ++lastSnapshotId;
+                }
+                return snapshotPage(id, store.view(wal), null, limit);
+            }
+
+            int dot = cursor.indexOf('.');
+            try {
+                if(dot < 0)
+                    return Result.of(Status.INVALID_REQUEST);
+                long id = Long.parseLong(cursor.substring(0, dot));
+                String after = new String(Base64.getUrlDecoder().decode(cursor.substring(dot + 1)), StandardCharsets.UTF_8);
+                Snapshot snapshot;
+                synchronized(heldSnapshots) {
+                    snapshot = heldSnapshots.get(id);
+                }
+                return snapshot == null ? Result.of(Status.NOT_FOUND) : snapshotPage(id, snapshot, after, limit);
+            } catch (IllegalArgumentException e) {
+                // Also a malformed number
+                return Result.of(Status.INVALID_REQUEST);
+            }
+        }, Result::of);
+    }
+
+    /**
+     * Cuts a page from a snapshot a replica is copying, holding the snapshot for the next page or
+     * dropping it after the last. The cursor is the snapshot's id, a dot and the last login name
+     * sent, Base64 encoded.
+     *
+     * @param id the snapshot's id
+     * @param snapshot the snapshot, in login name order
+     * @param after login name the previous page ended with, or null for the first page
+     * @param limit largest number of users to return
+     * @return the page
+     */
+    private static Result<SnapshotPage> snapshotPage(long id, Snapshot snapshot, String after, int limit) {
+        List<User> users = snapshot.getUsers();
+        int from = 0;
+        if(after != null) {
+            // First user after the login name, by binary search
+            int to = users.size();
+            while(from < to) {
+                int mid = (from + to) >>> 1;
+                if(users.get(mid).getLoginName().compareTo(after) <= 0)
+                    from = mid + 1;
+                else
+                    to = mid;
+            }
+        }
+        int to = Math.min(users.size(), from + limit);
+
+        String next = null;
+        synchronized(heldSnapshots) {
+            if(to < users.size()) {
+                heldSnapshots.put(id, snapshot);
+                byte[] last = users.get(to - 1).getLoginName().getBytes(StandardCharsets.UTF_8);
+                next = id + "." + Base64.getUrlEncoder().withoutPadding().encodeToString(last);
             } else {
-                throw new RemoteException("Incorrect password.");
+                heldSnapshots.remove(id);
             }
-            return ("User has been deleted: "+loginName);
-        } else {
-            throw new RemoteException("User does not exist");
         }
+
+        return Result.ok(new SnapshotPage(snapshot.getLsn(), users.subList(from, to).toArray(new User[0]), next));
     }
 
-    @Override
-    public String getInfo(String type) throws RemoteException {
-        if(type.equalsIgnoreCase("users")){
-            return getUsers();
-        } else if(type.equalsIgnoreCase("uuids")) {
-            return getUUIDS();
-        } else if(type.equalsIgnoreCase("all")) {
-            return getAll();
-        } else {
-            return "Cannot get info on types other than [users|uuids|all]";
+    private static <T> T dispatch(Operation op, Callable<T> request, Function<Status, T> refusal) throws RemoteException {
+        return dispatch(op, 1, request, refusal);
+    }
+
+    /**
+     * Runs a request on its lane of the bounded executor, or inline when the server was built
+     * without one (e.g. when called in-process rather than through main), and records its latency
+     * from arrival to reply. A client host over its rate limit is refused before anything else,
+     * and anything but a lookup is refused until the server is ready.
+     *
+     * @param op the operation being run
+     * @param items items the request carries, charged against the client's rate limit
+     * @param request the request, which never replies null
+     * @param refusal builds the reply sent if the client is throttled, the server is not ready or the lane is full
+     * @return the request's reply
+     * @throws RemoteException if the request failed
+     */
+    private static <T> T dispatch(Operation op, int items, Callable<T> request, Function<Status, T> refusal) throws RemoteException {
+        long start = System.nanoTime();
+        RateLimiter limits = limiter;
+        if(limits != null) {
+            String client = clientHost();
+            // Calls made in-process have no client to limit
+            if(!client.isEmpty() && !limits.tryAcquire(client, op, items))
+                return refusal.apply(Status.THROTTLED);
+        }
+        if(recovering != null && !SERVED_WHILE_LOADING.contains(op))
+            return refusal.apply(Status.NOT_READY);
+
+        try {
+            // Requests never reply null, so null means the lane was full; the busy reply is only built then
+            T reply = executor != null ? executor.call(op.getLane(), request, null) : callInline(request);
+            metrics.record(op, start, reply == null);
+
+            return reply != null ? reply : refusal.apply(Status.BUSY);
+        } catch (RemoteException | RuntimeException e) {
+            metrics.recordError(op, start);
+            throw e;
         }
     }
 
+    /**
+     * Records a lookup of a user on the access tracker, or straight on the user when the server
+     * was built without one
+     *
+     * @param ud the user looked up
+     * @return the time of the lookup
+     */
+    private static long accessed(User ud) {
+        if(tracker != null)
+            return tracker.record(ud);
+        ud.updateLastRequestDate();
+
+        return ud.getLastRequestTime();
+    }
+
+    /**
+     * @param ud a user found in the store
+     * @return true if the user has expired and is only kept until the reaper deletes it
+     */
+    private static boolean expired(User ud) {
+        Reaper expiry = reaper;
+        return expiry != null && expiry.isExpired(ud);
+    }
+
+    /**
+     * While the server is still recovering, readies the store to answer a lookup of a login name
+     * if it can yet (see Recovery.prepare)
+     *
+     * @param loginName the login name looked up
+     * @return false if the lookup has to wait until the server is ready
+     */
+    private static boolean loaded(String loginName) {
+        Recovery recovery = recovering;
+        return recovery == null || recovery.prepare(loginName);
+    }
+
+    /**
+     * @param ud the user a reverse lookup found, or null
+     * @return false if the reverse lookup has to wait until the server is ready
+     */
+    private static boolean loaded(User ud) {
+        Recovery recovery = recovering;
+        return recovery == null || recovery.prepare(ud);
+    }
+
+    /**
+     * Runs password hashing on the credential lane, so slow hashes only queue behind each other,
+     * or inline when the server was built without an executor
+     *
+     * @param work the hashing
+     * @return its result, or null if the credential lane is full
+     * @throws RemoteException if the hashing failed
+     */
+    private static <T> T hashing(Callable<T> work) throws RemoteException {
+        return executor != null ? executor.call(RequestExecutor.Lane.CREDENTIAL, work, null) : callInline(work);
+    }
+
+    /**
+     * Runs one hash or password check per item on the credential lane (see
+     * RequestExecutor.callEach), or inline when the server was built without an executor
+     *
+     * @param work the hashing, one task per item
+     * @return each task's result, or null for a task shed because the credential lane was full
+     * @throws RemoteException if the hashing failed
+     */
+    private static <T> List<T> hashingEach(List<Callable<T>> work) throws RemoteException {
+        if(executor != null)
+            return executor.callEach(RequestExecutor.Lane.CREDENTIAL, work, null);
+        List<T> results = new ArrayList<>(work.size());
+        for(Callable<T> task: work)
+            results.add(callInline(task));
+        return results;
+    }
+
+    private static <T> T callInline(Callable<T> request) throws RemoteException {
+        try {
+            return request.call();
+        } catch (RemoteException | RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new RemoteException("Request failed", e);
+        }
+    }
+
+    /**
+     * Checks a user's password, then runs a mutation that only goes ahead if the user has not
+     * changed since, checking again if it has. An outdated hash of the password is replaced
+     * first if asked to, which needs no commit of its own: should it be lost, the old hash
+     * still matches and is upgraded at the next check.
+     *
+     * @param loginName user whose password is checked
+     * @param password password as sent by the client, may be null
+     * @param upgrade whether to replace an outdated hash once the password has been checked
+     * @param mutation the mutation, given the user as its password was checked
+     * @return the mutation's status, or NOT_FOUND, BAD_PASSWORD, or BUSY if the credential lane is full
+     * @throws RemoteException if hashing failed
+     */
+    private static Status authenticated(String loginName, String password, boolean upgrade,
+                                        Function<User, Status> mutation) throws RemoteException {
+        while(true) {
+            User ud = store.get(loginName);
+            if(ud == null)
+                return Status.NOT_FOUND;
+            byte[] passwordHash = ud.getPasswordHash();
+            if(passwordHash != null) {
+                if(password == null)
+                    return Status.BAD_PASSWORD;
+                Boolean matches = hashing(() -> Credentials.verify(passwordHash, password));
+                if(matches == null)
+                    return Status.BUSY;
+                if(!matches)
+                    return Status.BAD_PASSWORD;
+            }
+
+            if(upgrade && Credentials.needsRehash(passwordHash, password)) {
+                byte[] rehashed = hashing(() -> Credentials.hash(password));
+                User updated = rehashed == null ? null : store.rehash(ud, rehashed);
+                if(updated != null)
+                    ud = updated;
+            }
+
+            Status status = mutation.apply(ud);
+            if(status != Status.BAD_PASSWORD)
+                return status;
+        }
+    }
+
+    /**
+     * Rejects batches larger than MAX_BATCH so one call cannot hold the store for too long
+     *
+     * @param items the items of the batch
+     * @throws RemoteException if the batch is too large
+     */
+    private static void checkBatchSize(List<?> items) throws RemoteException {
+        checkBatchSize(items, MAX_BATCH);
+    }
+
+    /**
+     * Rejects batches larger than a lower limit, for batches whose items are slow to run
+     *
+     * @param items the items of the batch
+     * @param limit largest number of items allowed
+     * @throws RemoteException if the batch is too large
+     */
+    private static void checkBatchSize(List<?> items, int limit) throws RemoteException {
+        if(items.size() > limit)
+            throw new RemoteException("Batch of " + items.size() + " exceeds the limit of " + limit);
+    }
+
+    /**
+     * Finds the host of the client making the current call, to be stored with new users
+     *
+     * @return the client host, or an empty string for a call made in-process
+     */
+    private static String clientHost() {
+        try {
+            return getClientHost();
+        } catch (ServerNotActiveException e) {
+            // Called through one of the other transports, or in-process
+            String address = Transport.clientAddress();
+            return address == null ? "" : address;
+        }
+    }
+
+    /**
+     * Waits until the write-ahead log has made a completed mutation durable, so the reply is only
+     * sent once the change would survive a crash
+     *
+     * @throws RemoteException if the log could not be synced
+     */
+    private static void commit() throws RemoteException {
+        try {
+            wal.commit();
+        } catch (IOException e) {
+            throw new RemoteException("Change could not be made durable", e);
+        }
+    }
+
+    /**
+     * @return every user as of one instant, leaving out expired ones
+     */
+    private static List<User> listed() {
+        List<User> users = store.snapshot();
+        if(reaper != null)
+            users.removeIf(IdServer::expired);
+
+        return users;
+    }
+
     /**
      * Helper function for getInfo to return information on all users
      *
-     * @return list of all User objects as strings
+     * @return every user with all of its public fields
      */
-    private String getAll() {
-        StringBuilder retVal = new StringBuilder();
+    private UserInfo[] getAll() {
+        List<User> users = listed();
+        UserInfo[] retVal = new UserInfo[users.size()];
 
-        for(User usr: dict.values())
-            retVal.append(usr.toString()).append("\n");
+        for(int i = 0; i < retVal.length; i++)
+            retVal[i] = UserInfo.of(users.get(i));
 
-        return retVal.toString();
+        return retVal;
     }
 
     /**
      * Helper function for getInfo to return all UUID's in the registry
      *
-     * @return list of all UUID's in the registry in string format
+     * @return every user with only its UUID filled in
      */
-    private String getUUIDS() {
-        StringBuilder retVal = new StringBuilder();
+    private UserInfo[] getUUIDS() {
+        List<User> users = listed();
+        UserInfo[] retVal = new UserInfo[users.size()];
 
-        for(User usr: dict.values())
-            retVal.append(usr.getUUID()).append("\n");
+        for(int i = 0; i < retVal.length; i++)
+            retVal[i] = UserInfo.uuidOnly(users.get(i));
 
-        return retVal.toString();
+        return retVal;
     }
 
     /**
      * Helper function for getInfo to return all User login names in the registry
      *
-     * @return list of all login names for every user in string format
+     * @return every user with only its login name filled in
      */
-    private String getUsers() {
-        StringBuilder retVal = new StringBuilder();
+    private UserInfo[] getUsers() {
+        List<User> users = listed();
+        UserInfo[] retVal = new UserInfo[users.size()];
 
-        for(User usr: dict.values())
-            retVal.append(usr.getLoginName()).append("\n");
+        for(int i = 0; i < retVal.length; i++)
+            retVal[i] = UserInfo.loginOnly(users.get(i));
 
-        return retVal.toString();
+        return retVal;
     }
 
     /**
@@ -170,6 +1085,29 @@ public class IdServer extends UnicastRemoteObject implements Queries {
 
         options.addOption(new Option(null, "numport", true, "Specify port to connect to (runs on port 1099 by default)"));
         options.addOption(new Option(null, "verbose", false,"Makes the server print detailed messages on the operations as it executes them"));
+        options.addOption(new Option(null, "fsync-interval", true, "Milliseconds between write-ahead log fsyncs, 0 syncs before every reply (default 0)"));
+        options.addOption(new Option(null, "backup-interval", true, "Seconds between registry snapshots, 0 for none besides the one at shutdown (default 120)"));
+        options.addOption(new Option(null, "workers", true, "Worker threads for each of the lookup and mutation lanes (default 2 per CPU)"));
+        options.addOption(new Option(null, "queue-limit", true, "Requests allowed to wait in each of the lookup and mutation lanes before the server replies busy (default 1000)"));
+        options.addOption(new Option(null, "scan-workers", true, "Worker threads for getInfo scans (default 2)"));
+        options.addOption(new Option(null, "scan-queue-limit", true, "getInfo scans allowed to wait before the server replies busy (default 16)"));
+        options.addOption(new Option(null, "hash-iterations", true, "PBKDF2 iterations used to hash passwords; older hashes are upgraded as users sign in (default " + Credentials.DEFAULT_ITERATIONS + ")"));
+        options.addOption(new Option(null, "hash-workers", true, "Worker threads for password hashing (default 1 per CPU)"));
+        options.addOption(new Option(null, "hash-queue-limit", true, "Password hashes allowed to wait before the server replies busy (default 256)"));
+        options.addOption(new Option(null, "virtual-threads", false, "Runs requests on virtual threads when the JDK supports them, with the same limits"));
+        options.addOption(new Option(null, "lookup-rate", true, "Lookups per second allowed to each client host, 0 for no limit (default 20000)"));
+        options.addOption(new Option(null, "heavy-rate", true, "Mutations and scans per second allowed to each client host, 0 for no limit (default 2000)"));
+        options.addOption(new Option(null, "rate-clients", true, "Client hosts whose rates are tracked at once, dropping the least recently seen (default 65536)"));
+        options.addOption(new Option(null, "access-interval", true, "Milliseconds within which lookups of the same user are folded into one update of its last request date (default 1000)"));
+        options.addOption(new Option(null, "replica-of", true, "Runs as a read replica of the first primary in a comma-separated list of <host>:<port>, in failover order; needs --peer-key"));
+        options.addOption(new Option(null, "peer-key", true, "File whose first line is the cluster's peer key, required of replicas and of clients moving users between shards (default none, refusing them)"));
+        options.addOption(new Option(null, "binary-port", true, "Also serves requests over the binary protocol on this port"));
+        options.addOption(new Option(null, "http-port", true, "Also serves requests as JSON over HTTP on this port"));
+        options.addOption(new Option(null, "serve-while-loading", false, "Binds before the registry is loaded and answers lookups of users already loaded, loading a user's part of the snapshot on demand, while refusing other requests as not ready"));
+        options.addOption(new Option(null, "expire-after", true, "Days without a lookup or change after which a user expires and stops being served, fractions allowed (default never)"));
+        options.addOption(new Option(null, "tombstone-period", true, "Days an expired user is kept, its login name still taken, before it is deleted (default 0)"));
+        options.addOption(new Option(null, "reap-batch", true, "Most expired users deleted per second (default 1000)"));
+        options.addOption(new Option(null, "failover-timeout", true, "Seconds a replica waits with every server in --replica-of unreachable before it becomes the primary, which risks two primaries if the old one was only cut off (default never)"));
 
         return options;
     }
@@ -203,8 +1141,6 @@ public class IdServer extends UnicastRemoteObject implements Queries {
      * @param args list of arguments passed through
      */
     public static void main(String[] args) {
-        boolean verbose = false;
-
         CommandLine userInput = parseArguments(args);
 
         if(userInput.hasOption("numport")) {
@@ -215,6 +1151,183 @@ public class IdServer extends UnicastRemoteObject implements Queries {
             verbose = true;
         }
 
+        if(userInput.hasOption("fsync-interval")) {
+            fsyncInterval = Long.parseLong(userInput.getOptionValue("fsync-interval"));
+        }
+
+        if(userInput.hasOption("backup-interval")) {
+            backupInterval = Long.parseLong(userInput.getOptionValue("backup-interval")) * 1000;
+        }
+
+        if(userInput.hasOption("access-interval")) {
+            accessInterval = Long.parseLong(userInput.getOptionValue("access-interval"));
+        }
+
+        try {
+            configureReplication(userInput);
+        } catch (IOException e) {
+            System.out.println("Peer key could not be read: " + e.getMessage());
+            System.exit(1);
+        } catch (IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+
+        int workers = 2 * Runtime.getRuntime().availableProcessors();
+        int queueLimit = 1000;
+        int scanWorkers = 2;
+        int scanQueueLimit = 16;
+        int hashWorkers = Runtime.getRuntime().availableProcessors();
+        int hashQueueLimit = 256;
+        if(userInput.hasOption("workers"))
+            workers = Integer.parseInt(userInput.getOptionValue("workers"));
+        if(userInput.hasOption("queue-limit"))
+            queueLimit = Integer.parseInt(userInput.getOptionValue("queue-limit"));
+        if(userInput.hasOption("scan-workers"))
+            scanWorkers = Integer.parseInt(userInput.getOptionValue("scan-workers"));
+        if(userInput.hasOption("scan-queue-limit"))
+            scanQueueLimit = Integer.parseInt(userInput.getOptionValue("scan-queue-limit"));
+        if(userInput.hasOption("hash-workers"))
+            hashWorkers = Integer.parseInt(userInput.getOptionValue("hash-workers"));
+        if(userInput.hasOption("hash-queue-limit"))
+            hashQueueLimit = Integer.parseInt(userInput.getOptionValue("hash-queue-limit"));
+        if(userInput.hasOption("hash-iterations"))
+            Credentials.setIterations(Integer.parseInt(userInput.getOptionValue("hash-iterations")));
+
+        executor = new RequestExecutor(workers, queueLimit, scanWorkers, scanQueueLimit,
+                hashWorkers, hashQueueLimit, userInput.hasOption("virtual-threads"));
+        metrics.setExecutor(executor);
+        try {
+            metrics.registerMBeans();
+        } catch (JMException e) {
+            System.out.println("Statistics could not be published over JMX: " + e.getMessage());
+        }
+        if(verbose)
+            System.out.println("Request executor: " + workers + " workers per lane, "
+                    + (executor.usesVirtualThreads() ? "virtual" : "platform") + " threads");
+        if(userInput.hasOption("virtual-threads") && !executor.usesVirtualThreads())
+            System.out.println("Virtual threads are not available on this JDK, using a platform thread pool");
+
+        long lookupRate = 20000;
+        long heavyRate = 2000;
+        int rateClients = 65536;
+        if(userInput.hasOption("lookup-rate"))
+            lookupRate = Long.parseLong(userInput.getOptionValue("lookup-rate"));
+        if(userInput.hasOption("heavy-rate"))
+            heavyRate = Long.parseLong(userInput.getOptionValue("heavy-rate"));
+        if(userInput.hasOption("rate-clients"))
+            rateClients = Integer.parseInt(userInput.getOptionValue("rate-clients"));
+        if(lookupRate > 0 || heavyRate > 0) {
+            limiter = new RateLimiter(lookupRate, heavyRate, rateClients);
+            metrics.setRateLimiter(limiter);
+        }
+
+        // Enough callers for every request the lanes can hold, so the other transports meet
+        // the same limits and busy replies as RMI
+        int maxCallers = 2 * (workers + queueLimit) + scanWorkers + scanQueueLimit;
+        boolean serveWhileLoading = userInput.hasOption("serve-while-loading");
+        Recovery recovery = newRecovery();
+        recovering = recovery;
+        metrics.setRecovery(recovery);
+        // Registered before recovery, so a server stopped while loading still closes its transports
+        Runtime.getRuntime().addShutdownHook(new ShutdownHook());
+        // Lookups are answered from the moment the server is bound, everything else once it is ready
+        if(serveWhileLoading)
+            bind(userInput, maxCallers);
+
+        try {
+            long recoveryStart = System.nanoTime();
+            readFile(recovery);
+            metrics.recordRecovery(System.nanoTime() - recoveryStart);
+            if(verbose)
+                System.out.println("Recovered " + store.size() + " users in "
+                        + (System.nanoTime() - recoveryStart) / 1000000 + " ms");
+        } catch (IOException | ClassNotFoundException e) {
+            System.out.println("Registry could not be recovered: " + e.getMessage());
+            System.exit(1);
+        }
+
+        try {
+            wal = WriteAheadLog.open(dataDir, recoveredLsn, fsyncInterval);
+            store.setJournal(wal);
+        } catch (IOException e) {
+            System.out.println("Write-ahead log could not be opened: " + e.getMessage());
+            System.exit(1);
+        }
+
+        tracker = new AccessTracker(store, accessInterval);
+        metrics.setAccessTracker(tracker);
+
+        if(userInput.hasOption("expire-after")) {
+            long expireAfter = days(userInput.getOptionValue("expire-after"));
+            long tombstonePeriod = userInput.hasOption("tombstone-period") ? days(userInput.getOptionValue("tombstone-period")) : 0;
+            int reapBatch = userInput.hasOption("reap-batch") ? Integer.parseInt(userInput.getOptionValue("reap-batch")) : 1000;
+            reaper = new Reaper(store, wal, tracker, expireAfter, tombstonePeriod, reapBatch, () -> !replica);
+            metrics.setReaper(reaper);
+            if(verbose)
+                System.out.println("Expiring users after " + expireAfter / 1000 + " s without activity, deleting them "
+                        + tombstonePeriod / 1000 + " s later, " + reapBatch + " per second at most");
+        }
+
+        recovering = null;
+        long readyMillis = ManagementFactory.getRuntimeMXBean().getUptime();
+        metrics.recordReady(readyMillis);
+        System.out.println("Ready with " + store.size() + " users " + readyMillis + " ms after start"
+                + (serveWhileLoading ? ", " + recovery.getLoadedOnDemand() + " segments loaded early for lookups" : ""));
+        if(!serveWhileLoading)
+            bind(userInput, maxCallers);
+
+        // Snapshots every backup interval, 2 min by default, timed from the end of the last one
+        backups = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "backup");
+            thread.setDaemon(true);
+            return thread;
+        });
+        if(backupInterval > 0)
+            backups.scheduleWithFixedDelay(new Task(store), backupInterval, backupInterval, TimeUnit.MILLISECONDS);
+
+        if(replica) {
+            Replicator replicator = new Replicator(userInput.getOptionValue("replica-of").split(","));
+            tracker.forwardTo(replicator::forward);
+            replicator.start();
+            System.out.println("Replicating from: " + userInput.getOptionValue("replica-of"));
+        }
+    }
+
+    /**
+     * Reads the options that make this server a replica. Runs before the registry is loaded or
+     * bound, so a server started as a replica never accepts a write or answers as the primary,
+     * not even while it is starting.
+     *
+     * @param userInput the parsed arguments
+     * @throws IOException if the peer key cannot be read
+     * @throws IllegalArgumentException if a replica is given no peer key
+     */
+    static void configureReplication(CommandLine userInput) throws IOException {
+        failoverTimeout = userInput.hasOption("failover-timeout")
+                ? Long.parseLong(userInput.getOptionValue("failover-timeout")) * 1000 : 0;
+        peerKey = userInput.hasOption("peer-key") ? Credentials.readPeerKey(new File(userInput.getOptionValue("peer-key"))) : null;
+        if(userInput.hasOption("replica-of") && peerKey == null)
+            throw new IllegalArgumentException("A replica needs the cluster's --peer-key to follow its primary");
+        replica = userInput.hasOption("replica-of");
+    }
+
+    /**
+     * @param days a number of days, possibly fractional
+     * @return the same time in milliseconds
+     */
+    private static long days(String days) {
+        return (long) (Double.parseDouble(days) * 24 * 60 * 60 * 1000);
+    }
+
+    /**
+     * Binds the server into the RMI registry, creating the registry if there is none on the port,
+     * and starts the other transports asked for
+     *
+     * @param userInput the parsed arguments
+     * @param maxCallers largest number of requests each other transport makes at once
+     */
+    private static void bind(CommandLine userInput, int maxCallers) {
         Registry registry = null;
         try {
             registry = LocateRegistry.getRegistry(defaultPort);
@@ -242,22 +1355,21 @@ public class IdServer extends UnicastRemoteObject implements Queries {
             if(verbose)
                 System.out.println("Valid server has been setup");
             registry.rebind("//localhost:" + defaultPort + "/IdServer", serv);
-            readFile();
             System.out.println("Server bound to registry at port: "+defaultPort);
-        }
-        catch (IOException | ClassNotFoundException e){
-            if(verbose)
-                System.out.println("No valid backup available... creating new backup");
+
+            if(userInput.hasOption("binary-port")) {
+                binaryTransport = new BinaryTransport(serv, Integer.parseInt(userInput.getOptionValue("binary-port")), maxCallers);
+                System.out.println("Binary transport listening on port: " + binaryTransport.getPort());
+            }
+            if(userInput.hasOption("http-port")) {
+                httpTransport = new HttpTransport(serv, Integer.parseInt(userInput.getOptionValue("http-port")), maxCallers);
+                System.out.println("HTTP transport listening on port: " + httpTransport.getPort());
+            }
         }
         catch (Exception e) {
             System.out.println("IdServer err: " + e.getMessage());
             e.printStackTrace();
         }
-
-        t = new Timer();
-        // New timer scheduled for 2 min
-        t.schedule(new Task(dict), 120000);
-        Runtime.getRuntime().addShutdownHook(new ShutdownHook());
     }
 
     /**
@@ -266,9 +1378,27 @@ public class IdServer extends UnicastRemoteObject implements Queries {
     static class ShutdownHook extends Thread {
 
         public void run() {
+            // A backup already running finishes first, since writeToFile is synchronized
+            if(backups != null)
+                backups.shutdown();
+            if(binaryTransport != null)
+                binaryTransport.close();
+            if(httpTransport != null)
+                httpTransport.close();
+            // The log and tracker only exist once recovery is done, and nothing can have changed
+            // before then; a backup of a partly loaded store would drop the users not loaded yet
+            if(recovering != null) {
+                System.out.println("Shutting down before the registry was loaded, leaving it as it was");
+                return;
+            }
+
             System.out.println("Backing up registry and shutting down...");
+            if(reaper != null)
+                reaper.close();
             try {
-                Task.writeToFile(dict);
+                tracker.close();
+                Task.writeToFile(store);
+                wal.close();
             } catch (IOException e) {
                 e.printStackTrace();
             }
@@ -276,70 +1406,313 @@ public class IdServer extends UnicastRemoteObject implements Queries {
     }
 
     /**
-     * The timer for taking care of backing up the registry
+     * Follows the primary as a replica: fetches its log records and applies them to the store and
+     * the local log, falling back to a whole snapshot when the replica is too far behind.
+     *
+     * The servers to follow are given in failover order. The replica follows the first of them
+     * that is a primary. Only when a failover timeout is set and none of them can be reached for
+     * that long does the replica promote itself and start accepting writes; a server further down
+     * the list then finds it and follows it instead. Nothing fences the old primary: one that was
+     * only cut off from the replica, or is restarted without --replica-of, goes on accepting writes
+     * of its own, and the two primaries diverge.
      */
-    static class Task extends TimerTask {
-        private HashMap<String, User> dict;
+    static class Replicator extends Thread {
+        private static final long RETRY_DELAY = 1000;
+        // Batches of lookups kept for the primary while it cannot be reached; newer ones are dropped
+        private static final int TOUCH_BACKLOG = 64;
 
-        public Task(HashMap<String, User> dict){
-            this.dict = dict;
+        private final String[] upstream;
+        private final BlockingQueue<long[]> touches = new ArrayBlockingQueue<>(TOUCH_BACKLOG);
+        private Peer source;
+        private String sourceName;
+
+        public Replicator(String[] upstream) {
+            super("replicator");
+            setDaemon(true);
+            this.upstream = upstream;
         }
 
         public void run() {
-            System.out.println("Backing up registry...");
+            long lastContact = System.currentTimeMillis();
+
+            while(replica) {
+                try {
+                    if(source == null) {
+                        boolean reachable = findPrimary();
+                        if(reachable)
+                            lastContact = System.currentTimeMillis();
+                        if(source == null) {
+                            if(failoverTimeout > 0 && System.currentTimeMillis() - lastContact >= failoverTimeout) {
+                                replica = false;
+                                System.out.println("No primary reachable, this server is now the primary");
+                            } else {
+                                Thread.sleep(RETRY_DELAY);
+                            }
+                            continue;
+                        }
+                    }
+
+                    Result<byte[][]> fetched = source.fetchLog(peerKey, wal.getLastLsn(), REPLICATION_BATCH, REPLICATION_WAIT);
+                    lastContact = System.currentTimeMillis();
+                    if(fetched.getStatus() == Status.NOT_FOUND) {
+                        Snapshot snapshot = copySnapshot();
+                        if(snapshot == null) {
+                            Thread.sleep(RETRY_DELAY);
+                            continue;
+                        }
+                        Task.install(store, snapshot);
+                        if(verbose)
+                            System.out.println("Loaded snapshot from " + sourceName + " up to " + wal.getLastLsn());
+                    } else if(fetched.getStatus() == Status.BAD_PASSWORD) {
+                        System.out.println(sourceName + " refused this server's peer key");
+                        Thread.sleep(RETRY_DELAY);
+                    } else if(!fetched.isOk()) {
+                        // Busy, throttled or still loading
+                        Thread.sleep(RETRY_DELAY);
+                    } else if(fetched.getValue().length > 0) {
+                        store.replicate(Arrays.asList(fetched.getValue()), wal);
+                        wal.commit();
+                    }
+                    sendTouches();
+                } catch (RemoteException e) {
+                    if(verbose)
+                        System.out.println("Lost contact with " + sourceName + ": " + e.getMessage());
+                    source = null;
+                } catch (IOException e) {
+                    System.out.println("Replication failed: " + e.getMessage());
+                    source = null;
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
 
+        /**
+         * Copies a snapshot of the primary's registry a page at a time. A page the primary is too
+         * busy for is asked for again.
+         *
+         * @return the snapshot, or null if the primary refused it or dropped it before the last
+         *         page, for the copy to start over later
+         * @throws RemoteException if the primary cannot be reached
+         * @throws InterruptedException if interrupted while waiting to ask again
+         */
+        private Snapshot copySnapshot() throws RemoteException, InterruptedException {
+            List<User> users = new ArrayList<>();
+            String cursor = null;
+            while(true) {
+                Result<SnapshotPage> page = source.fetchSnapshot(peerKey, cursor, MAX_PAGE);
+                Status status = page.getStatus();
+                if(status == Status.BUSY || status == Status.THROTTLED || status == Status.NOT_READY) {
+                    Thread.sleep(RETRY_DELAY);
+                    continue;
+                }
+                if(!page.isOk())
+                    return null;
+                Collections.addAll(users, page.getValue().getUsers());
+                if(page.getValue().isLast())
+                    return new Snapshot(page.getValue().getLsn(), users);
+                cursor = page.getValue().getNextCursor();
+            }
+        }
+
+        /**
+         * Queues the last request dates the access tracker folded in, to be sent to the primary
+         * in batches it accepts
+         *
+         * @param drained three longs per user, as AccessTracker hands them on
+         */
+        void forward(long[] drained) {
+            for(int from = 0; from < drained.length; from += 3 * MAX_BATCH)
+                touches.offer(Arrays.copyOfRange(drained, from, Math.min(drained.length, from + 3 * MAX_BATCH)));
+        }
+
+        /**
+         * Sends the queued last request dates to the primary. A batch it refuses is kept for the
+         * next round.
+         *
+         * @throws RemoteException if the primary cannot be reached
+         */
+        private void sendTouches() throws RemoteException {
+            long[] batch;
+            while((batch = touches.peek()) != null) {
+                Status status = source.touchUsers(peerKey, batch);
+                if(status != Status.OK) {
+                    if(verbose)
+                        System.out.println(sourceName + " did not take last request dates: " + status);
+                    return;
+                }
+                touches.poll();
+            }
+        }
+
+        /**
+         * Looks for a primary among the upstream servers, in order
+         *
+         * @return whether any upstream server could be reached
+         */
+        private boolean findPrimary() {
+            boolean reachable = false;
+            for(String server: upstream) {
+                String[] hostPort = server.trim().split(":");
+                int port = hostPort.length > 1 ? Integer.parseInt(hostPort[1]) : 1099;
+                try {
+                    Registry registry = LocateRegistry.getRegistry(hostPort[0], port);
+                    Peer candidate = (Peer) registry.lookup("//localhost:" + port + "/IdServer");
+                    reachable = true;
+                    if(candidate.isPrimary()) {
+                        source = candidate;
+                        sourceName = server.trim();
+                        if(verbose)
+                            System.out.println("Following primary " + sourceName);
+                        return true;
+                    }
+                } catch (RemoteException | NotBoundException e) {
+                    // Try the next one
+                }
+            }
+
+            return reachable;
+        }
+    }
+
+    /**
+     * The scheduled task for backing up the registry
+     */
+    static class Task implements Runnable {
+        private UserStore store;
+
+        public Task(UserStore store){
+            this.store = store;
+        }
+
+        public void run() {
+            long start = System.nanoTime();
             try {
-                writeToFile(this.dict);
+                long bytes = writeToFile(this.store);
+                System.out.println("Backed up registry: " + store.size() + " users, " + bytes + " bytes in "
+                        + (System.nanoTime() - start) / 1000000 + " ms");
             }
-            catch(IOException e){
+            // Anything thrown out of a scheduled task would cancel every later backup
+            catch(IOException | RuntimeException e){
                 e.printStackTrace();
             }
+        }
 
-            resetTimer();
+        /**
+         * Writes a snapshot of the store and drops the log segments it covers. Requests go on
+         * being served while the snapshot is copied and written.
+         *
+         * @param store the store to back up
+         * @return the size of the snapshot in bytes
+         * @throws IOException if the snapshot cannot be written
+         */
+        public static synchronized long writeToFile(UserStore store) throws IOException {
+            long start = System.nanoTime();
+            // Last request dates are only persisted here, so fold in the latest ones first
+            if(tracker != null)
+                tracker.flush();
+            Snapshot snapshot = store.snapshot(wal);
+            long bytes = snapshot.write(new File(dataDir, SNAPSHOT_FILE));
+            wal.deleteOldSegments();
+            metrics.recordBackup(System.nanoTime() - start, bytes);
+            return bytes;
         }
 
-        public static void writeToFile(HashMap<String, User> dict) throws IOException {
-            File f = new File("registry.backup");
-            ObjectOutputStream oos = new ObjectOutputStream(new FileOutputStream(f));
-            oos.writeObject(dict);
-            oos.flush();
-            oos.close();
+        /**
+         * Replaces the whole store with a snapshot fetched from the primary, restarts the log at
+         * the snapshot's LSN and writes the snapshot as the local backup
+         *
+         * @param store the store to replace
+         * @param snapshot the primary's snapshot
+         * @throws IOException if the log or the snapshot cannot be written
+         */
+        public static synchronized void install(UserStore store, Snapshot snapshot) throws IOException {
+            store.loadAll(snapshot.getUsers());
+            wal.reset(snapshot.getLsn());
+            // Until the new snapshot is written a crash recovers an older state, which is caught up again
+            wal.deleteOldSegments();
+            writeToFile(store);
         }
     }
 
     /**
-     * Read all users into the dict object from the registry file
+     * Read all users into the store from the latest snapshot, falling back to a legacy
+     * registry.backup, then replay the write-ahead log written since that snapshot
+     *
+     * @param recovery the recovery of the store, which lookups may consult while it runs
+     * @throws IOException
+     * @throws ClassNotFoundException
+     */
+    public static void readFile(Recovery recovery) throws IOException, ClassNotFoundException {
+        recoveredLsn = recovery.run();
+    }
+
+    /**
+     * Read all users into the store from the data directory, with nothing served while it runs
      *
      * @throws IOException
      * @throws ClassNotFoundException
      */
     public static void readFile() throws IOException, ClassNotFoundException {
-        ObjectInputStream ois = new ObjectInputStream(new FileInputStream("registry.backup"));
-        dict = (HashMap<String, User>) ois.readObject();
+        readFile(newRecovery());
+    }
+
+    private static Recovery newRecovery() {
+        return new Recovery(dataDir, new File(dataDir, SNAPSHOT_FILE), new File(dataDir, LEGACY_BACKUP_FILE), store);
     }
 
     /**
-     * Reset the timer on the timer thread
+     * Recovers the registry from a directory and opens its write-ahead log without binding to
+     * RMI, starting the executor or scheduling backups, so the queries can be called directly
+     * in-process (e.g. by the benchmarks)
+     *
+     * @param dir directory holding the snapshot and log segments
+     * @param fsyncIntervalMs 0 to fsync on every commit, otherwise the background fsync period
+     * @throws IOException if the registry cannot be recovered or the log opened
+     * @throws ClassNotFoundException if a legacy backup cannot be deserialized
      */
-    public static void resetTimer() {
-        t.cancel();
-        t = new Timer();
-        t.schedule(new Task(dict), 120000);
+    static void startInProcess(File dir, long fsyncIntervalMs) throws IOException, ClassNotFoundException {
+        dataDir = dir;
+        fsyncInterval = fsyncIntervalMs;
+        resetStore();
+        readFile();
+        wal = WriteAheadLog.open(dataDir, recoveredLsn, fsyncInterval);
+        store.setJournal(wal);
     }
 
     /**
-     * Helper function for getInfo to find the login name via UUID
+     * Closes the write-ahead log opened by startInProcess
      *
-     * @param uuid UUID used to find login name
-     * @return a login name connected via UUID
+     * @throws IOException if the log cannot be synced
      */
-    private String findLoginNameByUUID(String uuid) {
-        for(User usr: dict.values()){
-            if(usr.getUUID().toString().equals(uuid)){
-                return usr.getLoginName();
-            }
-        }
+    static void stopInProcess() throws IOException {
+        wal.close();
+    }
 
-        return null;
+    /**
+     * Replaces the store with an empty one, ready for readFile
+     */
+    static void resetStore() {
+        store = new UserStore();
+        metrics = new Metrics(store);
+        metrics.setExecutor(executor);
+    }
+
+    static UserStore getStore() {
+        return store;
+    }
+
+    /**
+     * Helper function for lookupByUUID to find a user through the UUID index
+     *
+     * @param uuid UUID in its string form, as sent by the client
+     * @return the user with that UUID, or null if there is none or the UUID is malformed
+     */
+    private User findByUUID(String uuid) {
+        try {
+            return store.getByUUID(UUID.fromString(uuid));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
     }
 }
@@ -0,0 +1,364 @@
+import java.io.Closeable;
+import java.nio.charset.StandardCharsets;
+import java.rmi.RemoteException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Client library for programs that talk to the registry for as long as they run, where IdClient
+ * is its command line front end.
+ *
+ * The Queries it is given is connected once (see connect) and shared by every call. Servers are
+ * reached through ReplicatedQueries even when there is only one, so a stub is looked up once,
+ * looked up again after a failure, and unreachable servers are retried with backoff.
+ *
+ * The asynchronous methods return at once with a CompletableFuture. Creates, lookups, reverse
+ * lookups and deletes are queued by kind, and a few senders per kind take everything queued so
+ * far and send it as one batch call, so thousands of concurrent operations travel in a handful of
+ * calls; under light load a batch is a single operation and nothing waits. Renames and paged
+ * reads go out one call each. At most maxInFlight operations are outstanding at once: a caller
+ * asking for more waits until one finishes. Batched operations the server shed as BUSY,
+ * THROTTLED or NOT_READY are sent again after a backoff, a few times, before the status is
+ * passed on.
+ *
+ * Operations in flight together may be applied in any order, so an operation that depends on
+ * another (e.g. a lookup of a user being created) must wait for that one's future first. A future
+ * fails with the RemoteException if its call could not be made at all.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class IdentityClient implements Closeable {
+    // Batch calls of one kind that may be in flight at once
+    private static final int SENDERS_PER_KIND = 4;
+    // Threads making renames and paged reads, one call each
+    private static final int CALLERS = 16;
+    // Times an item the server shed is sent before BUSY, THROTTLED or NOT_READY is passed on
+    private static final int BUSY_ATTEMPTS = 5;
+
+    private final Queries queries;
+    private final int batchSize;
+    private final Semaphore window;
+    private final int maxInFlight;
+    private final ExecutorService senders;
+    private final ExecutorService callers;
+    private final ScheduledExecutorService retries;
+    private volatile boolean closed;
+
+    private final Kind<UserRequest> creates = new Kind<>(Queries::createLogins, Queries.MAX_CREDENTIAL_BATCH);
+    private final Kind<String> lookups = new Kind<>(Queries::lookupByLogins, Integer.MAX_VALUE);
+    private final Kind<String> reverseLookups = new Kind<>(Queries::lookupByUUIDs, Integer.MAX_VALUE);
+    private final Kind<UserRequest> deletes = new Kind<>(Queries::deleteUsers, Queries.MAX_CREDENTIAL_BATCH);
+
+    /**
+     * @param queries where calls are sent, e.g. from connect
+     * @param maxInFlight largest number of asynchronous operations outstanding at once
+     * @param batchSize largest number of operations sent in one batch call
+     */
+    public IdentityClient(Queries queries, int maxInFlight, int batchSize) {
+        if(maxInFlight < 1 || batchSize < 1)
+            throw new IllegalArgumentException("Window and batch size must be positive");
+        this.queries = queries;
+        this.maxInFlight = maxInFlight;
+        this.batchSize = batchSize;
+        window = new Semaphore(maxInFlight);
+        senders = Executors.newCachedThreadPool(daemon("id-client-sender"));
+        callers = Executors.newFixedThreadPool(CALLERS, daemon("id-client-caller"));
+        retries = Executors.newSingleThreadScheduledExecutor(daemon("id-client-retry"));
+    }
+
+    /**
+     * Connects to the registry the way IdClient's --server and --shards options describe it
+     *
+     * @param servers a server, or a comma-separated primary and its replicas as host[:port]; ignored if shards are given
+     * @param shards comma-separated shards, each host[:port] optionally followed by |host:port replicas, or null
+     * @param defaultPort port used for servers given without one
+     * @return the registry as one Queries; nothing is contacted until the first call
+     */
+    public static Queries connect(String servers, String shards, int defaultPort) {
+        return connect(servers, shards, defaultPort, null);
+    }
+
+    /**
+     * Connects as connect(servers, shards, defaultPort) does, with the key needed to move users
+     * between shards
+     *
+     * @param servers a server, or a comma-separated primary and its replicas as host[:port]; ignored if shards are given
+     * @param shards comma-separated shards, each host[:port] optionally followed by |host:port replicas, or null
+     * @param defaultPort port used for servers given without one
+     * @param peerKey the cluster's peer key, for renames onto another shard and rebalancing; may be null
+     * @return the registry as one Queries; nothing is contacted until the first call
+     */
+    public static Queries connect(String servers, String shards, int defaultPort, String peerKey) {
+        if(shards != null)
+            return new ShardedQueries(shards.split(","), defaultPort, peerKey);
+
+        return new ReplicatedQueries(servers.split(","), defaultPort);
+    }
+
+    /**
+     * @return the Queries calls are sent to, for making blocking calls directly
+     */
+    public Queries queries() {
+        return queries;
+    }
+
+    /**
+     * Creates a user
+     *
+     * @param loginName the login name
+     * @param realName the real name
+     * @param password the password as typed, or null for none; it is hashed before it is sent
+     * @return the new user's login name and UUID
+     */
+    public CompletableFuture<Result<UserInfo>> createLogin(String loginName, String realName, String password) {
+        return creates.submit(new UserRequest(loginName, realName, hashPassword(password)));
+    }
+
+    public CompletableFuture<Result<UserInfo>> lookupByLogin(String loginName) {
+        return lookups.submit(loginName);
+    }
+
+    public CompletableFuture<Result<UserInfo>> lookupByUUID(String uuid) {
+        return reverseLookups.submit(uuid);
+    }
+
+    /**
+     * Deletes a user
+     *
+     * @param loginName the login name
+     * @param password the password as typed, or null if the user has none
+     * @return the outcome
+     */
+    public CompletableFuture<Status> deleteUser(String loginName, String password) {
+        return deletes.submit(new UserRequest(loginName, null, hashPassword(password))).thenApply(Result::getStatus);
+    }
+
+    /**
+     * Renames a user
+     *
+     * @param oldLoginName the current login name
+     * @param newLoginName the new login name
+     * @param password the password as typed, or null if the user has none
+     * @return the outcome
+     */
+    public CompletableFuture<Status> modifyName(String oldLoginName, String newLoginName, String password) {
+        String hash = hashPassword(password);
+        return call(q -> q.modifyName(oldLoginName, newLoginName, hash));
+    }
+
+    public CompletableFuture<Result<Page>> getInfoPage(String type, String cursor, int pageSize) {
+        return call(q -> q.getInfoPage(type, cursor, pageSize));
+    }
+
+    public CompletableFuture<Result<Page>> search(String field, String match, String text, String cursor, int pageSize) {
+        return call(q -> q.search(field, match, text, cursor, pageSize));
+    }
+
+    /**
+     * @return operations submitted and not finished yet
+     */
+    public int getInFlight() {
+        return maxInFlight - window.availablePermits();
+    }
+
+    /**
+     * Stops taking operations and waits for the ones in flight to finish
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            window.acquire(maxInFlight);
+            window.release(maxInFlight);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        senders.shutdown();
+        callers.shutdown();
+        retries.shutdownNow();
+    }
+
+    /**
+     * Hashes a password the way the server expects to receive it: SHA-512 as lower case hex,
+     * which the server salts and hashes again
+     *
+     * @param password the password as typed, or null for none
+     * @return the hash, or null for none
+     */
+    public static String hashPassword(String password) {
+        if(password == null)
+            return null;
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-512");
+            return Credentials.toHex(md.digest(password.getBytes(StandardCharsets.UTF_8)));
+        } catch (NoSuchAlgorithmException e) {
+            // Provided by every JDK
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Takes a place in the window for one operation, given back when its future completes
+     *
+     * @return false if the client is closed or the caller was interrupted while waiting
+     */
+    private boolean enter(CompletableFuture<?> reply) {
+        if(closed) {
+            reply.completeExceptionally(new IllegalStateException("Client is closed"));
+            return false;
+        }
+        try {
+            window.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            reply.completeExceptionally(e);
+            return false;
+        }
+        reply.whenComplete((r, e) -> window.release());
+
+        return true;
+    }
+
+    private <T> CompletableFuture<T> call(Call<T> call) {
+        CompletableFuture<T> reply = new CompletableFuture<>();
+        if(!enter(reply))
+            return reply;
+
+        callers.execute(() -> {
+            try {
+                reply.complete(call.on(queries));
+            } catch (RemoteException | RuntimeException e) {
+                reply.completeExceptionally(e);
+            }
+        });
+
+        return reply;
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        };
+    }
+
+    /**
+     * The queue of one kind of batchable operation and the senders draining it. A sender keeps
+     * sending batches until the queue is empty, and a new one is started for each submit while
+     * fewer than SENDERS_PER_KIND are running, so requests arriving while every sender is busy
+     * make up the next batch.
+     */
+    private class Kind<Q> {
+        private final BatchCall<Q> batchCall;
+        // Largest batch the server takes of this kind, if below the client's batch size
+        private final int limit;
+        private final ConcurrentLinkedQueue<Pending<Q>> queue = new ConcurrentLinkedQueue<>();
+        private final AtomicInteger running = new AtomicInteger();
+
+        Kind(BatchCall<Q> batchCall, int limit) {
+            this.batchCall = batchCall;
+            this.limit = limit;
+        }
+
+        CompletableFuture<Result<UserInfo>> submit(Q request) {
+            Pending<Q> pending = new Pending<>(request);
+            if(enter(pending.reply))
+                enqueue(pending);
+
+            return pending.reply;
+        }
+
+        private void enqueue(Pending<Q> pending) {
+            queue.add(pending);
+            if(startSender())
+                senders.execute(this::drain);
+        }
+
+        private boolean startSender() {
+            while(true) {
+                int count = running.get();
+                if(count >= SENDERS_PER_KIND)
+                    return false;
+                if(running.compareAndSet(count, count + 1))
+                    return true;
+            }
+        }
+
+        private void drain() {
+            while(true) {
+                List<Pending<Q>> batch = new ArrayList<>();
+                Pending<Q> next;
+                while(batch.size() < Math.min(batchSize, limit) && (next = queue.poll()) != null)
+                    batch.add(next);
+
+                if(batch.isEmpty()) {
+                    running.decrementAndGet();
+                    // A request queued after the poll found this sender still running and did not start one
+                    if(queue.isEmpty() || !startSender())
+                        return;
+                    continue;
+                }
+                send(batch);
+            }
+        }
+
+        private void send(List<Pending<Q>> batch) {
+            List<Q> requests = new ArrayList<>(batch.size());
+            for(Pending<Q> pending: batch)
+                requests.add(pending.request);
+
+            BatchResult result;
+            try {
+                result = batchCall.send(queries, requests);
+            } catch (RemoteException | RuntimeException e) {
+                for(Pending<Q> pending: batch)
+                    pending.reply.completeExceptionally(e);
+                return;
+            }
+
+            for(int i = 0; i < batch.size(); i++) {
+                Pending<Q> pending = batch.get(i);
+                Status status = result.getStatus(i);
+                if((status == Status.BUSY || status == Status.THROTTLED || status == Status.NOT_READY) && ++pending.attempts < BUSY_ATTEMPTS && !closed)
+                    retries.schedule(() -> enqueue(pending), ReplicatedQueries.backoff(pending.attempts - 1), TimeUnit.MILLISECONDS);
+                else if(status == Status.OK)
+                    pending.reply.complete(Result.ok(result.getUser(i)));
+                else
+                    pending.reply.complete(Result.of(status));
+            }
+        }
+    }
+
+    private static class Pending<Q> {
+        private final Q request;
+        private final CompletableFuture<Result<UserInfo>> reply = new CompletableFuture<>();
+        // Times sent so far, touched by one sender at a time
+        private int attempts;
+
+        Pending(Q request) {
+            this.request = request;
+        }
+    }
+
+    private interface BatchCall<Q> {
+        BatchResult send(Queries queries, List<Q> requests) throws RemoteException;
+    }
+
+    private interface Call<T> {
+        T on(Queries queries) throws RemoteException;
+    }
+}
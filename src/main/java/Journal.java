@@ -0,0 +1,19 @@
+import java.util.Date;
+
+/**
+ * Receives every mutation applied to the UserStore, in the order it was applied.
+ *
+ * The store calls these while it still holds the locks for the affected login names, so an
+ * implementation sees mutations to the same name in order and must not call back into the store.
+ */
+public interface Journal {
+
+        void logCreate(User user);
+
+        void logRename(String oldLoginName, String newLoginName, Date lastChangeDate);
+
+        void logDelete(String loginName);
+
+        // A user's password hash replaced by a stronger one for the same password
+        void logRehash(String loginName, byte[] passwordHash);
+}
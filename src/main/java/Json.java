@@ -0,0 +1,220 @@
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Just enough JSON for HttpTransport, so the server needs no library for it.
+ *
+ * parse turns text into Maps, Lists, Strings, Longs, Doubles, Booleans and nulls; quote writes a
+ * string with the escaping JSON needs.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class Json {
+    // Deepest nesting accepted, so a hostile body cannot exhaust the stack
+    private static final int MAX_DEPTH = 32;
+
+    private final String text;
+    private int pos;
+
+    private Json(String text) {
+        this.text = text;
+    }
+
+    /**
+     * @param text one JSON value, optionally surrounded by whitespace
+     * @return the value
+     * @throws IllegalArgumentException if the text is not valid JSON
+     */
+    public static Object parse(String text) {
+        Json json = new Json(text);
+        Object value = json.value(0);
+        json.skipWhitespace();
+        if(json.pos != text.length())
+            throw json.error("Unexpected text after the value");
+        return value;
+    }
+
+    /**
+     * Appends a string as a quoted JSON string, or null
+     */
+    public static StringBuilder quote(StringBuilder out, String s) {
+        if(s == null)
+            return out.append("null");
+
+        out.append('"');
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch(c) {
+                case '"': out.append("\\\""); break;
+                case '\\': out.append("\\\\"); break;
+                case '\n': out.append("\\n"); break;
+                case '\r': out.append("\\r"); break;
+                case '\t': out.append("\\t"); break;
+                default:
+                    if(c < 0x20)
+                        out.append(String.format("\\u%04x", (int) c));
+                    else
+                        out.append(c);
+            }
+        }
+        return out.append('"');
+    }
+
+    private Object value(int depth) {
+        if(depth > MAX_DEPTH)
+            throw error("Nested too deeply");
+        skipWhitespace();
+        if(pos >= text.length())
+            throw error("Expected a value");
+
+        char c = text.charAt(pos);
+        if(c == '{')
+            return object(depth);
+        if(c == '[')
+            return array(depth);
+        if(c == '"')
+            return string();
+        if(c == '-' || (c >= '0' && c <= '9'))
+            return number();
+        if(text.startsWith("true", pos)) {
+            pos += 4;
+            return Boolean.TRUE;
+        }
+        if(text.startsWith("false", pos)) {
+            pos += 5;
+            return Boolean.FALSE;
+        }
+        if(text.startsWith("null", pos)) {
+            pos += 4;
+            return null;
+        }
+        throw error("Unexpected character");
+    }
+
+    private Map<String, Object> object(int depth) {
+        Map<String, Object> object = new LinkedHashMap<>();
+        pos++;
+        skipWhitespace();
+        if(peek() == '}') {
+            pos++;
+            return object;
+        }
+        while(true) {
+            skipWhitespace();
+            if(peek() != '"')
+                throw error("Expected a name");
+            String name = string();
+            skipWhitespace();
+            expect(':');
+            object.put(name, value(depth + 1));
+            skipWhitespace();
+            if(peek() == '}') {
+                pos++;
+                return object;
+            }
+            expect(',');
+        }
+    }
+
+    private List<Object> array(int depth) {
+        List<Object> array = new ArrayList<>();
+        pos++;
+        skipWhitespace();
+        if(peek() == ']') {
+            pos++;
+            return array;
+        }
+        while(true) {
+            array.add(value(depth + 1));
+            skipWhitespace();
+            if(peek() == ']') {
+                pos++;
+                return array;
+            }
+            expect(',');
+        }
+    }
+
+    private String string() {
+        StringBuilder out = new StringBuilder();
+        pos++;
+        while(true) {
+            if(pos >= text.length())
+                throw error("Unterminated string");
+            char c = text.charAt(pos++);
+            if(c == '"')
+                return out.toString();
+            if(c != '\\') {
+                out.append(c);
+                continue;
+            }
+            if(pos >= text.length())
+                throw error("Unterminated string");
+            char escaped = text.charAt(pos++);
+            switch(escaped) {
+                case '"': case '\\': case '/': out.append(escaped); break;
+                case 'b': out.append('\b'); break;
+                case 'f': out.append('\f'); break;
+                case 'n': out.append('\n'); break;
+                case 'r': out.append('\r'); break;
+                case 't': out.append('\t'); break;
+                case 'u':
+                    if(pos + 4 > text.length())
+                        throw error("Bad escape");
+                    try {
+                        out.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                    } catch (NumberFormatException e) {
+                        throw error("Bad escape");
+                    }
+                    pos += 4;
+                    break;
+                default:
+                    throw error("Bad escape");
+            }
+        }
+    }
+
+    private Object number() {
+        int start = pos;
+        boolean integral = true;
+        if(peek() == '-')
+            pos++;
+        while(pos < text.length()) {
+            char c = text.charAt(pos);
+            if(c == '.' || c == 'e' || c == 'E' || c == '+' || c == '-')
+                integral = false;
+            else if(c < '0' || c > '9')
+                break;
+            pos++;
+        }
+        String number = text.substring(start, pos);
+        try {
+            return integral ? (Object) Long.parseLong(number) : (Object) Double.parseDouble(number);
+        } catch (NumberFormatException e) {
+            throw error("Bad number");
+        }
+    }
+
+    private void skipWhitespace() {
+        while(pos < text.length() && Character.isWhitespace(text.charAt(pos)))
+            pos++;
+    }
+
+    private char peek() {
+        return pos < text.length() ? text.charAt(pos) : 0;
+    }
+
+    private void expect(char c) {
+        if(peek() != c)
+            throw error("Expected '" + c + "'");
+        pos++;
+    }
+
+    private IllegalArgumentException error(String message) {
+        return new IllegalArgumentException(message + " at offset " + pos);
+    }
+}
@@ -0,0 +1,460 @@
+import org.apache.commons.cli.*;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Drives a mix of queries against a running registry from many threads, to reproduce production
+ * load before an upgrade or to soak a server for hours.
+ *
+ * The load is open loop: operations are due at a fixed rate from the start of the run whether or
+ * not earlier ones have finished, and each thread takes the next operation due, waits for its
+ * time and sends it as a blocking call over the one Queries every thread shares. An operation's
+ * latency is measured from the time it was due, not the time it was sent, so when the server
+ * stalls the operations that queued up behind the stall are charged for it. Measuring from the
+ * send instead (the service time, also reported) hides exactly those stalls, as a closed loop of
+ * clients waiting on each other would.
+ *
+ * Operations pick users from a fixed key space of login names with a Zipfian distribution, so a
+ * few users are much hotter than the rest as in production. Renames move a user to another name in
+ * the key space and creates fill names back in, so the registry settles at a steady size.
+ * Expected refusals such as looking up a name that was just deleted are counted apart from shed
+ * requests and errors.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class LoadGenerator {
+    private static final String PREFIX = "load";
+    private static final String PASSWORD = IdentityClient.hashPassword("load-generator");
+    private static final int PRELOAD_BATCH = 1000;
+
+    private final Queries queries;
+    private final Kind[] mix;
+    private final int keys;
+    private final ZipfianKeys chooser;
+    private final long intervalNanos;
+    private final int pageSize;
+    // UUIDs of users the generator has seen, by key, for reverse lookups
+    private final AtomicReferenceArray<UUID> uuids;
+
+    private final Map<Kind, Stats> stats = new EnumMap<>(Kind.class);
+    // Latencies of every operation since the last progress report
+    private volatile LatencyHistogram recent = new LatencyHistogram();
+    private final LatencyHistogram service = new LatencyHistogram();
+    private final AtomicLong tickets = new AtomicLong();
+    private volatile long startNanos;
+    private volatile boolean stopped;
+
+    /**
+     * @param queries where every thread sends its calls
+     * @param weights relative weight of each kind of operation in the mix
+     * @param keys number of login names operations pick from
+     * @param skew Zipfian skew of the key choice, from 0 for uniform to just under 1
+     * @param rate operations due per second
+     * @param pageSize users fetched by each get
+     */
+    public LoadGenerator(Queries queries, Map<Kind, Integer> weights, int keys, double skew, double rate, int pageSize) {
+        if(keys < 2 || rate <= 0 || pageSize < 1)
+            throw new IllegalArgumentException("Keys, rate and page size must be positive");
+        this.queries = queries;
+        this.keys = keys;
+        this.chooser = new ZipfianKeys(keys, skew);
+        this.intervalNanos = Math.max(1, (long) (1e9 / rate));
+        this.pageSize = pageSize;
+        this.uuids = new AtomicReferenceArray<>(keys);
+
+        List<Kind> slots = new ArrayList<>();
+        for(Map.Entry<Kind, Integer> weight: weights.entrySet()) {
+            for(int i = 0; i < weight.getValue(); i++)
+                slots.add(weight.getKey());
+        }
+        if(slots.isEmpty())
+            throw new IllegalArgumentException("The mix must give some operation a weight");
+        mix = slots.toArray(new Kind[0]);
+        for(Kind kind: Kind.values())
+            stats.put(kind, new Stats());
+    }
+
+    /**
+     * Creates every user in the key space that does not exist yet, in batches, so lookups hit from
+     * the start of the run
+     *
+     * @return users created
+     * @throws RemoteException if a batch could not be sent
+     */
+    public int preload() throws RemoteException {
+        int created = 0;
+        for(int from = 0; from < keys; from += PRELOAD_BATCH) {
+            List<UserRequest> batch = new ArrayList<>();
+            for(int key = from; key < Math.min(keys, from + PRELOAD_BATCH); key++)
+                batch.add(new UserRequest(PREFIX + key, "Load User " + key, PASSWORD));
+
+            while(!batch.isEmpty()) {
+                BatchResult result = queries.createLogins(batch);
+                List<UserRequest> shed = new ArrayList<>();
+                for(int i = 0; i < batch.size(); i++) {
+                    Status status = result.getStatus(i);
+                    if(status == Status.OK) {
+                        uuids.set(keyOf(batch.get(i).getLoginName()), result.getUser(i).getUUID());
+                        created++;
+                    } else if(status == Status.BUSY || status == Status.THROTTLED || status == Status.NOT_READY) {
+                        shed.add(batch.get(i));
+                    }
+                }
+                batch = shed;
+                if(!batch.isEmpty())
+                    LockSupport.parkNanos(100000000L);
+            }
+        }
+
+        return created;
+    }
+
+    /**
+     * Sends operations from the given number of threads until the duration is up or stop is called,
+     * printing progress every report interval
+     *
+     * @param threads threads sending operations, which bounds the calls in flight at once
+     * @param durationMs length of the run, 0 to run until stopped
+     * @param reportMs milliseconds between progress lines, 0 for none
+     */
+    public void run(int threads, long durationMs, long reportMs) throws InterruptedException {
+        startNanos = System.nanoTime();
+        long endNanos = durationMs == 0 ? Long.MAX_VALUE : startNanos + durationMs * 1000000L;
+        Thread[] senders = new Thread[threads];
+        for(int i = 0; i < threads; i++) {
+            senders[i] = new Thread(() -> send(endNanos), "load-" + i);
+            senders[i].setDaemon(true);
+            senders[i].start();
+        }
+
+        long lastReport = startNanos;
+        long lastCount = 0;
+        while(!stopped && System.nanoTime() < endNanos) {
+            long now = System.nanoTime();
+            long wait = Math.min(endNanos - now, reportMs == 0 ? Long.MAX_VALUE : lastReport + reportMs * 1000000L - now);
+            LockSupport.parkNanos(Math.min(wait, 100000000L));
+            now = System.nanoTime();
+            if(reportMs > 0 && now - lastReport >= reportMs * 1000000L) {
+                LatencyHistogram interval = recent;
+                recent = new LatencyHistogram();
+                long count = interval.getCount();
+                lastCount += count;
+                long behind = Math.max(0, now - (startNanos + tickets.get() * intervalNanos));
+                System.out.println(String.format("%6ds %10.1f ops/s  p50 %8.2f ms  p99 %8.2f ms  p99.9 %8.2f ms  max %8.2f ms  behind %6d ms  total %d",
+                        (now - startNanos) / 1000000000L, count * 1e9 / (now - lastReport), interval.getPercentile(50) / 1e6,
+                        interval.getPercentile(99) / 1e6, interval.getPercentile(99.9) / 1e6, interval.getMax() / 1e6,
+                        behind / 1000000L, lastCount));
+                lastReport = now;
+            }
+        }
+
+        stopped = true;
+        for(Thread sender: senders)
+            sender.join();
+    }
+
+    /**
+     * Ends a run started by run; operations in flight finish first
+     */
+    public void stop() {
+        stopped = true;
+    }
+
+    /**
+     * @return a table of every kind of operation's outcomes and latencies, with the service times
+     */
+    public String report() {
+        long elapsed = Math.max(1, System.nanoTime() - startNanos);
+        long total = 0;
+        StringBuilder out = new StringBuilder();
+        out.append(String.format("%-16s %10s %10s %8s %8s %8s %10s %10s %10s %10s %10s %10s%n",
+                "operation", "count", "ok", "refused", "shed", "errors", "mean(ms)", "p50(ms)", "p90(ms)", "p99(ms)", "p99.9(ms)", "max(ms)"));
+        for(Map.Entry<Kind, Stats> entry: stats.entrySet()) {
+            Stats s = entry.getValue();
+            LatencyHistogram h = s.latency;
+            if(h.getCount() == 0)
+                continue;
+            total += h.getCount();
+            out.append(String.format("%-16s %10d %10d %8d %8d %8d %10.2f %10.2f %10.2f %10.2f %10.2f %10.2f%n",
+                    entry.getKey().name, h.getCount(), s.ok.sum(), s.refused.sum(), s.shed.sum(), s.errors.sum(),
+                    h.getMean() / 1e6, h.getPercentile(50) / 1e6, h.getPercentile(90) / 1e6, h.getPercentile(99) / 1e6,
+                    h.getPercentile(99.9) / 1e6, h.getMax() / 1e6));
+        }
+        out.append(String.format("%nThroughput: %.1f ops/s of %.1f due%n", total * 1e9 / elapsed, 1e9 / intervalNanos));
+        out.append(String.format("Service time, from send to reply: p50 %.2f ms, p99 %.2f ms, p99.9 %.2f ms, max %.2f ms%n",
+                service.getPercentile(50) / 1e6, service.getPercentile(99) / 1e6, service.getPercentile(99.9) / 1e6, service.getMax() / 1e6));
+        return out.toString();
+    }
+
+    /**
+     * Loop of one sending thread: takes the next operation due, waits until it is due, sends it and
+     * records how long after its due time the reply came
+     */
+    private void send(long endNanos) {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        while(!stopped) {
+            long due = startNanos + tickets.getAndIncrement() * intervalNanos;
+            if(due >= endNanos)
+                return;
+            long wait;
+            while((wait = due - System.nanoTime()) > 0 && !stopped)
+                LockSupport.parkNanos(wait);
+            if(stopped)
+                return;
+
+            Kind kind = mix[random.nextInt(mix.length)];
+            Stats s = stats.get(kind);
+            long sent = System.nanoTime();
+            Status status;
+            try {
+                status = perform(kind, random);
+            } catch (RemoteException | RuntimeException e) {
+                status = null;
+            }
+            long done = System.nanoTime();
+
+            s.latency.record(done - due);
+            recent.record(done - due);
+            service.record(done - sent);
+            if(status == null)
+                s.errors.increment();
+            else if(status == Status.OK)
+                s.ok.increment();
+            else if(status == Status.NOT_FOUND || status == Status.ALREADY_EXISTS || status == Status.BAD_PASSWORD)
+                s.refused.increment();
+            else if(status == Status.BUSY || status == Status.THROTTLED || status == Status.NOT_PRIMARY
+                    || status == Status.NOT_READY)
+                s.shed.increment();
+            else
+                s.errors.increment();
+        }
+    }
+
+    private Status perform(Kind kind, ThreadLocalRandom random) throws RemoteException {
+        int key = chooser.next(random);
+        String loginName = PREFIX + key;
+        switch(kind) {
+            case CREATE: {
+                Result<UserInfo> result = queries.createLogin(loginName, "Load User " + key, PASSWORD);
+                if(result.isOk())
+                    uuids.set(key, result.getValue().getUUID());
+                return result.getStatus();
+            }
+            case LOOKUP: {
+                Result<UserInfo> result = queries.lookupByLogin(loginName);
+                if(result.isOk())
+                    uuids.set(key, result.getValue().getUUID());
+                return result.getStatus();
+            }
+            case REVERSE_LOOKUP: {
+                // A key never seen yet is looked up by a UUID nobody has, which is a miss like any other
+                UUID uuid = uuids.get(key);
+                return queries.lookupByUUID((uuid != null ? uuid : UUID.randomUUID()).toString()).getStatus();
+            }
+            case MODIFY:
+                return queries.modifyName(loginName, PREFIX + chooser.next(random), PASSWORD);
+            case DELETE:
+                return queries.deleteUser(loginName, PASSWORD);
+            default:
+                return queries.getInfoPage("all", loginName, pageSize).getStatus();
+        }
+    }
+
+    private static int keyOf(String loginName) {
+        return Integer.parseInt(loginName.substring(PREFIX.length()));
+    }
+
+    /**
+     * The kinds of operation in a mix, by the names IdClient gives them
+     */
+    public enum Kind {
+        CREATE("create"),
+        LOOKUP("lookup"),
+        REVERSE_LOOKUP("reverse-lookup"),
+        MODIFY("modify"),
+        DELETE("delete"),
+        GET("get");
+
+        private final String name;
+
+        Kind(String name) {
+            this.name = name;
+        }
+
+        public static Kind of(String name) {
+            for(Kind kind: values()) {
+                if(kind.name.equals(name))
+                    return kind;
+            }
+            throw new IllegalArgumentException("Unknown operation: " + name);
+        }
+    }
+
+    /**
+     * Outcomes and latencies of one kind of operation
+     */
+    private static class Stats {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder ok = new LongAdder();
+        private final LongAdder refused = new LongAdder();
+        private final LongAdder shed = new LongAdder();
+        private final LongAdder errors = new LongAdder();
+    }
+
+    /**
+     * Picks keys from 0 to n-1 with Zipfian probabilities, using the rejection-free method of Gray
+     * et al. that YCSB uses, which takes O(n) once to set up and O(1) per key.
+     *
+     * Key 0 would otherwise be the hottest, key 1 the next and so on, which would put every hot
+     * user together at the start of the login name order; ranks are spread over the key space by
+     * multiplying by a prime that does not divide n, which maps them one to one.
+     */
+    private static class ZipfianKeys {
+        private static final long SPREAD = 1000000007L;
+
+        private final int n;
+        private final double theta;
+        private final double zetaN;
+        private final double alpha;
+        private final double eta;
+        private final long spread;
+
+        ZipfianKeys(int n, double theta) {
+            if(theta < 0 || theta >= 1)
+                throw new IllegalArgumentException("Skew must be at least 0 and less than 1: " + theta);
+            this.n = n;
+            this.theta = theta;
+            double zeta = 0;
+            for(int i = 1; i <= n; i++)
+                zeta += 1 / Math.pow(i, theta);
+            zetaN = zeta;
+            double zeta2 = 1 + 1 / Math.pow(2, theta);
+            alpha = 1 / (1 - theta);
+            eta = (1 - Math.pow(2.0 / n, 1 - theta)) / (1 - zeta2 / zetaN);
+            spread = n % SPREAD == 0 ? 1 : SPREAD;
+        }
+
+        int next(ThreadLocalRandom random) {
+            double u = random.nextDouble();
+            double uz = u * zetaN;
+            long rank;
+            if(uz < 1)
+                rank = 0;
+            else if(uz < 1 + Math.pow(0.5, theta))
+                rank = 1;
+            else
+                rank = Math.min(n - 1, (long) (n * Math.pow(eta * u - eta + 1, alpha)));
+
+            return (int) (rank * spread % n);
+        }
+    }
+
+    public static void main(String[] args) {
+        Options options = new Options();
+        OptionGroup target = new OptionGroup();
+        target.setRequired(true);
+        target.addOption(new Option(null, "server", true, "Comma-separated list of servers, the primary first followed by its replicas, each <host>[:<port>]"));
+        target.addOption(new Option(null, "shards", true, "Comma-separated list of <host>[:<port>] shards that split the registry by login name, each optionally followed by its replicas as |<host>:<port>"));
+        options.addOptionGroup(target);
+        options.addOption(new Option(null, "numport", true, "Specify port to connect to (runs on port 1099 by default)"));
+        options.addOption(new Option(null, "threads", true, "Threads sending operations, which bounds the calls in flight (default 32)"));
+        options.addOption(new Option(null, "rate", true, "Operations due per second (default 1000)"));
+        options.addOption(new Option(null, "duration", true, "Seconds to run for, 0 to run until interrupted (default 60)"));
+        options.addOption(new Option(null, "report-interval", true, "Seconds between progress lines, 0 for none (default 10)"));
+        options.addOption(new Option(null, "mix", true, "Comma-separated weights of create, lookup, reverse-lookup, modify, delete and get as <operation>=<weight> (default lookup=70,reverse-lookup=10,create=5,modify=5,delete=5,get=5)"));
+        options.addOption(new Option(null, "keys", true, "Login names operations pick from (default 100000)"));
+        options.addOption(new Option(null, "skew", true, "Zipfian skew of the names picked, from 0 for uniform to just under 1 (default 0.99)"));
+        options.addOption(new Option(null, "page-size", true, "Users fetched by each get (default 100)"));
+        options.addOption(new Option(null, "preload", false, "Creates every login name in the key space before the run"));
+
+        CommandLine cmd = null;
+        try {
+            cmd = new DefaultParser().parse(options, args);
+        } catch(ParseException e) {
+            new HelpFormatter().printHelp("LoadGenerator", options);
+            System.exit(1);
+        }
+
+        int port, threads, keys, pageSize;
+        long duration, reportInterval;
+        double rate, skew;
+        Map<Kind, Integer> weights = new EnumMap<>(Kind.class);
+        LoadGenerator generator;
+        try {
+            port = Integer.parseInt(cmd.getOptionValue("numport", "1099"));
+            threads = Integer.parseInt(cmd.getOptionValue("threads", "32"));
+            rate = Double.parseDouble(cmd.getOptionValue("rate", "1000"));
+            duration = Long.parseLong(cmd.getOptionValue("duration", "60")) * 1000;
+            reportInterval = Long.parseLong(cmd.getOptionValue("report-interval", "10")) * 1000;
+            keys = Integer.parseInt(cmd.getOptionValue("keys", "100000"));
+            skew = Double.parseDouble(cmd.getOptionValue("skew", "0.99"));
+            pageSize = Integer.parseInt(cmd.getOptionValue("page-size", "100"));
+            if(threads < 1 || duration < 0 || reportInterval < 0)
+                throw new IllegalArgumentException("Threads must be positive, and the duration and report interval not negative");
+            for(String weight: cmd.getOptionValue("mix", "lookup=70,reverse-lookup=10,create=5,modify=5,delete=5,get=5").split(",")) {
+                String[] parts = weight.split("=");
+                if(parts.length != 2)
+                    throw new IllegalArgumentException("Expected <operation>=<weight>: " + weight);
+                weights.put(Kind.of(parts[0].trim()), Integer.parseInt(parts[1].trim()));
+            }
+
+            Queries queries = IdentityClient.connect(cmd.getOptionValue("server"), cmd.getOptionValue("shards"), port);
+            generator = new LoadGenerator(queries, weights, keys, skew, rate, pageSize);
+        } catch(IllegalArgumentException e) {
+            System.out.println("Invalid option: " + e.getMessage());
+            System.exit(1);
+            return;
+        }
+
+        try {
+            if(cmd.hasOption("preload")) {
+                long start = System.currentTimeMillis();
+                int created = generator.preload();
+                System.out.println("Preloaded " + created + " users in " + (System.currentTimeMillis() - start) + " ms");
+            }
+        } catch(RemoteException e) {
+            System.out.println("Preload failed: " + e.getMessage());
+            System.exit(1);
+        }
+
+        // An interrupted run still prints what it measured, once the operations in flight are done
+        AtomicBoolean reported = new AtomicBoolean();
+        CountDownLatch finished = new CountDownLatch(1);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            generator.stop();
+            try {
+                finished.await(5, TimeUnit.SECONDS);
+            } catch(InterruptedException e) {
+                // Exiting anyway
+            }
+            if(reported.compareAndSet(false, true))
+                System.out.print(generator.report());
+        }));
+
+        System.out.println("Sending " + rate + " operations per second from " + threads + " threads over " + keys + " login names");
+        try {
+            generator.run(threads, duration, reportInterval);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if(reported.compareAndSet(false, true))
+            System.out.print("\n" + generator.report());
+        finished.countDown();
+        System.exit(0);
+    }
+}
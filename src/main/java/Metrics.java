@@ -0,0 +1,455 @@
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.StandardMBean;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Always-on statistics for IdServer: a request count, error count, busy count and latency
+ * histogram per operation, plus store size, backup and recovery timings, readiness and expiry.
+ * Errors are requests that threw; a reply with a failure status such as NOT_FOUND is a reply.
+ *
+ * Recording touches only LongAdders and LatencyHistogram counters, so it allocates nothing on the
+ * request path. The same numbers are published over JMX under the "IdServer" domain and returned
+ * to clients as a ServerStats by Queries.getStats.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class Metrics {
+    private final UserStore store;
+    private volatile RequestExecutor executor;
+    private volatile AccessTracker tracker;
+    private volatile RateLimiter limiter;
+    private volatile Recovery recovery;
+    private volatile Reaper reaper;
+    private final OperationRecorder[] operations = new OperationRecorder[Operation.values().length];
+
+    private final LongAdder backups = new LongAdder();
+    private final LongAdder backupBytesTotal = new LongAdder();
+    private volatile long lastBackupNanos;
+    private volatile long lastBackupBytes;
+    private volatile long recoveryNanos;
+    private volatile boolean ready;
+    private volatile long readyMillis;
+
+    public Metrics(UserStore store) {
+        this.store = store;
+        for(Operation op: Operation.values())
+            operations[op.ordinal()] = new OperationRecorder();
+    }
+
+    public void setExecutor(RequestExecutor executor) {
+        this.executor = executor;
+    }
+
+    public void setAccessTracker(AccessTracker tracker) {
+        this.tracker = tracker;
+    }
+
+    public void setRateLimiter(RateLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    public void setRecovery(Recovery recovery) {
+        this.recovery = recovery;
+    }
+
+    public void setReaper(Reaper reaper) {
+        this.reaper = reaper;
+    }
+
+    /**
+     * Records a request that produced a reply
+     *
+     * @param op the operation
+     * @param startNanos System.nanoTime() when the request arrived
+     * @param busy whether the reply was the "server busy" shed reply
+     */
+    public void record(Operation op, long startNanos, boolean busy) {
+        OperationRecorder recorder = operations[op.ordinal()];
+        recorder.latency.record(System.nanoTime() - startNanos);
+        if(busy)
+            recorder.busy.increment();
+    }
+
+    /**
+     * Records a request that failed with an exception
+     *
+     * @param op the operation
+     * @param startNanos System.nanoTime() when the request arrived
+     */
+    public void recordError(Operation op, long startNanos) {
+        OperationRecorder recorder = operations[op.ordinal()];
+        recorder.latency.record(System.nanoTime() - startNanos);
+        recorder.errors.increment();
+    }
+
+    public void recordBackup(long nanos, long bytes) {
+        backups.increment();
+        backupBytesTotal.add(bytes);
+        lastBackupNanos = nanos;
+        lastBackupBytes = bytes;
+    }
+
+    public void recordRecovery(long nanos) {
+        recoveryNanos = nanos;
+    }
+
+    /**
+     * Records that the server is ready for every request
+     *
+     * @param millis time since the JVM started
+     */
+    public void recordReady(long millis) {
+        readyMillis = millis;
+        ready = true;
+    }
+
+    /**
+     * @return a copy of every statistic, for sending to a client
+     */
+    public ServerStats snapshot() {
+        ServerStats stats = new ServerStats();
+        for(Operation op: Operation.values()) {
+            OperationRecorder r = operations[op.ordinal()];
+            LatencyHistogram h = r.latency;
+            stats.addOperation(new ServerStats.OperationStats(op.getMethodName(), h.getCount(), r.errors.sum(),
+                    r.busy.sum(), h.getMean(), h.getPercentile(50), h.getPercentile(90), h.getPercentile(99),
+                    h.getPercentile(99.9), h.getMax()));
+        }
+
+        stats.putGauge("storeSize", store.size());
+        stats.putGauge("backups", backups.sum());
+        stats.putGauge("lastBackupMillis", lastBackupNanos / 1000000);
+        stats.putGauge("lastBackupBytes", lastBackupBytes);
+        stats.putGauge("backupBytesTotal", backupBytesTotal.sum());
+        stats.putGauge("recoveryMillis", recoveryNanos / 1000000);
+        stats.putGauge("ready", ready ? 1 : 0);
+        stats.putGauge("readyMillis", readyMillis);
+
+        Recovery loading = recovery;
+        if(loading != null) {
+            stats.putGauge("segmentsLoaded", loading.getSegmentsLoaded());
+            stats.putGauge("segmentsLoadedOnDemand", loading.getLoadedOnDemand());
+        }
+
+        AccessTracker access = tracker;
+        if(access != null) {
+            stats.putGauge("accessRecorded", access.getRecorded());
+            stats.putGauge("accessOverflowed", access.getOverflowed());
+            stats.putGauge("accessFolded", access.getFolded());
+        }
+
+        Reaper expiry = reaper;
+        if(expiry != null) {
+            stats.putGauge("expiryScheduled", expiry.getScheduled());
+            stats.putGauge("expiryBacklog", expiry.getBacklog());
+            stats.putGauge("expiryReaped", expiry.getReaped());
+            stats.putGauge("expiryReapedLastMinute", expiry.getReapedLastMinute());
+            stats.putGauge("expiryBatchMicros", expiry.getMeanBatchMicros());
+        }
+
+        RateLimiter limits = limiter;
+        if(limits != null) {
+            stats.putGauge("rateChecked", limits.getChecked());
+            stats.putGauge("rateThrottled", limits.getThrottled());
+            stats.putGauge("rateClients", limits.getClients());
+            stats.putGauge("rateEvicted", limits.getEvicted());
+            stats.putGauge("rateCheckNanos", limits.getMeanCheckNanos());
+        }
+
+        RequestExecutor exec = executor;
+        if(exec != null) {
+            for(RequestExecutor.Lane lane: RequestExecutor.Lane.values()) {
+                String prefix = lane.name().toLowerCase();
+                stats.putGauge(prefix + "Queued", exec.getQueued(lane));
+                stats.putGauge(prefix + "Active", exec.getActive(lane));
+                stats.putGauge(prefix + "Completed", exec.getCompleted(lane));
+                stats.putGauge(prefix + "Rejected", exec.getRejected(lane));
+            }
+        }
+
+        return stats;
+    }
+
+    /**
+     * Publishes the statistics on the platform MBean server as IdServer:type=Server,
+     * IdServer:type=Operation,name=&lt;method&gt; and IdServer:type=Lane,name=&lt;lane&gt;. The
+     * gauges of a part the server runs without read 0.
+     *
+     * @throws JMException if the beans cannot be registered
+     */
+    public void registerMBeans() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        server.registerMBean(new StandardMBean(new ServerView(), ServerMBean.class),
+                new ObjectName("IdServer:type=Server"));
+        for(Operation op: Operation.values()) {
+            server.registerMBean(new StandardMBean(operations[op.ordinal()], OperationMBean.class),
+                    new ObjectName("IdServer:type=Operation,name=" + op.getMethodName()));
+        }
+        for(RequestExecutor.Lane lane: RequestExecutor.Lane.values()) {
+            server.registerMBean(new StandardMBean(new LaneView(lane), LaneMBean.class),
+                    new ObjectName("IdServer:type=Lane,name=" + lane.name().toLowerCase()));
+        }
+    }
+
+    public interface ServerMBean {
+        long getStoreSize();
+
+        long getBackupCount();
+
+        long getLastBackupMillis();
+
+        long getLastBackupBytes();
+
+        long getBackupBytesTotal();
+
+        long getRecoveryMillis();
+
+        boolean isReady();
+
+        long getReadyMillis();
+
+        long getSegmentsLoaded();
+
+        long getSegmentsLoadedOnDemand();
+
+        long getAccessRecorded();
+
+        long getAccessOverflowed();
+
+        long getAccessFolded();
+
+        long getExpiryScheduled();
+
+        long getExpiryBacklog();
+
+        long getExpiryReaped();
+
+        long getExpiryReapedLastMinute();
+
+        long getExpiryBatchMicros();
+
+        long getRateChecked();
+
+        long getRateThrottled();
+
+        long getRateClients();
+
+        long getRateEvicted();
+
+        long getRateCheckNanos();
+    }
+
+    public interface LaneMBean {
+        long getQueued();
+
+        long getActive();
+
+        long getCompleted();
+
+        long getRejected();
+    }
+
+    public interface OperationMBean {
+        long getCount();
+
+        long getErrors();
+
+        long getBusy();
+
+        double getMeanMicros();
+
+        double getP50Micros();
+
+        double getP90Micros();
+
+        double getP99Micros();
+
+        double getP999Micros();
+
+        double getMaxMicros();
+    }
+
+    private class ServerView implements ServerMBean {
+        public long getStoreSize() {
+            return store.size();
+        }
+
+        public long getBackupCount() {
+            return backups.sum();
+        }
+
+        public long getLastBackupMillis() {
+            return lastBackupNanos / 1000000;
+        }
+
+        public long getLastBackupBytes() {
+            return lastBackupBytes;
+        }
+
+        public long getBackupBytesTotal() {
+            return backupBytesTotal.sum();
+        }
+
+        public long getRecoveryMillis() {
+            return recoveryNanos / 1000000;
+        }
+
+        public boolean isReady() {
+            return ready;
+        }
+
+        public long getReadyMillis() {
+            return readyMillis;
+        }
+
+        public long getSegmentsLoaded() {
+            Recovery loading = recovery;
+            return loading != null ? loading.getSegmentsLoaded() : 0;
+        }
+
+        public long getSegmentsLoadedOnDemand() {
+            Recovery loading = recovery;
+            return loading != null ? loading.getLoadedOnDemand() : 0;
+        }
+
+        public long getAccessRecorded() {
+            AccessTracker access = tracker;
+            return access != null ? access.getRecorded() : 0;
+        }
+
+        public long getAccessOverflowed() {
+            AccessTracker access = tracker;
+            return access != null ? access.getOverflowed() : 0;
+        }
+
+        public long getAccessFolded() {
+            AccessTracker access = tracker;
+            return access != null ? access.getFolded() : 0;
+        }
+
+        public long getExpiryScheduled() {
+            Reaper expiry = reaper;
+            return expiry != null ? expiry.getScheduled() : 0;
+        }
+
+        public long getExpiryBacklog() {
+            Reaper expiry = reaper;
+            return expiry != null ? expiry.getBacklog() : 0;
+        }
+
+        public long getExpiryReaped() {
+            Reaper expiry = reaper;
+            return expiry != null ? expiry.getReaped() : 0;
+        }
+
+        public long getExpiryReapedLastMinute() {
+            Reaper expiry = reaper;
+            return expiry != null ? expiry.getReapedLastMinute() : 0;
+        }
+
+        public long getExpiryBatchMicros() {
+            Reaper expiry = reaper;
+            return expiry != null ? expiry.getMeanBatchMicros() : 0;
+        }
+
+        public long getRateChecked() {
+            RateLimiter limits = limiter;
+            return limits != null ? limits.getChecked() : 0;
+        }
+
+        public long getRateThrottled() {
+            RateLimiter limits = limiter;
+            return limits != null ? limits.getThrottled() : 0;
+        }
+
+        public long getRateClients() {
+            RateLimiter limits = limiter;
+            return limits != null ? limits.getClients() : 0;
+        }
+
+        public long getRateEvicted() {
+            RateLimiter limits = limiter;
+            return limits != null ? limits.getEvicted() : 0;
+        }
+
+        public long getRateCheckNanos() {
+            RateLimiter limits = limiter;
+            return limits != null ? limits.getMeanCheckNanos() : 0;
+        }
+    }
+
+    private class LaneView implements LaneMBean {
+        private final RequestExecutor.Lane lane;
+
+        LaneView(RequestExecutor.Lane lane) {
+            this.lane = lane;
+        }
+
+        public long getQueued() {
+            RequestExecutor exec = executor;
+            return exec != null ? exec.getQueued(lane) : 0;
+        }
+
+        public long getActive() {
+            RequestExecutor exec = executor;
+            return exec != null ? exec.getActive(lane) : 0;
+        }
+
+        public long getCompleted() {
+            RequestExecutor exec = executor;
+            return exec != null ? exec.getCompleted(lane) : 0;
+        }
+
+        public long getRejected() {
+            RequestExecutor exec = executor;
+            return exec != null ? exec.getRejected(lane) : 0;
+        }
+    }
+
+    private static class OperationRecorder implements OperationMBean {
+        private final LatencyHistogram latency = new LatencyHistogram();
+        private final LongAdder errors = new LongAdder();
+        private final LongAdder busy = new LongAdder();
+
+        public long getCount() {
+            return latency.getCount();
+        }
+
+        public long getErrors() {
+            return errors.sum();
+        }
+
+        public long getBusy() {
+            return busy.sum();
+        }
+
+        public double getMeanMicros() {
+            return latency.getMean() / 1000.0;
+        }
+
+        public double getP50Micros() {
+            return latency.getPercentile(50) / 1000.0;
+        }
+
+        public double getP90Micros() {
+            return latency.getPercentile(90) / 1000.0;
+        }
+
+        public double getP99Micros() {
+            return latency.getPercentile(99) / 1000.0;
+        }
+
+        public double getP999Micros() {
+            return latency.getPercentile(99.9) / 1000.0;
+        }
+
+        public double getMaxMicros() {
+            return latency.getMax() / 1000.0;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/**
+ * Every request the server handles, with the executor lane it runs on and the name it is reported
+ * under in statistics.
+ */
+public enum Operation {
+    CREATE_LOGIN("createLogin", RequestExecutor.Lane.MUTATION),
+    LOOKUP_BY_LOGIN("lookupByLogin", RequestExecutor.Lane.LOOKUP),
+    LOOKUP_BY_UUID("lookupByUUID", RequestExecutor.Lane.LOOKUP),
+    MODIFY_NAME("modifyName", RequestExecutor.Lane.MUTATION),
+    DELETE_USER("deleteUser", RequestExecutor.Lane.MUTATION),
+    GET_INFO("getInfo", RequestExecutor.Lane.SCAN),
+    GET_INFO_PAGE("getInfoPage", RequestExecutor.Lane.SCAN),
+    SEARCH("search", RequestExecutor.Lane.SCAN),
+    CREATE_LOGINS("createLogins", RequestExecutor.Lane.MUTATION),
+    LOOKUP_BY_LOGINS("lookupByLogins", RequestExecutor.Lane.LOOKUP),
+    LOOKUP_BY_UUIDS("lookupByUUIDs", RequestExecutor.Lane.LOOKUP),
+    DELETE_USERS("deleteUsers", RequestExecutor.Lane.MUTATION),
+    EXPORT_USERS("exportUsers", RequestExecutor.Lane.LOOKUP),
+    EXPORT_USER("exportUser", RequestExecutor.Lane.MUTATION),
+    IMPORT_USERS("importUsers", RequestExecutor.Lane.MUTATION),
+    DROP_USERS("dropUsers", RequestExecutor.Lane.MUTATION),
+    GET_STATS("getStats", RequestExecutor.Lane.LOOKUP),
+    GET_CHANGES("getChanges", RequestExecutor.Lane.FOLLOW),
+    GET_EVENTS("getEvents", RequestExecutor.Lane.FOLLOW),
+    // The snapshot getEvents starts a consumer over with, a page at a time
+    EVENT_SNAPSHOT("eventSnapshot", RequestExecutor.Lane.SCAN),
+    FETCH_LOG("fetchLog", RequestExecutor.Lane.FOLLOW),
+    FETCH_SNAPSHOT("fetchSnapshot", RequestExecutor.Lane.SCAN),
+    TOUCH_USERS("touchUsers", RequestExecutor.Lane.LOOKUP);
+
+    private final String methodName;
+    private final RequestExecutor.Lane lane;
+
+    Operation(String methodName, RequestExecutor.Lane lane) {
+        this.methodName = methodName;
+        this.lane = lane;
+    }
+
+    public String getMethodName() {
+        return methodName;
+    }
+
+    public RequestExecutor.Lane getLane() {
+        return lane;
+    }
+}
@@ -0,0 +1,31 @@
+import java.io.Serializable;
+
+/**
+ * One page of a paged getInfo scan or search, in login name order.
+ *
+ * The cursor is opaque to clients: pass it back to getInfoPage or search to fetch the page after
+ * this one. It is null once the scan has reached the end of the registry.
+ */
+public class Page implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final UserInfo[] users;
+    private final String nextCursor;
+
+    public Page(UserInfo[] users, String nextCursor) {
+        this.users = users;
+        this.nextCursor = nextCursor;
+    }
+
+    public UserInfo[] getUsers() {
+        return users;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public boolean isLast() {
+        return nextCursor == null;
+    }
+}
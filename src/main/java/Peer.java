@@ -0,0 +1,100 @@
+import java.rmi.Remote;
+import java.rmi.RemoteException;
+import java.util.List;
+
+/**
+ * RMI interface for the servers and tools trusted with whole users, password hashes included:
+ * replicas following a primary, and clients moving users between shards.
+ *
+ * A replica fetches the primary's write-ahead log records after the last LSN it holds and appends
+ * them to its own log. When those records are no longer available it copies a whole snapshot, a
+ * page at a time, and continues from the snapshot's LSN.
+ *
+ * A replica also sends the primary the last request dates of the users it looked up, which are
+ * not in the log, so the primary does not expire users only looked up on replicas.
+ *
+ * Every call but isPrimary carries the cluster's peer key, which each server reads from the file
+ * given with --peer-key. A wrong key is answered with BAD_PASSWORD, and a server started without
+ * a key answers every call that way. Ordinary clients only ever use Queries, which never returns
+ * a password hash.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public interface Peer extends Remote {
+
+        /**
+         * @return whether this server accepts writes
+         */
+        boolean isPrimary() throws RemoteException;
+
+        /**
+         * Returns the durable log records after an LSN, waiting up to waitMs for one to arrive
+         *
+         * @param key the cluster's peer key
+         * @param afterLsn last LSN the replica holds
+         * @param max largest number of records to return
+         * @param waitMs longest time to wait when there is nothing new
+         * @return the records in LSN order, possibly none; NOT_FOUND if the replica must fetch a
+         *         snapshot; or BUSY, THROTTLED or NOT_READY to try again shortly
+         */
+        Result<byte[][]> fetchLog(String key, long afterLsn, int max, long waitMs) throws RemoteException;
+
+        /**
+         * Returns a page of a snapshot of every user. The server holds the snapshot for the pages
+         * after the first, but only for a few replicas at a time.
+         *
+         * @param key the cluster's peer key
+         * @param cursor the previous page's cursor, or null to take a new snapshot
+         * @param max largest number of users to return
+         * @return the page; NOT_FOUND if the server no longer holds the snapshot and the replica
+         *         must start over; or BUSY, THROTTLED or NOT_READY to try again shortly
+         */
+        Result<SnapshotPage> fetchSnapshot(String key, String cursor, int max) throws RemoteException;
+
+        /**
+         * Moves users' last request dates forward for lookups a replica served. A user the primary
+         * does not hold is skipped.
+         *
+         * @param key the cluster's peer key
+         * @param touches three longs per user: the high and low bits of its UUID and the time of
+         *                its latest lookup
+         * @return OK; NOT_PRIMARY; or BUSY, THROTTLED or NOT_READY to try again shortly
+         */
+        Status touchUsers(String key, long[] touches) throws RemoteException;
+
+        /**
+         * Whole users, including UUID and password hash, for moving them between shards
+         *
+         * @param key the cluster's peer key
+         * @param loginNames users to export; a missing login name is left out
+         * @return the users found
+         */
+        Result<User[]> exportUsers(String key, List<String> loginNames) throws RemoteException;
+
+        /**
+         * Exports a user once its password has been checked, for renaming it onto another shard.
+         * An outdated hash is upgraded first, as for a rename.
+         *
+         * @param key the cluster's peer key
+         * @param loginName user to export
+         * @param password password as sent by the client, may be null
+         * @return the user; or NOT_FOUND or BAD_PASSWORD
+         */
+        Result<User> exportUser(String key, String loginName, String password) throws RemoteException;
+
+        /**
+         * @param key the cluster's peer key
+         * @param users users to add as they are; a login name or UUID already taken is ALREADY_EXISTS
+         * @return a status per user
+         */
+        BatchResult importUsers(String key, List<User> users) throws RemoteException;
+
+        /**
+         * @param key the cluster's peer key
+         * @param users users to delete, each only if unchanged since it was exported
+         * @return a status per user
+         */
+        BatchResult dropUsers(String key, List<User> users) throws RemoteException;
+}
@@ -1,16 +1,52 @@
 import java.rmi.RemoteException;
+import java.util.List;
 
 public interface Queries extends java.rmi.Remote {
 
-        String createLogin(String loginName, String realName, String password) throws RemoteException;
+        // Expected outcomes are reported through Status; RemoteException means the call itself failed
 
-        String lookupByLogin(String loginName) throws RemoteException;
+        Result<UserInfo> createLogin(String loginName, String realName, String password) throws RemoteException;
 
-        String lookupByUUID(String Uuid) throws RemoteException;
+        Result<UserInfo> lookupByLogin(String loginName) throws RemoteException;
 
-        String modifyName(String oldLoginName, String newLoginName, String password) throws RemoteException;
+        Result<UserInfo> lookupByUUID(String Uuid) throws RemoteException;
 
-        String deleteUser(String loginName, String password) throws RemoteException;
+        Status modifyName(String oldLoginName, String newLoginName, String password) throws RemoteException;
 
-        String getInfo(String type) throws RemoteException;
+        Status deleteUser(String loginName, String password) throws RemoteException;
+
+        Result<UserInfo[]> getInfo(String type) throws RemoteException;
+
+        // Paged form of getInfo for large registries; start with a null cursor
+        Result<Page> getInfoPage(String type, String cursor, int pageSize) throws RemoteException;
+
+        // Users whose login name or real name (field "login" or "real") starts with or contains
+        // the text (match "prefix" or "substring"), paged like getInfoPage; real names ignore case,
+        // and substrings must be at least three characters long
+        Result<Page> search(String field, String match, String text, String cursor, int pageSize) throws RemoteException;
+
+        // Batch variants apply every item in one pass and report a status per item, in order.
+        // Batches that hash or check passwords take at most MAX_CREDENTIAL_BATCH items.
+
+        int MAX_CREDENTIAL_BATCH = 1000;
+
+        BatchResult createLogins(List<UserRequest> requests) throws RemoteException;
+
+        BatchResult lookupByLogins(List<String> loginNames) throws RemoteException;
+
+        BatchResult lookupByUUIDs(List<String> uuids) throws RemoteException;
+
+        BatchResult deleteUsers(List<UserRequest> requests) throws RemoteException;
+
+        // Login names changed since a cursor, waiting up to a second for one; start with a null cursor
+        Result<Changes> getChanges(String cursor) throws RemoteException;
+
+        // The change feed: users created, renamed and deleted after a cursor in the order they
+        // were applied, at most max of them, waiting up to a second for one. A null cursor, or
+        // one the server no longer holds the events after, starts over with every user, max at a
+        // time, before following on (see ChangeFeed)
+        Result<ChangeFeed> getEvents(String cursor, int max) throws RemoteException;
+
+        // Per-operation counters and latency percentiles, store size and backup/recovery timings
+        Result<ServerStats> getStats() throws RemoteException;
 }
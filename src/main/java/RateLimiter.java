@@ -0,0 +1,168 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Limits how fast each client host may make requests, so one client flooding the server cannot
+ * degrade it for everyone else.
+ *
+ * Every host has two token buckets: one for lookups, which are cheap, and one for mutations and
+ * scans, which are not. A bucket holds one second's worth of its rate and refills continuously. A
+ * request takes a token for each item it carries, so batching does not get around the limit, but
+ * never more than a full bucket, so the largest batch can still get through. A bucket is kept as
+ * the time at which it would be full again, so checking one is a little arithmetic on one long.
+ *
+ * Hosts are kept in a bounded table of lock stripes, each an access-ordered map that drops its
+ * least recently seen host when full. A dropped host starts again with full buckets, which is what
+ * it would have had after a pause anyway.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class RateLimiter {
+    private static final int STRIPES = 64;
+    private static final int LOOKUPS = 0;
+    private static final int HEAVY = 1;
+
+    // Per budget: nanoseconds each token takes to come back, 0 for no limit, and tokens in a full bucket
+    private final long[] nanosPerToken = new long[2];
+    private final long[] capacity = new long[2];
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    private final LongAdder checked = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder evicted = new LongAdder();
+    private final LongAdder checkNanos = new LongAdder();
+
+    /**
+     * @param lookupRate lookups per second allowed to each host, 0 for no limit
+     * @param heavyRate mutations and scans per second allowed to each host, 0 for no limit
+     * @param maxClients hosts tracked at once
+     */
+    public RateLimiter(long lookupRate, long heavyRate, int maxClients) {
+        setRate(LOOKUPS, lookupRate);
+        setRate(HEAVY, heavyRate);
+        int perStripe = Math.max(1, (maxClients + STRIPES - 1) / STRIPES);
+        for(int i = 0; i < STRIPES; i++)
+            stripes[i] = new Stripe(perStripe);
+    }
+
+    private void setRate(int budget, long rate) {
+        if(rate < 0)
+            throw new IllegalArgumentException("Rate must not be negative: " + rate);
+        if(rate > 0) {
+            nanosPerToken[budget] = Math.max(1, 1000000000L / rate);
+            capacity[budget] = rate;
+        }
+    }
+
+    /**
+     * Takes tokens for a request from its host's bucket
+     *
+     * @param client the client host
+     * @param op the operation requested, which picks the bucket
+     * @param items items the request carries
+     * @return true if the request may go ahead, false if it is to be refused as throttled
+     */
+    public boolean tryAcquire(String client, Operation op, int items) {
+        int budget = op.getLane() == RequestExecutor.Lane.LOOKUP ? LOOKUPS : HEAVY;
+        long interval = nanosPerToken[budget];
+        if(interval == 0)
+            return true;
+
+        long start = System.nanoTime();
+        long cost = Math.min(Math.max(items, 1), capacity[budget]) * interval;
+        // How far ahead of now a bucket may be full again and still hold the tokens
+        long tolerance = capacity[budget] * interval - cost;
+        boolean allowed;
+        Stripe stripe = stripes[stripeIndex(client)];
+        synchronized(stripe) {
+            long[] full = stripe.get(client);
+            if(full == null) {
+                full = new long[2];
+                full[LOOKUPS] = start;
+                full[HEAVY] = start;
+                stripe.put(client, full);
+            }
+            long from = Math.max(full[budget], start);
+            allowed = from - start <= tolerance;
+            if(allowed)
+                full[budget] = from + cost;
+        }
+
+        checked.increment();
+        if(!allowed)
+            throttled.increment();
+        checkNanos.add(System.nanoTime() - start);
+        return allowed;
+    }
+
+    /**
+     * @return requests checked against a limit
+     */
+    public long getChecked() {
+        return checked.sum();
+    }
+
+    /**
+     * @return requests refused as throttled
+     */
+    public long getThrottled() {
+        return throttled.sum();
+    }
+
+    /**
+     * @return hosts dropped from the table to make room for others
+     */
+    public long getEvicted() {
+        return evicted.sum();
+    }
+
+    /**
+     * @return mean time taken by a check, in nanoseconds
+     */
+    public long getMeanCheckNanos() {
+        long n = checked.sum();
+        return n == 0 ? 0 : checkNanos.sum() / n;
+    }
+
+    /**
+     * @return hosts currently tracked
+     */
+    public int getClients() {
+        int clients = 0;
+        for(Stripe stripe: stripes) {
+            synchronized(stripe) {
+                clients += stripe.size();
+            }
+        }
+        return clients;
+    }
+
+    private static int stripeIndex(String client) {
+        int h = client.hashCode();
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    /**
+     * Hosts in order of last use, each with the times its buckets will be full again
+     */
+    private class Stripe extends LinkedHashMap<String, long[]> {
+        private static final long serialVersionUID = 1L;
+        private final int limit;
+
+        Stripe(int limit) {
+            super(16, 0.75f, true);
+            this.limit = limit;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, long[]> eldest) {
+            if(size() <= limit)
+                return false;
+            evicted.increment();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,301 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Expires users that have been inactive for too long, off the request path.
+ *
+ * A user is expired once neither a lookup nor a change has touched it for the expiry period. It
+ * is then hidden from lookups and listings at once, and deleted when a tombstone period after
+ * that has passed as well (immediately if there is none). Until then its login name stays taken,
+ * and renaming it with its password brings it back.
+ *
+ * Users are kept on a hashed timing wheel: one slot per second, a few thousand slots round, each
+ * user in the slot of the second it is due to be deleted. The store hands over every User object
+ * put into it (see UserStore.setWatcher) and nothing else: lookups move a user's last request date
+ * forward without telling the wheel, so the reaper checks each user as its slot comes round, drops
+ * the ones the store no longer holds, moves the ones touched since to their new slot and queues
+ * the ones due. Every tick it deletes at most a batch of the queued users through the store and
+ * the write-ahead log, like any other delete, so replicas and the change feed see them go. Users
+ * due more than one turn of the wheel ahead just stay in their slot until their turn.
+ *
+ * A replica leaves reaping to its primary, whose deletes it replicates.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class Reaper implements Closeable {
+    // Slots on the wheel, a power of two, and the time each one covers
+    private static final int SLOTS = 4096;
+    private static final long TICK_MILLIS = 1000;
+    // Ticks over which the reap rate is reported
+    private static final int RATE_TICKS = 60;
+
+    private final UserStore store;
+    private final WriteAheadLog wal;
+    private final AccessTracker tracker;
+    private final long expireMillis;
+    private final long tombstoneMillis;
+    private final int batchSize;
+    private final BooleanSupplier primary;
+    private final Slot[] slots = new Slot[SLOTS];
+
+    // Used only by the reaper thread
+    private final ArrayDeque<User> due = new ArrayDeque<>();
+    private final long[] reapedPerTick = new long[RATE_TICKS];
+    private long nextTick;
+
+    private final AtomicLong scheduled = new AtomicLong();
+    private final LongAdder reaped = new LongAdder();
+    private final LongAdder reapNanos = new LongAdder();
+    private final LongAdder batches = new LongAdder();
+    private volatile long backlog;
+    private volatile long reapedLastMinute;
+
+    private final Thread reaper;
+    private volatile boolean closed;
+
+    /**
+     * Schedules every user already in the store, watches it for new ones and starts the reaper
+     * thread
+     *
+     * @param store the store to expire users from
+     * @param wal the log the deletes are made durable in
+     * @param tracker the access tracker whose pending lookups are folded in before reaping, or null
+     * @param expireMillis inactivity after which a user is expired
+     * @param tombstoneMillis time an expired user is kept before it is deleted
+     * @param batchSize largest number of users deleted per tick
+     * @param primary true while this server is the primary and may delete
+     */
+    public Reaper(UserStore store, WriteAheadLog wal, AccessTracker tracker, long expireMillis, long tombstoneMillis,
+                  int batchSize, BooleanSupplier primary) {
+        if(expireMillis < 1 || tombstoneMillis < 0 || batchSize < 1)
+            throw new IllegalArgumentException("Expiry must be positive, the tombstone period not negative "
+                    + "and the batch size positive");
+        this.store = store;
+        this.wal = wal;
+        this.tracker = tracker;
+        this.expireMillis = expireMillis;
+        this.tombstoneMillis = tombstoneMillis;
+        this.batchSize = batchSize;
+        this.primary = primary;
+        for(int i = 0; i < SLOTS; i++)
+            slots[i] = new Slot();
+
+        store.setWatcher(this::schedule);
+        for(User usr: store.values())
+            schedule(usr);
+
+        nextTick = System.currentTimeMillis() / TICK_MILLIS;
+        reaper = new Thread(this::reapLoop, "reaper");
+        reaper.setDaemon(true);
+        reaper.start();
+    }
+
+    /**
+     * @param usr a user in the store
+     * @return true if the user has been inactive for the expiry period and is not to be served
+     */
+    public boolean isExpired(User usr) {
+        return System.currentTimeMillis() - usr.getLastActiveTime() >= expireMillis;
+    }
+
+    /**
+     * Stops the reaper thread, leaving the users it had not got to for the next start
+     */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(reaper);
+        try {
+            reaper.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return users on the wheel, including some the store no longer holds that have not come round yet
+     */
+    public long getScheduled() {
+        return scheduled.get();
+    }
+
+    /**
+     * @return users due to be deleted and waiting for a batch
+     */
+    public long getBacklog() {
+        return backlog;
+    }
+
+    /**
+     * @return users deleted since start
+     */
+    public long getReaped() {
+        return reaped.sum();
+    }
+
+    /**
+     * @return users deleted over the last minute
+     */
+    public long getReapedLastMinute() {
+        return reapedLastMinute;
+    }
+
+    /**
+     * @return mean time taken to delete a batch and make it durable, in microseconds
+     */
+    public long getMeanBatchMicros() {
+        long n = batches.sum();
+        return n == 0 ? 0 : reapNanos.sum() / n / 1000;
+    }
+
+    // Called from whichever thread puts the user into the store, under its stripe lock
+    private void schedule(User usr) {
+        long deadline = usr.getLastActiveTime() + expireMillis + tombstoneMillis;
+        // The first tick at or after the deadline, so the user is due when it comes round, and
+        // the next tick for a user already due, since the wheel has passed its slot
+        long tick = Math.max((deadline + TICK_MILLIS - 1) / TICK_MILLIS, System.currentTimeMillis() / TICK_MILLIS + 1);
+        place(tick, usr);
+    }
+
+    private void place(long tick, User usr) {
+        slots[slotOf(tick)].add(usr);
+        scheduled.incrementAndGet();
+    }
+
+    private static int slotOf(long tick) {
+        return (int) tick & (SLOTS - 1);
+    }
+
+    private void reapLoop() {
+        long tickNanos = TICK_MILLIS * 1000000;
+        while(!closed) {
+            LockSupport.parkNanos(this, tickNanos);
+            if(closed)
+                break;
+            try {
+                tick();
+            } catch (RuntimeException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Turns the wheel up to now, then deletes a batch of the users due
+     */
+    private void tick() {
+        long now = System.currentTimeMillis();
+        long current = now / TICK_MILLIS;
+        // After a long pause every slot is visited once rather than several times
+        if(current - nextTick >= SLOTS)
+            nextTick = current - SLOTS + 1;
+        boolean reaping = primary.getAsBoolean();
+        for(; nextTick <= current; nextTick++)
+            turn(nextTick, now, reaping);
+
+        long count = reaping ? reap() : 0;
+        reapedPerTick[(int) (current % RATE_TICKS)] = count;
+        reapedLastMinute = Arrays.stream(reapedPerTick).sum();
+        backlog = due.size();
+    }
+
+    /**
+     * Empties a slot, queueing the users due and putting the rest back where they now belong
+     */
+    private void turn(long tick, long now, boolean reaping) {
+        Slot slot = slots[slotOf(tick)];
+        User[] users;
+        int size;
+        synchronized(slot) {
+            users = slot.users;
+            size = slot.size;
+            slot.users = Slot.EMPTY;
+            slot.size = 0;
+        }
+        scheduled.addAndGet(-size);
+
+        for(int i = 0; i < size; i++) {
+            User usr = users[i];
+            // Deleted, or replaced by a renamed or rehashed copy the wheel has been given as well
+            if(store.get(usr.getLoginName()) != usr)
+                continue;
+            long deadline = usr.getLastActiveTime() + expireMillis + tombstoneMillis;
+            if(deadline > now)
+                schedule(usr);
+            else if(reaping)
+                due.add(usr);
+            else
+                // Looked at again a turn later, in case this server has become the primary
+                place(tick, usr);
+        }
+    }
+
+    /**
+     * Deletes up to a batch of the users due and makes the deletes durable
+     *
+     * @return users deleted
+     */
+    private long reap() {
+        if(due.isEmpty())
+            return 0;
+
+        long start = System.nanoTime();
+        // Lookups not folded in yet could have kept some of them
+        if(tracker != null)
+            tracker.flush();
+        List<User> batch = new ArrayList<>(Math.min(batchSize, due.size()));
+        while(batch.size() < batchSize && !due.isEmpty())
+            batch.add(due.poll());
+
+        long activeBefore = System.currentTimeMillis() - expireMillis - tombstoneMillis;
+        boolean[] removed = store.expireAll(batch, activeBefore);
+        long count = 0;
+        for(int i = 0; i < removed.length; i++) {
+            User usr = batch.get(i);
+            if(removed[i])
+                count++;
+            else if(store.get(usr.getLoginName()) == usr)
+                schedule(usr);
+        }
+
+        if(count > 0) {
+            try {
+                wal.commit();
+            } catch (IOException e) {
+                // The deletes are applied and logged; the next commit or fsync makes them durable
+                e.printStackTrace();
+            }
+        }
+        reaped.add(count);
+        reapNanos.add(System.nanoTime() - start);
+        batches.increment();
+
+        return count;
+    }
+
+    /**
+     * The users in one slot of the wheel, appended to by any thread
+     */
+    private static class Slot {
+        private static final User[] EMPTY = new User[0];
+
+        private User[] users = EMPTY;
+        private int size;
+
+        synchronized void add(User usr) {
+            if(size == users.length)
+                users = Arrays.copyOf(users, Math.max(16, size * 2));
+            users[size++] = usr;
+        }
+    }
+}
@@ -0,0 +1,208 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.stream.IntStream;
+
+/**
+ * Recovers the registry on start-up: loads the latest snapshot into the store one segment at a
+ * time, decoding and indexing segments in parallel, then replays the write-ahead log written after
+ * it and builds the search index.
+ *
+ * Lookups may be answered while this runs. The login names the log changes after the snapshot are
+ * read from the log first; every other user ends up exactly as the snapshot has it, so a lookup of
+ * another name can be answered from the store as soon as the segment that would hold it is loaded,
+ * and has that segment loaded ahead of the rest if need be. Lookups of the names the log changes,
+ * and reverse lookups of users not loaded yet, wait for recovery to finish.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class Recovery {
+    private final File dir;
+    private final File snapshotFile;
+    private final File legacyFile;
+    private final UserStore store;
+    private final AtomicInteger segmentsLoaded = new AtomicInteger();
+    private final AtomicInteger loadedOnDemand = new AtomicInteger();
+
+    // Set before reader is published and not changed after
+    private Set<String> changed = Collections.emptySet();
+    private AtomicReferenceArray<CompletableFuture<Void>> segments;
+    private volatile Snapshot.Reader reader;
+    // Every segment is in the store
+    private volatile boolean loaded;
+    // The log has been replayed as well
+    private volatile boolean done;
+
+    /**
+     * @param dir directory holding the log segments
+     * @param snapshotFile the latest snapshot, if it exists
+     * @param legacyFile a registry.backup from older versions of the server, read if there is no snapshot
+     * @param store an empty store to recover into
+     */
+    public Recovery(File dir, File snapshotFile, File legacyFile, UserStore store) {
+        this.dir = dir;
+        this.snapshotFile = snapshotFile;
+        this.legacyFile = legacyFile;
+        this.store = store;
+    }
+
+    /**
+     * Loads the latest snapshot, falling back to a legacy registry.backup, then replays the log
+     * written since that snapshot
+     *
+     * @return the last LSN recovered
+     * @throws IOException if the snapshot or the log cannot be read
+     * @throws ClassNotFoundException if a legacy backup cannot be deserialized
+     */
+    public long run() throws IOException, ClassNotFoundException {
+        Snapshot.Reader source;
+        if(snapshotFile.exists())
+            source = Snapshot.Reader.open(snapshotFile);
+        else if(legacyFile.exists())
+            source = Snapshot.Reader.of(Snapshot.readLegacy(legacyFile));
+        else
+            source = Snapshot.Reader.of(new Snapshot(0, Collections.<User>emptyList()));
+
+        try {
+            // A first pass over the log for the names it changes, which is short since the log
+            // only holds what was written after the last snapshot
+            Set<String> names = new HashSet<>();
+            WriteAheadLog.replay(dir, source.getLsn(), new Journal() {
+                @Override
+                public void logCreate(User user) {
+                    names.add(user.getLoginName());
+                }
+
+                @Override
+                public void logRename(String oldLoginName, String newLoginName, Date lastChangeDate) {
+                    names.add(oldLoginName);
+                    names.add(newLoginName);
+                }
+
+                @Override
+                public void logDelete(String loginName) {
+                    names.add(loginName);
+                }
+
+                @Override
+                public void logRehash(String loginName, byte[] passwordHash) {
+                    names.add(loginName);
+                }
+            });
+            changed = names;
+            segments = new AtomicReferenceArray<>(source.getSegmentCount());
+            store.beginLoad((int) source.getUserCount());
+            reader = source;
+
+            try {
+                IntStream.range(0, source.getSegmentCount()).parallel().forEach(this::load);
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            loaded = true;
+
+            long lsn = WriteAheadLog.replay(dir, source.getLsn(), store.replayer());
+            store.finishLoad();
+            done = true;
+
+            return lsn;
+        } finally {
+            source.close();
+        }
+    }
+
+    /**
+     * Readies the store to answer a lookup of a login name before recovery is done, loading the
+     * segment of the snapshot that holds it if need be
+     *
+     * @param loginName the login name
+     * @return true if the store already holds whatever recovery will leave under the name, false
+     * if the lookup has to wait for recovery
+     */
+    public boolean prepare(String loginName) {
+        if(done)
+            return true;
+        Snapshot.Reader source = reader;
+        if(source == null || changed.contains(loginName))
+            return false;
+        if(loaded)
+            return true;
+
+        int segment = source.segmentOf(loginName);
+        // A legacy backup is in no order, so only a user already loaded can be found
+        if(segment < 0)
+            return store.get(loginName) != null;
+        if(load(segment))
+            loadedOnDemand.incrementAndGet();
+
+        return true;
+    }
+
+    /**
+     * @param found the user a reverse lookup found in the store, or null
+     * @return true if recovery will leave the user as it is, false if the reverse lookup has to
+     * wait for recovery
+     */
+    public boolean prepare(User found) {
+        if(done)
+            return true;
+
+        return found != null && reader != null && !changed.contains(found.getLoginName());
+    }
+
+    /**
+     * @return true once every user is loaded and the log is replayed
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    public int getSegmentsLoaded() {
+        return segmentsLoaded.get();
+    }
+
+    /**
+     * @return segments loaded ahead of their turn for a lookup
+     */
+    public int getLoadedOnDemand() {
+        return loadedOnDemand.get();
+    }
+
+    /**
+     * Loads a segment into the store unless another thread has, waiting for it if that thread is
+     * still loading it
+     *
+     * @return true if this call loaded it
+     */
+    private boolean load(int segment) {
+        CompletableFuture<Void> claim = new CompletableFuture<>();
+        if(!segments.compareAndSet(segment, null, claim)) {
+            try {
+                segments.get(segment).join();
+            } catch (CompletionException e) {
+                throw (RuntimeException) e.getCause();
+            }
+            return false;
+        }
+
+        try {
+            store.load(reader.readSegment(segment));
+            segmentsLoaded.incrementAndGet();
+            claim.complete(null);
+        } catch (RuntimeException e) {
+            claim.completeExceptionally(e);
+            throw e;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,273 @@
+import java.rmi.ConnectException;
+import java.rmi.ConnectIOException;
+import java.rmi.NoSuchObjectException;
+import java.rmi.NotBoundException;
+import java.rmi.RemoteException;
+import java.rmi.UnknownHostException;
+import java.rmi.registry.LocateRegistry;
+import java.rmi.registry.Registry;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Client-side view of a primary and its read replicas as a single Queries.
+ *
+ * Reads go to one server picked at random when the client starts, so reads from many clients are
+ * spread across the cluster, and move on to the next server if that one cannot be reached. Writes
+ * go to the primary. A server that replies NOT_PRIMARY or cannot be reached is skipped for the
+ * next one, and the client keeps cycling through the list for a while so a replica has time to
+ * take over from a dead primary, or a restarted server has time to come back. Each stub is looked
+ * up once and kept until a call on it fails. Passes through the list are spaced out by a growing,
+ * randomized delay (see backoff), so many clients retrying at once do not arrive together.
+ *
+ * A write is only retried elsewhere when the request never reached the server, so it is never
+ * applied twice. Replicas apply writes shortly after the primary, so a read straight after a
+ * write may not see it yet.
+ *
+ * The Peer calls used to move users between shards are sent to the primary like writes, so users
+ * being moved are never copied from a lagging replica. They need the cluster's peer key.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class ReplicatedQueries implements Queries {
+    private static final long FAILOVER_WAIT = 15000;
+    private static final long FIRST_RETRY_DELAY = 50;
+    private static final long MAX_RETRY_DELAY = 2000;
+
+    private final String[] hosts;
+    private final int[] ports;
+    private final Queries[] stubs;
+    private volatile int reader;
+    private volatile int primary;
+
+    /**
+     * @param servers servers as host or host:port, the primary first
+     * @param defaultPort port used for servers given without one
+     */
+    public ReplicatedQueries(String[] servers, int defaultPort) {
+        hosts = new String[servers.length];
+        ports = new int[servers.length];
+        stubs = new Queries[servers.length];
+        for(int i = 0; i < servers.length; i++) {
+            String[] hostPort = servers[i].trim().split(":");
+            hosts[i] = hostPort[0];
+            ports[i] = hostPort.length > 1 ? Integer.parseInt(hostPort[1]) : defaultPort;
+        }
+        reader = ThreadLocalRandom.current().nextInt(servers.length);
+    }
+
+    @Override
+    public Result<UserInfo> createLogin(String loginName, String realName, String password) throws RemoteException {
+        return write(s -> s.createLogin(loginName, realName, password), r -> r.getStatus());
+    }
+
+    @Override
+    public Result<UserInfo> lookupByLogin(String loginName) throws RemoteException {
+        return read(s -> s.lookupByLogin(loginName));
+    }
+
+    @Override
+    public Result<UserInfo> lookupByUUID(String Uuid) throws RemoteException {
+        return read(s -> s.lookupByUUID(Uuid));
+    }
+
+    @Override
+    public Status modifyName(String oldLoginName, String newLoginName, String password) throws RemoteException {
+        return write(s -> s.modifyName(oldLoginName, newLoginName, password), r -> r);
+    }
+
+    @Override
+    public Status deleteUser(String loginName, String password) throws RemoteException {
+        return write(s -> s.deleteUser(loginName, password), r -> r);
+    }
+
+    @Override
+    public Result<UserInfo[]> getInfo(String type) throws RemoteException {
+        return read(s -> s.getInfo(type));
+    }
+
+    @Override
+    public Result<Page> getInfoPage(String type, String cursor, int pageSize) throws RemoteException {
+        return read(s -> s.getInfoPage(type, cursor, pageSize));
+    }
+
+    @Override
+    public Result<Page> search(String field, String match, String text, String cursor, int pageSize) throws RemoteException {
+        return read(s -> s.search(field, match, text, cursor, pageSize));
+    }
+
+    @Override
+    public BatchResult createLogins(List<UserRequest> requests) throws RemoteException {
+        return write(s -> s.createLogins(requests), ReplicatedQueries::batchStatus);
+    }
+
+    @Override
+    public BatchResult lookupByLogins(List<String> loginNames) throws RemoteException {
+        return read(s -> s.lookupByLogins(loginNames));
+    }
+
+    @Override
+    public BatchResult lookupByUUIDs(List<String> uuids) throws RemoteException {
+        return read(s -> s.lookupByUUIDs(uuids));
+    }
+
+    @Override
+    public BatchResult deleteUsers(List<UserRequest> requests) throws RemoteException {
+        return write(s -> s.deleteUsers(requests), ReplicatedQueries::batchStatus);
+    }
+
+    // Any server will do, since a primary and its replicas share LSNs
+    @Override
+    public Result<Changes> getChanges(String cursor) throws RemoteException {
+        return read(s -> s.getChanges(cursor));
+    }
+
+    @Override
+    public Result<ChangeFeed> getEvents(String cursor, int max) throws RemoteException {
+        return read(s -> s.getEvents(cursor, max));
+    }
+
+    @Override
+    public Result<ServerStats> getStats() throws RemoteException {
+        return read(Queries::getStats);
+    }
+
+    // The servers' stubs implement Peer as well as Queries
+
+    public Result<User[]> exportUsers(String key, List<String> loginNames) throws RemoteException {
+        return write(s -> ((Peer) s).exportUsers(key, loginNames), r -> r.getStatus());
+    }
+
+    public Result<User> exportUser(String key, String loginName, String password) throws RemoteException {
+        return write(s -> ((Peer) s).exportUser(key, loginName, password), r -> r.getStatus());
+    }
+
+    public BatchResult importUsers(String key, List<User> users) throws RemoteException {
+        return write(s -> ((Peer) s).importUsers(key, users), ReplicatedQueries::batchStatus);
+    }
+
+    public BatchResult dropUsers(String key, List<User> users) throws RemoteException {
+        return write(s -> ((Peer) s).dropUsers(key, users), ReplicatedQueries::batchStatus);
+    }
+
+    /**
+     * Returns how long to wait before retrying: doubling from FIRST_RETRY_DELAY with each retry
+     * up to MAX_RETRY_DELAY, and picked at random from the upper half of that
+     *
+     * @param retry number of retries made so far
+     * @return the delay in milliseconds
+     */
+    public static long backoff(int retry) {
+        long delay = Math.min(MAX_RETRY_DELAY, FIRST_RETRY_DELAY << Math.min(retry, 16));
+        return delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1);
+    }
+
+    /**
+     * Runs a read on the current read server, moving on to the others in turn if it fails, and
+     * going round again while none of them can be reached
+     */
+    private <T> T read(Call<T> call) throws RemoteException {
+        long deadline = System.currentTimeMillis() + FAILOVER_WAIT;
+        for(int retry = 0; ; retry++) {
+            RemoteException failure = null;
+            boolean unreachable = true;
+            for(int attempt = 0; attempt < hosts.length; attempt++) {
+                int server = (reader + attempt) % hosts.length;
+                try {
+                    T reply = call.on(stub(server));
+                    reader = server;
+                    return reply;
+                } catch (RemoteException e) {
+                    drop(server);
+                    failure = e;
+                    unreachable &= neverArrived(e);
+                }
+            }
+
+            if(!unreachable || System.currentTimeMillis() >= deadline)
+                throw failure;
+            pause(retry);
+        }
+    }
+
+    /**
+     * Runs a write on the primary, looking for a new one while servers are unreachable or reply
+     * NOT_PRIMARY
+     */
+    private <T> T write(Call<T> call, StatusOf<T> statusOf) throws RemoteException {
+        long deadline = System.currentTimeMillis() + FAILOVER_WAIT;
+        for(int retry = 0; ; retry++) {
+            T refused = null;
+            RemoteException failure = null;
+            for(int attempt = 0; attempt < hosts.length; attempt++) {
+                int server = (primary + attempt) % hosts.length;
+                try {
+                    T reply = call.on(stub(server));
+                    if(statusOf.status(reply) != Status.NOT_PRIMARY) {
+                        primary = server;
+                        return reply;
+                    }
+                    refused = reply;
+                } catch (RemoteException e) {
+                    if(!neverArrived(e))
+                        throw e;
+                    drop(server);
+                    failure = e;
+                }
+            }
+
+            if(System.currentTimeMillis() >= deadline) {
+                if(refused != null)
+                    return refused;
+                throw failure;
+            }
+            pause(retry);
+        }
+    }
+
+    private static void pause(int retry) throws RemoteException {
+        try {
+            Thread.sleep(backoff(retry));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting to retry");
+        }
+    }
+
+    private synchronized Queries stub(int server) throws RemoteException {
+        if(stubs[server] == null) {
+            try {
+                Registry registry = LocateRegistry.getRegistry(hosts[server], ports[server]);
+                stubs[server] = (Queries) registry.lookup("//" + hosts[server] + ":" + ports[server] + "/IdServer");
+            } catch (NotBoundException e) {
+                throw new ConnectException("No IdServer bound at " + hosts[server] + ":" + ports[server]);
+            }
+        }
+
+        return stubs[server];
+    }
+
+    private synchronized void drop(int server) {
+        stubs[server] = null;
+    }
+
+    // Failures that mean the request was never delivered, so it is safe to send it elsewhere
+    private static boolean neverArrived(RemoteException e) {
+        return e instanceof ConnectException || e instanceof ConnectIOException
+                || e instanceof NoSuchObjectException || e instanceof UnknownHostException;
+    }
+
+    private static Status batchStatus(BatchResult result) {
+        return result.size() > 0 ? result.getStatus(0) : Status.OK;
+    }
+
+    private interface Call<T> {
+        T on(Queries server) throws RemoteException;
+    }
+
+    private interface StatusOf<T> {
+        Status status(T reply);
+    }
+}
@@ -0,0 +1,309 @@
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * Runs IdServer requests on bounded worker pools instead of directly on RMI's connection threads.
+ *
+ * Requests are split into lanes so a burst of one kind cannot starve the others: cheap lookups,
+ * mutations (which wait on the write-ahead log), scans such as getInfo, and long polls that wait
+ * for the next log record (the change feeds and replication). Each lane has its own workers and
+ * its own queue limit. Password hashing, which is deliberately slow, has a lane of its
+ * own that mutations hand their hashing to, so a flood of password checks only queues behind
+ * itself. A batch hands over one hash per item (see callEach) rather than the whole batch as one
+ * task. When a lane's queue is full the request is shed straight away with a caller-supplied
+ * "busy" reply rather than queueing without bound.
+ *
+ * Lanes run on fixed platform thread pools by default. On a JDK with virtual threads they can use
+ * a virtual thread per request instead, with the same worker and queue limits enforced by
+ * semaphores.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class RequestExecutor {
+
+    public enum Lane {
+        LOOKUP,
+        MUTATION,
+        SCAN,
+        CREDENTIAL,
+        FOLLOW
+    }
+
+    private final LaneExecutor[] lanes = new LaneExecutor[Lane.values().length];
+
+    /**
+     * @param workers concurrent requests per lane for lookups, mutations and long polls
+     * @param queueLimit requests allowed to wait per lane for lookups, mutations and long polls
+     * @param scanWorkers concurrent requests in the scan lane
+     * @param scanQueueLimit requests allowed to wait in the scan lane
+     * @param hashWorkers concurrent password hashes in the credential lane
+     * @param hashQueueLimit password hashes allowed to wait in the credential lane
+     * @param virtualThreads use a virtual thread per request if the JDK supports it
+     */
+    public RequestExecutor(int workers, int queueLimit, int scanWorkers, int scanQueueLimit,
+                           int hashWorkers, int hashQueueLimit, boolean virtualThreads) {
+        this(workers, queueLimit, scanWorkers, scanQueueLimit, hashWorkers, hashQueueLimit,
+                virtualThreads ? LaneExecutor::newVirtualThreadExecutor : () -> null);
+    }
+
+    /**
+     * @param unbounded makes the unbounded executor a lane runs on with semaphore limits, or
+     *                  returns null to give the lane a fixed platform thread pool instead
+     */
+    RequestExecutor(int workers, int queueLimit, int scanWorkers, int scanQueueLimit,
+                    int hashWorkers, int hashQueueLimit, Supplier<ExecutorService> unbounded) {
+        lanes[Lane.LOOKUP.ordinal()] = new LaneExecutor("lookup", workers, queueLimit, unbounded.get());
+        lanes[Lane.MUTATION.ordinal()] = new LaneExecutor("mutation", workers, queueLimit, unbounded.get());
+        lanes[Lane.SCAN.ordinal()] = new LaneExecutor("scan", scanWorkers, scanQueueLimit, unbounded.get());
+        lanes[Lane.CREDENTIAL.ordinal()] = new LaneExecutor("credential", hashWorkers, hashQueueLimit, unbounded.get());
+        lanes[Lane.FOLLOW.ordinal()] = new LaneExecutor("follow", workers, queueLimit, unbounded.get());
+    }
+
+    /**
+     * Runs a request on its lane and waits for the reply
+     *
+     * @param lane lane the request belongs to
+     * @param request the request
+     * @param busy reply to return if the lane is full
+     * @return the request's reply, or busy if it was shed
+     * @throws RemoteException if the request itself threw one
+     */
+    public <T> T call(Lane lane, Callable<T> request, T busy) throws RemoteException {
+        return await(lanes[lane.ordinal()].submit(request), busy);
+    }
+
+    /**
+     * Runs each item of a batch on a lane as a request of its own and waits for every reply, so
+     * the items spread over the lane's workers and queue in turn with other requests. At most as
+     * many items as the lane has workers are waiting or running at once, so a large batch never
+     * fills the queue by itself.
+     *
+     * @param lane lane the items belong to
+     * @param items one request per item
+     * @param busy reply for an item shed because the lane was full
+     * @return each item's reply, in order
+     * @throws RemoteException if an item threw one
+     */
+    public <T> List<T> callEach(Lane lane, List<Callable<T>> items, T busy) throws RemoteException {
+        LaneExecutor executor = lanes[lane.ordinal()];
+        List<Future<T>> futures = new ArrayList<>(items.size());
+        List<T> replies = new ArrayList<>(items.size());
+        try {
+            for(Callable<T> item: items) {
+                if(futures.size() - replies.size() >= executor.workers)
+                    replies.add(await(futures.get(replies.size()), busy));
+                futures.add(executor.submit(item));
+            }
+            while(replies.size() < futures.size())
+                replies.add(await(futures.get(replies.size()), busy));
+        } finally {
+            // Items not waited for because one failed are not run for nothing
+            for(int i = replies.size(); i < futures.size(); i++) {
+                if(futures.get(i) != null)
+                    futures.get(i).cancel(true);
+            }
+        }
+
+        return replies;
+    }
+
+    private static <T> T await(Future<T> future, T busy) throws RemoteException {
+        if(future == null)
+            return busy;
+
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new RemoteException("Interrupted while waiting for request");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if(cause instanceof RemoteException)
+                throw (RemoteException) cause;
+            if(cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            if(cause instanceof Error)
+                throw (Error) cause;
+            throw new RemoteException("Request failed", cause);
+        }
+    }
+
+    /**
+     * @return requests currently waiting for a worker in the given lane
+     */
+    public int getQueued(Lane lane) {
+        return lanes[lane.ordinal()].queued.get();
+    }
+
+    /**
+     * @return requests currently running in the given lane
+     */
+    public int getActive(Lane lane) {
+        return lanes[lane.ordinal()].active.get();
+    }
+
+    /**
+     * @return requests shed in the given lane because it was full
+     */
+    public long getRejected(Lane lane) {
+        return lanes[lane.ordinal()].rejected.sum();
+    }
+
+    /**
+     * @return requests completed in the given lane
+     */
+    public long getCompleted(Lane lane) {
+        return lanes[lane.ordinal()].completed.sum();
+    }
+
+    /**
+     * @return whether the lanes ended up on virtual threads
+     */
+    public boolean usesVirtualThreads() {
+        return lanes[0].virtual;
+    }
+
+    public void shutdown() {
+        for(LaneExecutor lane: lanes)
+            lane.pool.shutdown();
+    }
+
+    /**
+     * One lane: an executor plus admission control and counters
+     */
+    private static class LaneExecutor {
+        private final ExecutorService pool;
+        private final int workers;
+        private final boolean virtual;
+        // Only used with virtual threads, where the executor itself is unbounded
+        private final Semaphore admitted;
+        private final Semaphore running;
+
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicInteger active = new AtomicInteger();
+        private final LongAdder rejected = new LongAdder();
+        private final LongAdder completed = new LongAdder();
+
+        LaneExecutor(String name, int workers, int queueLimit, ExecutorService unbounded) {
+            this.workers = workers;
+            if(unbounded != null) {
+                pool = unbounded;
+                virtual = true;
+                admitted = new Semaphore(workers + queueLimit);
+                running = new Semaphore(workers);
+            } else {
+                AtomicInteger count = new AtomicInteger();
+                pool = new ThreadPoolExecutor(workers, workers, 0, TimeUnit.MILLISECONDS,
+                        new ArrayBlockingQueue<Runnable>(Math.max(1, queueLimit)), r -> {
+                            Thread t = new Thread(r, name + "-worker-" + count.incrementAndGet());
+                            t.setDaemon(true);
+                            return t;
+                        }, new ThreadPoolExecutor.AbortPolicy());
+                virtual = false;
+                admitted = null;
+                running = null;
+            }
+        }
+
+        /**
+         * @return the pending reply, or null if the lane is full
+         */
+        <T> Future<T> submit(Callable<T> request) {
+            if(admitted != null && !admitted.tryAcquire()) {
+                rejected.increment();
+                return null;
+            }
+
+            queued.incrementAndGet();
+            try {
+                LaneTask<T> task = new LaneTask<>(request);
+                pool.execute(task);
+                return task;
+            } catch (RejectedExecutionException e) {
+                queued.decrementAndGet();
+                rejected.increment();
+                if(admitted != null)
+                    admitted.release();
+                return null;
+            }
+        }
+
+        /**
+         * A request waiting for or running on the lane. Whichever comes first of the request
+         * starting and the task being cancelled takes it out of the queue, so a request cancelled
+         * before it started (callEach and await cancel the ones no longer waited for) still gives
+         * back its place.
+         */
+        private class LaneTask<T> extends FutureTask<T> {
+            private final AtomicBoolean started;
+
+            LaneTask(Callable<T> request) {
+                this(request, new AtomicBoolean());
+            }
+
+            private LaneTask(Callable<T> request, AtomicBoolean started) {
+                super(() -> {
+                    if(!started.compareAndSet(false, true))
+                        return null;
+                    if(running != null) {
+                        try {
+                            running.acquire();
+                        } catch (InterruptedException e) {
+                            queued.decrementAndGet();
+                            admitted.release();
+                            throw e;
+                        }
+                    }
+                    queued.decrementAndGet();
+                    active.incrementAndGet();
+                    try {
+                        return request.call();
+                    } finally {
+                        active.decrementAndGet();
+                        completed.increment();
+                        if(running != null) {
+                            running.release();
+                            admitted.release();
+                        }
+                    }
+                });
+                this.started = started;
+            }
+
+            @Override
+            protected void done() {
+                if(!started.compareAndSet(false, true))
+                    return;
+
+                queued.decrementAndGet();
+                if(admitted != null)
+                    admitted.release();
+                else
+                    ((ThreadPoolExecutor) pool).remove(this);
+            }
+        }
+
+        /**
+         * Looks up Executors.newVirtualThreadPerTaskExecutor reflectively so the server still builds
+         * and runs on JDKs without virtual threads
+         *
+         * @return a virtual thread executor, or null if this JDK has none
+         */
+        private static ExecutorService newVirtualThreadExecutor() {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException | UnsupportedOperationException e) {
+                return null;
+            }
+        }
+    }
+}
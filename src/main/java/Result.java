@@ -0,0 +1,39 @@
+import java.io.Serializable;
+
+/**
+ * Outcome of a query: a status code and, when the status is OK, the value asked for.
+ *
+ * Expected failures such as an unknown login name come back as a Result rather than a
+ * RemoteException, so they cost no more than a successful reply.
+ */
+public class Result<T extends Serializable> implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final Status status;
+    private final T value;
+
+    private Result(Status status, T value) {
+        this.status = status;
+        this.value = value;
+    }
+
+    public static <T extends Serializable> Result<T> ok(T value) {
+        return new Result<>(Status.OK, value);
+    }
+
+    public static <T extends Serializable> Result<T> of(Status status) {
+        return new Result<>(status, null);
+    }
+
+    public Status getStatus() {
+        return status;
+    }
+
+    public boolean isOk() {
+        return status == Status.OK;
+    }
+
+    public T getValue() {
+        return value;
+    }
+}
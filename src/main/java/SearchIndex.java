@@ -0,0 +1,326 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Index for finding users by part of a name, kept in step with the UserStore.
+ *
+ * Users are listed under trigrams (every run of three characters) of their login name and real
+ * name, and under the first one, two and three characters of their real name. A search looks up
+ * the lists for its text, takes the shortest, and checks the users on it against the text, so it
+ * reads only the users sharing the rarest part of its text instead of the whole registry. Login
+ * names are matched exactly, as everywhere else, and real names ignoring case. Results come in
+ * login name order.
+ *
+ * A list is an array of references to the users themselves, which searches read without taking a
+ * lock. A user that leaves the store is left in the arrays and skipped by searches, since the
+ * store tells which users are current, and an array is compacted once half of it is left over.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class SearchIndex {
+    // Shortest text a substring search accepts
+    public static final int GRAM = 3;
+
+    // What a key lists users by, in the bits above its characters
+    private static final long LOGIN_GRAM = 0;
+    private static final long REAL_GRAM = 1L << 48;
+    // Plus the length, 1 to GRAM
+    private static final long REAL_PREFIX = 2L << 48;
+
+    private static final Comparator<User> LOGIN_ORDER = Comparator.comparing(User::getLoginName);
+
+    private final Predicate<User> current;
+    private final ConcurrentHashMap<Long, Postings> lists = new ConcurrentHashMap<>();
+
+    /**
+     * @param current tells whether a user is still the one the store holds for its login name
+     */
+    public SearchIndex(Predicate<User> current) {
+        this.current = current;
+    }
+
+    /**
+     * Indexes a user. Callers hold the store's lock for its login name.
+     *
+     * @param user the user
+     */
+    public void add(User user) {
+        for(long key: keysOf(user)) {
+            // Most lists exist already, and get does not lock their bin the way computeIfAbsent does
+            Postings postings = lists.get(key);
+            if(postings == null)
+                postings = lists.computeIfAbsent(key, k -> new Postings());
+            postings.add(user);
+        }
+    }
+
+    /**
+     * Drops a user once the store no longer holds it. Callers hold the store's lock for its
+     * login name.
+     *
+     * @param user the user
+     */
+    public void remove(User user) {
+        for(long key: keysOf(user)) {
+            Postings postings = lists.get(key);
+            if(postings != null)
+                postings.removed(current);
+        }
+    }
+
+    public void clear() {
+        lists.clear();
+    }
+
+    /**
+     * Replaces the whole index with the given users, as after a load. Every list is sized by a
+     * counting pass first, so each is allocated once instead of being grown one user at a time.
+     * Callers keep the store from changing meanwhile.
+     *
+     * @param users the users, all current
+     */
+    public void rebuild(Collection<User> users) {
+        HashMap<Long, Postings> built = new HashMap<>();
+        for(User usr: users) {
+            for(long key: keysOf(usr)) {
+                Postings postings = built.get(key);
+                if(postings == null) {
+                    postings = new Postings();
+                    built.put(key, postings);
+                }
+                postings.size++;
+            }
+        }
+        for(Postings postings: built.values()) {
+            postings.refs = new User[postings.size];
+            postings.size = 0;
+        }
+        for(User usr: users) {
+            for(long key: keysOf(usr)) {
+                Postings postings = built.get(key);
+                postings.refs[postings.size++] = usr;
+            }
+        }
+
+        lists.clear();
+        lists.putAll(built);
+    }
+
+    /**
+     * Returns the next page of users whose real name starts with a prefix, ignoring case
+     *
+     * @param prefix start of the real name, not empty
+     * @param after login name the previous page ended with, or null to start from the beginning
+     * @param limit largest number of users to return
+     * @return up to limit users whose login names sort after the given one, in login name order
+     */
+    public List<User> realNamesStartingWith(String prefix, String after, int limit) {
+        long key = REAL_PREFIX | ((long) Math.min(prefix.length(), GRAM) << 48);
+        for(int i = 0; i < Math.min(prefix.length(), GRAM); i++)
+            key = key | ((long) fold(prefix.charAt(i)) << (16 * (GRAM - 1 - i)));
+
+        return matching(lists.get(mix(key)), usr -> startsWithFolded(usr.getRealName(), prefix), after, limit);
+    }
+
+    /**
+     * Returns the next page of users whose login name or real name contains some text
+     *
+     * @param realName whether to search real names, ignoring case, rather than login names
+     * @param text the text, at least GRAM characters long
+     * @param after login name the previous page ended with, or null to start from the beginning
+     * @param limit largest number of users to return
+     * @return up to limit users whose login names sort after the given one, in login name order
+     */
+    public List<User> containing(boolean realName, String text, String after, int limit) {
+        Postings rarest = null;
+        for(long key: gramsOf(text, realName ? REAL_GRAM : LOGIN_GRAM, realName)) {
+            Postings postings = lists.get(key);
+            if(postings == null)
+                return Collections.emptyList();
+            if(rarest == null || postings.size < rarest.size)
+                rarest = postings;
+        }
+
+        if(realName)
+            return matching(rarest, usr -> containsFolded(usr.getRealName(), text), after, limit);
+        return matching(rarest, usr -> usr.getLoginName().contains(text), after, limit);
+    }
+
+    /**
+     * Picks the current users of a list that match, in login name order
+     *
+     * @param postings the list, or null for none
+     * @param matches checks a user against the search text
+     * @param after login name the previous page ended with, or null to start from the beginning
+     * @param limit largest number of users to return
+     * @return the first limit matches whose login names sort after the given one
+     */
+    private List<User> matching(Postings postings, Predicate<User> matches, String after, int limit) {
+        if(postings == null)
+            return Collections.emptyList();
+
+        // The first limit matches so far, with the last of them at the head
+        PriorityQueue<User> best = new PriorityQueue<>(Math.min(limit, 1024) + 1, LOGIN_ORDER.reversed());
+        // Size before refs, see Postings
+        int size = postings.size;
+        User[] refs = postings.refs;
+        for(int i = 0; i < Math.min(size, refs.length); i++) {
+            User usr = refs[i];
+            if(usr == null)
+                continue;
+            String loginName = usr.getLoginName();
+            if(after != null && loginName.compareTo(after) <= 0)
+                continue;
+            if(best.size() >= limit && loginName.compareTo(best.peek().getLoginName()) >= 0)
+                continue;
+            if(!matches.test(usr) || !current.test(usr))
+                continue;
+            best.add(usr);
+            if(best.size() > limit)
+                best.poll();
+        }
+
+        List<User> page = new ArrayList<>(best);
+        page.sort(LOGIN_ORDER);
+
+        return page;
+    }
+
+    /**
+     * @return every key a user is listed under, each once
+     */
+    private static long[] keysOf(User user) {
+        long[] logins = gramsOf(user.getLoginName(), LOGIN_GRAM, false);
+        String realName = user.getRealName();
+        if(realName == null || realName.isEmpty())
+            return logins;
+
+        long[] reals = gramsOf(realName, REAL_GRAM, true);
+        int prefixes = Math.min(realName.length(), GRAM);
+        long[] keys = Arrays.copyOf(logins, logins.length + reals.length + prefixes);
+        System.arraycopy(reals, 0, keys, logins.length, reals.length);
+        long key = 0;
+        for(int i = 0; i < prefixes; i++) {
+            key = key | ((long) fold(realName.charAt(i)) << (16 * (GRAM - 1 - i)));
+            keys[logins.length + reals.length + i] = mix(REAL_PREFIX | ((long) (i + 1) << 48) | key);
+        }
+
+        return keys;
+    }
+
+    /**
+     * @return the distinct trigrams of a name, packed into longs, tagged with the field and mixed
+     */
+    private static long[] gramsOf(String name, long kind, boolean folded) {
+        if(name.length() < GRAM)
+            return new long[0];
+
+        long[] keys = new long[name.length() - GRAM + 1];
+        for(int i = 0; i < keys.length; i++) {
+            long key = 0;
+            for(int j = 0; j < GRAM; j++) {
+                char c = name.charAt(i + j);
+                key = (key << 16) | (folded ? fold(c) : c);
+            }
+            keys[i] = mix(kind | key);
+        }
+        Arrays.sort(keys);
+        int distinct = 0;
+        for(int i = 0; i < keys.length; i++) {
+            if(i == 0 || keys[i] != keys[i - 1])
+                keys[distinct++] = keys[i];
+        }
+
+        return distinct == keys.length ? keys : Arrays.copyOf(keys, distinct);
+    }
+
+    // Packed trigrams hash badly as Longs, so their bits are spread; the mix is invertible, so
+    // distinct trigrams keep distinct keys
+    private static long mix(long key) {
+        key ^= key >>> 33;
+        key *= 0xff51afd7ed558ccdL;
+        key ^= key >>> 33;
+
+        return key;
+    }
+
+    // Real names are compared one character at a time through this, in the index and in searches alike
+    private static char fold(char c) {
+        return Character.toLowerCase(c);
+    }
+
+    private static boolean startsWithFolded(String name, String prefix) {
+        if(name.length() < prefix.length())
+            return false;
+        for(int i = 0; i < prefix.length(); i++) {
+            if(fold(name.charAt(i)) != fold(prefix.charAt(i)))
+                return false;
+        }
+
+        return true;
+    }
+
+    private static boolean containsFolded(String name, String text) {
+        for(int start = 0; start + text.length() <= name.length(); start++) {
+            int i = 0;
+            while(i < text.length() && fold(name.charAt(start + i)) == fold(text.charAt(i)))
+                i++;
+            if(i == text.length())
+                return true;
+        }
+
+        return false;
+    }
+
+    /**
+     * The users listed under one key. Appends and compaction are serialized on the list.
+     * Searches read size before refs: a slot is filled in before size is raised past it, and a
+     * compacted array is published before the smaller size, so a search sees every user that was
+     * listed for its whole duration.
+     */
+    private static class Postings {
+        private volatile User[] refs = new User[4];
+        private volatile int size;
+        // Guarded by this
+        private int stale;
+
+        synchronized void add(User user) {
+            User[] slots = refs;
+            if(size == slots.length) {
+                slots = Arrays.copyOf(slots, slots.length * 2);
+                refs = slots;
+            }
+            slots[size] = user;
+            size++;
+        }
+
+        synchronized void removed(Predicate<User> current) {
+            if(++stale * 2 < size)
+                return;
+
+            User[] slots = refs;
+            int kept = 0;
+            User[] compacted = new User[Math.max(4, size - stale + 1)];
+            for(int i = 0; i < size; i++) {
+                if(current.test(slots[i])) {
+                    if(kept == compacted.length)
+                        compacted = Arrays.copyOf(compacted, kept * 2);
+                    compacted[kept++] = slots[i];
+                }
+            }
+            refs = compacted;
+            size = kept;
+            stale = 0;
+        }
+    }
+}
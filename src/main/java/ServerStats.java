@@ -0,0 +1,110 @@
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Point-in-time copy of the server's statistics, as returned by Queries.getStats.
+ *
+ * Holds one row per operation plus named gauges such as the store size and backup timings.
+ * Latencies are in nanoseconds.
+ */
+public class ServerStats implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final List<OperationStats> operations = new ArrayList<>();
+    private final LinkedHashMap<String, Long> gauges = new LinkedHashMap<>();
+
+    public void addOperation(OperationStats stats) {
+        operations.add(stats);
+    }
+
+    public void putGauge(String name, long value) {
+        gauges.put(name, value);
+    }
+
+    public List<OperationStats> getOperations() {
+        return operations;
+    }
+
+    public Map<String, Long> getGauges() {
+        return gauges;
+    }
+
+    /**
+     * Counters and latency percentiles for one operation
+     */
+    public static class OperationStats implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+        private final long count;
+        private final long errors;
+        private final long busy;
+        private final long mean;
+        private final long p50;
+        private final long p90;
+        private final long p99;
+        private final long p999;
+        private final long max;
+
+        public OperationStats(String name, long count, long errors, long busy, long mean,
+                              long p50, long p90, long p99, long p999, long max) {
+            this.name = name;
+            this.count = count;
+            this.errors = errors;
+            this.busy = busy;
+            this.mean = mean;
+            this.p50 = p50;
+            this.p90 = p90;
+            this.p99 = p99;
+            this.p999 = p999;
+            this.max = max;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return requests that failed with an exception; a request answered with a status such as
+         *         NOT_FOUND or BAD_PASSWORD got its reply and is not counted here
+         */
+        public long getErrors() {
+            return errors;
+        }
+
+        public long getBusy() {
+            return busy;
+        }
+
+        public long getMean() {
+            return mean;
+        }
+
+        public long getP50() {
+            return p50;
+        }
+
+        public long getP90() {
+            return p90;
+        }
+
+        public long getP99() {
+            return p99;
+        }
+
+        public long getP999() {
+            return p999;
+        }
+
+        public long getMax() {
+            return max;
+        }
+    }
+}
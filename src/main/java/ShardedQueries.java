@@ -0,0 +1,562 @@
+import java.rmi.RemoteException;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Client-side router that spreads the registry over several IdServer shards as a single Queries.
+ *
+ * Login names are assigned to shards with a consistent hash ring, so adding a shard only moves
+ * the users whose names fall on its part of the ring; rebalance() moves them. Each shard can be
+ * one server or a primary and its replicas ("host:port|host:port"), see ReplicatedQueries.
+ *
+ * A user's UUID says nothing about its shard, so reverse lookups go through a map of UUIDs to
+ * shards filled in as users are created and looked up. A UUID that is not in the map is asked of
+ * every shard at once and remembered. getInfo gathers every shard in parallel, and getInfoPage
+ * and search page through the shards one after another. A rename to a name owned by another shard copies
+ * the user there under the new name and then deletes the old one; the two steps are not atomic,
+ * and a failed delete removes the copy again.
+ *
+ * Moving users between shards goes through the shards' Peer calls, so renames onto another shard
+ * and rebalance() need the cluster's peer key. The old shard checks the password before it hands
+ * the user over.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class ShardedQueries implements Queries {
+    private static final int UUID_MAP_SIZE = 100000;
+
+    private final String[] names;
+    private final ReplicatedQueries[] shards;
+    private final String peerKey;
+    private final HashRing<Integer> ring = new HashRing<>();
+    private final Map<UUID, Integer> uuidShards;
+    private final ExecutorService scatter;
+
+    /**
+     * @param shards each shard as host:port, or a primary and its replicas as host:port|host:port
+     * @param defaultPort port used for servers given without one
+     * @param peerKey the cluster's peer key, or null if users are not to be moved between shards
+     */
+    public ShardedQueries(String[] shards, int defaultPort, String peerKey) {
+        this(namesOf(shards), connect(shards, defaultPort), peerKey);
+    }
+
+    /**
+     * @param names stable name of each shard, which fixes its place on the ring
+     * @param shards the shards, in the same order
+     * @param peerKey the cluster's peer key, or null if users are not to be moved between shards
+     */
+    public ShardedQueries(String[] names, ReplicatedQueries[] shards, String peerKey) {
+        this.names = names;
+        this.shards = shards;
+        this.peerKey = peerKey;
+        for(int i = 0; i < shards.length; i++)
+            ring.add(names[i], i);
+
+        uuidShards = Collections.synchronizedMap(new LinkedHashMap<UUID, Integer>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<UUID, Integer> eldest) {
+                return size() > UUID_MAP_SIZE;
+            }
+        });
+        scatter = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "shard-scatter");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override
+    public Result<UserInfo> createLogin(String loginName, String realName, String password) throws RemoteException {
+        int shard = shardFor(loginName);
+        Result<UserInfo> result = shards[shard].createLogin(loginName, realName, password);
+        remember(result, shard);
+
+        return result;
+    }
+
+    @Override
+    public Result<UserInfo> lookupByLogin(String loginName) throws RemoteException {
+        int shard = shardFor(loginName);
+        Result<UserInfo> result = shards[shard].lookupByLogin(loginName);
+        remember(result, shard);
+
+        return result;
+    }
+
+    @Override
+    public Result<UserInfo> lookupByUUID(String Uuid) throws RemoteException {
+        UUID uuid;
+        try {
+            uuid = UUID.fromString(Uuid);
+        } catch (IllegalArgumentException e) {
+            return Result.of(Status.NOT_FOUND);
+        }
+
+        Integer known = uuidShards.get(uuid);
+        if(known != null) {
+            Result<UserInfo> result = shards[known].lookupByUUID(Uuid);
+            if(result.getStatus() != Status.NOT_FOUND)
+                return result;
+            uuidShards.remove(uuid);
+        }
+
+        List<Result<UserInfo>> results = scatter(allShards(), shard -> shards[shard].lookupByUUID(Uuid));
+        Result<UserInfo> answer = Result.of(Status.NOT_FOUND);
+        for(int shard = 0; shard < results.size(); shard++) {
+            Result<UserInfo> result = results.get(shard);
+            if(result.isOk()) {
+                uuidShards.put(uuid, shard);
+                return result;
+            }
+            if(result.getStatus() != Status.NOT_FOUND)
+                answer = result;
+        }
+
+        return answer;
+    }
+
+    @Override
+    public Status modifyName(String oldLoginName, String newLoginName, String password) throws RemoteException {
+        int from = shardFor(oldLoginName);
+        int to = shardFor(newLoginName);
+        if(from == to)
+            return shards[from].modifyName(oldLoginName, newLoginName, password);
+
+        requirePeerKey("Renaming onto another shard");
+        // The old shard checks the password, upgrading an outdated hash as a rename would
+        Result<User> exported = shards[from].exportUser(peerKey, oldLoginName, password);
+        if(!exported.isOk())
+            return exported.getStatus();
+        User ud = exported.getValue();
+
+        User moved = new User(ud, newLoginName, new Date());
+        List<User> copy = Collections.singletonList(moved);
+        Status copied = shards[to].importUsers(peerKey, copy).getStatus(0);
+        if(copied != Status.OK)
+            return copied;
+
+        Status deleted = shards[from].deleteUser(oldLoginName, password);
+        if(deleted == Status.OK)
+            uuidShards.put(ud.getUUID(), to);
+        else
+            shards[to].dropUsers(peerKey, copy);
+
+        return deleted;
+    }
+
+    @Override
+    public Status deleteUser(String loginName, String password) throws RemoteException {
+        return shards[shardFor(loginName)].deleteUser(loginName, password);
+    }
+
+    @Override
+    public Result<UserInfo[]> getInfo(String type) throws RemoteException {
+        List<Result<UserInfo[]>> results = scatter(allShards(), shard -> shards[shard].getInfo(type));
+        List<UserInfo> users = new ArrayList<>();
+        for(Result<UserInfo[]> result: results) {
+            if(!result.isOk())
+                return result;
+            users.addAll(Arrays.asList(result.getValue()));
+        }
+
+        return Result.ok(users.toArray(new UserInfo[0]));
+    }
+
+    // Cursors are "<shard>" to start on a shard, or "<shard>/<cursor within that shard>"
+    @Override
+    public Result<Page> getInfoPage(String type, String cursor, int pageSize) throws RemoteException {
+        return pageThrough(cursor, (shard, within) -> shards[shard].getInfoPage(type, within, pageSize));
+    }
+
+    @Override
+    public Result<Page> search(String field, String match, String text, String cursor, int pageSize) throws RemoteException {
+        return pageThrough(cursor, (shard, within) -> shards[shard].search(field, match, text, within, pageSize));
+    }
+
+    /**
+     * Pages through each shard in turn. The cursor is the shard, followed by "/" and the shard's
+     * own cursor once its first page has been fetched.
+     *
+     * @param cursor cursor of the previous page, or null to start with the first shard
+     * @param call fetches a page from a shard, given the shard's own cursor
+     * @return the page, with a cursor that continues on the next shard once a shard is done
+     * @throws RemoteException if a shard could not be reached
+     */
+    private Result<Page> pageThrough(String cursor, ShardCall<String, Result<Page>> call) throws RemoteException {
+        int shard = 0;
+        String within = null;
+        if(cursor != null) {
+            int slash = cursor.indexOf('/');
+            try {
+                shard = Integer.parseInt(slash < 0 ? cursor : cursor.substring(0, slash));
+            } catch (NumberFormatException e) {
+                return Result.of(Status.INVALID_REQUEST);
+            }
+            if(shard < 0 || shard >= shards.length)
+                return Result.of(Status.INVALID_REQUEST);
+            within = slash < 0 ? null : cursor.substring(slash + 1);
+        }
+
+        Result<Page> result = call.on(shard, within);
+        if(!result.isOk())
+            return result;
+        Page page = result.getValue();
+
+        String next;
+        if(!page.isLast())
+            next = shard + "/" + page.getNextCursor();
+        else if(shard + 1 < shards.length)
+            next = String.valueOf(shard + 1);
+        else
+            next = null;
+
+        return Result.ok(new Page(page.getUsers(), next));
+    }
+
+    @Override
+    public BatchResult createLogins(List<UserRequest> requests) throws RemoteException {
+        BatchResult result = byShard(requests, UserRequest::getLoginName, (shard, part) -> shards[shard].createLogins(part));
+        rememberAll(result, requests, UserRequest::getLoginName);
+
+        return result;
+    }
+
+    @Override
+    public BatchResult lookupByLogins(List<String> loginNames) throws RemoteException {
+        BatchResult result = byShard(loginNames, loginName -> loginName, (shard, part) -> shards[shard].lookupByLogins(part));
+        rememberAll(result, loginNames, loginName -> loginName);
+
+        return result;
+    }
+
+    // Every shard is asked for the whole batch; an item is found if any shard has it
+    @Override
+    public BatchResult lookupByUUIDs(List<String> uuids) throws RemoteException {
+        List<BatchResult> results = scatter(allShards(), shard -> shards[shard].lookupByUUIDs(uuids));
+        BatchResult merged = BatchResult.allOf(uuids.size(), Status.NOT_FOUND);
+        for(int shard = 0; shard < results.size(); shard++) {
+            BatchResult result = results.get(shard);
+            for(int i = 0; i < uuids.size(); i++) {
+                Status status = result.getStatus(i);
+                if(status == Status.OK) {
+                    merged.set(i, status, result.getUser(i));
+                    uuidShards.put(result.getUser(i).getUUID(), shard);
+                } else if(status != Status.NOT_FOUND && merged.getStatus(i) == Status.NOT_FOUND) {
+                    merged.set(i, status, null);
+                }
+            }
+        }
+
+        return merged;
+    }
+
+    @Override
+    public BatchResult deleteUsers(List<UserRequest> requests) throws RemoteException {
+        return byShard(requests, UserRequest::getLoginName, (shard, part) -> shards[shard].deleteUsers(part));
+    }
+
+    // The cursor is every shard's cursor, comma separated
+    @Override
+    public Result<Changes> getChanges(String cursor) throws RemoteException {
+        String[] within = cursor == null ? new String[shards.length] : cursor.split(",", -1);
+        if(within.length != shards.length)
+            return Result.of(Status.INVALID_REQUEST);
+
+        List<Result<Changes>> results = scatter(allShards(), shard -> shards[shard].getChanges(within[shard]));
+        List<String> loginNames = new ArrayList<>();
+        StringBuilder next = new StringBuilder();
+        boolean complete = true;
+        for(int shard = 0; shard < results.size(); shard++) {
+            Result<Changes> result = results.get(shard);
+            if(!result.isOk())
+                return result;
+            Changes changes = result.getValue();
+            loginNames.addAll(Arrays.asList(changes.getLoginNames()));
+            complete &= changes.isComplete();
+            if(shard > 0)
+                next.append(',');
+            next.append(changes.getNextCursor());
+        }
+
+        return Result.ok(new Changes(loginNames.toArray(new String[0]), next.toString(), complete));
+    }
+
+    // The cursor is every shard's cursor, comma separated, and sequence numbers are per shard.
+    // Each shard is asked for its share of max. A consumer that starts over drops what it has
+    // from every shard, so if one shard starts over the others are made to as well.
+    @Override
+    public Result<ChangeFeed> getEvents(String cursor, int max) throws RemoteException {
+        String[] within = cursor == null ? new String[shards.length] : cursor.split(",", -1);
+        if(within.length != shards.length)
+            return Result.of(Status.INVALID_REQUEST);
+
+        int share = Math.max(1, max / shards.length);
+        List<Result<ChangeFeed>> results = scatter(allShards(), shard -> shards[shard].getEvents(within[shard], share));
+        List<Integer> following = new ArrayList<>();
+        for(int shard = 0; shard < results.size(); shard++) {
+            Result<ChangeFeed> result = results.get(shard);
+            if(!result.isOk())
+                return result;
+            if(!result.getValue().isReset())
+                following.add(shard);
+        }
+        boolean reset = following.size() < shards.length;
+        if(reset && !following.isEmpty()) {
+            List<Result<ChangeFeed>> restarted = scatter(following, shard -> shards[shard].getEvents(null, share));
+            for(int i = 0; i < following.size(); i++) {
+                if(!restarted.get(i).isOk())
+                    return restarted.get(i);
+                results.set(following.get(i), restarted.get(i));
+            }
+        }
+
+        List<ChangeEvent> events = new ArrayList<>();
+        StringBuilder next = new StringBuilder();
+        boolean snapshot = false;
+        for(int shard = 0; shard < results.size(); shard++) {
+            ChangeFeed feed = results.get(shard).getValue();
+            events.addAll(Arrays.asList(feed.getEvents()));
+            snapshot |= feed.isSnapshot();
+            if(shard > 0)
+                next.append(',');
+            next.append(feed.getNextCursor());
+        }
+
+        return Result.ok(new ChangeFeed(events.toArray(new ChangeEvent[0]), next.toString(), snapshot, reset));
+    }
+
+    /**
+     * Adds the counters of every shard together. Latency percentiles cannot be combined exactly,
+     * so each is the highest of any shard, an upper bound.
+     */
+    @Override
+    public Result<ServerStats> getStats() throws RemoteException {
+        List<Result<ServerStats>> results = scatter(allShards(), shard -> shards[shard].getStats());
+        Map<String, long[]> operations = new LinkedHashMap<>();
+        Map<String, Long> gauges = new LinkedHashMap<>();
+        for(Result<ServerStats> result: results) {
+            if(!result.isOk())
+                return result;
+            ServerStats stats = result.getValue();
+            for(ServerStats.OperationStats op: stats.getOperations()) {
+                long[] sum = operations.computeIfAbsent(op.getName(), name -> new long[9]);
+                sum[0] += op.getCount();
+                sum[1] += op.getErrors();
+                sum[2] += op.getBusy();
+                sum[3] += op.getMean() * op.getCount();
+                sum[4] = Math.max(sum[4], op.getP50());
+                sum[5] = Math.max(sum[5], op.getP90());
+                sum[6] = Math.max(sum[6], op.getP99());
+                sum[7] = Math.max(sum[7], op.getP999());
+                sum[8] = Math.max(sum[8], op.getMax());
+            }
+            for(Map.Entry<String, Long> gauge: stats.getGauges().entrySet())
+                gauges.merge(gauge.getKey(), gauge.getValue(), Long::sum);
+        }
+
+        ServerStats merged = new ServerStats();
+        for(Map.Entry<String, long[]> op: operations.entrySet()) {
+            long[] s = op.getValue();
+            merged.addOperation(new ServerStats.OperationStats(op.getKey(), s[0], s[1], s[2],
+                    s[0] == 0 ? 0 : s[3] / s[0], s[4], s[5], s[6], s[7], s[8]));
+        }
+        for(Map.Entry<String, Long> gauge: gauges.entrySet())
+            merged.putGauge(gauge.getKey(), gauge.getValue());
+
+        return Result.ok(merged);
+    }
+
+    /**
+     * Moves every user that is on the wrong shard for the current ring to the right one, e.g.
+     * after a shard has been added. Only the users whose names now hash to a different shard move.
+     *
+     * @param batchSize users read and moved per call
+     * @return number of users moved
+     * @throws RemoteException if a shard fails or is busy, or there is no peer key
+     */
+    public int rebalance(int batchSize) throws RemoteException {
+        requirePeerKey("Rebalancing");
+        int moved = 0;
+        for(int shard = 0; shard < shards.length; shard++) {
+            String cursor = null;
+            Page page;
+            do {
+                Result<Page> result = shards[shard].getInfoPage("users", cursor, batchSize);
+                if(!result.isOk())
+                    throw new RemoteException("Shard " + names[shard] + " replied " + result.getStatus());
+                page = result.getValue();
+
+                List<String> misplaced = new ArrayList<>();
+                for(UserInfo user: page.getUsers()) {
+                    if(shardFor(user.getLoginName()) != shard)
+                        misplaced.add(user.getLoginName());
+                }
+                if(!misplaced.isEmpty())
+                    moved += move(shard, misplaced);
+
+                cursor = page.getNextCursor();
+            } while(!page.isLast());
+        }
+
+        return moved;
+    }
+
+    /**
+     * Copies users to the shards that now own them, then deletes the originals that were copied
+     *
+     * @return number of users moved
+     */
+    private int move(int from, List<String> loginNames) throws RemoteException {
+        Result<User[]> exported = shards[from].exportUsers(peerKey, loginNames);
+        if(!exported.isOk())
+            throw new RemoteException("Shard " + names[from] + " replied " + exported.getStatus());
+
+        List<User> users = Arrays.asList(exported.getValue());
+        BatchResult copied = byShard(users, User::getLoginName, (shard, part) -> shards[shard].importUsers(peerKey, part));
+        List<User> originals = new ArrayList<>();
+        for(int i = 0; i < users.size(); i++) {
+            if(copied.getStatus(i) == Status.OK)
+                originals.add(users.get(i));
+        }
+        if(originals.isEmpty())
+            return 0;
+
+        BatchResult deleted = shards[from].dropUsers(peerKey, originals);
+        int moved = 0;
+        for(int i = 0; i < deleted.size(); i++) {
+            if(deleted.getStatus(i) == Status.OK)
+                moved++;
+        }
+
+        return moved;
+    }
+
+    /**
+     * Splits a batch by shard, sends the parts in parallel and puts the replies back in order
+     */
+    private <E> BatchResult byShard(List<E> items, LoginOf<E> loginOf, ShardCall<List<E>, BatchResult> call) throws RemoteException {
+        Map<Integer, List<Integer>> groups = group(items, loginOf);
+        List<Integer> targets = new ArrayList<>(groups.keySet());
+        List<BatchResult> results = scatter(targets, shard -> call.on(shard, part(items, groups.get(shard))));
+
+        BatchResult merged = new BatchResult(items.size());
+        for(int t = 0; t < targets.size(); t++) {
+            List<Integer> indexes = groups.get(targets.get(t));
+            BatchResult result = results.get(t);
+            for(int i = 0; i < indexes.size(); i++)
+                merged.set(indexes.get(i), result.getStatus(i), result.getUser(i));
+        }
+
+        return merged;
+    }
+
+    /**
+     * @return for each shard with items, the positions of its items in order
+     */
+    private <E> Map<Integer, List<Integer>> group(List<E> items, LoginOf<E> loginOf) {
+        Map<Integer, List<Integer>> groups = new TreeMap<>();
+        for(int i = 0; i < items.size(); i++)
+            groups.computeIfAbsent(shardFor(loginOf.of(items.get(i))), shard -> new ArrayList<>()).add(i);
+
+        return groups;
+    }
+
+    private static <E> List<E> part(List<E> items, List<Integer> indexes) {
+        List<E> part = new ArrayList<>(indexes.size());
+        for(int index: indexes)
+            part.add(items.get(index));
+
+        return part;
+    }
+
+    /**
+     * Runs a call on several shards in parallel
+     *
+     * @return the replies, in the order of the given shards
+     */
+    private <R> List<R> scatter(List<Integer> targets, ShardTask<R> task) throws RemoteException {
+        List<Future<R>> futures = new ArrayList<>(targets.size());
+        for(int shard: targets)
+            futures.add(scatter.submit(() -> task.on(shard)));
+
+        List<R> results = new ArrayList<>(targets.size());
+        for(Future<R> future: futures) {
+            try {
+                results.add(future.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RemoteException("Interrupted while waiting for the shards");
+            } catch (ExecutionException e) {
+                if(e.getCause() instanceof RemoteException)
+                    throw (RemoteException) e.getCause();
+                throw new RemoteException("Shard call failed", e.getCause());
+            }
+        }
+
+        return results;
+    }
+
+    private void requirePeerKey(String what) throws RemoteException {
+        if(peerKey == null)
+            throw new RemoteException(what + " needs the cluster's peer key");
+    }
+
+    private List<Integer> allShards() {
+        List<Integer> all = new ArrayList<>(shards.length);
+        for(int i = 0; i < shards.length; i++)
+            all.add(i);
+
+        return all;
+    }
+
+    private int shardFor(String loginName) {
+        return ring.nodeFor(loginName == null ? "" : loginName);
+    }
+
+    private void remember(Result<UserInfo> result, int shard) {
+        if(result.isOk() && result.getValue().getUUID() != null)
+            uuidShards.put(result.getValue().getUUID(), shard);
+    }
+
+    private <E> void rememberAll(BatchResult result, List<E> items, LoginOf<E> loginOf) {
+        for(int i = 0; i < result.size(); i++) {
+            UserInfo user = result.getUser(i);
+            if(result.getStatus(i) == Status.OK && user != null && user.getUUID() != null)
+                uuidShards.put(user.getUUID(), shardFor(loginOf.of(items.get(i))));
+        }
+    }
+
+    private static String[] namesOf(String[] shards) {
+        String[] names = new String[shards.length];
+        for(int i = 0; i < shards.length; i++)
+            names[i] = shards[i].split("\\|")[0].trim();
+
+        return names;
+    }
+
+    private static ReplicatedQueries[] connect(String[] shards, int defaultPort) {
+        ReplicatedQueries[] connected = new ReplicatedQueries[shards.length];
+        for(int i = 0; i < shards.length; i++)
+            connected[i] = new ReplicatedQueries(shards[i].split("\\|"), defaultPort);
+
+        return connected;
+    }
+
+    private interface LoginOf<E> {
+        String of(E item);
+    }
+
+    private interface ShardCall<P, R> {
+        R on(int shard, P part) throws RemoteException;
+    }
+
+    private interface ShardTask<R> {
+        R on(int shard) throws RemoteException;
+    }
+}
@@ -0,0 +1,393 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+/**
+ * A point-in-time copy of every user, tagged with the last write-ahead log LSN it covers.
+ *
+ * Snapshots are written to a temporary file, fsynced and then renamed over the previous one, so a
+ * crash mid-write leaves the last good snapshot in place.
+ *
+ * The file is a compact, versioned binary format rather than Java serialization:
+ *
+ *   header   int magic, int version, long lsn, long user count
+ *   records  int length, then the user (see writeUser), grouped into segments
+ *   table    int segment count, then long offset, int user count and first login name per segment
+ *   trailer  long offset of the table
+ *
+ * Users are written in login name order, so the table tells which segment holds a login name.
+ * Readers memory-map the file and decode segments in parallel (see Reader), and can decode the
+ * segment holding one login name ahead of the rest. The registry.backup files of the original
+ * server, a bare serialized HashMap, are still readable (see readLegacy).
+ *
+ * A snapshot is also how a replica that has fallen too far behind is brought up to date, so it
+ * can be sent over RMI.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class Snapshot implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final int MAGIC = 0x49445342; // "IDSB"
+    private static final int VERSION = 3;
+    private static final int SEGMENT_SIZE = 65536;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+    private static final Comparator<User> BY_LOGIN = Comparator.comparing(User::getLoginName);
+
+    private final long lsn;
+    private final List<User> users;
+
+    public Snapshot(long lsn, List<User> users) {
+        this.lsn = lsn;
+        this.users = users;
+    }
+
+    public long getLsn() {
+        return lsn;
+    }
+
+    public List<User> getUsers() {
+        return users;
+    }
+
+    /**
+     * Atomically replaces the snapshot file with this snapshot
+     *
+     * @param target snapshot file to replace
+     * @return number of bytes written
+     * @throws IOException if the snapshot cannot be written
+     */
+    public long write(File target) throws IOException {
+        // Copies from the store are already in order; converted and legacy snapshots are not
+        List<User> users = this.users;
+        for(int i = 1; i < users.size(); i++) {
+            if(BY_LOGIN.compare(users.get(i - 1), users.get(i)) > 0) {
+                users = new ArrayList<>(users);
+                users.sort(BY_LOGIN);
+                break;
+            }
+        }
+
+        File tmp = new File(target.getPath() + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        long written;
+        try {
+            DataOutputStream dos = new DataOutputStream(new BufferedOutputStream(fos, 1 << 16));
+            dos.writeInt(MAGIC);
+            dos.writeInt(VERSION);
+            dos.writeLong(lsn);
+            dos.writeLong(users.size());
+
+            long position = HEADER_SIZE;
+            List<long[]> segments = new ArrayList<>();
+            List<String> firstNames = new ArrayList<>();
+            ByteArrayOutputStream record = new ByteArrayOutputStream(256);
+            DataOutputStream rec = new DataOutputStream(record);
+
+            for(int i = 0; i < users.size(); i++) {
+                if(i % SEGMENT_SIZE == 0) {
+                    segments.add(new long[]{position, Math.min(SEGMENT_SIZE, users.size() - i)});
+                    firstNames.add(users.get(i).getLoginName());
+                }
+
+                record.reset();
+                writeUser(rec, users.get(i));
+                dos.writeInt(record.size());
+                record.writeTo(dos);
+                position += 4 + record.size();
+            }
+
+            long tableOffset = position;
+            long tableSize = 4;
+            dos.writeInt(segments.size());
+            for(int i = 0; i < segments.size(); i++) {
+                dos.writeLong(segments.get(i)[0]);
+                dos.writeInt((int) segments.get(i)[1]);
+                writeString(dos, firstNames.get(i));
+                tableSize += 8 + 4 + 4 + firstNames.get(i).getBytes(StandardCharsets.UTF_8).length;
+            }
+            dos.writeLong(tableOffset);
+            dos.flush();
+            fos.getFD().sync();
+            written = tableOffset + tableSize + 8;
+        } finally {
+            fos.close();
+        }
+
+        Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+
+        return written;
+    }
+
+    /**
+     * Reads a snapshot written by write(), decoding its segments in parallel from a memory map
+     *
+     * @param source snapshot file
+     * @return the snapshot
+     * @throws IOException if the file is missing or not a snapshot
+     */
+    public static Snapshot read(File source) throws IOException {
+        try(Reader reader = Reader.open(source)) {
+            List<User> users = IntStream.range(0, reader.getSegmentCount()).parallel()
+                    .mapToObj(reader::readSegment)
+                    .flatMap(List::stream)
+                    .collect(Collectors.toList());
+
+            return new Snapshot(reader.getLsn(), users);
+        }
+    }
+
+    /**
+     * Reads the original registry.backup format, a bare serialized HashMap with no log position
+     *
+     * @param source legacy backup file
+     * @return the snapshot, covering no log records
+     * @throws IOException if the file cannot be read
+     * @throws ClassNotFoundException if the users cannot be deserialized
+     */
+    @SuppressWarnings("unchecked")
+    public static Snapshot readLegacy(File source) throws IOException, ClassNotFoundException {
+        ObjectInputStream ois = new ObjectInputStream(new BufferedInputStream(new FileInputStream(source)));
+        try {
+            HashMap<String, User> users = (HashMap<String, User>) ois.readObject();
+            return new Snapshot(0, new ArrayList<>(users.values()));
+        } finally {
+            ois.close();
+        }
+    }
+
+    private static List<User> readSegment(FileChannel channel, long offset, long length, int count) {
+        try {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+            List<User> users = new ArrayList<>(count);
+            for(int i = 0; i < count; i++) {
+                int recordLength = buf.getInt();
+                int end = buf.position() + recordLength;
+                users.add(readUser(buf));
+                buf.position(end);
+            }
+
+            return users;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * An open snapshot file whose segments are decoded on request, so they can be loaded in
+     * parallel and the one holding a given login name can be decoded ahead of the rest.
+     * readSegment may be called from several threads at once.
+     */
+    public static class Reader implements Closeable {
+        private final FileChannel channel;
+        private final long lsn;
+        private final long userCount;
+        private final long[] offsets;
+        private final int[] counts;
+        // First login name of each segment, or null if the users are in no particular order
+        private final String[] firstNames;
+        // Every user of a snapshot already in memory, as its one segment
+        private final List<User> decoded;
+
+        private Reader(FileChannel channel, long lsn, long users, long[] offsets, int[] counts,
+                       String[] firstNames, List<User> decoded) {
+            this.channel = channel;
+            this.lsn = lsn;
+            this.userCount = users;
+            this.offsets = offsets;
+            this.counts = counts;
+            this.firstNames = firstNames;
+            this.decoded = decoded;
+        }
+
+        /**
+         * Opens a snapshot written by write(), reading only its header and segment table
+         *
+         * @param source snapshot file
+         * @return the reader, to be closed when done
+         * @throws IOException if the file is missing or not a snapshot
+         */
+        public static Reader open(File source) throws IOException {
+            FileChannel channel = FileChannel.open(source.toPath(), StandardOpenOption.READ);
+            boolean opened = false;
+            try {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                readFully(channel, header, 0);
+                if(header.getInt() != MAGIC)
+                    throw new IOException("Not a registry snapshot: " + source);
+                int version = header.getInt();
+                if(version != VERSION)
+                    throw new IOException("Unsupported snapshot version " + version + ": " + source);
+                long lsn = header.getLong();
+                long userCount = header.getLong();
+
+                ByteBuffer trailer = ByteBuffer.allocate(8);
+                readFully(channel, trailer, channel.size() - 8);
+                long tableOffset = trailer.getLong();
+
+                ByteBuffer table = ByteBuffer.allocate((int) (channel.size() - 8 - tableOffset));
+                readFully(channel, table, tableOffset);
+                int segmentCount = table.getInt();
+                long[] offsets = new long[segmentCount + 1];
+                int[] counts = new int[segmentCount];
+                String[] firstNames = new String[segmentCount];
+                for(int i = 0; i < segmentCount; i++) {
+                    offsets[i] = table.getLong();
+                    counts[i] = table.getInt();
+                    firstNames[i] = readString(table);
+                }
+                offsets[segmentCount] = tableOffset;
+
+                opened = true;
+                return new Reader(channel, lsn, userCount, offsets, counts, firstNames, null);
+            } finally {
+                if(!opened)
+                    channel.close();
+            }
+        }
+
+        /**
+         * @param snapshot a snapshot already in memory, e.g. a legacy backup
+         * @return a reader with the whole snapshot as its one segment
+         */
+        public static Reader of(Snapshot snapshot) {
+            List<User> users = snapshot.getUsers();
+            return new Reader(null, snapshot.getLsn(), users.size(), null, new int[]{users.size()}, null, users);
+        }
+
+        /**
+         * @return the last LSN the snapshot covers
+         */
+        public long getLsn() {
+            return lsn;
+        }
+
+        /**
+         * @return the number of users in the snapshot
+         */
+        public long getUserCount() {
+            return userCount;
+        }
+
+        public int getSegmentCount() {
+            return counts.length;
+        }
+
+        /**
+         * Decodes one segment
+         *
+         * @param segment from 0 to getSegmentCount() - 1
+         * @return its users
+         * @throws UncheckedIOException if the segment cannot be read
+         */
+        public List<User> readSegment(int segment) {
+            if(decoded != null)
+                return decoded;
+
+            return Snapshot.readSegment(channel, offsets[segment], offsets[segment + 1] - offsets[segment], counts[segment]);
+        }
+
+        /**
+         * @param loginName a login name
+         * @return the only segment that can hold the login name, or -1 if there are no segments or
+         * the snapshot is a legacy backup in no particular order, so any segment can
+         */
+        public int segmentOf(String loginName) {
+            if(firstNames == null || firstNames.length == 0)
+                return -1;
+            int low = 0;
+            int high = firstNames.length - 1;
+            // The last segment whose first login name is not after this one
+            while(low < high) {
+                int mid = (low + high + 1) >>> 1;
+                if(firstNames[mid].compareTo(loginName) <= 0)
+                    low = mid;
+                else
+                    high = mid - 1;
+            }
+
+            return low;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if(channel != null)
+                channel.close();
+        }
+    }
+
+    private static void writeUser(DataOutputStream out, User user) throws IOException {
+        writeString(out, user.getLoginName());
+        writeString(out, user.getRealName());
+        writeBytes(out, user.getPasswordHash());
+        out.writeLong(user.getUUIDHigh());
+        out.writeLong(user.getUUIDLow());
+        writeString(out, user.getIp());
+        out.writeLong(user.getLastChangeTime());
+        out.writeLong(user.getLastRequestTime());
+    }
+
+    private static User readUser(ByteBuffer buf) {
+        String loginName = readString(buf);
+        String realName = readString(buf);
+        byte[] passwordHash = readBytes(buf);
+        long uuidHigh = buf.getLong();
+        long uuidLow = buf.getLong();
+        String ip = readString(buf);
+        long lastChange = buf.getLong();
+        long lastRequest = buf.getLong();
+
+        return new User(loginName, realName, passwordHash, uuidHigh, uuidLow, ip, lastChange, lastRequest);
+    }
+
+    // Strings are an int byte length (-1 for null) followed by UTF-8 bytes
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        if(s == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buf) {
+        byte[] bytes = readBytes(buf);
+
+        return bytes == null ? null : new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    // Byte arrays are an int length (-1 for null) followed by the bytes
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes == null ? -1 : bytes.length);
+        if(bytes != null)
+            out.write(bytes);
+    }
+
+    private static byte[] readBytes(ByteBuffer buf) {
+        int length = buf.getInt();
+        if(length < 0)
+            return null;
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+
+        return bytes;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        while(buf.hasRemaining()) {
+            if(channel.read(buf, position + buf.position()) < 0)
+                throw new EOFException();
+        }
+        buf.flip();
+    }
+}
@@ -0,0 +1,39 @@
+import java.io.Serializable;
+
+/**
+ * One page of the snapshot a replica copies from its primary with Peer.fetchSnapshot, in login
+ * name order.
+ *
+ * Every page of one snapshot shows the registry as it was at the same instant, covering the log up
+ * to getLsn(). The cursor is opaque: pass it back to fetchSnapshot for the page after this one. It
+ * is null on the last page.
+ */
+public class SnapshotPage implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final long lsn;
+    private final User[] users;
+    private final String nextCursor;
+
+    public SnapshotPage(long lsn, User[] users, String nextCursor) {
+        this.lsn = lsn;
+        this.users = users;
+        this.nextCursor = nextCursor;
+    }
+
+    public long getLsn() {
+        return lsn;
+    }
+
+    public User[] getUsers() {
+        return users;
+    }
+
+    public String getNextCursor() {
+        return nextCursor;
+    }
+
+    public boolean isLast() {
+        return nextCursor == null;
+    }
+}
@@ -0,0 +1,23 @@
+/**
+ * Outcome of an operation against the user registry.
+ *
+ * Expected outcomes (a missing user, a taken login name, a wrong password) are reported
+ * through these codes rather than by throwing.
+ */
+public enum Status {
+    OK,
+    NOT_FOUND,
+    ALREADY_EXISTS,
+    BAD_PASSWORD,
+    INVALID_REQUEST,
+    // The server shed the request because too many were already waiting; safe to retry
+    BUSY,
+    // The server is a read replica; send writes to the primary
+    NOT_PRIMARY,
+    // The client host is over its rate limit; retry after backing off
+    THROTTLED,
+    // The server is still loading the registry and cannot answer this yet; retry shortly
+    NOT_READY,
+    // The user has been inactive too long and is about to be deleted; renaming it with its password keeps it
+    EXPIRED
+}
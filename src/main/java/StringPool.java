@@ -0,0 +1,44 @@
+/**
+ * Bounded pool that lets equal strings held by many users share one copy.
+ *
+ * String.intern keeps every distinct string for the life of the JVM, in a table the registry does
+ * not own. This pool is direct-mapped instead: each string hashes to one slot, and a different
+ * string hashing there takes the slot over. It never grows past its size, never locks, and keeps
+ * nothing alive once it has moved on. Common values, such as a real name or address shared by
+ * thousands of users, stay in their slot and are shared; one-off values cost a slot for a while.
+ *
+ * Slots are written without synchronization. A string is immutable, so a thread that sees a stale
+ * slot just keeps its own copy.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class StringPool {
+    private final String[] slots;
+
+    /**
+     * @param size number of slots, rounded up to a power of two
+     */
+    public StringPool(int size) {
+        if(size < 1 || size > 1 << 30)
+            throw new IllegalArgumentException("Pool size must be between 1 and 2^30");
+        slots = new String[Integer.highestOneBit(size - 1 << 1 | 1)];
+    }
+
+    /**
+     * @param s a string, or null
+     * @return an equal string from the pool, or s itself, which then takes its slot
+     */
+    public String canonical(String s) {
+        if(s == null)
+            return null;
+        int h = s.hashCode();
+        int i = (h ^ h >>> 16) & (slots.length - 1);
+        String pooled = slots[i];
+        if(s.equals(pooled))
+            return pooled;
+        slots[i] = s;
+        return s;
+    }
+}
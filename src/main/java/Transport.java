@@ -0,0 +1,96 @@
+import java.io.Closeable;
+import java.rmi.RemoteException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A way other than RMI for clients to reach the server's Queries, see BinaryTransport and
+ * HttpTransport.
+ *
+ * A transport decodes requests on its own I/O threads and makes each call on a caller thread,
+ * which waits while the request runs on its lane of the server's RequestExecutor just like an RMI
+ * call does. Every transport therefore shares the one store, the lanes and their limits, and RMI
+ * and any number of transports can serve at once. Callers are started as needed up to a limit;
+ * a request arriving with all of them busy is answered BUSY at once, as a full lane would.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public abstract class Transport implements Closeable {
+    // Address of the client a caller thread is working for, see clientAddress
+    private static final ThreadLocal<String> CLIENT = new ThreadLocal<>();
+
+    protected final Queries queries;
+    private final ThreadPoolExecutor callers;
+
+    /**
+     * @param queries the server the requests are made on
+     * @param maxCallers largest number of requests being made at once
+     * @param name name of the transport, used for its threads
+     */
+    protected Transport(Queries queries, int maxCallers, String name) {
+        this.queries = queries;
+        AtomicInteger count = new AtomicInteger();
+        callers = new ThreadPoolExecutor(0, maxCallers, 60, TimeUnit.SECONDS, new SynchronousQueue<Runnable>(), r -> {
+            Thread t = new Thread(r, name + "-caller-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * @return the address of the client the current thread is making a request for, or null if it
+     *         is not a transport's caller thread
+     */
+    public static String clientAddress() {
+        return CLIENT.get();
+    }
+
+    /**
+     * Makes a request on a caller thread and hands over its reply, or its failure, on that thread
+     *
+     * @param client address of the client, reported to the server as the caller
+     * @param call the request
+     * @param busy reply handed over straight away if every caller is busy
+     * @param done receives the reply, or the exception the request failed with
+     */
+    protected <T> void call(String client, Call<T> call, T busy, Done<T> done) {
+        try {
+            callers.execute(() -> {
+                T reply;
+                CLIENT.set(client);
+                try {
+                    reply = call.on(queries);
+                } catch (RemoteException | RuntimeException e) {
+                    done.with(null, e);
+                    return;
+                } finally {
+                    CLIENT.remove();
+                }
+                done.with(reply, null);
+            });
+        } catch (RejectedExecutionException e) {
+            done.with(busy, null);
+        }
+    }
+
+    /**
+     * Stops accepting requests; requests already being made still reply
+     */
+    @Override
+    public void close() {
+        callers.shutdown();
+    }
+
+    protected interface Call<T> {
+        T on(Queries queries) throws RemoteException;
+    }
+
+    protected interface Done<T> {
+        void with(T reply, Exception failure);
+    }
+}
@@ -0,0 +1,159 @@
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Index of users by UUID, as an open-addressing hash table of references to the users
+ * themselves.
+ *
+ * A ConcurrentHashMap keyed on UUID costs a map node and a UUID object per user on top of the
+ * user. Here a slot is a single reference, and the key is compared against the two longs held in
+ * the user, so a lookup allocates nothing and the index costs under 8 bytes per user.
+ *
+ * Lookups never lock: they probe the current table, and a slot is only ever changed to point at
+ * another user with the same UUID or to a tombstone, so a probe never misses a user that was
+ * present for its whole duration. Changes are serialized on the index. Tombstones left by removals
+ * are cleared when the table is rebuilt, which happens when it grows or fills with tombstones; a
+ * rebuild publishes a new table, and a lookup that started on the old one finishes there.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class UUIDIndex {
+    private static final int MIN_CAPACITY = 16;
+    private static final Object TOMBSTONE = new Object();
+
+    private volatile AtomicReferenceArray<Object> table = new AtomicReferenceArray<>(MIN_CAPACITY);
+    // Guarded by this
+    private int size;
+    private int tombstones;
+
+    /**
+     * Finds the user with a UUID without taking any lock
+     *
+     * @param high most significant bits of the UUID
+     * @param low least significant bits of the UUID
+     * @return the user, or null if there is none
+     */
+    public User get(long high, long low) {
+        AtomicReferenceArray<Object> slots = table;
+        int mask = slots.length() - 1;
+        for(int i = hash(high, low) & mask; ; i = (i + 1) & mask) {
+            Object slot = slots.get(i);
+            if(slot == null)
+                return null;
+            if(slot != TOMBSTONE && ((User) slot).hasUUID(high, low))
+                return (User) slot;
+        }
+    }
+
+    /**
+     * Adds a user, replacing any user with the same UUID
+     *
+     * @param user the user
+     */
+    public synchronized void put(User user) {
+        if((size + tombstones + 1) * 4L > table.length() * 3L)
+            rebuild(size + 1);
+
+        AtomicReferenceArray<Object> slots = table;
+        int mask = slots.length() - 1;
+        int free = -1;
+        for(int i = hash(user.getUUIDHigh(), user.getUUIDLow()) & mask; ; i = (i + 1) & mask) {
+            Object slot = slots.get(i);
+            if(slot == null) {
+                if(free < 0) {
+                    free = i;
+                } else {
+                    tombstones--;
+                }
+                slots.set(free, user);
+                size++;
+                return;
+            }
+            if(slot == TOMBSTONE) {
+                if(free < 0)
+                    free = i;
+            } else if(((User) slot).hasUUID(user.getUUIDHigh(), user.getUUIDLow())) {
+                slots.set(i, user);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Removes a user, if it is still the one held for its UUID
+     *
+     * @param user the user
+     * @return whether it was removed
+     */
+    public synchronized boolean remove(User user) {
+        AtomicReferenceArray<Object> slots = table;
+        int mask = slots.length() - 1;
+        for(int i = hash(user.getUUIDHigh(), user.getUUIDLow()) & mask; ; i = (i + 1) & mask) {
+            Object slot = slots.get(i);
+            if(slot == null)
+                return false;
+            if(slot == user) {
+                slots.set(i, TOMBSTONE);
+                size--;
+                tombstones++;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Empties the index, sizing it for the number of users about to be added
+     *
+     * @param expected number of users expected
+     */
+    public synchronized void clear(int expected) {
+        table = new AtomicReferenceArray<>(capacityFor(expected));
+        size = 0;
+        tombstones = 0;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    // Callers hold this
+    private void rebuild(int needed) {
+        AtomicReferenceArray<Object> old = table;
+        AtomicReferenceArray<Object> slots = new AtomicReferenceArray<>(capacityFor(needed));
+        int mask = slots.length() - 1;
+        for(int j = 0; j < old.length(); j++) {
+            Object slot = old.get(j);
+            if(slot == null || slot == TOMBSTONE)
+                continue;
+            User user = (User) slot;
+            int i = hash(user.getUUIDHigh(), user.getUUIDLow()) & mask;
+            while(slots.get(i) != null)
+                i = (i + 1) & mask;
+            slots.set(i, user);
+        }
+        table = slots;
+        tombstones = 0;
+    }
+
+    // Smallest power of two that keeps the table at most half full
+    private static int capacityFor(int users) {
+        int capacity = MIN_CAPACITY;
+        while(capacity < users * 2L)
+            capacity <<= 1;
+
+        return capacity;
+    }
+
+    private static int hash(long high, long low) {
+        // Multiplied first so halves that move together, like i and -i, do not cancel out
+        long h = high * 0x9e3779b97f4a7c15L ^ low;
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+
+        return (int) h;
+    }
+}
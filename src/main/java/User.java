@@ -1,85 +1,274 @@
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.ObjectStreamField;
 import java.io.Serializable;
 import java.util.Date;
 import java.util.UUID;
 
+/**
+ * One account in the registry.
+ *
+ * Registries hold millions of these, so a user is kept compact: the UUID is two longs, the dates
+ * are epoch milliseconds, and an IPv4 address is packed into an int. The store has users with the
+ * same real name or address share one string (see shareStrings). The getters still hand out UUID,
+ * Date and String objects, built on demand.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
 public class User implements Serializable {
-    private String loginName;
+    // Pinned to the value of the original class so existing registry backups keep loading
+    private static final long serialVersionUID = -8451357811709495067L;
+
+    // The original fields plus the password hash. Backups written before the hash was added carry
+    // the password as a String, which is read as a legacy hash (see Credentials).
+    private static final ObjectStreamField[] serialPersistentFields = {
+            new ObjectStreamField("loginName", String.class),
+            new ObjectStreamField("realName", String.class),
+            new ObjectStreamField("password", String.class),
+            new ObjectStreamField("passwordHash", byte[].class),
+            new ObjectStreamField("uuid", UUID.class),
+            new ObjectStreamField("ip", String.class),
+            new ObjectStreamField("lastRequestDate", Date.class),
+            new ObjectStreamField("lastChangeDate", Date.class)
+    };
+
+    private volatile String loginName;
     private String realName;
-    private String password;
+    // See Credentials for the format; null if the user has no password
+    private byte[] passwordHash;
+
+    private long uuidHigh;
+    private long uuidLow;
+    // An IPv4 address is packed into ipv4 and ipText is null; anything else is kept as ipText
+    private int ipv4;
+    private String ipText;
+    private volatile long lastRequestTime;
+    private long lastChangeTime;
 
-    private UUID uuid;
-    private String ip;
-    private Date lastRequestDate;
-    private Date lastChangeDate;
+    public User(String loginName, String realName, byte[] passwordHash, String ip) {
+        this(loginName, realName, passwordHash, UUID.randomUUID(), ip, System.currentTimeMillis(), 0);
+        lastRequestTime = lastChangeTime;
+    }
+
+    /**
+     * Rebuilds a user exactly as it was recorded, used when replaying the write-ahead log
+     */
+    public User(String loginName, String realName, byte[] passwordHash, UUID uuid, String ip,
+                Date lastChangeDate, Date lastRequestDate) {
+        this(loginName, realName, passwordHash, uuid, ip, lastChangeDate.getTime(), lastRequestDate.getTime());
+    }
 
-    public User(String loginName, String realName, String password, String ip) {
+    private User(String loginName, String realName, byte[] passwordHash, UUID uuid, String ip,
+                 long lastChangeTime, long lastRequestTime) {
+        this(loginName, realName, passwordHash, uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(),
+                ip, lastChangeTime, lastRequestTime);
+    }
+
+    /**
+     * Rebuilds a user from its stored form without allocating a UUID or Dates, used when
+     * loading snapshots and replaying the write-ahead log
+     */
+    public User(String loginName, String realName, byte[] passwordHash, long uuidHigh, long uuidLow, String ip,
+                long lastChangeTime, long lastRequestTime) {
         this.loginName = loginName;
         this.realName = realName;
-        this.password = password;
-        this.ip = ip;
-        uuid = UUID.randomUUID();
-        lastChangeDate = new Date();
-        lastRequestDate = new Date();
+        this.passwordHash = passwordHash;
+        this.uuidHigh = uuidHigh;
+        this.uuidLow = uuidLow;
+        setIp(ip);
+        this.lastChangeTime = lastChangeTime;
+        this.lastRequestTime = lastRequestTime;
     }
 
-    public String getLoginName() {
-        return loginName;
+    /**
+     * Copies a user under a new login name, leaving the original untouched for concurrent readers
+     */
+    public User(User other, String loginName, Date lastChangeDate) {
+        this(other, loginName, other.passwordHash, lastChangeDate.getTime());
+    }
+
+    /**
+     * Copies a user with a new password hash, leaving the original untouched for concurrent readers
+     */
+    public User(User other, byte[] passwordHash) {
+        this(other, other.loginName, passwordHash, other.lastChangeTime);
     }
 
-    public void setLoginName(String loginName) {
-        lastChangeDate = new Date();
+    private User(User other, String loginName, byte[] passwordHash, long lastChangeTime) {
         this.loginName = loginName;
+        this.realName = other.realName;
+        this.passwordHash = passwordHash;
+        this.uuidHigh = other.uuidHigh;
+        this.uuidLow = other.uuidLow;
+        this.ipv4 = other.ipv4;
+        this.ipText = other.ipText;
+        this.lastChangeTime = lastChangeTime;
+        this.lastRequestTime = other.lastRequestTime;
+    }
+
+    public String getLoginName() {
+        return loginName;
     }
 
     public String getRealName() {
         return realName;
     }
 
-    public void setRealName(String realName) {
-        this.realName = realName;
+    public byte[] getPasswordHash() {
+        return passwordHash;
     }
 
-    public String getPassword() {
-        return password;
+    public boolean hasPassword() {
+        return passwordHash != null;
     }
 
-    public void setPassword(String password) {
-        this.password = password;
+    public UUID getUUID() {
+        return new UUID(uuidHigh, uuidLow);
     }
 
-    public boolean hasPassword() {
-        return password != null;
+    public long getUUIDHigh() {
+        return uuidHigh;
     }
 
-    public UUID getUUID() {
-        return uuid;
+    public long getUUIDLow() {
+        return uuidLow;
+    }
+
+    public boolean hasUUID(long high, long low) {
+        return uuidHigh == high && uuidLow == low;
     }
 
     public String getIp() {
-        return ip;
+        if(ipText != null)
+            return ipText;
+        if(ipv4 == 0)
+            return null;
+
+        return (ipv4 >>> 24) + "." + ((ipv4 >>> 16) & 0xFF) + "." + ((ipv4 >>> 8) & 0xFF) + "." + (ipv4 & 0xFF);
     }
 
     public void updateLastRequestDate() {
-        lastRequestDate = new Date();
+        lastRequestTime = System.currentTimeMillis();
+    }
+
+    /**
+     * Moves the last request date forward to a lookup recorded by the AccessTracker, leaving it
+     * as it is if it is already later
+     */
+    public void touch(long time) {
+        if(time > lastRequestTime)
+            lastRequestTime = time;
     }
 
     public Date getLastRequestDate() {
-        return lastRequestDate;
+        return new Date(lastRequestTime);
     }
 
     public Date getLastChangeDate() {
-        return lastChangeDate;
+        return new Date(lastChangeTime);
+    }
+
+    public long getLastRequestTime() {
+        return lastRequestTime;
+    }
+
+    public long getLastChangeTime() {
+        return lastChangeTime;
+    }
+
+    /**
+     * @return the later of the last request and last change times, from which inactivity is measured
+     */
+    public long getLastActiveTime() {
+        return Math.max(lastRequestTime, lastChangeTime);
     }
 
     public String toString() {
-        String retVal = "";
-        retVal += "Login Name: "+this.getLoginName()+"\n";
-        retVal += "Real Name: "+this.getRealName()+"\n";
-        retVal += "UUID: "+this.getUUID()+"\n";
-        retVal += "IP: "+this.getIp()+"\n";
-        retVal += "Last Change: "+this.getLastChangeDate()+"\n";
-        retVal += "Last Request: "+this.getLastRequestDate()+"\n";
-
-        return retVal;
+        StringBuilder retVal = new StringBuilder(192);
+        retVal.append("Login Name: ").append(this.getLoginName()).append('\n');
+        retVal.append("Real Name: ").append(this.getRealName()).append('\n');
+        retVal.append("UUID: ").append(this.getUUID()).append('\n');
+        retVal.append("IP: ").append(this.getIp()).append('\n');
+        retVal.append("Last Change: ").append(this.getLastChangeDate()).append('\n');
+        retVal.append("Last Request: ").append(this.getLastRequestDate()).append('\n');
+
+        return retVal.toString();
+    }
+
+    /**
+     * Packs a dotted IPv4 address into ipv4, keeping anything else (IPv6, host names, the empty
+     * string used in-process) as interned text. 0.0.0.0 and octets with leading zeros are kept
+     * as text, since a packed 0 means no address and the text must come back unchanged.
+     */
+    private void setIp(String ip) {
+        ipv4 = 0;
+        ipText = null;
+        if(ip == null)
+            return;
+
+        int packed = 0;
+        int octets = 0;
+        int value = -1;
+        for(int i = 0; i <= ip.length(); i++) {
+            char c = i < ip.length() ? ip.charAt(i) : '.';
+            if(c >= '0' && c <= '9' && value != 0 && value < 256) {
+                value = (value < 0 ? 0 : value * 10) + (c - '0');
+            } else if(c == '.' && value >= 0 && value < 256 && octets < 4) {
+                packed = (packed << 8) | value;
+                octets++;
+                value = -1;
+            } else {
+                octets = -1;
+                break;
+            }
+        }
+
+        if(octets == 4 && packed != 0)
+            ipv4 = packed;
+        else
+            ipText = ip;
+    }
+
+    /**
+     * Swaps the real name and a textual address for equal copies from a pool, so many users share
+     * them. Only called before the user is published.
+     *
+     * @param pool the store's pool
+     */
+    void shareStrings(StringPool pool) {
+        realName = pool.canonical(realName);
+        ipText = pool.canonical(ipText);
+    }
+
+    private void writeObject(ObjectOutputStream out) throws IOException {
+        ObjectOutputStream.PutField fields = out.putFields();
+        fields.put("loginName", loginName);
+        fields.put("realName", realName);
+        fields.put("passwordHash", passwordHash);
+        fields.put("uuid", getUUID());
+        fields.put("ip", getIp());
+        fields.put("lastRequestDate", getLastRequestDate());
+        fields.put("lastChangeDate", getLastChangeDate());
+        out.writeFields();
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        ObjectInputStream.GetField fields = in.readFields();
+        loginName = (String) fields.get("loginName", null);
+        realName = (String) fields.get("realName", null);
+        passwordHash = (byte[]) fields.get("passwordHash", null);
+        if(passwordHash == null)
+            passwordHash = Credentials.fromLegacy((String) fields.get("password", null));
+        UUID uuid = (UUID) fields.get("uuid", null);
+        uuidHigh = uuid.getMostSignificantBits();
+        uuidLow = uuid.getLeastSignificantBits();
+        setIp((String) fields.get("ip", null));
+        Date lastRequest = (Date) fields.get("lastRequestDate", null);
+        Date lastChange = (Date) fields.get("lastChangeDate", null);
+        lastRequestTime = lastRequest == null ? 0 : lastRequest.getTime();
+        lastChangeTime = lastChange == null ? 0 : lastChange.getTime();
     }
 }
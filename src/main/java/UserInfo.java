@@ -0,0 +1,202 @@
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.Externalizable;
+import java.io.IOException;
+import java.io.ObjectInput;
+import java.io.ObjectOutput;
+import java.util.UUID;
+
+/**
+ * What a client is told about a user, sent in place of formatted text.
+ *
+ * A UserInfo may carry only some fields, e.g. just the login name for getInfo("users"). The wire
+ * form starts with a bitmask of the fields present and writes nothing for the others, and the
+ * UUID and dates travel as raw longs.
+ */
+public class UserInfo implements Externalizable {
+    private static final long serialVersionUID = 1L;
+
+    private static final int LOGIN = 1;
+    private static final int REAL_NAME = 2;
+    private static final int UUID_BITS = 4;
+    private static final int IP = 8;
+    private static final int DATES = 16;
+
+    private String loginName;
+    private String realName;
+    private UUID uuid;
+    private String ip;
+    private long lastChangeDate;
+    private long lastRequestDate;
+    private boolean hasDates;
+
+    // Required by Externalizable
+    public UserInfo() {
+    }
+
+    /**
+     * @return every public field of the user; the password hash is never sent
+     */
+    public static UserInfo of(User user) {
+        UserInfo info = new UserInfo();
+        info.loginName = user.getLoginName();
+        info.realName = user.getRealName();
+        info.uuid = user.getUUID();
+        info.ip = user.getIp();
+        info.lastChangeDate = user.getLastChangeTime();
+        info.lastRequestDate = user.getLastRequestTime();
+        info.hasDates = true;
+        return info;
+    }
+
+    /**
+     * @return every public field of the user, with the lookup being answered as its last request,
+     *         which the stored user only shows once the AccessTracker has folded it in
+     */
+    public static UserInfo of(User user, long lastRequestDate) {
+        UserInfo info = of(user);
+        info.lastRequestDate = Math.max(info.lastRequestDate, lastRequestDate);
+        return info;
+    }
+
+    /**
+     * @return only the login name and UUID, as reported for a newly created user
+     */
+    public static UserInfo identity(User user) {
+        UserInfo info = new UserInfo();
+        info.loginName = user.getLoginName();
+        info.uuid = user.getUUID();
+        return info;
+    }
+
+    /**
+     * @return only the login name
+     */
+    public static UserInfo loginOnly(User user) {
+        UserInfo info = new UserInfo();
+        info.loginName = user.getLoginName();
+        return info;
+    }
+
+    /**
+     * @return only the UUID
+     */
+    public static UserInfo uuidOnly(User user) {
+        UserInfo info = new UserInfo();
+        info.uuid = user.getUUID();
+        return info;
+    }
+
+    public String getLoginName() {
+        return loginName;
+    }
+
+    public String getRealName() {
+        return realName;
+    }
+
+    public UUID getUUID() {
+        return uuid;
+    }
+
+    public String getIp() {
+        return ip;
+    }
+
+    public boolean hasDates() {
+        return hasDates;
+    }
+
+    public long getLastChangeDate() {
+        return lastChangeDate;
+    }
+
+    public long getLastRequestDate() {
+        return lastRequestDate;
+    }
+
+    @Override
+    public void writeExternal(ObjectOutput out) throws IOException {
+        int present = (loginName != null ? LOGIN : 0) | (realName != null ? REAL_NAME : 0)
+                | (uuid != null ? UUID_BITS : 0) | (ip != null ? IP : 0) | (hasDates ? DATES : 0);
+        out.writeByte(present);
+        if(loginName != null)
+            out.writeUTF(loginName);
+        if(realName != null)
+            out.writeUTF(realName);
+        if(uuid != null) {
+            out.writeLong(uuid.getMostSignificantBits());
+            out.writeLong(uuid.getLeastSignificantBits());
+        }
+        if(ip != null)
+            out.writeUTF(ip);
+        if(hasDates) {
+            out.writeLong(lastChangeDate);
+            out.writeLong(lastRequestDate);
+        }
+    }
+
+    /**
+     * Writes the user for the binary transport: the same fields as writeExternal, with strings in
+     * the protocol's plain UTF-8 form (see BinaryProtocol)
+     */
+    public void writeBinary(DataOutput out) throws IOException {
+        int present = (loginName != null ? LOGIN : 0) | (realName != null ? REAL_NAME : 0)
+                | (uuid != null ? UUID_BITS : 0) | (ip != null ? IP : 0) | (hasDates ? DATES : 0);
+        out.writeByte(present);
+        if(loginName != null)
+            BinaryProtocol.writeString(out, loginName);
+        if(realName != null)
+            BinaryProtocol.writeString(out, realName);
+        if(uuid != null) {
+            out.writeLong(uuid.getMostSignificantBits());
+            out.writeLong(uuid.getLeastSignificantBits());
+        }
+        if(ip != null)
+            BinaryProtocol.writeString(out, ip);
+        if(hasDates) {
+            out.writeLong(lastChangeDate);
+            out.writeLong(lastRequestDate);
+        }
+    }
+
+    /**
+     * @return a user as written by writeBinary
+     */
+    public static UserInfo readBinary(DataInput in) throws IOException {
+        UserInfo info = new UserInfo();
+        int present = in.readByte();
+        if((present & LOGIN) != 0)
+            info.loginName = BinaryProtocol.readString(in);
+        if((present & REAL_NAME) != 0)
+            info.realName = BinaryProtocol.readString(in);
+        if((present & UUID_BITS) != 0)
+            info.uuid = new UUID(in.readLong(), in.readLong());
+        if((present & IP) != 0)
+            info.ip = BinaryProtocol.readString(in);
+        if((present & DATES) != 0) {
+            info.hasDates = true;
+            info.lastChangeDate = in.readLong();
+            info.lastRequestDate = in.readLong();
+        }
+        return info;
+    }
+
+    @Override
+    public void readExternal(ObjectInput in) throws IOException {
+        int present = in.readByte();
+        if((present & LOGIN) != 0)
+            loginName = in.readUTF();
+        if((present & REAL_NAME) != 0)
+            realName = in.readUTF();
+        if((present & UUID_BITS) != 0)
+            uuid = new UUID(in.readLong(), in.readLong());
+        if((present & IP) != 0)
+            ip = in.readUTF();
+        if((present & DATES) != 0) {
+            hasDates = true;
+            lastChangeDate = in.readLong();
+            lastRequestDate = in.readLong();
+        }
+    }
+}
@@ -0,0 +1,33 @@
+import java.io.Serializable;
+
+/**
+ * One item of a batch create or delete sent to the server.
+ *
+ * Creates use all three fields; deletes only use the login name and password. The password is
+ * the hash computed by the client, or null if the account has none.
+ */
+public class UserRequest implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String loginName;
+    private final String realName;
+    private final String password;
+
+    public UserRequest(String loginName, String realName, String password) {
+        this.loginName = loginName;
+        this.realName = realName;
+        this.password = password;
+    }
+
+    public String getLoginName() {
+        return loginName;
+    }
+
+    public String getRealName() {
+        return realName;
+    }
+
+    public String getPassword() {
+        return password;
+    }
+}
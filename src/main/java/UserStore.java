@@ -0,0 +1,768 @@
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Consumer;
+
+/**
+ * Thread-safe store of every User in the registry, keyed by login name.
+ *
+ * Lookups go straight to a ConcurrentHashMap and never take a lock. Mutations are serialized
+ * per login name through a fixed set of lock stripes, so unrelated logins can be changed in
+ * parallel while a check-then-act on one name (create, rename, delete) stays atomic.
+ *
+ * A secondary index keyed on the parsed UUID (see UUIDIndex) is kept in step with the login map
+ * under the same stripe lock, so reverse lookups are a single hash probe instead of a scan. A third, sorted
+ * index on login name gives paged scans a stable order to resume from and answers login name
+ * prefix searches; other searches by part of a name go through a SearchIndex.
+ *
+ * Snapshots are versioned rather than locked. A snapshot takes the exclusive side of a read/write
+ * lock, whose shared side is held by every mutation, only long enough to fix its instant; it then
+ * copies the users out in login name order while mutations go on. A mutation of a login name the
+ * copy has not reached yet first saves what that name held at the instant, so the copy still sees
+ * every user exactly as it was, including both halves of a rename. Readers are never blocked.
+ *
+ * Every mutation is handed to the Journal before it is applied, while its locks are held. A
+ * rename installs a fresh User rather than changing the stored one, so a User reached through a
+ * snapshot keeps the login name it had when the snapshot was taken.
+ *
+ * Real names and textual addresses of the users put into the store go through a bounded
+ * StringPool, so the many users sharing one keep a single copy.
+ *
+ * Whatever is watching the store (see setWatcher) is told of every User object put into it, which
+ * is how the Reaper learns of users to expire without scanning the store.
+ *
+ * Passwords are checked by the caller, outside any lock, since hashing is slow. Renames and
+ * deletes are then given the user the password was checked against, and only go ahead if the
+ * login name still holds that user with the same password hash.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class UserStore {
+    private static final int STRIPES = 64;
+    private static final int POOL_SIZE = 1 << 16;
+
+    private final ConcurrentHashMap<String, User> byLogin = new ConcurrentHashMap<>();
+    private final UUIDIndex byUUID = new UUIDIndex();
+    private final ConcurrentSkipListMap<String, User> ordered = new ConcurrentSkipListMap<>();
+    private final SearchIndex search = new SearchIndex(usr -> byLogin.get(usr.getLoginName()) == usr);
+    private final Object[] stripes = new Object[STRIPES];
+    private final ReentrantReadWriteLock snapshotLock = new ReentrantReadWriteLock();
+    // Shared by snapshots being copied, so the store is not replaced under them
+    private final ReentrantReadWriteLock loadLock = new ReentrantReadWriteLock();
+    private final List<Version> versions = new CopyOnWriteArrayList<>();
+    private final StringPool strings = new StringPool(POOL_SIZE);
+    private volatile Journal journal = NO_JOURNAL;
+    private volatile Consumer<User> watcher = usr -> {};
+
+    public UserStore() {
+        for(int i = 0; i < STRIPES; i++)
+            stripes[i] = new Object();
+    }
+
+    /**
+     * Sets where mutations are recorded before being applied
+     *
+     * @param journal the journal, typically the write-ahead log
+     */
+    public void setJournal(Journal journal) {
+        this.journal = journal;
+    }
+
+    /**
+     * Sets what is told of every user put into the store from now on, whether created, renamed,
+     * rehashed, loaded or replicated. It is called under the user's stripe lock, so it must be quick.
+     *
+     * @param watcher takes each user as it is put in
+     */
+    public void setWatcher(Consumer<User> watcher) {
+        this.watcher = watcher;
+    }
+
+    /**
+     * Finds a user by login name without taking any lock
+     *
+     * @param loginName login name to look up
+     * @return the user, or null if there is none
+     */
+    public User get(String loginName) {
+        return byLogin.get(loginName);
+    }
+
+    /**
+     * Finds a user by UUID without taking any lock
+     *
+     * @param uuid UUID to look up
+     * @return the user, or null if there is none
+     */
+    public User getByUUID(UUID uuid) {
+        return byUUID.get(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+    }
+
+    /**
+     * @return number of users currently in the store
+     */
+    public int size() {
+        return byLogin.size();
+    }
+
+    /**
+     * Weakly consistent view of every user, for scans that do not need a point-in-time image
+     *
+     * @return live view of the users in the store
+     */
+    public Iterable<User> values() {
+        return byLogin.values();
+    }
+
+    /**
+     * Returns the next page of users in login name order, without taking any lock. Users present
+     * for the whole of a paged scan are returned exactly once; users created, renamed or deleted
+     * while it runs may or may not be.
+     *
+     * @param after login name the previous page ended with, or null to start from the beginning
+     * @param limit largest number of users to return
+     * @return up to limit users whose login names sort after the given one
+     */
+    public List<User> page(String after, int limit) {
+        Map<String, User> tail = after == null ? ordered : ordered.tailMap(after, false);
+        List<User> page = new ArrayList<>(Math.min(limit, 1024));
+
+        for(User usr: tail.values()) {
+            if(page.size() >= limit)
+                break;
+            page.add(usr);
+        }
+
+        return page;
+    }
+
+    /**
+     * Returns the next page of users whose login name starts with a prefix, in login name order,
+     * without taking any lock
+     *
+     * @param prefix start of the login name, matched exactly
+     * @param after login name the previous page ended with, or null to start from the beginning
+     * @param limit largest number of users to return
+     * @return up to limit users whose login names sort after the given one
+     */
+    public List<User> loginsStartingWith(String prefix, String after, int limit) {
+        Map<String, User> tail = after == null || after.compareTo(prefix) < 0
+                ? ordered.tailMap(prefix, true) : ordered.tailMap(after, false);
+        List<User> page = new ArrayList<>(Math.min(limit, 1024));
+
+        for(User usr: tail.values()) {
+            if(page.size() >= limit || !usr.getLoginName().startsWith(prefix))
+                break;
+            page.add(usr);
+        }
+
+        return page;
+    }
+
+    /**
+     * Returns the next page of users whose real name starts with a prefix, ignoring case, in
+     * login name order, without taking any lock
+     *
+     * @param prefix start of the real name, not empty
+     * @param after login name the previous page ended with, or null to start from the beginning
+     * @param limit largest number of users to return
+     * @return up to limit users whose login names sort after the given one
+     */
+    public List<User> realNamesStartingWith(String prefix, String after, int limit) {
+        return search.realNamesStartingWith(prefix, after, limit);
+    }
+
+    /**
+     * Returns the next page of users whose login name or real name contains some text, in login
+     * name order, without taking any lock
+     *
+     * @param realName whether to search real names, ignoring case, rather than login names
+     * @param text the text, at least SearchIndex.GRAM characters long
+     * @param after login name the previous page ended with, or null to start from the beginning
+     * @param limit largest number of users to return
+     * @return up to limit users whose login names sort after the given one
+     */
+    public List<User> containing(boolean realName, String text, String after, int limit) {
+        return search.containing(realName, text, after, limit);
+    }
+
+    /**
+     * Atomically inserts a user if its login name is free, and its UUID is not held by another user
+     *
+     * @param user the new user
+     * @return OK, or ALREADY_EXISTS if the login name or UUID is taken
+     */
+    public Status create(User user) {
+        snapshotLock.readLock().lock();
+        try {
+            return createLocked(user);
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Inserts a batch of users in one pass, each one atomically as in create()
+     *
+     * @param users the new users
+     * @return the outcome for each user, in order
+     */
+    public Status[] createAll(List<User> users) {
+        Status[] statuses = new Status[users.size()];
+        snapshotLock.readLock().lock();
+        try {
+            for(int i = 0; i < statuses.length; i++)
+                statuses[i] = createLocked(users.get(i));
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+
+        return statuses;
+    }
+
+    /**
+     * Atomically moves a user from one login name to another if it is unchanged
+     *
+     * @param expected the user as its password was checked, under its current login name
+     * @param newLoginName requested login name
+     * @return OK, NOT_FOUND, BAD_PASSWORD if the login name now holds a different user or password
+     *         hash, or ALREADY_EXISTS if the new name is taken
+     */
+    public Status rename(User expected, String newLoginName) {
+        String oldLoginName = expected.getLoginName();
+        Object[] locks = stripesFor(oldLoginName, newLoginName);
+
+        snapshotLock.readLock().lock();
+        try {
+            synchronized(locks[0]) {
+                synchronized(locks[1]) {
+                    User ud = byLogin.get(oldLoginName);
+                    if(ud == null)
+                        return Status.NOT_FOUND;
+                    if(!unchanged(ud, expected))
+                        return Status.BAD_PASSWORD;
+                    if(oldLoginName.equals(newLoginName))
+                        return Status.OK;
+                    if(byLogin.containsKey(newLoginName))
+                        return Status.ALREADY_EXISTS;
+
+                    Date changed = new Date();
+                    journal.logRename(oldLoginName, newLoginName, changed);
+                    applyRename(ud, newLoginName, changed);
+                    return Status.OK;
+                }
+            }
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Atomically removes a user if it is unchanged
+     *
+     * @param expected the user as its password was checked, or as it was exported
+     * @return OK, NOT_FOUND, or BAD_PASSWORD if the login name now holds a different user or
+     *         password hash
+     */
+    public Status delete(User expected) {
+        snapshotLock.readLock().lock();
+        try {
+            return deleteLocked(expected);
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Removes a batch of users in one pass, each one atomically as in delete()
+     *
+     * @param expected the users to delete
+     * @return the outcome for each user, in order
+     */
+    public Status[] deleteAll(List<User> expected) {
+        Status[] statuses = new Status[expected.size()];
+        snapshotLock.readLock().lock();
+        try {
+            for(int i = 0; i < statuses.length; i++)
+                statuses[i] = deleteLocked(expected.get(i));
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+
+        return statuses;
+    }
+
+    /**
+     * Removes a batch of users that have been inactive since before a time, each one atomically
+     * and only if the store still holds that same User object, so a user renamed, rehashed or
+     * looked up since it was picked is left alone. The removals are journaled as deletes.
+     *
+     * @param expired the users to remove
+     * @param activeBefore users last active at or after this time are kept
+     * @return for each user, in order, whether it was removed
+     */
+    public boolean[] expireAll(List<User> expired, long activeBefore) {
+        boolean[] removed = new boolean[expired.size()];
+        snapshotLock.readLock().lock();
+        try {
+            for(int i = 0; i < removed.length; i++) {
+                User usr = expired.get(i);
+                synchronized(stripeFor(usr.getLoginName())) {
+                    if(byLogin.get(usr.getLoginName()) != usr || usr.getLastActiveTime() >= activeBefore)
+                        continue;
+
+                    journal.logDelete(usr.getLoginName());
+                    unindex(usr);
+                    removed[i] = true;
+                }
+            }
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+
+        return removed;
+    }
+
+    /**
+     * Atomically replaces a user's password hash if it is unchanged, used to upgrade the hash of
+     * a password that has just been checked
+     *
+     * @param expected the user as its password was checked
+     * @param passwordHash new hash of the same password
+     * @return the user with the new hash, or null if the user has changed in the meantime
+     */
+    public User rehash(User expected, byte[] passwordHash) {
+        String loginName = expected.getLoginName();
+        snapshotLock.readLock().lock();
+        try {
+            synchronized(stripeFor(loginName)) {
+                User ud = byLogin.get(loginName);
+                if(ud == null || !unchanged(ud, expected))
+                    return null;
+
+                User rehashed = new User(ud, passwordHash);
+                journal.logRehash(loginName, passwordHash);
+                index(rehashed);
+                return rehashed;
+            }
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Moves a user's last request date forward, as folded in by the AccessTracker. Last request
+     * dates are not journaled; they reach disk with the next snapshot.
+     *
+     * @param uuidHigh most significant bits of the user's UUID
+     * @param uuidLow least significant bits of the user's UUID
+     * @param time time of the user's latest lookup
+     */
+    public void touch(long uuidHigh, long uuidLow, long time) {
+        while(true) {
+            User ud = byUUID.get(uuidHigh, uuidLow);
+            if(ud == null)
+                return;
+            // Renames and rehashes copy the user under this lock, so the copy cannot miss the update
+            synchronized(stripeFor(ud.getLoginName())) {
+                if(byUUID.get(uuidHigh, uuidLow) == ud) {
+                    ud.touch(time);
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies every user out of the store as of a single point in time, without holding up
+     * mutations while copying
+     *
+     * @return a consistent list of all users
+     */
+    public List<User> snapshot() {
+        loadLock.readLock().lock();
+        try {
+            return open(null, false).copy();
+        } catch (IOException e) {
+            // Only thrown when rolling a log
+            throw new IllegalStateException(e);
+        } finally {
+            loadLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Copies every user and rolls the write-ahead log at the same instant, so the copy covers
+     * exactly the records written before the roll
+     *
+     * @param wal the write-ahead log to roll
+     * @return a snapshot tagged with the last LSN it covers
+     * @throws IOException if the log cannot be rolled
+     */
+    public Snapshot snapshot(WriteAheadLog wal) throws IOException {
+        loadLock.readLock().lock();
+        try {
+            Version version = open(wal, true);
+            return new Snapshot(version.lsn, version.copy());
+        } finally {
+            loadLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Copies every user as of the instant the last record was appended to the write-ahead log,
+     * without rolling it, for a consumer to follow the log on from
+     *
+     * @param wal the write-ahead log
+     * @return a snapshot tagged with the last LSN it covers
+     */
+    public Snapshot view(WriteAheadLog wal) {
+        loadLock.readLock().lock();
+        try {
+            Version version = open(wal, false);
+            return new Snapshot(version.lsn, version.copy());
+        } catch (IOException e) {
+            // Only thrown when rolling the log
+            throw new IllegalStateException(e);
+        } finally {
+            loadLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Finds the last LSN of the log whose record, and every one before it, has been applied to the
+     * store, so the store can be read a page at a time and the log followed on from there
+     *
+     * @param wal the log the store's mutations are recorded in
+     * @return the LSN
+     */
+    public long appliedLsn(WriteAheadLog wal) {
+        // Mutations hold the shared side from logging a record until it is applied
+        snapshotLock.writeLock().lock();
+        try {
+            return wal.getLastLsn();
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+    }
+
+    // Fixes the instant a copy is taken at, and the last LSN of the log if one is given
+    private Version open(WriteAheadLog wal, boolean roll) throws IOException {
+        snapshotLock.writeLock().lock();
+        try {
+            Version version = new Version(wal == null ? 0 : roll ? wal.roll() : wal.getLastLsn());
+            versions.add(version);
+            return version;
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Replaces the contents of the store, used when restoring from a backup. The indexes are
+     * filled in parallel.
+     *
+     * @param users every user to load
+     */
+    public void loadAll(Collection<User> users) {
+        loadLock.writeLock().lock();
+        snapshotLock.writeLock().lock();
+        try {
+            beginLoad(users.size());
+            users.parallelStream().forEach(this::put);
+            finishLoad();
+        } finally {
+            snapshotLock.writeLock().unlock();
+            loadLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Empties the store for recovery to load it a part at a time (see load). Nothing but lookups
+     * may use the store until finishLoad.
+     *
+     * @param expected number of users about to be loaded
+     */
+    public void beginLoad(int expected) {
+        byLogin.clear();
+        byUUID.clear(expected);
+        ordered.clear();
+    }
+
+    /**
+     * Adds users during recovery. Parts may be loaded from several threads at once, and each
+     * user can be looked up as soon as it is added.
+     *
+     * @param users users not yet in the store
+     */
+    public void load(Collection<User> users) {
+        for(User usr: users)
+            put(usr);
+    }
+
+    /**
+     * Builds the search index once recovery has loaded every user
+     */
+    public void finishLoad() {
+        search.rebuild(byLogin.values());
+    }
+
+    private void put(User usr) {
+        usr.shareStrings(strings);
+        byLogin.put(usr.getLoginName(), usr);
+        byUUID.put(usr);
+        ordered.put(usr.getLoginName(), usr);
+        watcher.accept(usr);
+    }
+
+    /**
+     * Appends records fetched from the primary to this replica's log and applies them, as one
+     * step with respect to snapshots so a snapshot never covers a record it does not contain
+     *
+     * @param records the records, in LSN order
+     * @param wal this replica's write-ahead log
+     * @throws IOException if a record cannot be logged or is malformed
+     */
+    public void replicate(List<byte[]> records, WriteAheadLog wal) throws IOException {
+        Journal replayer = replayer();
+        snapshotLock.readLock().lock();
+        try {
+            for(byte[] record: records) {
+                wal.appendReplicated(record);
+                WriteAheadLog.apply(record, replayer);
+            }
+        } finally {
+            snapshotLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Journal that applies replayed log records straight to this store without logging them again
+     *
+     * @return a journal to hand to WriteAheadLog.replay
+     */
+    public Journal replayer() {
+        return new Journal() {
+            @Override
+            public void logCreate(User user) {
+                synchronized(stripeFor(user.getLoginName())) {
+                    index(user);
+                }
+            }
+
+            @Override
+            public void logRename(String oldLoginName, String newLoginName, Date lastChangeDate) {
+                Object[] locks = stripesFor(oldLoginName, newLoginName);
+                synchronized(locks[0]) {
+                    synchronized(locks[1]) {
+                        User ud = byLogin.get(oldLoginName);
+                        if(ud != null)
+                            applyRename(ud, newLoginName, lastChangeDate);
+                    }
+                }
+            }
+
+            @Override
+            public void logDelete(String loginName) {
+                synchronized(stripeFor(loginName)) {
+                    User ud = byLogin.get(loginName);
+                    if(ud != null)
+                        unindex(ud);
+                }
+            }
+
+            @Override
+            public void logRehash(String loginName, byte[] passwordHash) {
+                synchronized(stripeFor(loginName)) {
+                    User ud = byLogin.get(loginName);
+                    if(ud != null)
+                        index(new User(ud, passwordHash));
+                }
+            }
+        };
+    }
+
+    // Callers hold the shared side of snapshotLock
+    private Status createLocked(User user) {
+        String loginName = user.getLoginName();
+        synchronized(stripeFor(loginName)) {
+            if(byLogin.containsKey(loginName))
+                return Status.ALREADY_EXISTS;
+            // Only an imported user can bring a UUID that is already held, and it must not take
+            // over the lookups of the user holding it
+            if(byUUID.get(user.getUUIDHigh(), user.getUUIDLow()) != null)
+                return Status.ALREADY_EXISTS;
+
+            journal.logCreate(user);
+            index(user);
+            return Status.OK;
+        }
+    }
+
+    // Callers hold the shared side of snapshotLock
+    private Status deleteLocked(User expected) {
+        String loginName = expected.getLoginName();
+        synchronized(stripeFor(loginName)) {
+            User ud = byLogin.get(loginName);
+            if(ud == null)
+                return Status.NOT_FOUND;
+            if(!unchanged(ud, expected))
+                return Status.BAD_PASSWORD;
+
+            journal.logDelete(loginName);
+            unindex(ud);
+            return Status.OK;
+        }
+    }
+
+    private void applyRename(User ud, String newLoginName, Date changed) {
+        index(new User(ud, newLoginName, changed));
+        // The UUID entry now points at the renamed copy, so only the old login name is dropped
+        unindex(ud);
+    }
+
+    // Callers hold the stripe lock of the user's login name, as for unindex
+    private void index(User user) {
+        preserve(user.getLoginName());
+        if(byLogin.get(user.getLoginName()) != user)
+            user.shareStrings(strings);
+        User previous = byLogin.put(user.getLoginName(), user);
+        byUUID.put(user);
+        ordered.put(user.getLoginName(), user);
+        if(previous != user) {
+            if(previous != null)
+                search.remove(previous);
+            search.add(user);
+            watcher.accept(user);
+        }
+    }
+
+    private void unindex(User user) {
+        preserve(user.getLoginName());
+        if(byLogin.remove(user.getLoginName(), user))
+            search.remove(user);
+        byUUID.remove(user);
+        ordered.remove(user.getLoginName(), user);
+    }
+
+    // Compares hashes rather than identities, so an exported copy of a user also matches
+    private static boolean unchanged(User ud, User expected) {
+        return ud.hasUUID(expected.getUUIDHigh(), expected.getUUIDLow())
+                && MessageDigest.isEqual(ud.getPasswordHash(), expected.getPasswordHash());
+    }
+
+    // Saves what a login name holds for the snapshots being copied, before it changes
+    private void preserve(String loginName) {
+        for(Version version: versions)
+            version.preserve(loginName);
+    }
+
+    private Object stripeFor(String loginName) {
+        return stripes[stripeIndex(loginName)];
+    }
+
+    private static int stripeIndex(String loginName) {
+        int h = loginName.hashCode();
+        return (h ^ (h >>> 16)) & (STRIPES - 1);
+    }
+
+    // The stripes of two login names in index order, so two opposite renames cannot deadlock
+    private Object[] stripesFor(String a, String b) {
+        if(stripeIndex(b) < stripeIndex(a))
+            return new Object[]{stripeFor(b), stripeFor(a)};
+        return new Object[]{stripeFor(a), stripeFor(b)};
+    }
+
+    /**
+     * The users as of one instant, while they are copied out of the store.
+     *
+     * The copy walks the sorted index, taking the stripe lock of each login name as it reaches
+     * it. Until then, the first mutation of a name saves what the name held, or ABSENT, so the
+     * copy takes the saved user instead and finally adds the saved users whose names it never
+     * reached because they were deleted or renamed away.
+     */
+    private class Version {
+        private final long lsn;
+        private final ConcurrentHashMap<String, Object> before = new ConcurrentHashMap<>();
+        // Last login name copied, written under its stripe lock
+        private volatile String reached;
+        private volatile boolean copied;
+
+        Version(long lsn) {
+            this.lsn = lsn;
+        }
+
+        // Callers hold the stripe lock of the login name
+        void preserve(String loginName) {
+            if(copied)
+                return;
+            String last = reached;
+            if(last != null && loginName.compareTo(last) <= 0)
+                return;
+            if(!before.containsKey(loginName)) {
+                User ud = byLogin.get(loginName);
+                before.put(loginName, ud == null ? ABSENT : ud);
+            }
+        }
+
+        List<User> copy() {
+            try {
+                List<User> users = new ArrayList<>(byLogin.size() + 16);
+                for(Map.Entry<String, User> entry: ordered.entrySet()) {
+                    String loginName = entry.getKey();
+                    synchronized(stripeFor(loginName)) {
+                        reached = loginName;
+                        // A user read since the instant is the one it held then unless it was saved
+                        if(!before.containsKey(loginName))
+                            users.add(entry.getValue());
+                    }
+                }
+                // Every name saved from now on was created after the instant
+                copied = true;
+                int walked = users.size();
+                for(Object ud: before.values()) {
+                    if(ud != ABSENT)
+                        users.add((User) ud);
+                }
+                // Saved users go back into login name order; the walk is one sorted run already
+                if(users.size() > walked)
+                    users.sort(Comparator.comparing(User::getLoginName));
+                return users;
+            } finally {
+                versions.remove(this);
+            }
+        }
+    }
+
+    private static final Object ABSENT = new Object();
+
+    private static final Journal NO_JOURNAL = new Journal() {
+        @Override
+        public void logCreate(User user) {
+        }
+
+        @Override
+        public void logRename(String oldLoginName, String newLoginName, Date lastChangeDate) {
+        }
+
+        @Override
+        public void logDelete(String loginName) {
+        }
+
+        @Override
+        public void logRehash(String loginName, byte[] passwordHash) {
+        }
+    };
+}
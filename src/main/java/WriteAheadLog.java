@@ -0,0 +1,619 @@
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Append-only log of every create, rename, delete and rehash applied to the UserStore.
+ *
+ * The log is split into numbered segment files (registry.wal.N). Every record carries a
+ * log sequence number (LSN) and a CRC, so a torn write at the end of a segment is detected
+ * and ignored on replay. A write that fails partway is cut back off the segment before the log
+ * takes another record, so the records after it are not lost. A checkpoint rolls to a fresh
+ * segment, writes a snapshot tagged with the last LSN before the roll, and then drops the older
+ * segments.
+ *
+ * With an fsync interval of 0, commit() blocks until the caller's records are on disk; concurrent
+ * callers share a single fsync (group commit). With a positive interval a background thread
+ * fsyncs on that period instead and commit() returns immediately.
+ *
+ * The most recent records are also kept in memory so replicas can fetch them once they are
+ * durable. A replica appends the records it fetches unchanged, keeping the primary's LSNs, so its
+ * log is a copy of the primary's and it can take over the sequence if it is promoted.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class WriteAheadLog implements Journal, Closeable {
+    private static final String SEGMENT_PREFIX = "registry.wal.";
+
+    private static final byte RENAME = 2;
+    private static final byte DELETE = 3;
+    private static final byte CREATE = 4;
+    private static final byte REHASH = 5;
+
+    // Records kept in memory for replicas, indexed by LSN modulo the size
+    private static final int BACKLOG_SIZE = 65536;
+    // Longest string a record holds, in modified UTF-8 as written by writeUTF
+    private static final int MAX_UTF_BYTES = 65535;
+
+    private final File dir;
+    private final long fsyncIntervalMs;
+
+    // Lock order is syncLock then appendLock
+    private final Object syncLock = new Object();
+    private final Object appendLock = new Object();
+
+    private final ByteArrayOutputStream payload = new ByteArrayOutputStream(256);
+    private final DataOutputStream out = new DataOutputStream(payload);
+    private final ByteBuffer header = ByteBuffer.allocate(8);
+    private final CRC32 crc = new CRC32();
+    private final byte[][] backlog = new byte[BACKLOG_SIZE][];
+    private final Object durableChanged = new Object();
+
+    private FileChannel channel;
+    private long segment;
+    private long lastLsn;
+    // Lowest LSN still held in the backlog
+    private long backlogStart;
+    private volatile long durableLsn;
+    private volatile boolean closed;
+
+    private WriteAheadLog(File dir, long lastLsn, long fsyncIntervalMs) {
+        this.dir = dir;
+        this.lastLsn = lastLsn;
+        this.durableLsn = lastLsn;
+        this.backlogStart = lastLsn + 1;
+        this.fsyncIntervalMs = fsyncIntervalMs;
+    }
+
+    /**
+     * Opens a new segment after the existing ones, continuing the LSN sequence found by replay
+     *
+     * @param dir directory holding the log segments
+     * @param lastLsn highest LSN already recovered
+     * @param fsyncIntervalMs 0 to fsync on every commit, otherwise the background fsync period
+     * @return the open log
+     * @throws IOException if the segment cannot be created
+     */
+    public static WriteAheadLog open(File dir, long lastLsn, long fsyncIntervalMs) throws IOException {
+        WriteAheadLog wal = new WriteAheadLog(dir, lastLsn, fsyncIntervalMs);
+        List<Long> segments = segments(dir);
+        wal.segment = segments.isEmpty() ? 1 : segments.get(segments.size() - 1) + 1;
+        wal.channel = openSegment(dir, wal.segment);
+
+        if(fsyncIntervalMs > 0) {
+            Thread flusher = new Thread(wal::flushLoop, "wal-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+
+        return wal;
+    }
+
+    /**
+     * Checks a string before it is handed to the store, since a record that cannot be written
+     * fails inside the store's locks
+     *
+     * @param s a login name, real name or address, or null
+     * @return true if a record can hold it
+     */
+    public static boolean fits(String s) {
+        // At most three bytes a character
+        if(s == null || s.length() <= MAX_UTF_BYTES / 3)
+            return true;
+
+        long bytes = 0;
+        for(int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            bytes += c >= 0x0001 && c <= 0x007F ? 1 : c <= 0x07FF ? 2 : 3;
+        }
+        return bytes <= MAX_UTF_BYTES;
+    }
+
+    /**
+     * @param user a user about to be created, e.g. one imported from another server
+     * @return true if a create record can hold every field of it
+     */
+    public static boolean fits(User user) {
+        byte[] hash = user.getPasswordHash();
+        return fits(user.getLoginName()) && fits(user.getRealName()) && fits(user.getIp())
+                && (hash == null || hash.length <= Short.MAX_VALUE);
+    }
+
+    @Override
+    public void logCreate(User user) {
+        synchronized(appendLock) {
+            try {
+                beginRecord(CREATE);
+                out.writeUTF(user.getLoginName());
+                writeNullableUTF(user.getRealName());
+                writeNullableBytes(user.getPasswordHash());
+                out.writeLong(user.getUUIDHigh());
+                out.writeLong(user.getUUIDLow());
+                writeNullableUTF(user.getIp());
+                out.writeLong(user.getLastChangeTime());
+                out.writeLong(user.getLastRequestTime());
+                endRecord();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    @Override
+    public void logRename(String oldLoginName, String newLoginName, Date lastChangeDate) {
+        synchronized(appendLock) {
+            try {
+                beginRecord(RENAME);
+                out.writeUTF(oldLoginName);
+                out.writeUTF(newLoginName);
+                out.writeLong(lastChangeDate.getTime());
+                endRecord();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    @Override
+    public void logDelete(String loginName) {
+        synchronized(appendLock) {
+            try {
+                beginRecord(DELETE);
+                out.writeUTF(loginName);
+                endRecord();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    @Override
+    public void logRehash(String loginName, byte[] passwordHash) {
+        synchronized(appendLock) {
+            try {
+                beginRecord(REHASH);
+                out.writeUTF(loginName);
+                writeNullableBytes(passwordHash);
+                endRecord();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+
+    /**
+     * Appends a record fetched from the primary's log as it is, keeping its LSN
+     *
+     * @param record the record, as returned by recordsAfter
+     * @throws IOException if the record does not directly follow the last one, or cannot be written
+     */
+    public void appendReplicated(byte[] record) throws IOException {
+        synchronized(appendLock) {
+            if(closed)
+                throw new IOException("Write-ahead log is closed");
+            long lsn = lsnOf(record);
+            if(lsn != lastLsn + 1)
+                throw new IOException("Replicated record " + lsn + " does not follow " + lastLsn);
+            writeRecord(record);
+        }
+    }
+
+    /**
+     * Returns the durable records after an LSN, waiting a while for some if there are none yet
+     *
+     * @param afterLsn last LSN the caller already has
+     * @param max largest number of records to return
+     * @param waitMs longest time to wait for a new record
+     * @return the records in LSN order, possibly none, or null if they are no longer held in
+     *         memory or the caller is ahead of this log and must start again from a snapshot
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public List<byte[]> recordsAfter(long afterLsn, int max, long waitMs) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + waitMs;
+        synchronized(durableChanged) {
+            while(durableLsn <= afterLsn && !closed) {
+                long remaining = deadline - System.currentTimeMillis();
+                if(remaining <= 0)
+                    break;
+                durableChanged.wait(remaining);
+            }
+        }
+
+        synchronized(appendLock) {
+            if(afterLsn > lastLsn || afterLsn + 1 < backlogStart)
+                return null;
+
+            long upTo = Math.min(durableLsn, afterLsn + max);
+            List<byte[]> records = new ArrayList<>((int) Math.max(0, upTo - afterLsn));
+            for(long lsn = afterLsn + 1; lsn <= upTo; lsn++)
+                records.add(backlog[(int) (lsn % BACKLOG_SIZE)]);
+
+            return records;
+        }
+    }
+
+    /**
+     * @return the LSN of the last record appended
+     */
+    public long getLastLsn() {
+        synchronized(appendLock) {
+            return lastLsn;
+        }
+    }
+
+    /**
+     * Makes every record appended so far durable, sharing the fsync with concurrent callers.
+     * Does nothing when a background fsync interval is configured.
+     *
+     * @throws IOException if the fsync fails
+     */
+    public void commit() throws IOException {
+        if(fsyncIntervalMs > 0)
+            return;
+
+        long target;
+        synchronized(appendLock) {
+            target = lastLsn;
+        }
+        syncUpTo(target);
+    }
+
+    /**
+     * Closes the current segment and starts the next one
+     *
+     * @return the last LSN written to the closed segment
+     * @throws IOException if the new segment cannot be created
+     */
+    public long roll() throws IOException {
+        synchronized(syncLock) {
+            synchronized(appendLock) {
+                channel.force(false);
+                channel.close();
+                setDurable(lastLsn);
+                segment++;
+                channel = openSegment(dir, segment);
+                return lastLsn;
+            }
+        }
+    }
+
+    /**
+     * Starts a new segment that continues from the given LSN, discarding the in-memory records.
+     * Used when a replica replaces its whole store with a snapshot from the primary; the older
+     * segments no longer apply and should be deleted.
+     *
+     * @param lsn LSN covered by the new contents of the store
+     * @throws IOException if the new segment cannot be created
+     */
+    public void reset(long lsn) throws IOException {
+        synchronized(syncLock) {
+            synchronized(appendLock) {
+                channel.force(false);
+                channel.close();
+                segment++;
+                channel = openSegment(dir, segment);
+                Arrays.fill(backlog, null);
+                lastLsn = lsn;
+                backlogStart = lsn + 1;
+                setDurable(lsn);
+            }
+        }
+    }
+
+    /**
+     * Deletes every segment older than the one currently being written. Only safe once a
+     * snapshot covering those segments has been written.
+     */
+    public void deleteOldSegments() {
+        long current;
+        synchronized(appendLock) {
+            current = segment;
+        }
+        for(long n: segments(dir)) {
+            if(n < current)
+                new File(dir, SEGMENT_PREFIX + n).delete();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        synchronized(durableChanged) {
+            durableChanged.notifyAll();
+        }
+        synchronized(syncLock) {
+            synchronized(appendLock) {
+                channel.force(false);
+                channel.close();
+                setDurable(lastLsn);
+            }
+        }
+    }
+
+    /**
+     * Replays every record newer than a snapshot into the given journal, in LSN order. Reading a
+     * segment stops at the first torn or corrupt record.
+     *
+     * @param dir directory holding the log segments
+     * @param afterLsn LSN already covered by the loaded snapshot
+     * @param target receives the replayed mutations
+     * @return the highest LSN seen, or afterLsn if there was nothing newer
+     * @throws IOException if a segment cannot be read
+     */
+    public static long replay(File dir, long afterLsn, Journal target) throws IOException {
+        long maxLsn = afterLsn;
+
+        for(long n: segments(dir)) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(new File(dir, SEGMENT_PREFIX + n))));
+            try {
+                CRC32 crc = new CRC32();
+                while(true) {
+                    int length;
+                    int checksum;
+                    byte[] body;
+                    try {
+                        length = in.readInt();
+                        checksum = in.readInt();
+                        if(length <= 0 || length > (1 << 20))
+                            break;
+                        body = new byte[length];
+                        in.readFully(body);
+                    } catch (EOFException e) {
+                        break;
+                    }
+
+                    crc.reset();
+                    crc.update(body, 0, body.length);
+                    if((int) crc.getValue() != checksum)
+                        break;
+
+                    long lsn = lsnOf(body);
+                    if(lsn <= afterLsn)
+                        continue;
+
+                    apply(body, target);
+                    maxLsn = Math.max(maxLsn, lsn);
+                }
+            } finally {
+                in.close();
+            }
+        }
+
+        return maxLsn;
+    }
+
+    /**
+     * Applies one record, from replay or from the primary, to the given journal
+     *
+     * @param record the record
+     * @param target receives the mutation
+     * @return the record's LSN
+     * @throws IOException if the record is malformed
+     */
+    public static long apply(byte[] record, Journal target) throws IOException {
+        DataInputStream rec = new DataInputStream(new ByteArrayInputStream(record));
+        long lsn = rec.readLong();
+        byte type = rec.readByte();
+        switch(type) {
+            case CREATE: {
+                String loginName = rec.readUTF();
+                String realName = readNullableUTF(rec);
+                byte[] passwordHash = readNullableBytes(rec);
+                long uuidHigh = rec.readLong();
+                long uuidLow = rec.readLong();
+                String ip = readNullableUTF(rec);
+                long lastChange = rec.readLong();
+                long lastRequest = rec.readLong();
+                target.logCreate(new User(loginName, realName, passwordHash, uuidHigh, uuidLow, ip, lastChange, lastRequest));
+                break;
+            }
+            case RENAME: {
+                String oldLoginName = rec.readUTF();
+                String newLoginName = rec.readUTF();
+                target.logRename(oldLoginName, newLoginName, new Date(rec.readLong()));
+                break;
+            }
+            case DELETE:
+                target.logDelete(rec.readUTF());
+                break;
+            case REHASH: {
+                String loginName = rec.readUTF();
+                target.logRehash(loginName, readNullableBytes(rec));
+                break;
+            }
+            default:
+                throw new IOException("Unknown log record type " + type);
+        }
+
+        return lsn;
+    }
+
+    /**
+     * @return the LSN of a record, as returned by recordsAfter
+     */
+    public static long lsnOf(byte[] record) {
+        return ByteBuffer.wrap(record).getLong();
+    }
+
+    private void beginRecord(byte type) throws IOException {
+        if(closed)
+            throw new IOException("Write-ahead log is closed");
+        payload.reset();
+        out.writeLong(lastLsn + 1);
+        out.writeByte(type);
+    }
+
+    private void endRecord() throws IOException {
+        out.flush();
+        writeRecord(payload.toByteArray());
+    }
+
+    // Callers hold appendLock
+    private void writeRecord(byte[] body) throws IOException {
+        crc.reset();
+        crc.update(body, 0, body.length);
+
+        header.clear();
+        header.putInt(body.length).putInt((int) crc.getValue()).flip();
+        ByteBuffer data = ByteBuffer.wrap(body);
+        long start = channel.position();
+        try {
+            while(header.hasRemaining() || data.hasRemaining())
+                channel.write(new ByteBuffer[]{header, data});
+        } catch (IOException e) {
+            discardTorn(start, e);
+            throw e;
+        }
+
+        lastLsn++;
+        backlog[(int) (lastLsn % BACKLOG_SIZE)] = body;
+        backlogStart = Math.max(backlogStart, lastLsn - BACKLOG_SIZE + 1);
+    }
+
+    /**
+     * Gets rid of the part of a record a failed write left at the end of the segment, so the
+     * records after it are not lost behind a torn one on replay. If the segment cannot be cut back,
+     * the log goes on in a new segment, and if that cannot be opened either the log is closed.
+     * Callers hold appendLock.
+     *
+     * @param start where the record began
+     * @param failure the write's exception, which any further failure is added to
+     */
+    private void discardTorn(long start, IOException failure) {
+        try {
+            channel.truncate(start);
+            return;
+        } catch (IOException e) {
+            failure.addSuppressed(e);
+        }
+
+        try {
+            // Replay reads each segment up to its first torn record, then goes on with the next
+            channel.force(false);
+            channel.close();
+            segment++;
+            channel = openSegment(dir, segment);
+        } catch (IOException e) {
+            failure.addSuppressed(e);
+            closed = true;
+        }
+    }
+
+    private void writeNullableUTF(String s) throws IOException {
+        out.writeBoolean(s != null);
+        if(s != null)
+            out.writeUTF(s);
+    }
+
+    private static String readNullableUTF(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    // Byte arrays are a short length (-1 for null) followed by the bytes
+    private void writeNullableBytes(byte[] b) throws IOException {
+        out.writeShort(b == null ? -1 : b.length);
+        if(b != null)
+            out.write(b);
+    }
+
+    private static byte[] readNullableBytes(DataInputStream in) throws IOException {
+        int length = in.readShort();
+        if(length < 0)
+            return null;
+        byte[] b = new byte[length];
+        in.readFully(b);
+
+        return b;
+    }
+
+    private void syncUpTo(long target) throws IOException {
+        synchronized(syncLock) {
+            if(durableLsn >= target)
+                return;
+
+            while(true) {
+                long upTo;
+                FileChannel current;
+                synchronized(appendLock) {
+                    upTo = lastLsn;
+                    current = channel;
+                }
+                // Records appended after upTo may also reach disk, but are only promised by a later sync
+                try {
+                    current.force(false);
+                } catch (ClosedChannelException e) {
+                    // A failed write moved the log on to a new segment after forcing this one
+                    synchronized(appendLock) {
+                        if(closed || channel == current)
+                            throw e;
+                    }
+                    continue;
+                }
+                setDurable(upTo);
+                return;
+            }
+        }
+    }
+
+    // Wakes replicas waiting in recordsAfter
+    private void setDurable(long lsn) {
+        synchronized(durableChanged) {
+            durableLsn = lsn;
+            durableChanged.notifyAll();
+        }
+    }
+
+    private void flushLoop() {
+        while(!closed) {
+            try {
+                Thread.sleep(fsyncIntervalMs);
+                long target;
+                synchronized(appendLock) {
+                    target = lastLsn;
+                }
+                syncUpTo(target);
+            } catch (InterruptedException e) {
+                return;
+            } catch (IOException e) {
+                if(!closed)
+                    e.printStackTrace();
+            }
+        }
+    }
+
+    private static FileChannel openSegment(File dir, long n) throws IOException {
+        return FileChannel.open(new File(dir, SEGMENT_PREFIX + n).toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    private static List<Long> segments(File dir) {
+        List<Long> found = new ArrayList<>();
+        String[] names = dir.list();
+        if(names == null)
+            return found;
+
+        for(String name: names) {
+            if(!name.startsWith(SEGMENT_PREFIX))
+                continue;
+            try {
+                found.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length())));
+            } catch (NumberFormatException e) {
+                // Not one of ours
+            }
+        }
+        Collections.sort(found);
+
+        return found;
+    }
+}
@@ -0,0 +1,112 @@
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests that the access tracker folds lookups into the store once per user per drain, and that a
+ * lookup made while its buffer is full still reaches the store, even for a user renamed since.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class AccessTrackerTest {
+    // Long enough that the drainer only runs when woken or flushed
+    private static final long HOUR = 3600000;
+
+    private final UserStore store = new UserStore();
+    private AccessTracker tracker;
+
+    @After
+    public void tearDown() {
+        if(tracker != null)
+            tracker.close();
+    }
+
+    @Test
+    public void foldsLookupsOfAUserIntoOneUpdate() {
+        User alice = idle("alice");
+        tracker = new AccessTracker(store, HOUR);
+        long first = tracker.record(alice);
+        long last = first;
+        for(int i = 0; i < 4; i++)
+            last = tracker.record(alice);
+
+        // Nothing is written to the shared User until the drain
+        assertEquals(0, alice.getLastRequestTime());
+        tracker.flush();
+        assertEquals(last, store.get("alice").getLastRequestTime());
+        assertEquals(5, tracker.getRecorded());
+        assertEquals(1, tracker.getFolded());
+
+        // Recorded again only once the stored date is an interval old
+        tracker.record(alice);
+        assertEquals(5, tracker.getRecorded());
+    }
+
+    @Test
+    public void handsEachDrainOnWhenForwarding() {
+        User alice = idle("alice");
+        User bob = idle("bob");
+        tracker = new AccessTracker(store, HOUR);
+        List<long[]> forwarded = new ArrayList<>();
+        tracker.forwardTo(forwarded::add);
+
+        tracker.record(alice);
+        long bobTime = tracker.record(bob);
+        long aliceTime = tracker.record(alice);
+        tracker.flush();
+
+        assertEquals(1, forwarded.size());
+        long[] touches = forwarded.get(0);
+        assertEquals(6, touches.length);
+        for(int i = 0; i < touches.length; i += 3) {
+            UUID uuid = new UUID(touches[i], touches[i + 1]);
+            assertEquals(uuid.equals(alice.getUUID()) ? aliceTime : bobTime, touches[i + 2]);
+            assertTrue(uuid.equals(alice.getUUID()) || uuid.equals(bob.getUUID()));
+        }
+    }
+
+    @Test
+    public void movesTheDateItselfWhenTheBufferIsFull() {
+        List<User> users = new ArrayList<>();
+        for(int i = 0; i < 1024; i++)
+            users.add(idle("user" + i));
+        User renamed = idle("alice");
+        tracker = new AccessTracker(store, HOUR);
+        // This thread's buffer holds 1024 lookups
+        for(User usr: users)
+            tracker.record(usr);
+        assertEquals(0, tracker.getOverflowed());
+
+        // The lookup holds the User from before the rename, which the store has since replaced
+        assertEquals(Status.OK, store.rename(renamed, "carol"));
+        long time = tracker.record(renamed);
+        assertEquals(1, tracker.getOverflowed());
+        assertEquals(time, store.get("carol").getLastRequestTime());
+    }
+
+    @Test
+    public void closingFoldsInWhatIsLeft() {
+        User alice = idle("alice");
+        tracker = new AccessTracker(store, HOUR);
+        long time = tracker.record(alice);
+        tracker.close();
+        tracker = null;
+
+        assertEquals(time, store.get("alice").getLastRequestTime());
+    }
+
+    // A user last looked up long ago, so every lookup of it is recorded
+    private User idle(String loginName) {
+        UUID uuid = UUID.randomUUID();
+        User usr = new User(loginName, null, null, uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(),
+                "127.0.0.1", 0, 0);
+        assertEquals(Status.OK, store.create(usr));
+        return usr;
+    }
+}
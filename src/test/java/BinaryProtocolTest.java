@@ -0,0 +1,241 @@
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.net.Socket;
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests the frames and values of BinaryProtocol, and that BinaryTransport reassembles frames
+ * split across reads or sent back to back, answers pipelined requests out of order under their
+ * own ids, and closes a connection that sends a bad frame.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class BinaryProtocolTest {
+    // Held up until released, so a later request on the same connection can reply first
+    private final CountDownLatch release = new CountDownLatch(1);
+    private BinaryTransport transport;
+
+    @After
+    public void tearDown() {
+        release.countDown();
+        if(transport != null)
+            transport.close();
+    }
+
+    @Test
+    public void valuesRoundTrip() throws IOException {
+        UserInfo alice = UserInfo.of(new User("alice", "Zo\u00eb \u2713", null, "::1"));
+        BatchResult batch = new BatchResult(2);
+        batch.set(0, Status.OK, alice);
+        batch.set(1, Status.NOT_FOUND, null);
+
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = BinaryProtocol.begin(buffer, 42);
+        BinaryProtocol.writeString(out, null);
+        BinaryProtocol.writeStrings(out, Arrays.asList("a", "", "\u2713"));
+        BinaryProtocol.writeResult(out, Result.ok(alice));
+        BinaryProtocol.writeResult(out, Result.<UserInfo>of(Status.NOT_FOUND));
+        BinaryProtocol.writePage(out, Result.ok(new Page(new UserInfo[]{alice}, "next")));
+        BinaryProtocol.writePage(out, Result.<Page>of(Status.THROTTLED));
+        BinaryProtocol.writeBatch(out, batch);
+        byte[] frame = BinaryProtocol.frame(buffer);
+
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(frame));
+        assertEquals(frame.length - 4, in.readInt());
+        assertEquals(42, in.readInt());
+        assertNull(BinaryProtocol.readString(in));
+        assertEquals(Arrays.asList("a", "", "\u2713"), BinaryProtocol.readStrings(in));
+        assertSameUser(alice, BinaryProtocol.readResult(in).getValue());
+        Result<UserInfo> missing = BinaryProtocol.readResult(in);
+        assertEquals(Status.NOT_FOUND, missing.getStatus());
+        assertNull(missing.getValue());
+        Page page = BinaryProtocol.readPage(in).getValue();
+        assertEquals(1, page.getUsers().length);
+        assertSameUser(alice, page.getUsers()[0]);
+        assertEquals("next", page.getNextCursor());
+        assertEquals(Status.THROTTLED, BinaryProtocol.readPage(in).getStatus());
+        BatchResult read = BinaryProtocol.readBatch(in);
+        assertEquals(2, read.size());
+        assertSameUser(alice, read.getUser(0));
+        assertEquals(Status.NOT_FOUND, read.getStatus(1));
+        assertNull(read.getUser(1));
+        assertEquals(-1, in.read());
+    }
+
+    @Test
+    public void refusesValuesNoFrameCouldHold() throws IOException {
+        expectIOException(new byte[]{(byte) 0xFF}, in -> BinaryProtocol.readStatus(in));
+        expectIOException(new byte[]{(byte) 0xFF, (byte) 0xFF, (byte) 0xFF, (byte) 0xFE}, in -> BinaryProtocol.readCount(in));
+        expectIOException(new byte[]{0x7F, 0, 0, 0}, in -> BinaryProtocol.readString(in));
+        // A string cut short by the end of its frame
+        expectIOException(new byte[]{0, 0, 0, 5, 'a'}, in -> BinaryProtocol.readString(in));
+    }
+
+    @Test
+    public void transportReassemblesSplitAndPipelinedFrames() throws Exception {
+        transport = new BinaryTransport(server(), 0, 16);
+        try(Socket socket = new Socket("localhost", transport.getPort())) {
+            socket.setSoTimeout(10000);
+            OutputStream out = socket.getOutputStream();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+
+            // The slow lookup is sent first, and the rest back to back with it, split at odd places
+            ByteArrayOutputStream requests = new ByteArrayOutputStream();
+            requests.write(lookup(1, "slow"));
+            requests.write(lookup(2, "alice"));
+            requests.write(unknownOpcode(3));
+            List<String> many = new ArrayList<>();
+            for(int i = 0; i < 20000; i++)
+                many.add("user" + i);
+            // Larger than the transport's read buffer
+            requests.write(lookupMany(4, many));
+            byte[] bytes = requests.toByteArray();
+            for(int start = 0, step = 1; start < bytes.length; start += step, step = step * 3 + 1) {
+                out.write(bytes, start, Math.min(step, bytes.length - start));
+                out.flush();
+            }
+
+            Map<Integer, DataInputStream> replies = new HashMap<>();
+            List<Integer> order = new ArrayList<>();
+            for(int i = 0; i < 3; i++) {
+                DataInputStream reply = readFrame(in);
+                int id = reply.readInt();
+                order.add(id);
+                replies.put(id, reply);
+            }
+            assertFalse("The slow reply held up the others", order.contains(1));
+            release.countDown();
+            DataInputStream slow = readFrame(in);
+            assertEquals(1, slow.readInt());
+            replies.put(1, slow);
+
+            for(int id: new int[]{1, 2}) {
+                DataInputStream reply = replies.get(id);
+                assertEquals(BinaryProtocol.REPLY, reply.readByte());
+                assertEquals(id == 1 ? "slow" : "alice", BinaryProtocol.readResult(reply).getValue().getLoginName());
+            }
+            DataInputStream unknown = replies.get(3);
+            assertEquals(BinaryProtocol.FAILURE, unknown.readByte());
+            assertEquals("Unknown opcode: 99", BinaryProtocol.readString(unknown));
+            DataInputStream batch = replies.get(4);
+            assertEquals(BinaryProtocol.REPLY, batch.readByte());
+            BatchResult result = BinaryProtocol.readBatch(batch);
+            assertEquals(many.size(), result.size());
+            assertEquals("user19999", result.getUser(19999).getLoginName());
+        }
+    }
+
+    @Test
+    public void transportClosesConnectionOnBadFrame() throws Exception {
+        transport = new BinaryTransport(server(), 0, 16);
+        try(Socket socket = new Socket("localhost", transport.getPort())) {
+            socket.setSoTimeout(10000);
+            socket.getOutputStream().write(new byte[]{0, 0, 0, 2, 0, 0});
+            assertEquals(-1, socket.getInputStream().read());
+        }
+
+        // Other connections are still served
+        try(BinaryQueries client = new BinaryQueries("localhost", transport.getPort())) {
+            assertEquals("bob", client.lookupByLogin("bob").getValue().getLoginName());
+        }
+    }
+
+    /**
+     * @return a server that finds a user for any login name, holding up the one named slow
+     */
+    private Queries server() {
+        return (Queries) Proxy.newProxyInstance(Queries.class.getClassLoader(), new Class<?>[]{Queries.class},
+                (proxy, method, args) -> {
+                    switch(method.getName()) {
+                        case "lookupByLogin": {
+                            String loginName = (String) args[0];
+                            if(loginName.equals("slow") && !release.await(10, TimeUnit.SECONDS))
+                                throw new RemoteException("Never released");
+                            return Result.ok(UserInfo.loginOnly(new User(loginName, null, null, "::1")));
+                        }
+                        case "lookupByLogins": {
+                            @SuppressWarnings("unchecked")
+                            List<String> loginNames = (List<String>) args[0];
+                            BatchResult result = new BatchResult(loginNames.size());
+                            for(int i = 0; i < loginNames.size(); i++)
+                                result.set(i, Status.OK, UserInfo.loginOnly(new User(loginNames.get(i), null, null, "::1")));
+                            return result;
+                        }
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private static byte[] lookup(int id, String loginName) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = BinaryProtocol.begin(buffer, id);
+        out.writeByte(BinaryProtocol.LOOKUP_BY_LOGIN);
+        BinaryProtocol.writeString(out, loginName);
+        return BinaryProtocol.frame(buffer);
+    }
+
+    private static byte[] lookupMany(int id, List<String> loginNames) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        DataOutputStream out = BinaryProtocol.begin(buffer, id);
+        out.writeByte(BinaryProtocol.LOOKUP_BY_LOGINS);
+        BinaryProtocol.writeStrings(out, loginNames);
+        return BinaryProtocol.frame(buffer);
+    }
+
+    private static byte[] unknownOpcode(int id) throws IOException {
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        BinaryProtocol.begin(buffer, id).writeByte(99);
+        return BinaryProtocol.frame(buffer);
+    }
+
+    /**
+     * @return the rest of the next frame, after its length
+     */
+    private static DataInputStream readFrame(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        assertTrue("Bad frame length " + length, length >= 4 && length <= BinaryProtocol.MAX_FRAME);
+        byte[] frame = new byte[length];
+        in.readFully(frame);
+        return new DataInputStream(new ByteArrayInputStream(frame));
+    }
+
+    private static void assertSameUser(UserInfo expected, UserInfo actual) {
+        assertEquals(expected.getLoginName(), actual.getLoginName());
+        assertEquals(expected.getRealName(), actual.getRealName());
+        assertEquals(expected.getUUID(), actual.getUUID());
+        assertEquals(expected.getIp(), actual.getIp());
+        assertEquals(expected.getLastChangeDate(), actual.getLastChangeDate());
+    }
+
+    private static void expectIOException(byte[] bytes, Read read) {
+        try {
+            read.from(new DataInputStream(new ByteArrayInputStream(bytes)));
+            fail("Read " + Arrays.toString(bytes));
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    private interface Read {
+        Object from(DataInputStream in) throws IOException;
+    }
+}
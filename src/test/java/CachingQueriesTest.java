@@ -0,0 +1,177 @@
+import static org.junit.Assert.*;
+
+import java.lang.reflect.Proxy;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests that CachingQueries answers repeated lookups itself and drops users the server reports as
+ * changed, renamed through the cache, expired or evicted.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class CachingQueriesTest {
+    private final Map<String, UserInfo> users = new HashMap<>();
+    private final BlockingQueue<Changes> changes = new LinkedBlockingQueue<>();
+    private final AtomicInteger lookups = new AtomicInteger();
+    private CachingQueries cache;
+
+    @After
+    public void tearDown() {
+        if(cache != null)
+            cache.close();
+    }
+
+    @Test
+    public void answersRepeatedLookupsItself() throws Exception {
+        UserInfo alice = add("alice");
+        cache = following(100, 60000);
+
+        assertEquals(alice.getUUID(), cache.lookupByLogin("alice").getValue().getUUID());
+        assertEquals(1, lookups.get());
+        assertEquals("alice", cache.lookupByUUID(alice.getUUID().toString()).getValue().getLoginName());
+        assertEquals(1, lookups.get());
+        assertTrue(cache.getHits() >= 2);
+
+        // A batch takes what it can from the cache and sends the rest as one batch
+        add("bob");
+        BatchResult batch = cache.lookupByLogins(Arrays.asList("alice", "bob", "nobody"));
+        assertEquals(Status.OK, batch.getStatus(0));
+        assertEquals(Status.OK, batch.getStatus(1));
+        assertEquals(Status.NOT_FOUND, batch.getStatus(2));
+        assertEquals(2, lookups.get());
+        assertEquals(Status.NOT_FOUND, cache.lookupByLogin("nobody").getStatus());
+        assertEquals(3, lookups.get());
+    }
+
+    @Test
+    public void dropsUsersTheServerReportsChanged() throws Exception {
+        add("alice");
+        add("bob");
+        cache = following(100, 60000);
+        cache.lookupByLogin("bob");
+        assertEquals(2, cache.size());
+
+        changes.add(new Changes(new String[]{"alice"}, "2", true));
+        waitFor(() -> cache.size() == 1);
+        cache.lookupByLogin("alice");
+        assertEquals(3, lookups.get());
+
+        // Missed changes drop everything
+        changes.add(new Changes(new String[0], "3", false));
+        waitFor(() -> cache.size() == 0);
+    }
+
+    @Test
+    public void dropsUsersRenamedThroughIt() throws Exception {
+        add("alice");
+        cache = following(100, 60000);
+
+        cache.modifyName("alice", "carol", null);
+        assertEquals(0, cache.size());
+        assertEquals(1, cache.getInvalidations());
+    }
+
+    @Test
+    public void keepsUsersForTheTTLAndUpToTheLimit() throws Exception {
+        add("alice");
+        add("bob");
+        add("carol");
+        cache = following(2, 100);
+
+        cache.lookupByLogin("bob");
+        cache.lookupByLogin("carol");
+        assertEquals(2, cache.size());
+        assertEquals(1, cache.getEvictions());
+
+        Thread.sleep(150);
+        int before = lookups.get();
+        cache.lookupByLogin("carol");
+        assertEquals(before + 1, lookups.get());
+    }
+
+    private UserInfo add(String loginName) {
+        UserInfo user = UserInfo.of(new User(loginName, null, null, "127.0.0.1"));
+        users.put(loginName, user);
+        return user;
+    }
+
+    // Starts a cache over the fake server and waits until it follows the server's changes, when it
+    // starts caching the first user
+    private CachingQueries following(int maxUsers, long ttlMillis) throws Exception {
+        CachingQueries started = new CachingQueries(server(), maxUsers, ttlMillis);
+        waitFor(() -> {
+            try {
+                started.lookupByLogin("alice");
+            } catch (Exception e) {
+                throw new AssertionError(e);
+            }
+            return started.size() == 1;
+        });
+        lookups.set(1);
+        return started;
+    }
+
+    /**
+     * A server holding the users added, whose getChanges hands out the queued changes
+     */
+    private Queries server() {
+        return (Queries) Proxy.newProxyInstance(Queries.class.getClassLoader(), new Class<?>[]{Queries.class},
+                (proxy, method, args) -> {
+                    switch(method.getName()) {
+                        case "lookupByLogin": {
+                            lookups.incrementAndGet();
+                            UserInfo user = users.get((String) args[0]);
+                            return user == null ? Result.of(Status.NOT_FOUND) : Result.ok(user);
+                        }
+                        case "lookupByUUID": {
+                            lookups.incrementAndGet();
+                            for(UserInfo user: users.values()) {
+                                if(user.getUUID().toString().equals(args[0]))
+                                    return Result.ok(user);
+                            }
+                            return Result.of(Status.NOT_FOUND);
+                        }
+                        case "lookupByLogins": {
+                            lookups.incrementAndGet();
+                            List<?> names = (List<?>) args[0];
+                            BatchResult result = new BatchResult(names.size());
+                            for(int i = 0; i < names.size(); i++) {
+                                UserInfo user = users.get(names.get(i));
+                                result.set(i, user == null ? Status.NOT_FOUND : Status.OK, user);
+                            }
+                            return result;
+                        }
+                        case "modifyName":
+                            return Status.OK;
+                        case "getChanges": {
+                            if(args[0] == null)
+                                return Result.ok(new Changes(new String[0], "1", true));
+                            Changes next = changes.poll(20, TimeUnit.MILLISECONDS);
+                            return Result.ok(next != null ? next : new Changes(new String[0], (String) args[0], true));
+                        }
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while(!condition.getAsBoolean()) {
+            assertTrue("Timed out waiting for the cache", System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests password hashing and checking, the migration of older servers' stored passwords to
+ * salted hashes, and the peer key checks.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class CredentialsTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Before
+    public void setUp() {
+        // Keeps the tests fast; the work factor does not change what is checked
+        Credentials.setIterations(1000);
+    }
+
+    @After
+    public void tearDown() {
+        Credentials.setIterations(Credentials.DEFAULT_ITERATIONS);
+    }
+
+    @Test
+    public void checksPasswordsAgainstSaltedHashes() {
+        byte[] hash = Credentials.hash("pw");
+        assertTrue(Credentials.verify(hash, "pw"));
+        assertFalse(Credentials.verify(hash, "PW"));
+        assertFalse(Credentials.verify(hash, null));
+        // A fresh salt every time
+        assertFalse(MessageDigest.isEqual(hash, Credentials.hash("pw")));
+
+        assertNull(Credentials.hash(null));
+        assertTrue(Credentials.verify(null, "anything"));
+        assertFalse(Credentials.verify(new byte[0], "pw"));
+        assertFalse(Credentials.verify(new byte[]{1, 0, 0}, "pw"));
+    }
+
+    @Test
+    public void upgradesHashesWithFewerIterations() {
+        byte[] hash = Credentials.hash("pw");
+        assertFalse(Credentials.needsRehash(hash, "pw"));
+        Credentials.setIterations(2000);
+        assertTrue(Credentials.needsRehash(hash, "pw"));
+        // Still checked at the work factor it was made with
+        assertTrue(Credentials.verify(hash, "pw"));
+    }
+
+    @Test
+    public void migratesPasswordsStoredByOlderServers() throws Exception {
+        byte[] plain = Credentials.fromLegacy("secret");
+        assertTrue(Credentials.verify(plain, "secret"));
+        assertFalse(Credentials.verify(plain, "other"));
+        assertTrue(Credentials.needsRehash(plain, "secret"));
+
+        // Older clients sent the SHA-512 as upper case hex without each byte's leading zero
+        byte[] digest = MessageDigest.getInstance("SHA-512").digest("pw".getBytes(StandardCharsets.UTF_8));
+        StringBuilder oldHex = new StringBuilder();
+        for(byte b: digest)
+            oldHex.append(Integer.toHexString(b & 0xff).toUpperCase());
+        String clientHash = Credentials.toHex(digest);
+        byte[] stored = Credentials.fromLegacy(oldHex.toString());
+
+        assertTrue(Credentials.verify(stored, clientHash));
+        assertTrue(Credentials.needsRehash(stored, clientHash));
+        // An older client's string is kept, since current clients send another for the password
+        assertTrue(Credentials.verify(stored, oldHex.toString()));
+        assertFalse(Credentials.needsRehash(stored, oldHex.toString()));
+        assertFalse(Credentials.verify(stored, Credentials.toHex(new byte[64])));
+
+        byte[] upgraded = Credentials.hash(clientHash);
+        assertTrue(Credentials.verify(upgraded, clientHash));
+        assertFalse(Credentials.needsRehash(upgraded, clientHash));
+    }
+
+    @Test
+    public void checksPeerKeys() throws Exception {
+        assertTrue(Credentials.isPeerKey("key", "key"));
+        assertFalse(Credentials.isPeerKey("key", "kez"));
+        assertFalse(Credentials.isPeerKey("key", null));
+        assertFalse(Credentials.isPeerKey(null, "key"));
+        assertFalse(Credentials.isPeerKey(null, null));
+
+        File file = folder.newFile();
+        Files.write(file.toPath(), "  key \nsecond line\n".getBytes(StandardCharsets.UTF_8));
+        assertEquals("key", Credentials.readPeerKey(file));
+
+        Files.write(file.toPath(), " \n".getBytes(StandardCharsets.UTF_8));
+        try {
+            Credentials.readPeerKey(file);
+            fail("An empty key was read");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+}
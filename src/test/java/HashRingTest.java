@@ -0,0 +1,79 @@
+import static org.junit.Assert.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Test;
+
+/**
+ * Tests how the consistent hash ring places keys and how few of them move when nodes change.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class HashRingTest {
+    private static final int KEYS = 30000;
+
+    @Test
+    public void emptyRingHasNoNode() {
+        assertNull(new HashRing<String>().nodeFor("alice"));
+    }
+
+    @Test
+    public void placementDependsOnlyOnNodeNames() {
+        HashRing<String> forward = new HashRing<>();
+        HashRing<String> backward = new HashRing<>();
+        String[] names = {"host1:1099", "host2:1099", "host3:1099"};
+        for(int i = 0; i < names.length; i++) {
+            forward.add(names[i], names[i]);
+            backward.add(names[names.length - 1 - i], names[names.length - 1 - i]);
+        }
+
+        for(int i = 0; i < KEYS; i++)
+            assertEquals(forward.nodeFor("user" + i), backward.nodeFor("user" + i));
+    }
+
+    @Test
+    public void spreadsKeysEvenly() {
+        HashRing<Integer> ring = ring(4);
+        Map<Integer, Integer> counts = new HashMap<>();
+        for(int i = 0; i < KEYS; i++)
+            counts.merge(ring.nodeFor("user" + i), 1, Integer::sum);
+
+        assertEquals(4, counts.size());
+        for(int count: counts.values())
+            assertTrue("Uneven share: " + counts, count > KEYS / 4 * 0.75 && count < KEYS / 4 * 1.25);
+    }
+
+    @Test
+    public void addingANodeOnlyMovesKeysToIt() {
+        HashRing<Integer> ring = ring(3);
+        Map<String, Integer> before = new HashMap<>();
+        for(int i = 0; i < KEYS; i++)
+            before.put("user" + i, ring.nodeFor("user" + i));
+
+        ring.add("shard3", 3);
+        int moved = 0;
+        for(Map.Entry<String, Integer> entry: before.entrySet()) {
+            int now = ring.nodeFor(entry.getKey());
+            if(now != entry.getValue()) {
+                assertEquals(3, now);
+                moved++;
+            }
+        }
+        // About a quarter of the keys belong to the fourth node
+        assertTrue("Moved " + moved, moved > KEYS / 4 * 0.75 && moved < KEYS / 4 * 1.25);
+
+        ring.remove("shard3");
+        for(Map.Entry<String, Integer> entry: before.entrySet())
+            assertEquals(entry.getValue(), ring.nodeFor(entry.getKey()));
+    }
+
+    private static HashRing<Integer> ring(int nodes) {
+        HashRing<Integer> ring = new HashRing<>();
+        for(int i = 0; i < nodes; i++)
+            ring.add("shard" + i, i);
+
+        return ring;
+    }
+}
@@ -0,0 +1,156 @@
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Proxy;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.rmi.RemoteException;
+import java.util.List;
+import java.util.Map;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests that HttpTransport reads each operation's JSON arguments, replies with the JSON its class
+ * comment describes, and answers requests it cannot make with the matching HTTP status.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class HttpTransportTest {
+    private HttpTransport transport;
+
+    @Before
+    public void setUp() throws IOException {
+        transport = new HttpTransport(server(), 0, 16);
+    }
+
+    @After
+    public void tearDown() {
+        transport.close();
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void repliesMirrorTheJavaTypes() throws IOException {
+        Map<String, Object> found = (Map<String, Object>) call("POST", "lookupByLogin", "{\"loginName\": \"alice\"}", 200);
+        assertEquals("OK", found.get("status"));
+        Map<String, Object> user = (Map<String, Object>) found.get("user");
+        assertEquals("alice", user.get("loginName"));
+        assertEquals("Alice \"Al\" Smith", user.get("realName"));
+        assertNotNull(user.get("uuid"));
+        assertTrue(user.get("lastChangeDate") instanceof Long);
+
+        Map<String, Object> missing = (Map<String, Object>) call("POST", "lookupByLogin", "{\"loginName\": \"nobody\"}", 200);
+        assertEquals("NOT_FOUND", missing.get("status"));
+        assertFalse(missing.containsKey("user"));
+
+        Map<String, Object> renamed = (Map<String, Object>) call("POST", "modifyName",
+                "{\"oldLoginName\": \"alice\", \"newLoginName\": \"carol\"}", 200);
+        assertEquals("OK", renamed.get("status"));
+
+        Map<String, Object> page = (Map<String, Object>) call("POST", "getInfoPage",
+                "{\"type\": \"all\", \"pageSize\": 2}", 200);
+        assertEquals("OK", page.get("status"));
+        assertEquals(2, ((List<Object>) page.get("users")).size());
+        assertEquals("2", page.get("nextCursor"));
+
+        Map<String, Object> batch = (Map<String, Object>) call("POST", "lookupByLogins",
+                "{\"loginNames\": [\"alice\", \"nobody\"]}", 200);
+        List<Map<String, Object>> results = (List<Map<String, Object>>) batch.get("results");
+        assertEquals(2, results.size());
+        assertEquals("OK", results.get(0).get("status"));
+        assertEquals("NOT_FOUND", results.get(1).get("status"));
+        assertFalse(results.get(1).containsKey("user"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void refusesRequestsItCannotMake() throws IOException {
+        assertError(call("GET", "lookupByLogin", null, 405));
+        assertError(call("POST", "stats", null, 405));
+        assertError(call("POST", "noSuchOperation", "{}", 404));
+        assertError(call("POST", "lookupByLogin", "{\"loginName\": ", 400));
+        assertError(call("POST", "lookupByLogin", "[\"alice\"]", 400));
+        assertError(call("POST", "lookupByLogin", "{}", 400));
+        assertError(call("POST", "lookupByLogin", "{\"loginName\": 7}", 400));
+        assertError(call("POST", "getInfoPage", "{\"type\": \"all\", \"pageSize\": 1.5}", 400));
+        assertError(call("POST", "lookupByLogins", "{\"loginNames\": \"alice\"}", 400));
+
+        // A call that fails on the server
+        Map<String, Object> failed = (Map<String, Object>) call("POST", "deleteUser", "{\"loginName\": \"alice\"}", 500);
+        assertEquals("Server failed", failed.get("error"));
+    }
+
+    /**
+     * @return a server with alice, whose real name needs escaping in JSON, that fails deletes
+     */
+    private static Queries server() {
+        User alice = new User("alice", "Alice \"Al\" Smith", null, "::1");
+        return (Queries) Proxy.newProxyInstance(Queries.class.getClassLoader(), new Class<?>[]{Queries.class},
+                (proxy, method, args) -> {
+                    switch(method.getName()) {
+                        case "lookupByLogin":
+                            return args[0].equals("alice") ? Result.ok(UserInfo.of(alice)) : Result.<UserInfo>of(Status.NOT_FOUND);
+                        case "lookupByLogins": {
+                            @SuppressWarnings("unchecked")
+                            List<String> loginNames = (List<String>) args[0];
+                            BatchResult result = new BatchResult(loginNames.size());
+                            for(int i = 0; i < loginNames.size(); i++) {
+                                if(loginNames.get(i).equals("alice"))
+                                    result.set(i, Status.OK, UserInfo.of(alice));
+                                else
+                                    result.set(i, Status.NOT_FOUND, null);
+                            }
+                            return result;
+                        }
+                        case "modifyName":
+                            return args[0].equals("alice") && args[2] == null ? Status.OK : Status.BAD_PASSWORD;
+                        case "getInfoPage":
+                            return Result.ok(new Page(new UserInfo[]{UserInfo.of(alice), UserInfo.of(alice)}, "2"));
+                        case "deleteUser":
+                            throw new RemoteException("Server failed");
+                        default:
+                            throw new UnsupportedOperationException(method.getName());
+                    }
+                });
+    }
+
+    /**
+     * Makes a request and checks its HTTP status
+     *
+     * @return the reply, parsed
+     */
+    private Object call(String method, String op, String body, int code) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL("http://localhost:" + transport.getPort() + "/" + op).openConnection();
+        conn.setRequestMethod(method);
+        if(body != null) {
+            conn.setDoOutput(true);
+            try(OutputStream out = conn.getOutputStream()) {
+                out.write(body.getBytes(StandardCharsets.UTF_8));
+            }
+        }
+        assertEquals(op, code, conn.getResponseCode());
+        assertTrue(conn.getContentType().startsWith("application/json"));
+
+        ByteArrayOutputStream reply = new ByteArrayOutputStream();
+        try(InputStream in = code == 200 ? conn.getInputStream() : conn.getErrorStream()) {
+            byte[] buffer = new byte[8192];
+            int n;
+            while((n = in.read(buffer)) > 0)
+                reply.write(buffer, 0, n);
+        }
+        return Json.parse(new String(reply.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @SuppressWarnings("unchecked")
+    private static void assertError(Object reply) {
+        assertTrue(((Map<String, Object>) reply).get("error") instanceof String);
+    }
+}
@@ -0,0 +1,171 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.rmi.server.UnicastRemoteObject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that a server started as a replica refuses writes from its first request on, before its
+ * replicator has caught up with the primary, and that a replica copies a snapshot of one instant
+ * a page at a time, and that a change feed starting over leaves out the users the reaper has
+ * expired, like getInfoPage does.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class IdServerTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private IdServer server;
+    private WriteAheadLog wal;
+    private Reaper reaper;
+
+    @After
+    public void tearDown() throws Exception {
+        if(server != null)
+            UnicastRemoteObject.unexportObject(server, true);
+        IdServer.configureReplication(IdServer.parseArguments(new String[0]));
+        if(wal != null) {
+            store().setJournal(null);
+            setWal(null);
+            wal.close();
+        }
+        if(reaper != null) {
+            reaper.close();
+            setReaper(null);
+            store().setWatcher(usr -> { });
+        }
+        store().loadAll(Collections.<User>emptyList());
+    }
+
+    @Test
+    public void freshReplicaRefusesWrites() throws Exception {
+        File key = folder.newFile("peer.key");
+        Files.write(key.toPath(), "secret\n".getBytes(StandardCharsets.UTF_8));
+        IdServer.configureReplication(IdServer.parseArguments(new String[]{
+                "--replica-of", "localhost:1", "--peer-key", key.getPath()}));
+        server = new IdServer("IdServer");
+
+        assertFalse(server.isPrimary());
+        assertEquals(Status.NOT_PRIMARY, server.createLogin("alice", "Alice", "pw").getStatus());
+        assertEquals(Status.NOT_PRIMARY, server.modifyName("alice", "bob", "pw"));
+        assertEquals(Status.NOT_PRIMARY, server.deleteUser("alice", "pw"));
+    }
+
+    @Test
+    public void snapshotPagesShowOneInstant() throws Exception {
+        File key = folder.newFile("peer.key");
+        Files.write(key.toPath(), "secret\n".getBytes(StandardCharsets.UTF_8));
+        IdServer.configureReplication(IdServer.parseArguments(new String[]{"--peer-key", key.getPath()}));
+        wal = WriteAheadLog.open(folder.newFolder(), 0, 0);
+        store().setJournal(wal);
+        setWal(wal);
+        server = new IdServer("IdServer");
+        for(int i = 0; i < 25; i++)
+            assertEquals(Status.OK, server.createLogin(String.format("page%02d", i), null, null).getStatus());
+
+        assertEquals(Status.BAD_PASSWORD, server.fetchSnapshot("wrong", null, 10).getStatus());
+        SnapshotPage first = server.fetchSnapshot("secret", null, 10).getValue();
+        long lsn = wal.getLastLsn();
+        assertEquals(lsn, first.getLsn());
+        // A rename after the first page is not in the later ones
+        assertEquals(Status.OK, server.modifyName("page17", "later", null));
+
+        List<String> names = new ArrayList<>();
+        String second = first.getNextCursor();
+        SnapshotPage page = first;
+        while(true) {
+            for(User usr: page.getUsers())
+                names.add(usr.getLoginName());
+            assertEquals(lsn, page.getLsn());
+            if(page.isLast())
+                break;
+            page = server.fetchSnapshot("secret", page.getNextCursor(), 10).getValue();
+        }
+        assertEquals(25, names.size());
+        for(int i = 0; i < 25; i++)
+            assertEquals(String.format("page%02d", i), names.get(i));
+
+        // The snapshot is dropped after its last page
+        assertEquals(Status.NOT_FOUND, server.fetchSnapshot("secret", second, 10).getStatus());
+        assertEquals(Status.INVALID_REQUEST, server.fetchSnapshot("secret", "garbage", 10).getStatus());
+    }
+
+    @Test
+    public void eventSnapshotLeavesOutExpiredUsers() throws Exception {
+        IdServer.configureReplication(IdServer.parseArguments(new String[0]));
+        wal = WriteAheadLog.open(folder.newFolder(), 0, 0);
+        store().setJournal(wal);
+        setWal(wal);
+        server = new IdServer("IdServer");
+        Date old = new Date(System.currentTimeMillis() - 7200000);
+        List<String> fresh = new ArrayList<>();
+        for(int i = 0; i < 12; i++) {
+            String loginName = String.format("event%02d", i);
+            // Every third user has been idle for two hours, and whole pages of them in a row
+            if(i % 3 == 0 || (i >= 6 && i < 9))
+                assertEquals(Status.OK, store().create(new User(loginName, null, null, UUID.randomUUID(), "::1", old, old)));
+            else
+                fresh.add(server.createLogin(loginName, null, null).getValue().getLoginName());
+        }
+        // Expired after an hour, and never deleted while the server is not the primary
+        reaper = new Reaper(store(), wal, null, 3600000, 3600000, 1, () -> false);
+        setReaper(reaper);
+
+        List<String> created = new ArrayList<>();
+        ChangeFeed feed = server.getEvents(null, 3).getValue();
+        assertTrue(feed.isReset());
+        while(true) {
+            assertTrue(feed.isSnapshot());
+            for(ChangeEvent event: feed.getEvents())
+                created.add(event.getLoginName());
+            // The page after the last one is read from the log
+            if(!feed.getNextCursor().startsWith("s"))
+                break;
+            feed = server.getEvents(feed.getNextCursor(), 3).getValue();
+        }
+        assertEquals(fresh, created);
+
+        List<String> listed = new ArrayList<>();
+        for(UserInfo info: server.getInfoPage("users", null, 100).getValue().getUsers())
+            listed.add(info.getLoginName());
+        assertEquals(fresh, listed);
+    }
+
+    // The server's store and log are set up by main, so the test puts a log in by hand
+    private static UserStore store() throws Exception {
+        Field field = IdServer.class.getDeclaredField("store");
+        field.setAccessible(true);
+        return (UserStore) field.get(null);
+    }
+
+    private static void setWal(WriteAheadLog log) throws Exception {
+        Field field = IdServer.class.getDeclaredField("wal");
+        field.setAccessible(true);
+        field.set(null, log);
+    }
+
+    private static void setReaper(Reaper expiry) throws Exception {
+        Field field = IdServer.class.getDeclaredField("reaper");
+        field.setAccessible(true);
+        field.set(null, expiry);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void replicaNeedsPeerKey() throws Exception {
+        IdServer.configureReplication(IdServer.parseArguments(new String[]{"--replica-of", "localhost:1"}));
+    }
+}
@@ -0,0 +1,83 @@
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+/**
+ * Tests that Json parses the values HttpTransport reads, quotes the strings it writes so they
+ * parse back unchanged, and refuses malformed or too deeply nested text.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class JsonTest {
+    @Test
+    @SuppressWarnings("unchecked")
+    public void parsesEveryKindOfValue() {
+        Map<String, Object> object = (Map<String, Object>) Json.parse(
+                " {\"name\": \"alice\", \"size\": 25, \"negative\": -3, \"ratio\": 1.5e2,"
+                + " \"flags\": [true, false, null], \"nested\": {}, \"empty\": []} ");
+
+        assertEquals(Arrays.asList("name", "size", "negative", "ratio", "flags", "nested", "empty"),
+                Arrays.asList(object.keySet().toArray()));
+        assertEquals("alice", object.get("name"));
+        assertEquals(25L, object.get("size"));
+        assertEquals(-3L, object.get("negative"));
+        assertEquals(150.0, object.get("ratio"));
+        assertEquals(Arrays.asList(true, false, null), object.get("flags"));
+        assertEquals(Collections.emptyMap(), object.get("nested"));
+        assertEquals(Collections.emptyList(), object.get("empty"));
+    }
+
+    @Test
+    public void quotedStringsParseBack() {
+        String[] strings = {"", "plain", "quote \" and backslash \\", "lines\r\n\ttab", "control \u0001\u001f",
+                "unicode Zo\u00eb \u2713", "slash /"};
+        for(String s: strings) {
+            String quoted = Json.quote(new StringBuilder(), s).toString();
+            assertEquals(s, Json.parse(quoted));
+            for(char c: quoted.toCharArray())
+                assertTrue("Unescaped control character in " + quoted, c >= 0x20);
+        }
+        assertEquals("null", Json.quote(new StringBuilder(), null).toString());
+        assertEquals("\u00e9/\b\f", Json.parse("\"\\u00e9\\/\\b\\f\""));
+    }
+
+    @Test
+    public void refusesMalformedText() {
+        String[] bad = {"", "   ", "{", "[1,", "{\"a\" 1}", "{a: 1}", "[1 2]", "\"open", "\"bad \\x escape\"",
+                "\"\\u12\"", "tru", "01x", "1 2", "{\"a\": 1,}", "-", "1.2.3"};
+        for(String text: bad) {
+            try {
+                Json.parse(text);
+                fail("Parsed " + text);
+            } catch (IllegalArgumentException e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("at offset"));
+            }
+        }
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void limitsNesting() {
+        StringBuilder deep = new StringBuilder();
+        for(int i = 0; i < 33; i++)
+            deep.append('[');
+        for(int i = 0; i < 33; i++)
+            deep.append(']');
+        List<Object> outer = (List<Object>) Json.parse(deep.toString());
+        assertEquals(1, outer.size());
+
+        String deeper = "[" + deep + "]";
+        try {
+            Json.parse(deeper);
+            fail("Parsed nesting 34 deep");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("Nested too deeply"));
+        }
+    }
+}
@@ -0,0 +1,68 @@
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Tests that the latency histogram reports percentiles to within its bucket precision, over the
+ * whole range of a long.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class LatencyHistogramTest {
+
+    @Test
+    public void reportsZeroWhenEmpty() {
+        LatencyHistogram h = new LatencyHistogram();
+        assertEquals(0, h.getCount());
+        assertEquals(0, h.getMean());
+        assertEquals(0, h.getPercentile(99));
+    }
+
+    @Test
+    public void keepsSmallValuesExact() {
+        LatencyHistogram h = new LatencyHistogram();
+        for(int i = 0; i < 32; i++)
+            h.record(i);
+        h.record(-5);
+
+        assertEquals(33, h.getCount());
+        assertEquals(15, h.getPercentile(50));
+        assertEquals(0, h.getPercentile(0));
+        assertEquals(31, h.getPercentile(100));
+    }
+
+    @Test
+    public void reportsPercentilesWithinBucketPrecision() {
+        LatencyHistogram h = new LatencyHistogram();
+        for(long v = 1; v <= 100000; v++)
+            h.record(v * 1000);
+
+        assertEquals(100000, h.getCount());
+        assertEquals(50000500, h.getMean());
+        assertEquals(100000000, h.getMax());
+        assertWithin(50000000, h.getPercentile(50));
+        assertWithin(90000000, h.getPercentile(90));
+        assertWithin(99000000, h.getPercentile(99));
+        assertWithin(99900000, h.getPercentile(99.9));
+        // A percentile is never reported above the largest value recorded
+        assertEquals(100000000, h.getPercentile(100));
+    }
+
+    @Test
+    public void coversTheWholeRangeOfALong() {
+        LatencyHistogram h = new LatencyHistogram();
+        h.record(1);
+        h.record(Long.MAX_VALUE);
+
+        assertEquals(1, h.getPercentile(50));
+        assertEquals(Long.MAX_VALUE, h.getPercentile(100));
+    }
+
+    // A bucket's upper bound is at most one sub-bucket, 1/32, above the value
+    private static void assertWithin(long expected, long actual) {
+        assertTrue(actual + " is below " + expected, actual >= expected);
+        assertTrue(actual + " is more than 1/32 above " + expected, actual <= expected + expected / 32);
+    }
+}
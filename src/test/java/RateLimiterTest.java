@@ -0,0 +1,79 @@
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+/**
+ * Tests that the RateLimiter gives each client host its own lookup and heavy token buckets,
+ * refills them over time, and forgets the hosts it saw longest ago once it holds too many.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class RateLimiterTest {
+    @Test
+    public void allowsABucketThenThrottles() {
+        RateLimiter limiter = new RateLimiter(5, 5, 100);
+        for(int i = 0; i < 5; i++)
+            assertTrue(limiter.tryAcquire("a", Operation.LOOKUP_BY_LOGIN, 1));
+        assertFalse(limiter.tryAcquire("a", Operation.LOOKUP_BY_LOGIN, 1));
+        assertEquals(6, limiter.getChecked());
+        assertEquals(1, limiter.getThrottled());
+    }
+
+    @Test
+    public void keepsHostsAndBudgetsApart() {
+        RateLimiter limiter = new RateLimiter(5, 2, 100);
+        assertTrue(limiter.tryAcquire("a", Operation.CREATE_LOGIN, 2));
+        assertFalse(limiter.tryAcquire("a", Operation.DELETE_USER, 1));
+        // Lookups have their own bucket, and other hosts their own buckets
+        assertTrue(limiter.tryAcquire("a", Operation.LOOKUP_BY_UUID, 5));
+        assertTrue(limiter.tryAcquire("b", Operation.GET_INFO, 2));
+        assertEquals(2, limiter.getClients());
+    }
+
+    @Test
+    public void chargesBatchesPerItemButNeverMoreThanABucket() {
+        RateLimiter limiter = new RateLimiter(5, 5, 100);
+        assertTrue(limiter.tryAcquire("a", Operation.LOOKUP_BY_LOGINS, 3));
+        assertFalse(limiter.tryAcquire("a", Operation.LOOKUP_BY_LOGINS, 3));
+        assertTrue(limiter.tryAcquire("a", Operation.LOOKUP_BY_LOGINS, 2));
+
+        // A batch larger than the bucket still gets through once the bucket is full
+        assertTrue(limiter.tryAcquire("b", Operation.LOOKUP_BY_LOGINS, 1000));
+        assertFalse(limiter.tryAcquire("b", Operation.LOOKUP_BY_LOGIN, 1));
+    }
+
+    @Test
+    public void refillsOverTime() throws InterruptedException {
+        RateLimiter limiter = new RateLimiter(20, 0, 100);
+        assertTrue(limiter.tryAcquire("a", Operation.LOOKUP_BY_LOGIN, 20));
+        assertFalse(limiter.tryAcquire("a", Operation.LOOKUP_BY_LOGIN, 1));
+        // A token comes back every 50 ms
+        Thread.sleep(200);
+        assertTrue(limiter.tryAcquire("a", Operation.LOOKUP_BY_LOGIN, 2));
+    }
+
+    @Test
+    public void zeroRateIsUnlimited() {
+        RateLimiter limiter = new RateLimiter(0, 1, 100);
+        for(int i = 0; i < 10000; i++)
+            assertTrue(limiter.tryAcquire("a", Operation.LOOKUP_BY_LOGIN, 100));
+        assertEquals(0, limiter.getChecked());
+    }
+
+    @Test
+    public void dropsTheLeastRecentlySeenHosts() {
+        // One host per stripe at most
+        RateLimiter limiter = new RateLimiter(1, 1, 1);
+        for(int i = 0; i < 1000; i++)
+            limiter.tryAcquire("host" + i, Operation.LOOKUP_BY_LOGIN, 1);
+        assertTrue(limiter.getClients() <= 64);
+        assertTrue(limiter.getEvicted() >= 1000 - 64);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void refusesNegativeRates() {
+        new RateLimiter(-1, 1, 1);
+    }
+}
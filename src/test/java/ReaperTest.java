@@ -0,0 +1,165 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that the Reaper's timing wheel deletes users through the log once they have been inactive
+ * for the expiry and tombstone periods, moves users looked up since to a later slot, and leaves
+ * reaping to the primary. The wheel turns once a second, so each test takes a few seconds.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class ReaperTest {
+    private static final long HOUR = 3600000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+    private WriteAheadLog wal;
+    private UserStore store;
+    private Reaper reaper;
+
+    @Before
+    public void setUp() throws Exception {
+        dir = folder.newFolder();
+        wal = WriteAheadLog.open(dir, 0, 0);
+        store = new UserStore();
+        store.setJournal(wal);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        if(reaper != null)
+            reaper.close();
+        wal.close();
+    }
+
+    @Test
+    public void deletesInactiveUsersThroughTheLog() throws Exception {
+        User idle = add("idle", 2 * HOUR);
+        User active = add("active", 0);
+        reaper = new Reaper(store, wal, null, HOUR, 0, 100, () -> true);
+        assertTrue(reaper.isExpired(idle));
+        assertFalse(reaper.isExpired(active));
+        assertEquals(2, reaper.getScheduled());
+
+        // Counted once the deletes are durable
+        waitFor(() -> reaper.getReaped() == 1);
+        assertNull(store.get("idle"));
+        assertSame(active, store.get("active"));
+        assertNull(store.getByUUID(idle.getUUID()));
+
+        List<String> deleted = new ArrayList<>();
+        WriteAheadLog.replay(dir, 0, new Journal() {
+            @Override
+            public void logCreate(User user) {
+            }
+
+            @Override
+            public void logRename(String oldLoginName, String newLoginName, Date lastChangeDate) {
+            }
+
+            @Override
+            public void logDelete(String loginName) {
+                deleted.add(loginName);
+            }
+
+            @Override
+            public void logRehash(String loginName, byte[] passwordHash) {
+            }
+        });
+        assertEquals(1, deleted.size());
+        assertEquals("idle", deleted.get(0));
+    }
+
+    @Test
+    public void keepsExpiredUsersForTheTombstonePeriod() throws Exception {
+        // Expired half an hour ago, and due for deletion in two seconds
+        User expired = add("expired", 2 * HOUR - 2000);
+        reaper = new Reaper(store, wal, null, HOUR, HOUR, 100, () -> true);
+        assertTrue(reaper.isExpired(expired));
+
+        Thread.sleep(1000);
+        assertSame(expired, store.get("expired"));
+        waitFor(() -> reaper.getReaped() == 1);
+        assertNull(store.get("expired"));
+    }
+
+    @Test
+    public void movesUsersLookedUpSinceTheyWereScheduled() throws Exception {
+        User looked = add("looked", HOUR - 1500);
+        User left = add("left", HOUR - 1500);
+        reaper = new Reaper(store, wal, null, HOUR, 0, 100, () -> true);
+
+        // Lookups do not tell the wheel, which finds out when the user's slot comes round
+        looked.updateLastRequestDate();
+        waitFor(() -> store.get("left") == null);
+        Thread.sleep(1000);
+        assertSame(looked, store.get("looked"));
+        assertFalse(reaper.isExpired(looked));
+        assertEquals(1, reaper.getScheduled());
+        assertNull(store.getByUUID(left.getUUID()));
+    }
+
+    @Test
+    public void leavesReapingToThePrimary() throws Exception {
+        User idle = add("idle", 2 * HOUR);
+        reaper = new Reaper(store, wal, null, HOUR, 0, 100, () -> false);
+
+        Thread.sleep(2500);
+        // Hidden, and kept on the wheel for a turn later in case the server becomes the primary
+        assertSame(idle, store.get("idle"));
+        assertTrue(reaper.isExpired(idle));
+        assertEquals(0, reaper.getReaped());
+        assertEquals(0, reaper.getBacklog());
+        assertEquals(1, reaper.getScheduled());
+    }
+
+    @Test
+    public void deletesABatchPerTick() throws Exception {
+        for(int i = 0; i < 5; i++)
+            add("idle" + i, 2 * HOUR);
+        reaper = new Reaper(store, wal, null, HOUR, 0, 2, () -> true);
+
+        // The backlog is reported once the tick's batch is deleted
+        waitFor(() -> reaper.getBacklog() > 0);
+        assertEquals(3, reaper.getBacklog());
+        assertEquals(2, reaper.getReaped());
+        waitFor(() -> reaper.getBacklog() == 0 && reaper.getReapedLastMinute() == 5);
+        assertEquals(5, reaper.getReaped());
+        assertEquals(0, store.size());
+    }
+
+    /**
+     * Puts a user in the store, last active some time ago
+     */
+    private User add(String loginName, long idleMillis) {
+        Date last = new Date(System.currentTimeMillis() - idleMillis);
+        User usr = new User(loginName, null, null, UUID.randomUUID(), "::1", last, last);
+        assertEquals(Status.OK, store.create(usr));
+
+        return usr;
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while(!condition.getAsBoolean()) {
+            assertTrue("Timed out waiting for the reaper", System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}
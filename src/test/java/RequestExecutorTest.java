@@ -0,0 +1,113 @@
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+import org.junit.After;
+import org.junit.Test;
+
+/**
+ * Tests that requests cancelled before they started, as callEach and await cancel the ones no
+ * longer waited for, give their place in the lane back in both the platform and the
+ * semaphore-limited mode.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class RequestExecutorTest {
+    private static final RequestExecutor.Lane LANE = RequestExecutor.Lane.LOOKUP;
+
+    private final List<ExecutorService> pools = new ArrayList<>();
+    private final CountDownLatch gate = new CountDownLatch(1);
+    private RequestExecutor executor;
+
+    @After
+    public void tearDown() {
+        gate.countDown();
+        if(executor != null)
+            executor.shutdown();
+        for(ExecutorService pool: pools)
+            pool.shutdownNow();
+    }
+
+    @Test
+    public void cancelledWhileQueuedFreesPlatformLane() throws Exception {
+        executor = new RequestExecutor(1, 1, 1, 1, 1, 1, false);
+        Thread blocker = caller(() -> {
+            gate.await();
+            return "done";
+        });
+        waitFor(() -> executor.getActive(LANE) == 1);
+
+        cancelWhileQueued();
+        cancelWhileQueued();
+
+        assertEquals(0, executor.getQueued(LANE));
+        gate.countDown();
+        blocker.join();
+        assertEquals("ok", executor.call(LANE, () -> "ok", "busy"));
+        assertEquals(0, executor.getRejected(LANE));
+    }
+
+    @Test
+    public void cancelledBeforeStartingFreesSemaphoreLane() throws Exception {
+        // One thread per lane, held by the gate, so submitted requests wait in the pool unstarted
+        // as they may on a busy virtual thread scheduler
+        executor = new RequestExecutor(1, 1, 1, 1, 1, 1, () -> {
+            ExecutorService pool = Executors.newSingleThreadExecutor();
+            pool.execute(() -> {
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            pools.add(pool);
+            return pool;
+        });
+
+        // Two permits: more cancelled requests than that would exhaust them if each leaked its own
+        for(int i = 0; i < 4; i++)
+            cancelWhileQueued();
+
+        assertEquals(0, executor.getQueued(LANE));
+        gate.countDown();
+        assertEquals("ok", executor.call(LANE, () -> "ok", "busy"));
+        assertEquals(0, executor.getRejected(LANE));
+    }
+
+    // Starts a call that queues behind the held lane, then interrupts its caller, which cancels it
+    private void cancelWhileQueued() throws Exception {
+        Thread caller = caller(() -> "queued");
+        waitFor(() -> executor.getQueued(LANE) == 1);
+        caller.interrupt();
+        caller.join();
+        waitFor(() -> executor.getQueued(LANE) == 0);
+    }
+
+    private Thread caller(Callable<String> request) {
+        Thread t = new Thread(() -> {
+            try {
+                executor.call(LANE, request, "busy");
+            } catch (Exception e) {
+                // An interrupted caller gets a RemoteException
+            }
+        });
+        t.start();
+        return t;
+    }
+
+    private static void waitFor(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while(!condition.getAsBoolean()) {
+            assertTrue("Timed out waiting for the lane", System.nanoTime() < deadline);
+            Thread.sleep(5);
+        }
+    }
+}
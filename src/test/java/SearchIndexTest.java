@@ -0,0 +1,107 @@
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Tests the prefix and substring searches of the SearchIndex, through the UserStore that keeps it
+ * up to date, across paging, renames, deletes and a rebuild after a load.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class SearchIndexTest {
+    @Test
+    public void loginNamesMatchExactly() {
+        UserStore store = storeOf("alice", "Malice", "palace", "bob");
+
+        assertEquals(Arrays.asList("Malice", "alice"), logins(store.containing(false, "ali", null, 10)));
+        assertEquals(Arrays.asList("Malice"), logins(store.containing(false, "Mal", null, 10)));
+        assertEquals(Arrays.asList(), logins(store.containing(false, "mal", null, 10)));
+        assertEquals(Arrays.asList("palace"), logins(store.containing(false, "ala", null, 10)));
+        assertEquals(Arrays.asList(), logins(store.containing(false, "xyz", null, 10)));
+    }
+
+    @Test
+    public void realNamesIgnoreCase() {
+        UserStore store = new UserStore();
+        store.create(new User("u1", "Ann Smith", null, "127.0.0.1"));
+        store.create(new User("u2", "SMITHERS", null, "127.0.0.1"));
+        store.create(new User("u3", "Anna Jones", null, "127.0.0.1"));
+        store.create(new User("u4", null, null, "127.0.0.1"));
+
+        assertEquals(Arrays.asList("u1", "u2"), logins(store.containing(true, "smith", null, 10)));
+        assertEquals(Arrays.asList("u1", "u3"), logins(store.realNamesStartingWith("an", null, 10)));
+        assertEquals(Arrays.asList("u3"), logins(store.realNamesStartingWith("ANNA", null, 10)));
+        assertEquals(Arrays.asList("u2"), logins(store.realNamesStartingWith("s", null, 10)));
+    }
+
+    @Test
+    public void pagesFollowLoginNameOrder() {
+        UserStore store = new UserStore();
+        List<String> expected = new ArrayList<>();
+        for(int i = 99; i >= 0; i--)
+            store.create(new User(String.format("user%02d", i), "Common Name", null, "127.0.0.1"));
+        for(int i = 0; i < 100; i++)
+            expected.add(String.format("user%02d", i));
+
+        List<String> seen = new ArrayList<>();
+        String after = null;
+        while(true) {
+            List<User> page = store.containing(true, "mmon", after, 7);
+            if(page.isEmpty())
+                break;
+            assertTrue(page.size() <= 7);
+            seen.addAll(logins(page));
+            after = page.get(page.size() - 1).getLoginName();
+        }
+        assertEquals(expected, seen);
+
+        assertEquals(Arrays.asList("user50", "user51"), logins(store.realNamesStartingWith("com", "user49", 2)));
+    }
+
+    @Test
+    public void renamedAndDeletedUsersAreSkipped() {
+        UserStore store = storeOf("alpha", "alpine", "alps");
+
+        assertEquals(Status.OK, store.rename(store.get("alpine"), "zeta"));
+        assertEquals(Status.OK, store.delete(store.get("alps")));
+
+        assertEquals(Arrays.asList("alpha"), logins(store.containing(false, "alp", null, 10)));
+        assertEquals(Arrays.asList("zeta"), logins(store.containing(false, "eta", null, 10)));
+        // The real name stays with the renamed user
+        assertEquals(Arrays.asList("alpha", "zeta"), logins(store.realNamesStartingWith("Name", null, 10)));
+    }
+
+    @Test
+    public void loadRebuildsTheIndex() {
+        UserStore store = storeOf("old1", "old2");
+        List<User> loaded = new ArrayList<>();
+        loaded.add(new User("newcomer", "Fresh Face", null, "127.0.0.1"));
+        loaded.add(new User("another", "Fresh Start", null, "127.0.0.1"));
+        store.loadAll(loaded);
+
+        assertEquals(Arrays.asList(), logins(store.containing(false, "old", null, 10)));
+        assertEquals(Arrays.asList("another", "newcomer"), logins(store.realNamesStartingWith("fresh", null, 10)));
+        assertEquals(Arrays.asList("newcomer"), logins(store.containing(false, "wco", null, 10)));
+    }
+
+    private static UserStore storeOf(String... loginNames) {
+        UserStore store = new UserStore();
+        for(String loginName: loginNames)
+            assertEquals(Status.OK, store.create(new User(loginName, "Name of " + loginName, null, "127.0.0.1")));
+
+        return store;
+    }
+
+    private static List<String> logins(List<User> users) {
+        List<String> names = new ArrayList<>();
+        for(User usr: users)
+            names.add(usr.getLoginName());
+
+        return names;
+    }
+}
@@ -0,0 +1,178 @@
+import static org.junit.Assert.*;
+
+import java.rmi.RemoteException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import org.junit.Test;
+
+/**
+ * Tests that ShardedQueries sends each login name to one shard, finds users by UUID on the shard
+ * that has them, and moves a user renamed onto another shard.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class ShardedQueriesTest {
+    private static final String KEY = "secret";
+    private static final String[] NAMES = {"a:1099", "b:1099", "c:1099"};
+
+    private final FakeShard[] shards = {new FakeShard(), new FakeShard(), new FakeShard()};
+
+    @Test
+    public void sendsEachLoginNameToOneShard() throws Exception {
+        ShardedQueries queries = new ShardedQueries(NAMES, shards, KEY);
+        for(int i = 0; i < 300; i++)
+            assertEquals(Status.OK, queries.createLogin("user" + i, null, null).getStatus());
+
+        for(FakeShard shard: shards)
+            assertTrue("A shard got " + shard.users.size() + " of 300 users", shard.users.size() > 30);
+        for(int i = 0; i < 300; i++) {
+            int holding = 0;
+            for(FakeShard shard: shards) {
+                if(shard.users.containsKey("user" + i))
+                    holding++;
+            }
+            assertEquals(1, holding);
+            assertEquals(Status.OK, queries.lookupByLogin("user" + i).getStatus());
+        }
+
+        // Another client with the same shard list agrees on where every user is
+        ShardedQueries other = new ShardedQueries(NAMES, shards, null);
+        assertEquals(Status.ALREADY_EXISTS, other.createLogin("user7", null, null).getStatus());
+    }
+
+    @Test
+    public void asksEveryShardOnlyForAnUnknownUUID() throws Exception {
+        ShardedQueries queries = new ShardedQueries(NAMES, shards, KEY);
+        UUID known = queries.createLogin("alice", null, null).getValue().getUUID();
+        User elsewhere = new User("bob", null, null, "127.0.0.1");
+        shards[2].users.put("bob", elsewhere);
+
+        assertEquals("alice", queries.lookupByUUID(known.toString()).getValue().getLoginName());
+        assertEquals(1, uuidLookups());
+
+        assertEquals("bob", queries.lookupByUUID(elsewhere.getUUID().toString()).getValue().getLoginName());
+        assertEquals(1 + shards.length, uuidLookups());
+        // Remembered from then on
+        queries.lookupByUUID(elsewhere.getUUID().toString());
+        assertEquals(2 + shards.length, uuidLookups());
+
+        assertEquals(Status.NOT_FOUND, queries.lookupByUUID("not a uuid").getStatus());
+    }
+
+    @Test
+    public void movesAUserRenamedOntoAnotherShard() throws Exception {
+        ShardedQueries queries = new ShardedQueries(NAMES, shards, KEY);
+        UUID uuid = queries.createLogin("alice", "Alice", null).getValue().getUUID();
+        int from = holderOf("alice");
+        // The same ring as the client's, to find a name another shard owns
+        HashRing<Integer> ring = new HashRing<>();
+        for(int i = 0; i < NAMES.length; i++)
+            ring.add(NAMES[i], i);
+        String newName = null;
+        for(int i = 0; newName == null; i++) {
+            if(ring.nodeFor("name" + i) != from)
+                newName = "name" + i;
+        }
+
+        try {
+            new ShardedQueries(NAMES, shards, null).modifyName("alice", newName, null);
+            fail("A move needs the peer key");
+        } catch (RemoteException e) {
+            // Expected
+        }
+        assertEquals(Status.OK, queries.modifyName("alice", newName, null));
+        assertFalse(shards[from].users.containsKey("alice"));
+        UserInfo moved = queries.lookupByLogin(newName).getValue();
+        assertEquals(uuid, moved.getUUID());
+        assertEquals("Alice", moved.getRealName());
+        assertEquals(newName, queries.lookupByUUID(uuid.toString()).getValue().getLoginName());
+    }
+
+    private int uuidLookups() {
+        int sum = 0;
+        for(FakeShard shard: shards)
+            sum += shard.uuidLookups;
+        return sum;
+    }
+
+    private int holderOf(String loginName) {
+        for(int i = 0; i < shards.length; i++) {
+            if(shards[i].users.containsKey(loginName))
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * One shard kept in memory, with the calls ShardedQueries makes
+     */
+    private static class FakeShard extends ReplicatedQueries {
+        final Map<String, User> users = new HashMap<>();
+        int uuidLookups;
+
+        FakeShard() {
+            super(new String[]{"localhost:1"}, 1099);
+        }
+
+        @Override
+        public synchronized Result<UserInfo> createLogin(String loginName, String realName, String password) {
+            if(users.containsKey(loginName))
+                return Result.of(Status.ALREADY_EXISTS);
+            User ud = new User(loginName, realName, null, "127.0.0.1");
+            users.put(loginName, ud);
+            return Result.ok(UserInfo.of(ud));
+        }
+
+        @Override
+        public synchronized Result<UserInfo> lookupByLogin(String loginName) {
+            User ud = users.get(loginName);
+            return ud == null ? Result.of(Status.NOT_FOUND) : Result.ok(UserInfo.of(ud));
+        }
+
+        @Override
+        public synchronized Result<UserInfo> lookupByUUID(String uuid) {
+            uuidLookups++;
+            for(User ud: users.values()) {
+                if(ud.getUUID().toString().equals(uuid))
+                    return Result.ok(UserInfo.of(ud));
+            }
+            return Result.of(Status.NOT_FOUND);
+        }
+
+        @Override
+        public synchronized Status deleteUser(String loginName, String password) {
+            return users.remove(loginName) == null ? Status.NOT_FOUND : Status.OK;
+        }
+
+        @Override
+        public synchronized Result<User> exportUser(String key, String loginName, String password) {
+            assertEquals(KEY, key);
+            User ud = users.get(loginName);
+            return ud == null ? Result.of(Status.NOT_FOUND) : Result.ok(ud);
+        }
+
+        @Override
+        public synchronized BatchResult importUsers(String key, List<User> imported) {
+            assertEquals(KEY, key);
+            BatchResult result = new BatchResult(imported.size());
+            for(int i = 0; i < imported.size(); i++) {
+                User ud = imported.get(i);
+                boolean taken = users.putIfAbsent(ud.getLoginName(), ud) != null;
+                result.set(i, taken ? Status.ALREADY_EXISTS : Status.OK, null);
+            }
+            return result;
+        }
+
+        @Override
+        public synchronized BatchResult dropUsers(String key, List<User> dropped) {
+            assertEquals(KEY, key);
+            for(User ud: dropped)
+                users.remove(ud.getLoginName());
+            return BatchResult.allOf(dropped.size(), Status.OK);
+        }
+    }
+}
@@ -0,0 +1,150 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests the segments of a version 3 snapshot file: that they hold the users in login name order,
+ * that segmentOf finds the one segment that can hold a login name, and that a store loaded one
+ * segment ahead of the rest can answer for that segment's users before the others are in.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class SnapshotTest {
+    // More than one segment's worth
+    private static final int USERS = 70000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void segmentsFollowLoginNameOrder() throws IOException {
+        File file = writeSnapshot();
+
+        try(Snapshot.Reader reader = Snapshot.Reader.open(file)) {
+            assertEquals(77, reader.getLsn());
+            assertEquals(USERS, reader.getUserCount());
+            assertEquals(2, reader.getSegmentCount());
+
+            List<String> names = new ArrayList<>();
+            for(int segment = 0; segment < reader.getSegmentCount(); segment++) {
+                for(User usr: reader.readSegment(segment)) {
+                    assertEquals(usr.getLoginName(), segment, reader.segmentOf(usr.getLoginName()));
+                    names.add(usr.getLoginName());
+                }
+            }
+            assertEquals(USERS, names.size());
+            for(int i = 0; i < USERS; i++)
+                assertEquals(name(i), names.get(i));
+
+            // Names not in the snapshot go to the segment they would sort into
+            assertEquals(0, reader.segmentOf("a"));
+            assertEquals(1, reader.segmentOf(name(65536) + "x"));
+            assertEquals(1, reader.segmentOf("zzz"));
+
+            User read = reader.readSegment(1).get(0);
+            User original = user(65536);
+            assertEquals(original.getRealName(), read.getRealName());
+            assertArrayEquals(original.getPasswordHash(), read.getPasswordHash());
+            assertEquals(original.getUUID(), read.getUUID());
+            assertEquals(original.getIp(), read.getIp());
+            assertEquals(original.getLastChangeTime(), read.getLastChangeTime());
+            assertEquals(original.getLastRequestTime(), read.getLastRequestTime());
+        }
+    }
+
+    @Test
+    public void oneSegmentLoadsAheadOfTheRest() throws IOException {
+        File file = writeSnapshot();
+        UserStore store = new UserStore();
+
+        try(Snapshot.Reader reader = Snapshot.Reader.open(file)) {
+            store.beginLoad((int) reader.getUserCount());
+            String wanted = name(68000);
+            int segment = reader.segmentOf(wanted);
+            store.load(reader.readSegment(segment));
+
+            User found = store.get(wanted);
+            assertNotNull(found);
+            assertSame(found, store.getByUUID(found.getUUID()));
+            assertNull(store.get(name(0)));
+            assertEquals(USERS - 65536, store.size());
+
+            for(int i = 0; i < reader.getSegmentCount(); i++) {
+                if(i != segment)
+                    store.load(reader.readSegment(i));
+            }
+            store.finishLoad();
+        }
+        assertEquals(USERS, store.size());
+        assertNotNull(store.get(name(0)));
+        assertEquals(1, store.realNamesStartingWith("user 000008", null, 10).size());
+    }
+
+    @Test
+    public void legacyBackupsAreOneUnorderedSegment() {
+        List<User> users = new ArrayList<>();
+        for(int i = 0; i < 10; i++)
+            users.add(user(9 - i));
+        Snapshot.Reader reader = Snapshot.Reader.of(new Snapshot(0, users));
+
+        assertEquals(1, reader.getSegmentCount());
+        assertEquals(10, reader.getUserCount());
+        assertSame(users, reader.readSegment(0));
+        assertEquals(-1, reader.segmentOf(name(3)));
+    }
+
+    @Test
+    public void emptySnapshotHasNoSegments() throws IOException {
+        File file = new File(folder.getRoot(), "empty.snapshot");
+        new Snapshot(5, Collections.<User>emptyList()).write(file);
+
+        try(Snapshot.Reader reader = Snapshot.Reader.open(file)) {
+            assertEquals(5, reader.getLsn());
+            assertEquals(0, reader.getSegmentCount());
+            assertEquals(-1, reader.segmentOf("alice"));
+        }
+        assertTrue(Snapshot.read(file).getUsers().isEmpty());
+    }
+
+    @Test(expected = IOException.class)
+    public void refusesOtherFiles() throws IOException {
+        File file = folder.newFile("registry.backup");
+        Files.write(file.toPath(), new byte[64]);
+        Snapshot.Reader.open(file).close();
+    }
+
+    /**
+     * @return a snapshot file of USERS users, handed to write out of order
+     */
+    private File writeSnapshot() throws IOException {
+        List<User> users = new ArrayList<>(USERS);
+        for(int i = 0; i < USERS; i++)
+            users.add(user(i));
+        Collections.shuffle(users, new Random(1));
+
+        File file = new File(folder.getRoot(), "registry.snapshot");
+        new Snapshot(77, users).write(file);
+
+        return file;
+    }
+
+    private static String name(int i) {
+        return String.format("user%06d", i);
+    }
+
+    private static User user(int i) {
+        return new User(name(i), i % 2 == 0 ? "User " + String.format("%06d", i) : null, i % 3 == 0 ? new byte[]{(byte) i} : null,
+                i, -i, "10.0.0." + (i % 256), 1000L * i, 2000L * i);
+    }
+}
@@ -0,0 +1,90 @@
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import org.junit.Test;
+
+/**
+ * Tests the open-addressing UUID index through growth, removals and tombstones.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class UUIDIndexTest {
+
+    @Test
+    public void findsEveryUserThroughGrowthAndRemovals() {
+        UUIDIndex index = new UUIDIndex();
+        List<User> users = new ArrayList<>();
+        for(int i = 0; i < 10000; i++) {
+            User usr = new User("user" + i, null, null, null);
+            users.add(usr);
+            index.put(usr);
+        }
+        assertEquals(10000, index.size());
+
+        // Removing every other user leaves tombstones the remaining probes must step over
+        for(int i = 0; i < users.size(); i += 2)
+            assertTrue(index.remove(users.get(i)));
+        assertEquals(5000, index.size());
+        for(int i = 0; i < users.size(); i++) {
+            User usr = users.get(i);
+            User found = index.get(usr.getUUIDHigh(), usr.getUUIDLow());
+            if(i % 2 == 0)
+                assertNull(found);
+            else
+                assertSame(usr, found);
+        }
+
+        // Enough churn to make the index rebuild to clear its tombstones
+        for(int round = 0; round < 5; round++) {
+            for(int i = 1; i < users.size(); i += 2) {
+                User usr = users.get(i);
+                assertTrue(index.remove(usr));
+                index.put(usr);
+            }
+        }
+        assertEquals(5000, index.size());
+        for(int i = 1; i < users.size(); i += 2)
+            assertSame(users.get(i), index.get(users.get(i).getUUIDHigh(), users.get(i).getUUIDLow()));
+    }
+
+    @Test(timeout = 10000)
+    public void correlatedHalvesDoNotCollide() {
+        // i and -i differ only in bits that cancel out if the halves are combined before mixing,
+        // which left every probe scanning one long run of the table
+        UUIDIndex index = new UUIDIndex();
+        List<User> users = new ArrayList<>();
+        for(int i = 1; i <= 100000; i++) {
+            User usr = new User("user" + i, null, null, i, -i, null, 0, 0);
+            users.add(usr);
+            index.put(usr);
+        }
+        for(User usr: users)
+            assertSame(usr, index.get(usr.getUUIDHigh(), usr.getUUIDLow()));
+    }
+
+    @Test
+    public void putReplacesAndRemoveOnlyTakesTheHeldUser() {
+        UUIDIndex index = new UUIDIndex();
+        User alice = new User("alice", null, null, null);
+        User renamed = new User(alice, "carol", new Date());
+        index.put(alice);
+        index.put(renamed);
+        assertEquals(1, index.size());
+        assertSame(renamed, index.get(alice.getUUIDHigh(), alice.getUUIDLow()));
+
+        // The old object is no longer the one held, so removing it changes nothing
+        assertFalse(index.remove(alice));
+        assertSame(renamed, index.get(alice.getUUIDHigh(), alice.getUUIDLow()));
+        assertTrue(index.remove(renamed));
+        assertNull(index.get(alice.getUUIDHigh(), alice.getUUIDLow()));
+
+        index.put(alice);
+        index.clear(0);
+        assertEquals(0, index.size());
+        assertNull(index.get(alice.getUUIDHigh(), alice.getUUIDLow()));
+    }
+}
@@ -0,0 +1,173 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests the UserStore's atomic mutations and its versioned snapshots, which keep every user as it
+ * was at the snapshot's instant while mutations go on.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class UserStoreTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void createRefusesTakenLoginNameAndUUID() {
+        UserStore store = new UserStore();
+        User alice = new User("alice", "Alice", null, "127.0.0.1");
+        assertEquals(Status.OK, store.create(alice));
+        assertEquals(Status.ALREADY_EXISTS, store.create(new User("alice", "Other", null, "127.0.0.1")));
+
+        // An imported copy under another name must not take over alice's UUID
+        User copy = new User(alice, "mallory", new Date());
+        assertEquals(Status.ALREADY_EXISTS, store.create(copy));
+        assertSame(alice, store.getByUUID(alice.getUUID()));
+        assertNull(store.get("mallory"));
+    }
+
+    @Test
+    public void renameMovesEveryIndex() {
+        UserStore store = new UserStore();
+        User alice = new User("alice", "Alice", null, "127.0.0.1");
+        store.create(alice);
+        store.create(new User("bob", "Bob", null, "127.0.0.1"));
+
+        assertEquals(Status.ALREADY_EXISTS, store.rename(alice, "bob"));
+        assertEquals(Status.OK, store.rename(alice, "carol"));
+        assertNull(store.get("alice"));
+        User carol = store.get("carol");
+        assertEquals(alice.getUUID(), carol.getUUID());
+        assertSame(carol, store.getByUUID(alice.getUUID()));
+        // The User the rename was given keeps its name for readers still holding it
+        assertEquals("alice", alice.getLoginName());
+        // A rename or delete of a user that has changed since is refused
+        assertEquals(Status.BAD_PASSWORD, store.delete(new User(carol, new byte[]{1})));
+        assertEquals(Status.NOT_FOUND, store.rename(alice, "dave"));
+        assertEquals(Status.OK, store.delete(carol));
+        assertNull(store.getByUUID(alice.getUUID()));
+        assertEquals(1, store.size());
+    }
+
+    @Test
+    public void snapshotPreservesUsersRenamedWhileItIsCopied() throws Exception {
+        int count = 2000;
+        UserStore store = new UserStore();
+        Set<UUID> uuids = new HashSet<>();
+        for(int i = 0; i < count; i++) {
+            User usr = new User("m" + i, "User " + i, null, "127.0.0.1");
+            store.create(usr);
+            uuids.add(usr.getUUID());
+        }
+
+        // Renames each user back and forth between both ends of the copy's login name order, so
+        // the copy keeps meeting renames of names it has and has not reached yet
+        AtomicBoolean stop = new AtomicBoolean();
+        Thread renamer = new Thread(() -> {
+            while(!stop.get()) {
+                for(int i = 0; i < count; i++) {
+                    User usr = store.get("m" + i);
+                    if(usr != null) {
+                        store.rename(usr, i % 2 == 0 ? "a" + i : "z" + i);
+                    } else {
+                        User moved = store.get("a" + i);
+                        if(moved == null)
+                            moved = store.get("z" + i);
+                        store.rename(moved, "m" + i);
+                    }
+                }
+            }
+        });
+        renamer.start();
+        try {
+            for(int round = 0; round < 50; round++) {
+                List<User> copy = store.snapshot();
+                assertEquals(count, copy.size());
+                Set<UUID> seen = new HashSet<>();
+                for(User usr: copy)
+                    assertTrue("UUID copied twice: " + usr.getUUID(), seen.add(usr.getUUID()));
+                assertEquals(uuids, seen);
+            }
+        } finally {
+            stop.set(true);
+            renamer.join();
+        }
+    }
+
+    @Test
+    public void snapshotAndLaterRecordsRebuildTheStore() throws Exception {
+        File dir = folder.newFolder();
+        UserStore store = new UserStore();
+        WriteAheadLog wal = WriteAheadLog.open(dir, 0, 0);
+        store.setJournal(wal);
+        byte[] hash = Credentials.hash("pw");
+        for(int i = 0; i < 100; i++)
+            store.create(new User("user" + i, "User " + i, hash, "10.0.0." + i));
+
+        Snapshot snapshot = store.snapshot(wal);
+        File snapshotFile = new File(dir, "registry.snapshot");
+        snapshot.write(snapshotFile);
+
+        for(int i = 0; i < 10; i++)
+            store.rename(store.get("user" + i), "renamed" + i);
+        for(int i = 10; i < 20; i++)
+            store.delete(store.get("user" + i));
+        for(int i = 100; i < 110; i++)
+            store.create(new User("user" + i, null, null, "::1"));
+        wal.commit();
+        wal.close();
+
+        Snapshot read = Snapshot.read(snapshotFile);
+        assertEquals(snapshot.getLsn(), read.getLsn());
+        assertEquals(100, read.getUsers().size());
+        for(User usr: read.getUsers()) {
+            User original = findByUUID(snapshot.getUsers(), usr.getUUID());
+            assertEquals(original.getLoginName(), usr.getLoginName());
+            assertEquals(original.getRealName(), usr.getRealName());
+            assertArrayEquals(original.getPasswordHash(), usr.getPasswordHash());
+            assertEquals(original.getIp(), usr.getIp());
+            assertEquals(original.getLastChangeTime(), usr.getLastChangeTime());
+        }
+
+        UserStore recovered = new UserStore();
+        recovered.loadAll(read.getUsers());
+        long lastLsn = WriteAheadLog.replay(dir, read.getLsn(), recovered.replayer());
+        assertEquals(snapshot.getLsn() + 30, lastLsn);
+        assertEquals(loginsToUUIDs(store), loginsToUUIDs(recovered));
+        assertTrue(Credentials.verify(recovered.get("renamed3").getPasswordHash(), "pw"));
+    }
+
+    private static User findByUUID(List<User> users, UUID uuid) {
+        for(User usr: users) {
+            if(usr.getUUID().equals(uuid))
+                return usr;
+        }
+        fail("No user with UUID " + uuid);
+        return null;
+    }
+
+    private static Map<String, UUID> loginsToUUIDs(UserStore store) {
+        Map<String, UUID> map = new HashMap<>();
+        List<User> users = new ArrayList<>();
+        for(User usr: store.values())
+            users.add(usr);
+        for(User usr: users)
+            map.put(usr.getLoginName(), usr.getUUID());
+
+        return map;
+    }
+}
@@ -0,0 +1,341 @@
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Tests that the write-ahead log replays what was logged, in order and from any LSN, that
+ * replay stops at a torn or corrupt record, and that a write failing partway does not tear the
+ * log for the records after it.
+ *
+ * @author Diklic, Stefan
+ * @author Fernandez, Justin
+ * @author Murphy, Joseph
+ */
+public class WriteAheadLogTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replaysEveryRecordInOrder() throws Exception {
+        File dir = folder.newFolder();
+        User alice = new User("alice", "Alice", new byte[]{1, 2, 3}, "127.0.0.1");
+        Date renamed = new Date(123456789L);
+        WriteAheadLog wal = WriteAheadLog.open(dir, 0, 0);
+        wal.logCreate(alice);
+        wal.logCreate(new User("bob", null, null, null));
+        wal.logRename("alice", "carol", renamed);
+        wal.logRehash("carol", new byte[]{4, 5});
+        wal.logDelete("bob");
+        wal.commit();
+        assertEquals(5, wal.getLastLsn());
+        wal.close();
+
+        Recorder recorder = new Recorder();
+        assertEquals(5, WriteAheadLog.replay(dir, 0, recorder));
+        assertEquals(5, recorder.events.size());
+        assertEquals("create alice Alice 127.0.0.1 " + alice.getUUID(), recorder.events.get(0));
+        assertEquals("create bob null null " + recorder.created.get(1).getUUID(), recorder.events.get(1));
+        assertEquals("rename alice carol 123456789", recorder.events.get(2));
+        assertEquals("rehash carol 2", recorder.events.get(3));
+        assertEquals("delete bob", recorder.events.get(4));
+        assertArrayEquals(new byte[]{1, 2, 3}, recorder.created.get(0).getPasswordHash());
+        assertNull(recorder.created.get(1).getPasswordHash());
+
+        // Records covered by a snapshot are skipped
+        Recorder after = new Recorder();
+        assertEquals(5, WriteAheadLog.replay(dir, 3, after));
+        assertEquals(2, after.events.size());
+        assertEquals("rehash carol 2", after.events.get(0));
+    }
+
+    @Test
+    public void continuesTheSequenceInANewSegment() throws Exception {
+        File dir = folder.newFolder();
+        WriteAheadLog wal = WriteAheadLog.open(dir, 0, 0);
+        wal.logCreate(new User("alice", null, null, null));
+        wal.close();
+
+        WriteAheadLog reopened = WriteAheadLog.open(dir, WriteAheadLog.replay(dir, 0, new Recorder()), 0);
+        reopened.logDelete("alice");
+        reopened.close();
+
+        Recorder recorder = new Recorder();
+        assertEquals(2, WriteAheadLog.replay(dir, 0, recorder));
+        assertEquals("delete alice", recorder.events.get(1));
+    }
+
+    @Test
+    public void stopsAtATornRecord() throws Exception {
+        File dir = folder.newFolder();
+        File segment = writeThree(dir);
+        try(RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        Recorder recorder = new Recorder();
+        assertEquals(2, WriteAheadLog.replay(dir, 0, recorder));
+        assertEquals(2, recorder.events.size());
+    }
+
+    @Test
+    public void stopsAtACorruptRecord() throws Exception {
+        File dir = folder.newFolder();
+        File segment = writeThree(dir);
+        try(RandomAccessFile file = new RandomAccessFile(segment, "rw")) {
+            // Flips a byte in the body of the last record, past its length and checksum
+            long at = file.length() - 2;
+            file.seek(at);
+            int b = file.read();
+            file.seek(at);
+            file.write(b ^ 0xff);
+        }
+
+        Recorder recorder = new Recorder();
+        assertEquals(2, WriteAheadLog.replay(dir, 0, recorder));
+        assertEquals("create b null null", recorder.events.get(1).substring(0, "create b null null".length()));
+    }
+
+    @Test
+    public void cutsAFailedWriteBackOffTheSegment() throws Exception {
+        File dir = folder.newFolder();
+        WriteAheadLog wal = WriteAheadLog.open(dir, 0, 0);
+        wal.logCreate(new User("a", null, null, null));
+        FailingChannel failing = failNextWrite(wal, false);
+        try {
+            wal.logCreate(new User("b", null, null, null));
+            fail("The write should have failed");
+        } catch (UncheckedIOException e) {
+            // Expected
+        }
+        failing.budget = -1;
+        wal.logCreate(new User("c", null, null, null));
+        wal.close();
+
+        Recorder recorder = new Recorder();
+        assertEquals(2, WriteAheadLog.replay(dir, 0, recorder));
+        assertEquals(2, recorder.events.size());
+        assertTrue(recorder.events.get(1).startsWith("create c "));
+    }
+
+    @Test
+    public void goesOnInANewSegmentWhenAFailedWriteCannotBeCut() throws Exception {
+        File dir = folder.newFolder();
+        WriteAheadLog wal = WriteAheadLog.open(dir, 0, 0);
+        wal.logCreate(new User("a", null, null, null));
+        failNextWrite(wal, true);
+        try {
+            wal.logCreate(new User("b", null, null, null));
+            fail("The write should have failed");
+        } catch (UncheckedIOException e) {
+            assertEquals(1, e.getCause().getSuppressed().length);
+        }
+        wal.logCreate(new User("c", null, null, null));
+        wal.commit();
+        wal.close();
+
+        assertEquals(2, dir.listFiles((d, name) -> name.startsWith("registry.wal.")).length);
+        Recorder recorder = new Recorder();
+        assertEquals(2, WriteAheadLog.replay(dir, 0, recorder));
+        assertTrue(recorder.events.get(1).startsWith("create c "));
+    }
+
+    @Test
+    public void refusesStringsTooLongForARecord() {
+        StringBuilder ascii = new StringBuilder();
+        for(int i = 0; i < 65535; i++)
+            ascii.append('x');
+        assertTrue(WriteAheadLog.fits(ascii.toString()));
+        assertFalse(WriteAheadLog.fits(ascii.append('x').toString()));
+
+        // Three bytes a character in modified UTF-8
+        StringBuilder wide = new StringBuilder();
+        for(int i = 0; i < 21846; i++)
+            wide.append('\u20ac');
+        assertFalse(WriteAheadLog.fits(wide.toString()));
+        assertTrue(WriteAheadLog.fits(wide.substring(1)));
+    }
+
+    private static File writeThree(File dir) throws Exception {
+        WriteAheadLog wal = WriteAheadLog.open(dir, 0, 0);
+        wal.logCreate(new User("a", null, null, null));
+        wal.logCreate(new User("b", null, null, null));
+        wal.logCreate(new User("c", null, null, null));
+        wal.close();
+
+        File[] segments = dir.listFiles((d, name) -> name.startsWith("registry.wal."));
+        assertEquals(1, segments.length);
+        return segments[0];
+    }
+
+    // Makes the log's next write fail after a few bytes, as a full disk would
+    private static FailingChannel failNextWrite(WriteAheadLog wal, boolean truncateFails) throws Exception {
+        Field field = WriteAheadLog.class.getDeclaredField("channel");
+        field.setAccessible(true);
+        FailingChannel failing = new FailingChannel((FileChannel) field.get(wal), truncateFails);
+        field.set(wal, failing);
+        return failing;
+    }
+
+    /**
+     * A segment's channel that writes only budget bytes and then fails
+     */
+    private static class FailingChannel extends FileChannel {
+        private final FileChannel file;
+        private final boolean truncateFails;
+        // Bytes left to write before failing, -1 for no limit
+        int budget = 5;
+
+        FailingChannel(FileChannel file, boolean truncateFails) {
+            this.file = file;
+            this.truncateFails = truncateFails;
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            if(budget < 0)
+                return file.write(srcs, offset, length);
+
+            long written = 0;
+            for(int i = offset; i < offset + length; i++) {
+                ByteBuffer part = srcs[i].duplicate();
+                part.limit(part.position() + Math.min(part.remaining(), budget));
+                int n = file.write(part);
+                srcs[i].position(srcs[i].position() + n);
+                budget -= n;
+                written += n;
+                if(budget == 0 && srcs[i].hasRemaining())
+                    throw new IOException("No space left on device");
+            }
+            return written;
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            return (int) write(new ByteBuffer[]{src}, 0, 1);
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            if(truncateFails)
+                throw new IOException("Input/output error");
+            file.truncate(size);
+            return this;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            return file.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            return file.read(dsts, offset, length);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return file.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            file.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return file.size();
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            file.force(metaData);
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            return file.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            return file.transferFrom(src, position, count);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            return file.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            return file.write(src, position);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return file.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return file.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return file.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            file.close();
+        }
+    }
+
+    /**
+     * Writes down each replayed record as a line of text
+     */
+    private static class Recorder implements Journal {
+        final List<String> events = new ArrayList<>();
+        final List<User> created = new ArrayList<>();
+
+        @Override
+        public void logCreate(User user) {
+            created.add(user);
+            events.add("create " + user.getLoginName() + " " + user.getRealName() + " " + user.getIp() + " " + user.getUUID());
+        }
+
+        @Override
+        public void logRename(String oldLoginName, String newLoginName, Date lastChangeDate) {
+            events.add("rename " + oldLoginName + " " + newLoginName + " " + lastChangeDate.getTime());
+        }
+
+        @Override
+        public void logDelete(String loginName) {
+            events.add("delete " + loginName);
+        }
+
+        @Override
+        public void logRehash(String loginName, byte[] passwordHash) {
+            events.add("rehash " + loginName + " " + passwordHash.length);
+        }
+    }
+}